@@ -33,6 +33,7 @@ final class AddressParser {
     private static final Pattern WINDOWS_SERIAL_DEVICE = Pattern.compile("[cC][oO][mM][0-9]+");
     private static final Pattern IP_ADDRESS_PATTERN =
             Pattern.compile("(\\d{1,3}\\.){3}\\d{1,3}:\\d{1,5}");
+    private static final Pattern SIMULATOR_PATTERN = Pattern.compile("sim(:\\d{1,9}:\\d{1,9})?");
 
     private AddressParser() {
     }
@@ -62,11 +63,23 @@ final class AddressParser {
         return IP_ADDRESS_PATTERN.matcher(addr).matches();
     }
 
+    private static boolean checkIfSimulator(String addr) {
+        return SIMULATOR_PATTERN.matcher(addr).matches();
+    }
+
     static Connector parseDeviceAddress(String givenAddress)
             throws CommandLineUsageException, IOException {
 
         String address = givenAddress.trim();
 
+        if (checkIfSimulator(address)) {
+            String[] split = address.split(":");
+            if (split.length == 1) {
+                return new SimulatedPed(0L, 0L);
+            }
+            return new SimulatedPed(Long.parseLong(split[1]), Long.parseLong(split[2]));
+        }
+
         if (checkIfIpAddress(address)) {
 
             String[] split = address.split(":");
@@ -119,7 +132,9 @@ final class AddressParser {
                 + "    Wi-Fi (IP server port) : ':3456'\n"
                 + "    Serial port (Windows)  : 'COM5'\n"
                 + "    Serial port (Linux)    : '/dev/rfcomm0'\n"
-                + "    Local Socket (M20)     : ? Not implemented yet ?";
+                + "    Local Socket (M20)     : ? Not implemented yet ?\n"
+                + "    Simulator (in-process) : 'sim'\n"
+                + "    Simulator with link    : 'sim:<latency ms>:<bytes per second>'";
         builder.append(s);
     }
 }
@@ -27,6 +27,7 @@ public final class Main {
             d, demo
             p, ped_shop
             i, interactive on local jvm
+            b, benchmark
             t, integration_tests
 
         <device>
@@ -35,6 +36,7 @@ public final class Main {
             ip
             usb
             internal socket, for m20?
+            sim, in-process simulator
 
         If no option given on command-line, do:
             1. Run a simple demo.
@@ -87,6 +89,13 @@ public final class Main {
                 }
                 PedShopDemo.runInteractive(connector);
                 break;
+            case Benchmark:
+                Connector benchmarkConnector = cmdLine.getConnector();
+                if (benchmarkConnector == null) {
+                    throw new AssertionError("Connector expected?");
+                }
+                TransferBenchmark.run(benchmarkConnector);
+                break;
         }
 
         System.exit(0);
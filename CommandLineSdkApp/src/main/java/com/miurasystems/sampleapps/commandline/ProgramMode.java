@@ -14,6 +14,9 @@ enum ProgramMode {
     Interactive("i", "interactive",
             "Run an interactive transaction on this computer"
     ),
+    Benchmark("b", "benchmark",
+            "Benchmark file uploads and downloads"
+    ),
     Help("h", "help", "Show usage help", true),
     Version("v", "version", "Show program version", true);
 
@@ -0,0 +1,502 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.sampleapps.commandline;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.comms.Connector;
+import com.miurasystems.miuralibrary.comms.MpiProtocolSession;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A PED that lives in this process, for running the benchmarks without a device.
+ *
+ * <p>It understands just enough of the MPI to store and return files: SELECT FILE,
+ * STREAM BINARY and READ BINARY. Every other command is answered with 9000.
+ *
+ * <p>The link has a one-way latency and a bandwidth, applied in each direction, so the
+ * benchmarks can be run against something shaped like Bluetooth or Wi-Fi. Commands are
+ * carried out one at a time on the PED's own thread, as on a real device, so commands
+ * kept in flight by the SDK overlap with the link's latency in the same way.
+ */
+final class SimulatedPed extends Connector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SimulatedPed.class);
+
+    /** The prefix of the names of the PED's threads, so their CPU time can be told apart */
+    static final String THREAD_NAME = "SimulatedPed";
+
+    private static final byte[] SW_OK = {(byte) 0x90, (byte) 0x00};
+    private static final byte[] SW_FILE_ERROR = {(byte) 0x9F, (byte) 0x20};
+    private static final byte[] SW_WRONG_LENGTH = {(byte) 0x67, (byte) 0x00};
+
+    private static final int MAX_APDU_SIZE = 254;
+    private static final int PCB_CHAINED = 0x01;
+
+    private final long mLatencyNanos;
+    private final long mBytesPerSecond;
+
+    /** The PED's files. Only used by the PED's thread. */
+    private final HashMap<String, byte[]> mFiles = new HashMap<>();
+    @Nullable
+    private String mSelected;
+
+    @Nullable
+    private Link mLink;
+
+    /**
+     * @param latencyMs      One way link latency, in milliseconds
+     * @param bytesPerSecond Link bandwidth in each direction. 0 for unlimited.
+     */
+    SimulatedPed(long latencyMs, long bytesPerSecond) {
+        mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mLink != null && !mLink.mClosed;
+    }
+
+    @Override
+    protected synchronized void connect() throws IOException {
+        mLink = new Link();
+        mLink.start();
+    }
+
+    @Override
+    protected synchronized void disconnect(MpiProtocolSession closingSession)
+            throws IOException {
+        if (mLink != null) {
+            mLink.close();
+        }
+    }
+
+    @Override
+    protected synchronized InputStream getInputStream() throws IOException {
+        if (mLink == null) throw new IOException("Not connected");
+        return mLink.mToHost;
+    }
+
+    @Override
+    protected synchronized OutputStream getOutputStream() throws IOException {
+        if (mLink == null) throw new IOException("Not connected");
+        return mLink.mFromHost;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SimulatedPed(latency: %dms, bandwidth: %dB/s)",
+                TimeUnit.NANOSECONDS.toMillis(mLatencyNanos), mBytesPerSecond);
+    }
+
+    /**
+     * Carry out a command.
+     *
+     * @param command The command APDU
+     * @param stream  The binary that followed it, if it's a STREAM BINARY
+     * @return The response APDU, including status bytes
+     */
+    private byte[] handle(byte[] command, @Nullable byte[] stream) {
+        if (command.length < 4) {
+            return SW_WRONG_LENGTH;
+        }
+        CommandType type = CommandType.valueOf(command[0], command[1]);
+        if (type == CommandType.Select_File) {
+            return selectFile(command);
+        } else if (type == CommandType.Stream_Binary) {
+            return streamBinary(command, stream);
+        } else if (type == CommandType.Read_Binary) {
+            return readBinary(command);
+        }
+        return SW_OK;
+    }
+
+    private byte[] selectFile(byte[] command) {
+        if (command.length < 5 || command.length < 5 + (command[4] & 0xFF)) {
+            return SW_WRONG_LENGTH;
+        }
+        int p1 = command[2] & 0xFF;
+        mSelected = new String(command, 5, command[4] & 0xFF, US_ASCII);
+        byte[] file = mFiles.get(mSelected);
+        if (p1 == 0x01 || file == null) {
+            file = new byte[0];
+            mFiles.put(mSelected, file);
+        }
+
+        int size = file.length;
+        byte[] body = TLVParser.encode(Description.File_Size,
+                new byte[]{0, (byte) (size >> 16), (byte) (size >> 8), (byte) size});
+        if ((p1 & 0x80) != 0) {
+            byte[] md5 = TLVParser.encode(Description.File_md5sum, md5(file));
+            body = concat(body, md5);
+        }
+        return concat(TLVParser.encode(Description.Response_Data, body), SW_OK);
+    }
+
+    private byte[] streamBinary(byte[] command, @Nullable byte[] stream) {
+        int offset = getStreamField(command, 0x01);
+        byte[] file = mSelected == null ? null : mFiles.get(mSelected);
+        if (stream == null || file == null || offset < 0 || offset > file.length) {
+            return SW_FILE_ERROR;
+        }
+        file = Arrays.copyOf(file, Math.max(file.length, offset + stream.length));
+        System.arraycopy(stream, 0, file, offset, stream.length);
+        mFiles.put(mSelected, file);
+        return SW_OK;
+    }
+
+    private byte[] readBinary(byte[] command) {
+        byte[] file = mSelected == null ? null : mFiles.get(mSelected);
+        if (file == null || command.length < 5) {
+            return SW_FILE_ERROR;
+        }
+        int p1 = command[2] & 0xFF;
+        int p2 = command[3] & 0xFF;
+        int offset;
+        if ((p1 & 0x80) == 0) {
+            offset = (p1 << 8) | p2;
+        } else if (command.length >= 7) {
+            offset = ((p1 & 0x7F) << 16) | (p2 << 8) | (command[5] & 0xFF);
+        } else {
+            return SW_WRONG_LENGTH;
+        }
+        if (offset > file.length) {
+            return SW_FILE_ERROR;
+        }
+        int le = command[command.length - 1] & 0xFF;
+        byte[] data = Arrays.copyOfRange(file, offset, Math.min(offset + le, file.length));
+        return concat(data, SW_OK);
+    }
+
+    /**
+     * Find one of STREAM BINARY's 3 byte fields, dfa3xx
+     *
+     * @param command The STREAM BINARY command, or any other command
+     * @param tag     The last byte of the field's tag
+     * @return The field's value, or -1 if it isn't there
+     */
+    private static int getStreamField(byte[] command, int tag) {
+        if (command.length < 8 || command[0] != 0x00 || command[1] != (byte) 0xD7) {
+            return -1;
+        }
+        for (int i = 5; i + 6 < command.length; i++) {
+            if (command[i] == (byte) 0xDF && command[i + 1] == (byte) 0xA3
+                    && command[i + 2] == (byte) tag && command[i + 3] == 0x03) {
+                return ((command[i + 4] & 0xFF) << 16)
+                        | ((command[i + 5] & 0xFF) << 8)
+                        | (command[i + 6] & 0xFF);
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    /**
+     * Sleep until the given System.nanoTime()
+     */
+    private static void sleepUntil(long dueNanos) throws InterruptedException {
+        long remaining = dueNanos - System.nanoTime();
+        if (remaining > 0L) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    /**
+     * Bytes in flight, with the time they arrive at the other end.
+     */
+    private static final class Delivery {
+        final long mDueNanos;
+        @Nullable
+        final byte[] mBytes;
+        @Nullable
+        final byte[] mStream;
+
+        Delivery(long dueNanos, @Nullable byte[] bytes, @Nullable byte[] stream) {
+            mDueNanos = dueNanos;
+            mBytes = bytes;
+            mStream = stream;
+        }
+    }
+
+    /**
+     * The two directions of the link, and the PED's thread.
+     */
+    private final class Link {
+
+        final LinkedBlockingQueue<Delivery> mToPed = new LinkedBlockingQueue<>();
+        final LinkedBlockingQueue<Delivery> mToHostQueue = new LinkedBlockingQueue<>();
+        final BytePipe mToHost = new BytePipe();
+        final HostOutputStream mFromHost = new HostOutputStream();
+        final Thread mPedThread;
+        final Thread mDeliveryThread;
+        volatile boolean mClosed;
+
+        /** When each direction is next free, in nanoTime */
+        private long mUplinkFreeNanos;
+        private long mDownlinkFreeNanos;
+
+        Link() {
+            mPedThread = new Thread(this::pedLoop, THREAD_NAME);
+            mDeliveryThread = new Thread(this::deliveryLoop, THREAD_NAME + "-link");
+            mPedThread.setDaemon(true);
+            mDeliveryThread.setDaemon(true);
+        }
+
+        void start() {
+            mPedThread.start();
+            mDeliveryThread.start();
+        }
+
+        void close() {
+            mClosed = true;
+            mToHost.close();
+            mToPed.offer(new Delivery(0L, null, null));
+            mToHostQueue.offer(new Delivery(0L, null, null));
+        }
+
+        synchronized long uplinkDue(int length) {
+            long start = Math.max(System.nanoTime(), mUplinkFreeNanos);
+            mUplinkFreeNanos = start + transmitNanos(length);
+            return mUplinkFreeNanos + mLatencyNanos;
+        }
+
+        synchronized long downlinkDue(int length) {
+            long start = Math.max(System.nanoTime(), mDownlinkFreeNanos);
+            mDownlinkFreeNanos = start + transmitNanos(length);
+            return mDownlinkFreeNanos + mLatencyNanos;
+        }
+
+        private long transmitNanos(int length) {
+            return mBytesPerSecond <= 0L ? 0L : (length * 1000000000L) / mBytesPerSecond;
+        }
+
+        /**
+         * Packetise a response, chaining it if it doesn't fit in one packet.
+         */
+        void sendToHost(int nad, byte[] apdu) {
+            int offset = 0;
+            while (offset < apdu.length) {
+                int len = Math.min(MAX_APDU_SIZE, apdu.length - offset);
+                if (apdu.length - offset - len == 1) {
+                    // packets carry at least 2 bytes, so leave 2 for the last one
+                    len--;
+                }
+                boolean last = offset + len >= apdu.length;
+                byte[] packet = new byte[len + 4];
+                packet[0] = (byte) nad;
+                packet[1] = (byte) (last ? 0 : PCB_CHAINED);
+                packet[2] = (byte) len;
+                System.arraycopy(apdu, offset, packet, 3, len);
+                int lrc = 0;
+                for (int i = 0; i < len + 3; i++) {
+                    lrc ^= packet[i];
+                }
+                packet[len + 3] = (byte) lrc;
+                mToHostQueue.offer(new Delivery(downlinkDue(packet.length), packet, null));
+                offset += len;
+            }
+        }
+
+        void pedLoop() {
+            try {
+                while (true) {
+                    Delivery delivery = mToPed.take();
+                    if (delivery.mBytes == null || mClosed) {
+                        return;
+                    }
+                    sleepUntil(delivery.mDueNanos);
+
+                    byte[] packet = delivery.mBytes;
+                    byte[] command = Arrays.copyOfRange(packet, 3, 3 + (packet[2] & 0xFF));
+                    sendToHost(packet[0] & 0xFF, handle(command, delivery.mStream));
+                }
+            } catch (InterruptedException ignore) {
+            } catch (RuntimeException e) {
+                LOGGER.warn("SimulatedPed failed", e);
+                close();
+            }
+        }
+
+        void deliveryLoop() {
+            try {
+                while (true) {
+                    Delivery delivery = mToHostQueue.take();
+                    if (delivery.mBytes == null) {
+                        return;
+                    }
+                    sleepUntil(delivery.mDueNanos);
+                    mToHost.write(delivery.mBytes);
+                }
+            } catch (InterruptedException ignore) {
+            }
+        }
+
+        /**
+         * Splits what the host writes into packets, and collects the binary that follows
+         * each STREAM BINARY.
+         */
+        private final class HostOutputStream extends OutputStream {
+
+            private final byte[] mPacket = new byte[MAX_APDU_SIZE + 4];
+            private int mFill;
+
+            @Nullable
+            private byte[] mStreamCommand;
+            @Nullable
+            private byte[] mStream;
+            private int mStreamFill;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException {
+                if (mClosed) {
+                    throw new IOException("Link closed");
+                }
+                while (len > 0) {
+                    if (mStream != null) {
+                        int n = Math.min(len, mStream.length - mStreamFill);
+                        System.arraycopy(b, off, mStream, mStreamFill, n);
+                        mStreamFill += n;
+                        off += n;
+                        len -= n;
+                        if (mStreamFill == mStream.length) {
+                            deliver(mStreamCommand, mStream);
+                            mStreamCommand = null;
+                            mStream = null;
+                        }
+                        continue;
+                    }
+
+                    mPacket[mFill++] = b[off++];
+                    len--;
+                    if (mFill >= 3 && mFill == (mPacket[2] & 0xFF) + 4) {
+                        byte[] packet = Arrays.copyOf(mPacket, mFill);
+                        mFill = 0;
+                        int streamSize = getStreamField(
+                                Arrays.copyOfRange(packet, 3, packet.length - 1), 0x02);
+                        if (streamSize > 0) {
+                            mStreamCommand = packet;
+                            mStream = new byte[streamSize];
+                            mStreamFill = 0;
+                        } else {
+                            deliver(packet, null);
+                        }
+                    }
+                }
+            }
+
+            private void deliver(byte[] packet, @Nullable byte[] stream) {
+                int length = packet.length + (stream == null ? 0 : stream.length);
+                mToPed.offer(new Delivery(uplinkDue(length), packet, stream));
+            }
+        }
+    }
+
+    /**
+     * Unbounded blocking byte pipe. Unlike PipedInputStream it doesn't care which threads
+     * are reading or writing.
+     */
+    private static final class BytePipe extends InputStream {
+
+        private byte[] mBuffer = new byte[4096];
+        private int mRead;
+        private int mWrite;
+        private boolean mClosed;
+
+        synchronized void write(byte[] bytes) {
+            if (mClosed) {
+                return;
+            }
+            if (mWrite + bytes.length > mBuffer.length) {
+                int used = mWrite - mRead;
+                byte[] buffer = mBuffer;
+                if (used + bytes.length > mBuffer.length) {
+                    buffer = new byte[Math.max(mBuffer.length * 2, used + bytes.length)];
+                }
+                System.arraycopy(mBuffer, mRead, buffer, 0, used);
+                mBuffer = buffer;
+                mRead = 0;
+                mWrite = used;
+            }
+            System.arraycopy(bytes, 0, mBuffer, mWrite, bytes.length);
+            mWrite += bytes.length;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (mRead == mWrite && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mRead == mWrite) {
+                return -1;
+            }
+            int n = Math.min(len, mWrite - mRead);
+            System.arraycopy(mBuffer, mRead, b, off, n);
+            mRead += n;
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return mWrite - mRead;
+        }
+    }
+}
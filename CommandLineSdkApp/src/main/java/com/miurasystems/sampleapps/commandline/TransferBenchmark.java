@@ -0,0 +1,350 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.sampleapps.commandline;
+
+import static com.miurasystems.miuralibrary.enums.InterfaceType.MPI;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.WindowedFileReader;
+import com.miurasystems.miuralibrary.api.objects.FileDigest;
+import com.miurasystems.miuralibrary.api.utils.GetDeviceFile;
+import com.miurasystems.miuralibrary.api.utils.StreamBinaryFile;
+import com.miurasystems.miuralibrary.comms.Connector;
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Standard upload and download benchmarks, to compare devices, links and SDK changes.
+ *
+ * <p>A file of each of {@link #FILE_SIZES} is uploaded to {@link #FILE_NAME} with
+ * {@link StreamBinaryFile} and with {@link MpiClient#streamBinary} in chunks of each of
+ * {@link #STREAM_CHUNK_SIZES}, then downloaded with {@link GetDeviceFile}, with a
+ * {@link WindowedFileReader} for each window size and with single READ BINARYs of each of
+ * {@link #READ_CHUNK_SIZES}. Every transfer is checked, so a fast but broken one can't
+ * look like a win.
+ *
+ * <p>For each run the table shows the throughput, the latency percentiles of the chunks
+ * that were timed one at a time, and how the time was split between the SDK and the link.
+ * "sdk ms" is the CPU time used by this process's threads, other than the simulator's, and
+ * "wait ms" is the rest of the run's wall time, i.e. time spent waiting on the link and the
+ * device.
+ */
+final class TransferBenchmark {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransferBenchmark.class);
+
+    /** The file the benchmarks write to on the device. It's left there afterwards. */
+    static final String FILE_NAME = "benchmark.bin";
+
+    static final int[] FILE_SIZES = {0x4000, 0x10000, 0x40000};
+
+    static final int[] STREAM_CHUNK_SIZES = {0x1000, 0x4000, 0x10000};
+
+    static final int[] READ_CHUNK_SIZES = {64, WindowedFileReader.MAX_CHUNK_SIZE};
+
+    private static final int STREAM_TIMEOUT = 100;
+
+    private static final String ROW_FORMAT =
+            "%-8s %-18s %7s %-9s %9s %8s %8s %8s %9s %9s %s";
+
+    /**
+     * One benchmark transfer.
+     */
+    @FunctionalInterface
+    private interface Transfer {
+
+        /**
+         * @param chunkNanos Add how long each chunk took to here, if they're sent one at a time
+         * @return true if the transfer worked and the data was correct
+         */
+        boolean run(List<Long> chunkNanos);
+    }
+
+    /**
+     * Called with each benchmark's result.
+     */
+    @FunctionalInterface
+    interface MeasurementListener {
+        void onMeasurement(Measurement measurement);
+    }
+
+    /**
+     * The result of one benchmark transfer.
+     */
+    static final class Measurement {
+        final String mOperation;
+        final String mMethod;
+        final int mFileSize;
+        final String mSetting;
+        final long mWallNanos;
+        /** CPU time used by the SDK, or -1 if it can't be measured */
+        final long mCpuNanos;
+        final long[] mChunkNanos;
+        final boolean mOk;
+
+        Measurement(String operation, String method, int fileSize, String setting,
+                long wallNanos, long cpuNanos, long[] chunkNanos, boolean ok) {
+            mOperation = operation;
+            mMethod = method;
+            mFileSize = fileSize;
+            mSetting = setting;
+            mWallNanos = wallNanos;
+            mCpuNanos = cpuNanos;
+            mChunkNanos = chunkNanos;
+            mOk = ok;
+        }
+
+        long getBytesPerSecond() {
+            return mWallNanos <= 0L ? 0L : mFileSize * 1000000000L / mWallNanos;
+        }
+
+        /**
+         * @param quantile e.g. 0.9 for the 90th percentile
+         * @return The chunk latency percentile in nanoseconds, or -1 if no chunks were timed
+         */
+        long getChunkPercentile(double quantile) {
+            if (mChunkNanos.length == 0) {
+                return -1L;
+            }
+            long[] sorted = mChunkNanos.clone();
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(quantile * sorted.length);
+            return sorted[Math.max(0, Math.min(rank, sorted.length) - 1)];
+        }
+
+        long getWaitNanos() {
+            return mCpuNanos < 0L ? -1L : Math.max(0L, mWallNanos - mCpuNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, ROW_FORMAT,
+                    mOperation, mMethod, mFileSize / 1024 + "K", mSetting,
+                    String.format(Locale.ENGLISH, "%.1f", getBytesPerSecond() / 1024.0),
+                    millis(getChunkPercentile(0.5)),
+                    millis(getChunkPercentile(0.9)),
+                    millis(getChunkPercentile(0.99)),
+                    millis(mCpuNanos),
+                    millis(getWaitNanos()),
+                    mOk ? "ok" : "FAILED");
+        }
+
+        private static String millis(long nanos) {
+            if (nanos < 0L) {
+                return "-";
+            }
+            return String.format(Locale.ENGLISH, "%.2f", nanos / 1000000.0);
+        }
+    }
+
+    private final MpiClient mClient;
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+
+    TransferBenchmark(MpiClient client) {
+        mClient = client;
+        if (mThreads.isThreadCpuTimeSupported() && !mThreads.isThreadCpuTimeEnabled()) {
+            mThreads.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    /**
+     * Run the benchmarks on a device and print the results.
+     *
+     * @param connector The device to run them on
+     * @throws IOException If the session couldn't be opened
+     */
+    static void run(Connector connector) throws IOException {
+        MpiClient client = new MpiClient(connector, new MpiEvents());
+        client.openSession();
+        try {
+            System.out.println(String.format(Locale.ENGLISH,
+                    "Benchmarking file transfers on %s", connector));
+            TransferBenchmark benchmark = new TransferBenchmark(client);
+            benchmark.warmUp();
+            System.out.println(String.format(Locale.ENGLISH, ROW_FORMAT,
+                    "op", "method", "size", "setting", "KB/s",
+                    "p50 ms", "p90 ms", "p99 ms", "sdk ms", "wait ms", ""));
+            benchmark.runAll(measurement -> {
+                LOGGER.info("{}", measurement);
+                System.out.println(measurement);
+            });
+        } finally {
+            client.closeSession();
+        }
+    }
+
+    /**
+     * Run the smallest benchmarks once without reporting them, so the JIT has compiled the
+     * SDK's transfer code before anything is measured.
+     */
+    void warmUp() {
+        int size = FILE_SIZES[0];
+        runSize(size, makeFile(size), measurement -> { });
+    }
+
+    /**
+     * Run every benchmark.
+     *
+     * @param results Given each result as it's measured
+     */
+    void runAll(MeasurementListener results) {
+        for (int size : FILE_SIZES) {
+            runSize(size, makeFile(size), results);
+        }
+    }
+
+    private void runSize(int size, byte[] data, MeasurementListener results) {
+        results.onMeasurement(measure("upload", "StreamBinaryFile", size, "-",
+                chunkNanos -> uploadStreamBinaryFile(data)));
+        for (int chunkSize : STREAM_CHUNK_SIZES) {
+            results.onMeasurement(measure("upload", "streamBinary", size, chunkSize / 1024 + "K",
+                    chunkNanos -> uploadChunks(data, chunkSize, chunkNanos)));
+        }
+
+        results.onMeasurement(measure("download", "GetDeviceFile", size, "-",
+                chunkNanos -> Arrays.equals(
+                        data, GetDeviceFile.getDeviceFile(mClient, MPI, FILE_NAME, null))));
+        for (int window = 1; window <= WindowedFileReader.MAX_WINDOW; window++) {
+            int maxWindow = window;
+            results.onMeasurement(measure("download", "WindowedFileReader", size,
+                    "window " + window,
+                    chunkNanos -> downloadWindowed(data, maxWindow)));
+        }
+        for (int chunkSize : READ_CHUNK_SIZES) {
+            results.onMeasurement(measure("download", "readBinary", size,
+                    String.valueOf(chunkSize),
+                    chunkNanos -> downloadChunks(data, chunkSize, chunkNanos)));
+        }
+    }
+
+    private Measurement measure(
+            String operation, String method, int size, String setting, Transfer transfer) {
+        List<Long> chunkNanos = new ArrayList<>();
+        long cpuStart = getSdkCpuNanos();
+        long start = System.nanoTime();
+        boolean ok = transfer.run(chunkNanos);
+        long wallNanos = System.nanoTime() - start;
+        long cpuEnd = getSdkCpuNanos();
+
+        long cpuNanos = (cpuStart < 0L || cpuEnd < 0L) ? -1L : cpuEnd - cpuStart;
+        long[] chunks = new long[chunkNanos.size()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = chunkNanos.get(i);
+        }
+        return new Measurement(operation, method, size, setting, wallNanos, cpuNanos, chunks, ok);
+    }
+
+    private boolean uploadStreamBinaryFile(byte[] data) {
+        boolean ok = StreamBinaryFile.streamBinaryFile(
+                mClient, MPI, FILE_NAME, new ByteArrayInputStream(data), null);
+        return ok && checkUpload(data);
+    }
+
+    private boolean uploadChunks(byte[] data, int chunkSize, List<Long> chunkNanos) {
+        if (mClient.selectFile(MPI, SelectFileMode.Truncate, FILE_NAME) < 0) {
+            return false;
+        }
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            int size = Math.min(chunkSize, data.length - offset);
+            long start = System.nanoTime();
+            boolean ok = mClient.streamBinary(
+                    MPI, false, ByteBuffer.wrap(data, offset, size), offset, STREAM_TIMEOUT);
+            chunkNanos.add(System.nanoTime() - start);
+            if (!ok) {
+                return false;
+            }
+        }
+        return checkUpload(data);
+    }
+
+    private boolean checkUpload(byte[] data) {
+        FileDigest digest = mClient.selectFileWithMd5(MPI, FILE_NAME);
+        if (digest == null) {
+            /* Not every device gives an MD5 */
+            return mClient.selectFile(MPI, SelectFileMode.Append, FILE_NAME) == data.length;
+        }
+        return digest.getSize() == data.length && digest.md5Equals(md5(data));
+    }
+
+    private boolean downloadWindowed(byte[] data, int maxWindow) {
+        int fileSize = mClient.selectFile(MPI, SelectFileMode.Append, FILE_NAME);
+        if (fileSize != data.length) {
+            return false;
+        }
+        WindowedFileReader reader = new WindowedFileReader(mClient, MPI, maxWindow);
+        return Arrays.equals(data, reader.read(fileSize, null));
+    }
+
+    private boolean downloadChunks(byte[] data, int chunkSize, List<Long> chunkNanos) {
+        int fileSize = mClient.selectFile(MPI, SelectFileMode.Append, FILE_NAME);
+        if (fileSize != data.length) {
+            return false;
+        }
+        byte[] content = new byte[fileSize];
+        for (int offset = 0; offset < fileSize; offset += chunkSize) {
+            int size = Math.min(chunkSize, fileSize - offset);
+            long start = System.nanoTime();
+            ResponseMessage rm = mClient.readBinary(MPI, fileSize, offset, size);
+            chunkNanos.add(System.nanoTime() - start);
+            if (rm == null || !rm.isSuccess() || rm.getBody().length != size) {
+                return false;
+            }
+            System.arraycopy(rm.getBody(), 0, content, offset, size);
+        }
+        return Arrays.equals(data, content);
+    }
+
+    /**
+     * @return The CPU time used so far by this process's threads, other than the
+     * simulator's, or -1 if it can't be measured
+     */
+    private long getSdkCpuNanos() {
+        if (!mThreads.isThreadCpuTimeSupported()) {
+            return -1L;
+        }
+        long total = 0L;
+        for (ThreadInfo info : mThreads.getThreadInfo(mThreads.getAllThreadIds())) {
+            if (info == null || info.getThreadName().startsWith(SimulatedPed.THREAD_NAME)) {
+                continue;
+            }
+            long nanos = mThreads.getThreadCpuTime(info.getThreadId());
+            if (nanos > 0L) {
+                total += nanos;
+            }
+        }
+        return total;
+    }
+
+    private static byte[] makeFile(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -129,6 +129,22 @@ public class AddressParserTest {
         }
     }
 
+    @Parameters({
+            "sim",
+            "\tsim  ",
+            "sim:20:100000",
+    })
+    @Test
+    public void parseAddressSimulator(String givenAddress) throws Exception {
+        // setup
+
+        // execute
+        Connector actualConnector = AddressParser.parseDeviceAddress(givenAddress);
+
+        // verify
+        assertThat(actualConnector.getClass(), is(equalTo(SimulatedPed.class)));
+    }
+
     @Test
     public void parseAddressSerial() throws Exception {
         // setup
@@ -56,6 +56,7 @@ public class ProgramModeTest {
             "ped_shop, true, PedShop",
             "PedShop, false, Demo", // 3rd param here ignored
             "interactive, true, Interactive",
+            "benchmark, true, Benchmark",
             // "integration_tests, true, Tests",
             "tests, false, Demo", // 3rd param here ignored
     })
@@ -88,6 +89,7 @@ public class ProgramModeTest {
             "p, true, PedShop",
             "P, false, Demo", // 3rd param here ignored
             "i, true, Interactive",
+            "b, true, Benchmark",
             // "t, true, Tests",
     })
     public void parseCommandLine_validShortModes(
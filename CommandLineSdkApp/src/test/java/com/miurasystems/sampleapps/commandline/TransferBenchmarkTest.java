@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.sampleapps.commandline;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.WindowedFileReader;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.sampleapps.commandline.TransferBenchmark.Measurement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TransferBenchmarkTest {
+
+    private MpiClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mClient = new MpiClient(new SimulatedPed(0L, 0L), new MpiEvents());
+        mClient.openSession();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.closeSession();
+    }
+
+    @Test
+    public void everyTransferWorksOnSimulator() {
+        // setup
+        TransferBenchmark benchmark = new TransferBenchmark(mClient);
+        List<Measurement> results = new ArrayList<>();
+
+        // execute
+        benchmark.runAll(results::add);
+
+        // verify
+        int perSize = 1 + TransferBenchmark.STREAM_CHUNK_SIZES.length
+                + 1 + WindowedFileReader.MAX_WINDOW + TransferBenchmark.READ_CHUNK_SIZES.length;
+        assertThat(results.size(), is(equalTo(TransferBenchmark.FILE_SIZES.length * perSize)));
+        for (Measurement measurement : results) {
+            assertThat(measurement.toString(), measurement.mOk, is(true));
+            assertThat(measurement.getBytesPerSecond(), is(greaterThan(0L)));
+        }
+    }
+
+    @Test
+    public void chunksAreTimedOneAtATime() {
+        // setup
+        TransferBenchmark benchmark = new TransferBenchmark(mClient);
+        List<Measurement> results = new ArrayList<>();
+
+        // execute
+        benchmark.runAll(results::add);
+
+        // verify
+        for (Measurement measurement : results) {
+            if (measurement.mMethod.equals("readBinary")) {
+                int chunkSize = Integer.parseInt(measurement.mSetting);
+                int chunks = (measurement.mFileSize + chunkSize - 1) / chunkSize;
+                assertThat(measurement.mChunkNanos.length, is(chunks));
+                assertThat(measurement.getChunkPercentile(0.99),
+                        is(greaterThan(measurement.getChunkPercentile(0.5) - 1L)));
+            } else if (measurement.mMethod.equals("StreamBinaryFile")) {
+                assertThat(measurement.getChunkPercentile(0.5), is(-1L));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.eventgateway;
+
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * The gateway's wire format.
+ *
+ * <p>After connecting, a client sends its 4 byte big-endian subscription mask
+ * (see {@link EventType}). From then on the gateway sends frames:
+ *
+ * <pre>
+ * +------+-----+-----------------+------------------------+
+ * | type | nad | length (u16 BE) | TLV body (length bytes) |
+ * +------+-----+-----------------+------------------------+
+ * </pre>
+ *
+ * <p>The TLV body is the unsolicited ResponseMessage's body, without the status bytes.
+ */
+final class EventFrame {
+
+    /** Size of a frame's header */
+    static final int HEADER_SIZE = 4;
+
+    /** The largest body a frame can carry */
+    static final int MAX_BODY_SIZE = 0xFFFF;
+
+    /** Status bytes given to rebuilt ResponseMessages */
+    private static final byte[] SW_OK = {(byte) 0x90, (byte) 0x00};
+
+    private EventFrame() {
+    }
+
+    /**
+     * Encode an unsolicited message as a frame
+     *
+     * @param type    The classified type of the message
+     * @param message The unsolicited message
+     * @return The frame, or null if the body is too large to frame.
+     */
+    @Nullable
+    static byte[] encode(EventType type, ResponseMessage message) {
+        byte[] body = message.getBody();
+        if (body.length > MAX_BODY_SIZE) {
+            return null;
+        }
+        byte[] frame = new byte[HEADER_SIZE + body.length];
+        frame[0] = type.getCode();
+        frame[1] = message.getNodeAddress().getInterfaceType();
+        frame[2] = (byte) (body.length >> 8);
+        frame[3] = (byte) body.length;
+        System.arraycopy(body, 0, frame, HEADER_SIZE, body.length);
+        return frame;
+    }
+
+    /**
+     * Read a frame and rebuild the ResponseMessage it carries
+     *
+     * @param in The stream to read from
+     * @return The unsolicited ResponseMessage
+     * @throws EOFException If the stream ended cleanly between frames
+     * @throws IOException  If the stream failed or the frame was invalid
+     */
+    static ResponseMessage read(DataInputStream in) throws IOException {
+        byte typeCode = in.readByte();
+        byte nadCode = in.readByte();
+        int length = in.readUnsignedShort();
+
+        byte[] apdu = new byte[length + SW_OK.length];
+        in.readFully(apdu, 0, length);
+        apdu[length] = SW_OK[0];
+        apdu[length + 1] = SW_OK[1];
+
+        InterfaceType nad = InterfaceType.valueOf(nadCode);
+        if (EventType.valueOf(typeCode) == null || nad == null) {
+            throw new IOException("Invalid frame header");
+        }
+        return new ResponseMessage(nad, true, apdu);
+    }
+}
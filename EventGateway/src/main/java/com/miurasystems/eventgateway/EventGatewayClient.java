@@ -0,0 +1,182 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.eventgateway;
+
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.events.ConnectionEventDispatcher;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.events.UnsolicitedMessageEventDispatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.EnumSet;
+
+/**
+ * Receives a Miura device's events from an {@link EventGatewayServer} in another process.
+ *
+ * <p>
+ * Events are published on an ordinary {@link MpiEvents}, see {@link #getMpiEvents()},
+ * so code written against an MpiClient's events works unchanged.
+ * The {@link MpiEvents#Connected} and {@link MpiEvents#Disconnected} events refer to the
+ * connection to the gateway, not to the device.
+ * </p>
+ * <p>
+ * Handlers are called from the client's reader thread. The same rules apply as with the
+ * SDK's input thread: keep them small. A client that doesn't keep up will be evicted
+ * by the gateway, which shows up here as a Disconnected event.
+ * </p>
+ */
+public final class EventGatewayClient {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventGatewayClient.class);
+
+    /** The gateway's address */
+    private final InetSocketAddress mAddress;
+
+    /** The events to publish to */
+    private final MpiEvents mEvents;
+
+    @Nullable
+    private Socket mSocket;
+
+    @Nullable
+    private Thread mReaderThread;
+
+    /**
+     * Create a client for a gateway on the local machine
+     *
+     * @param port The gateway's port
+     * @throws IOException If the loopback address can't be found
+     */
+    public EventGatewayClient(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getByName(null), port), new MpiEvents());
+    }
+
+    /**
+     * Create a client
+     *
+     * @param address The gateway's address
+     * @param events  The events to publish to
+     */
+    public EventGatewayClient(InetSocketAddress address, MpiEvents events) {
+        mAddress = address;
+        mEvents = events;
+    }
+
+    /**
+     * @return The events that gateway events are published to
+     */
+    public MpiEvents getMpiEvents() {
+        return mEvents;
+    }
+
+    /**
+     * Connect to the gateway, subscribing to all event types.
+     *
+     * @throws IOException If the connection fails
+     */
+    public void connect() throws IOException {
+        connect(EnumSet.allOf(EventType.class));
+    }
+
+    /**
+     * Connect to the gateway.
+     *
+     * <p>Register handlers before connecting to avoid missing events.
+     *
+     * @param types The event types the gateway should send to this client
+     * @throws IOException If the connection fails
+     */
+    public synchronized void connect(EnumSet<EventType> types) throws IOException {
+        if (mSocket != null) {
+            throw new IllegalStateException("Already connected");
+        }
+        final Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(mAddress);
+
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(EventType.maskOf(types));
+        out.flush();
+
+        final DataInputStream in =
+                new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+        mSocket = socket;
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(socket, in);
+            }
+        }, "EventGatewayClient");
+        mReaderThread.setDaemon(true);
+
+        ConnectionEventDispatcher.signalEvent(true, mEvents);
+        mReaderThread.start();
+    }
+
+    /**
+     * Disconnect from the gateway. A Disconnected event follows.
+     */
+    public synchronized void close() {
+        if (mSocket == null) {
+            return;
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            LOGGER.debug("Exception closing socket", e);
+        }
+        mSocket = null;
+    }
+
+    /**
+     * @return true if connected to the gateway
+     */
+    public synchronized boolean isConnected() {
+        return mSocket != null && !mSocket.isClosed();
+    }
+
+    /**
+     * Read frames and publish them until the connection ends
+     *
+     * @param socket The connection
+     * @param in     The connection's input
+     */
+    private void readLoop(Socket socket, DataInputStream in) {
+        try {
+            while (true) {
+                ResponseMessage message = EventFrame.read(in);
+                UnsolicitedMessageEventDispatcher.signalRawEvent(message, mEvents);
+                UnsolicitedMessageEventDispatcher.signalEvent(message, mEvents);
+            }
+        } catch (EOFException e) {
+            LOGGER.info("EventGateway closed the connection");
+        } catch (IOException e) {
+            LOGGER.info("EventGateway connection lost: {}", e.toString());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+            synchronized (this) {
+                if (mSocket == socket) {
+                    mSocket = null;
+                }
+            }
+            ConnectionEventDispatcher.signalEvent(false, mEvents);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.eventgateway;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.events.MpiEventHandler;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans the unsolicited events of one MpiEvents out to many local processes.
+ *
+ * <p>
+ * Only one process can own the Connector to a Miura device, and MpiEvents only has a single
+ * handler for each event. EventGatewayServer registers once, on
+ * {@link MpiEvents#UnsolicitedMessageReceived}, and forwards every unsolicited message to each
+ * connected {@link EventGatewayClient} that has subscribed to its {@link EventType}.
+ * The app's own handlers on the decoded events are unaffected.
+ * </p>
+ * <p>
+ * The server listens on the loopback interface only.
+ * </p>
+ *
+ * <h3>Slow consumers</h3>
+ * <p>
+ * Events are published from the SDK's input thread, which must not block. Each frame is
+ * encoded once and offered to a bounded queue per client, and each client has its own writer
+ * thread. If a client's queue is full then that client has fallen too far behind:
+ * it is evicted (disconnected) rather than being allowed to stall the device or the other
+ * clients. A client can reconnect once it has caught up.
+ * </p>
+ */
+public final class EventGatewayServer {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventGatewayServer.class);
+
+    /** Default number of frames that can be queued for a client */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /** How long a new client has to send its subscription mask */
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+    /** Sentinel queued to stop a client's writer thread */
+    private static final byte[] STOP_FRAME = new byte[0];
+
+    /** The events to forward */
+    private final MpiEvents mEvents;
+
+    /** Port to listen on. 0 = any free port. */
+    private final int mRequestedPort;
+
+    /** Capacity of each client's queue */
+    private final int mQueueCapacity;
+
+    /** Socket send buffer size for clients. 0 = system default */
+    private final int mSendBufferSize;
+
+    /** Currently connected (subscribed) clients */
+    private final CopyOnWriteArrayList<ClientConnection> mClients =
+            new CopyOnWriteArrayList<>();
+
+    /** Handler registered on UnsolicitedMessageReceived */
+    private final MpiEventHandler<ResponseMessage> mHandler;
+
+    private final AtomicLong mFramesPublished = new AtomicLong(0L);
+    private final AtomicLong mFramesQueued = new AtomicLong(0L);
+    private final AtomicLong mEvictions = new AtomicLong(0L);
+
+    @Nullable
+    private ServerSocket mServerSocket;
+
+    @Nullable
+    private Thread mAcceptThread;
+
+    /** Has close() been called since start()? Guarded by this. */
+    private boolean mClosed;
+
+    /**
+     * Create a gateway with the default queue capacity
+     *
+     * @param events The events to forward
+     * @param port   The loopback port to listen on. 0 = pick any free port.
+     */
+    public EventGatewayServer(MpiEvents events, int port) {
+        this(events, port, DEFAULT_QUEUE_CAPACITY, 0);
+    }
+
+    /**
+     * Create a gateway
+     *
+     * @param events         The events to forward
+     * @param port           The loopback port to listen on. 0 = pick any free port.
+     * @param queueCapacity  How many frames can be waiting for a client before it is evicted
+     * @param sendBufferSize The socket send buffer size to ask for, for each client.
+     *                       0 = use the system default.
+     */
+    public EventGatewayServer(MpiEvents events, int port, int queueCapacity, int sendBufferSize) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity <= 0");
+        }
+        mEvents = events;
+        mRequestedPort = port;
+        mQueueCapacity = queueCapacity;
+        mSendBufferSize = sendBufferSize;
+        mHandler = new MpiEventHandler<ResponseMessage>() {
+            @Override
+            public void handle(@NonNull ResponseMessage arg) {
+                publish(arg);
+            }
+        };
+    }
+
+    /**
+     * Start listening for clients and forwarding events.
+     *
+     * @throws IOException If the server socket can't be opened
+     */
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) {
+            throw new IllegalStateException("Already started");
+        }
+        final ServerSocket serverSocket =
+                new ServerSocket(mRequestedPort, 50, InetAddress.getByName(null));
+        mServerSocket = serverSocket;
+        mClosed = false;
+        mEvents.UnsolicitedMessageReceived.register(mHandler);
+
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(serverSocket);
+            }
+        }, "EventGateway-accept");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+        LOGGER.info("EventGateway listening on port {}", serverSocket.getLocalPort());
+    }
+
+    /**
+     * Stop forwarding events and disconnect all the clients.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mEvents.UnsolicitedMessageReceived.deregister(mHandler);
+        if (mServerSocket != null) {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                LOGGER.debug("Exception closing server socket", e);
+            }
+            mServerSocket = null;
+        }
+        for (ClientConnection client : mClients) {
+            client.stop();
+        }
+        mClients.clear();
+    }
+
+    /**
+     * @return The port the server is listening on
+     */
+    public synchronized int getPort() {
+        if (mServerSocket == null) {
+            throw new IllegalStateException("Not started");
+        }
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @return The number of currently subscribed clients
+     */
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    /**
+     * @return The number of unsolicited messages forwarded
+     */
+    public long getFramesPublished() {
+        return mFramesPublished.get();
+    }
+
+    /**
+     * @return The number of frames queued, summed over all clients
+     */
+    public long getFramesQueued() {
+        return mFramesQueued.get();
+    }
+
+    /**
+     * @return The number of clients evicted for being too slow
+     */
+    public long getEvictions() {
+        return mEvictions.get();
+    }
+
+    /**
+     * Encode a message once and queue it for every interested client.
+     *
+     * <p>Runs on the SDK's input thread, so never blocks.
+     *
+     * @param message The unsolicited message
+     */
+    private void publish(ResponseMessage message) {
+        EventType type = EventType.classify(message.getBody());
+        byte[] frame = EventFrame.encode(type, message);
+        if (frame == null) {
+            LOGGER.warn("Unsolicited message too large to forward");
+            return;
+        }
+        mFramesPublished.incrementAndGet();
+
+        int mask = type.mask();
+        for (ClientConnection client : mClients) {
+            if ((client.mMask & mask) == 0) {
+                continue;
+            }
+            if (client.mQueue.offer(frame)) {
+                mFramesQueued.incrementAndGet();
+            } else {
+                LOGGER.info("Evicting slow EventGateway client {}", client);
+                mEvictions.incrementAndGet();
+                removeClient(client);
+            }
+        }
+    }
+
+    /**
+     * Add a client that has finished its handshake, unless the server has been closed.
+     *
+     * <p>Holds the same lock as {@link #close()}, so a client is either added before close()
+     * stops all the clients, or not at all.
+     *
+     * @param client the client to add
+     * @return false if the server has been closed, in which case the client wasn't added
+     */
+    private synchronized boolean addClient(ClientConnection client) {
+        if (mClosed) {
+            return false;
+        }
+        mClients.add(client);
+        return true;
+    }
+
+    /**
+     * Remove and stop a client
+     *
+     * @param client the client to remove
+     */
+    private void removeClient(ClientConnection client) {
+        if (mClients.remove(client)) {
+            client.stop();
+        }
+    }
+
+    /**
+     * Accept clients until the server socket is closed
+     *
+     * @param serverSocket The socket to accept on
+     */
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.warn("EventGateway accept failed", e);
+                }
+                return;
+            }
+
+            final ClientConnection client = new ClientConnection(socket);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client.run();
+                }
+            }, "EventGateway-client-" + socket.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * A single connected client: its subscription, queue and socket.
+     */
+    private final class ClientConnection {
+
+        private final Socket mSocket;
+        private final BlockingQueue<byte[]> mQueue;
+        private volatile int mMask;
+
+        ClientConnection(Socket socket) {
+            mSocket = socket;
+            mQueue = new ArrayBlockingQueue<>(mQueueCapacity);
+        }
+
+        /**
+         * Read the subscription, then write queued frames until stopped or disconnected.
+         */
+        void run() {
+            try {
+                mSocket.setTcpNoDelay(true);
+                if (mSendBufferSize > 0) {
+                    mSocket.setSendBufferSize(mSendBufferSize);
+                }
+                mSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                DataInputStream in = new DataInputStream(mSocket.getInputStream());
+                mMask = in.readInt();
+                mSocket.setSoTimeout(0);
+            } catch (IOException e) {
+                LOGGER.debug("EventGateway handshake failed", e);
+                closeSocket();
+                return;
+            }
+
+            if (!addClient(this)) {
+                LOGGER.debug("EventGateway closed during client {} handshake", this);
+                closeSocket();
+                return;
+            }
+            LOGGER.debug("EventGateway client {} subscribed: 0x{}",
+                    this, Integer.toHexString(mMask));
+
+            try {
+                OutputStream out = new BufferedOutputStream(mSocket.getOutputStream(), 8192);
+                while (true) {
+                    byte[] frame = mQueue.take();
+                    // write everything that's waiting before flushing
+                    while (frame != null) {
+                        if (frame == STOP_FRAME) {
+                            return;
+                        }
+                        out.write(frame);
+                        frame = mQueue.poll();
+                    }
+                    out.flush();
+                }
+            } catch (SocketException e) {
+                LOGGER.debug("EventGateway client {} disconnected", this);
+            } catch (IOException e) {
+                LOGGER.debug("EventGateway client {} write failed", this, e);
+            } catch (InterruptedException e) {
+                LOGGER.debug("EventGateway client {} interrupted", this);
+            } finally {
+                mClients.remove(this);
+                closeSocket();
+            }
+        }
+
+        /**
+         * Stop the writer and close the socket, without waiting for queued frames.
+         */
+        void stop() {
+            mQueue.clear();
+            mQueue.offer(STOP_FRAME);
+            closeSocket();
+        }
+
+        private void closeSocket() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                LOGGER.debug("Exception closing client socket", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(mSocket.getRemoteSocketAddress());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.eventgateway;
+
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.CommandUtil;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVObject;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * The type byte of a gateway frame: which MpiEvents publisher the frame's TLV will be
+ * published to.
+ *
+ * <p>The type is worked out once, by the gateway, so that clients can subscribe to just
+ * the types they're interested in and never be sent the rest.
+ */
+public enum EventType {
+
+    /** See {@link com.miurasystems.miuralibrary.events.MpiEvents#DeviceStatusChanged} */
+    DeviceStatusChanged(0),
+    /** See {@link com.miurasystems.miuralibrary.events.MpiEvents#KeyPressed} */
+    KeyPressed(1),
+    /** See {@link com.miurasystems.miuralibrary.events.MpiEvents#CardStatusChanged} */
+    CardStatusChanged(2),
+    /** See {@link com.miurasystems.miuralibrary.events.MpiEvents#BarcodeScanned} */
+    BarcodeScanned(3),
+    /** See {@link com.miurasystems.miuralibrary.events.MpiEvents#PrinterStatusChanged} */
+    PrinterStatusChanged(4),
+    /** See {@link com.miurasystems.miuralibrary.events.MpiEvents#UsbSerialPortDataReceived} */
+    UsbSerialPortDataReceived(5),
+    /** An unsolicited message the SDK doesn't have a specific event for */
+    Other(31);
+
+    /** The byte used on the wire */
+    private final int mCode;
+
+    EventType(int code) {
+        mCode = code;
+    }
+
+    /**
+     * @return The byte used on the wire for this type
+     */
+    public byte getCode() {
+        return (byte) mCode;
+    }
+
+    /**
+     * @return This type's bit in a subscription mask
+     */
+    int mask() {
+        return 1 << mCode;
+    }
+
+    /**
+     * Find the type with the given wire code
+     *
+     * @param code Code from a frame
+     * @return The type, or null if it's not a known code.
+     */
+    @Nullable
+    public static EventType valueOf(byte code) {
+        for (EventType type : values()) {
+            if (type.mCode == code) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Build a subscription mask for a set of types
+     *
+     * @param types The types to subscribe to
+     * @return The mask to send to the gateway
+     */
+    static int maskOf(EnumSet<EventType> types) {
+        int mask = 0;
+        for (EventType type : types) {
+            mask |= type.mask();
+        }
+        return mask;
+    }
+
+    /**
+     * Work out which event an unsolicited message body will be published as.
+     *
+     * <p>Checks the tags in the same order as
+     * {@link com.miurasystems.miuralibrary.events.UnsolicitedMessageEventDispatcher}.
+     *
+     * @param body The unsolicited ResponseMessage's body
+     * @return The type of the event.
+     */
+    public static EventType classify(byte[] body) {
+        List<TLVObject> tlvs = TLVParser.decode(body);
+        if (CommandUtil.firstMatch(tlvs, Description.Status_Code) != null
+                && CommandUtil.firstMatch(tlvs, Description.Status_Text) != null) {
+            return DeviceStatusChanged;
+        } else if (CommandUtil.firstMatch(tlvs, Description.Keyboard_Data) != null) {
+            return KeyPressed;
+        } else if (CommandUtil.firstMatch(tlvs, Description.Card_Status) != null) {
+            return CardStatusChanged;
+        } else if (CommandUtil.firstMatch(tlvs, Description.Scanned_Data) != null) {
+            return BarcodeScanned;
+        } else if (CommandUtil.firstMatch(tlvs, Description.Printer_Status) != null) {
+            return PrinterStatusChanged;
+        } else if (CommandUtil.firstMatch(tlvs, Description.USB_SERIAL_DATA) != null) {
+            return UsbSerialPortDataReceived;
+        } else {
+            return Other;
+        }
+    }
+}
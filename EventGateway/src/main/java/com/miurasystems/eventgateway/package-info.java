@@ -0,0 +1,9 @@
+@ParametersAreNonnullByDefault
+@FieldsAreNonnullByDefault
+@ReturnTypesAreNonnullByDefault
+package com.miurasystems.eventgateway;
+
+import com.miurasystems.annotations.FieldsAreNonnullByDefault;
+import com.miurasystems.annotations.ReturnTypesAreNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.eventgateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEventHandler;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out latency from the gateway's input thread to 50 client handlers.
+ *
+ * <p>Each event carries the System.nanoTime() it was published at, and every client
+ * records how long it took to reach its handler.
+ */
+public class EventGatewayBenchmark {
+
+    private static final int CLIENTS = 50;
+    private static final int EVENTS = 200;
+
+    @Test
+    public void fanOutLatency() throws Exception {
+        MpiEvents serverEvents = new MpiEvents();
+        EventGatewayServer server = new EventGatewayServer(serverEvents, 0);
+        server.start();
+
+        final long[] latencies = new long[CLIENTS * EVENTS];
+        final CountDownLatch done = new CountDownLatch(CLIENTS);
+        List<EventGatewayClient> clients = new ArrayList<>(CLIENTS);
+        for (int c = 0; c < CLIENTS; c++) {
+            final int base = c * EVENTS;
+            EventGatewayClient client = new EventGatewayClient(server.getPort());
+            client.getMpiEvents().UsbSerialPortDataReceived.register(
+                    new MpiEventHandler<byte[]>() {
+                        private int mCount;
+
+                        @Override
+                        public void handle(@NonNull byte[] arg) {
+                            long sent = ByteBuffer.wrap(arg).getLong();
+                            latencies[base + mCount] = System.nanoTime() - sent;
+                            if (++mCount == EVENTS) {
+                                done.countDown();
+                            }
+                        }
+                    });
+            client.connect(EnumSet.of(EventType.UsbSerialPortDataReceived));
+            clients.add(client);
+        }
+        EventGatewayTest.awaitClients(server, CLIENTS);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            byte[] payload = ByteBuffer.allocate(64).putLong(System.nanoTime()).array();
+            EventGatewayTest.inject(
+                    EventGatewayTest.unsolicited(
+                            InterfaceType.RPI, Description.USB_SERIAL_DATA, payload),
+                    serverEvents);
+            Thread.sleep(1L);
+        }
+        boolean finished = done.await(30L, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        for (EventGatewayClient client : clients) {
+            client.close();
+        }
+        server.close();
+        assertThat(finished, is(true));
+        assertThat(server.getEvictions(), is(0L));
+
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d clients x %d events in %.1f ms. latency us: p50 %.1f p99 %.1f max %.1f",
+                CLIENTS, EVENTS, elapsed / 1e6,
+                latencies[latencies.length / 2] / 1e3,
+                latencies[(int) (latencies.length * 0.99)] / 1e3,
+                latencies[latencies.length - 1] / 1e3));
+    }
+}
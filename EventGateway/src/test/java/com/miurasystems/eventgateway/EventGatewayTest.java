@@ -0,0 +1,270 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.eventgateway;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.ConnectionInfo;
+import com.miurasystems.miuralibrary.events.MpiEventHandler;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.events.UnsolicitedMessageEventDispatcher;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class EventGatewayTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private MpiEvents mServerEvents;
+    private EventGatewayServer mServer;
+    private final List<EventGatewayClient> mClients = new ArrayList<>();
+
+    @Before
+    public void setup() throws IOException {
+        mServerEvents = new MpiEvents();
+    }
+
+    @After
+    public void teardown() {
+        for (EventGatewayClient client : mClients) {
+            client.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    static ResponseMessage unsolicited(InterfaceType nad, Description tag, byte[] value) {
+        byte[] body = TLVParser.encode(tag, value);
+        byte[] apdu = Arrays.copyOf(body, body.length + 2);
+        apdu[body.length] = (byte) 0x90;
+        apdu[body.length + 1] = 0x00;
+        return new ResponseMessage(nad, true, apdu);
+    }
+
+    /**
+     * Publish a message on events the way MpiClient does for a device's unsolicited message
+     */
+    static void inject(ResponseMessage message, MpiEvents events) {
+        UnsolicitedMessageEventDispatcher.signalRawEvent(message, events);
+        UnsolicitedMessageEventDispatcher.signalEvent(message, events);
+    }
+
+    static void awaitClients(EventGatewayServer server, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (server.getClientCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(2L);
+        }
+        assertThat(server.getClientCount(), is(count));
+    }
+
+    private EventGatewayClient newClient() throws IOException {
+        EventGatewayClient client = new EventGatewayClient(mServer.getPort());
+        mClients.add(client);
+        return client;
+    }
+
+    @Test
+    public void barcodeRoundTrip() throws Exception {
+        // setup
+        mServer = new EventGatewayServer(mServerEvents, 0);
+        mServer.start();
+
+        final LinkedBlockingQueue<String> barcodes = new LinkedBlockingQueue<>();
+        EventGatewayClient client = newClient();
+        client.getMpiEvents().BarcodeScanned.register(new MpiEventHandler<String>() {
+            @Override
+            public void handle(@NonNull String arg) {
+                barcodes.add(arg);
+            }
+        });
+        client.connect();
+        awaitClients(mServer, 1);
+
+        // execute
+        ResponseMessage message = unsolicited(
+                InterfaceType.RPI, Description.Scanned_Data, "5012345678900".getBytes(US_ASCII));
+        inject(message, mServerEvents);
+
+        // verify
+        assertThat(barcodes.poll(5L, TimeUnit.SECONDS), is(equalTo("5012345678900")));
+        assertThat(mServer.getFramesPublished(), is(1L));
+    }
+
+    @Test
+    public void subscriptionFiltersTypes() throws Exception {
+        // setup
+        mServer = new EventGatewayServer(mServerEvents, 0);
+        mServer.start();
+
+        final LinkedBlockingQueue<Object> events = new LinkedBlockingQueue<>();
+        EventGatewayClient client = newClient();
+        MpiEvents clientEvents = client.getMpiEvents();
+        clientEvents.BarcodeScanned.register(new MpiEventHandler<String>() {
+            @Override
+            public void handle(@NonNull String arg) {
+                events.add(arg);
+            }
+        });
+        clientEvents.KeyPressed.register(new MpiEventHandler<Integer>() {
+            @Override
+            public void handle(@NonNull Integer arg) {
+                events.add(arg);
+            }
+        });
+        client.connect(EnumSet.of(EventType.KeyPressed));
+        awaitClients(mServer, 1);
+
+        // execute
+        inject(unsolicited(
+                InterfaceType.RPI, Description.Scanned_Data, "123".getBytes(US_ASCII)),
+                mServerEvents);
+        inject(unsolicited(
+                InterfaceType.MPI, Description.Keyboard_Data, new byte[]{0x0d}),
+                mServerEvents);
+
+        // verify
+        assertThat(events.poll(5L, TimeUnit.SECONDS), is(equalTo((Object) 0x0d)));
+        assertThat(events.poll(50L, TimeUnit.MILLISECONDS), is((Object) null));
+        assertThat(mServer.getFramesPublished(), is(2L));
+        assertThat(mServer.getFramesQueued(), is(1L));
+    }
+
+    @Test
+    public void slowConsumerIsEvicted() throws Exception {
+        // setup
+        mServer = new EventGatewayServer(mServerEvents, 0, 4, 4096);
+        mServer.start();
+
+        // a client that subscribes to everything and then never reads
+        Socket stuck = new Socket();
+        stuck.setReceiveBufferSize(4096);
+        stuck.connect(new java.net.InetSocketAddress(InetAddress.getByName(null),
+                mServer.getPort()));
+        DataOutputStream out = new DataOutputStream(stuck.getOutputStream());
+        out.writeInt(-1);
+        out.flush();
+
+        // and a healthy client that isn't interested in serial data
+        final CountDownLatch keyPressed = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        EventGatewayClient healthy = newClient();
+        healthy.getMpiEvents().KeyPressed.register(new MpiEventHandler<Integer>() {
+            @Override
+            public void handle(@NonNull Integer arg) {
+                keyPressed.countDown();
+            }
+        });
+        healthy.getMpiEvents().Disconnected.register(new MpiEventHandler<ConnectionInfo>() {
+            @Override
+            public void handle(@NonNull ConnectionInfo arg) {
+                disconnected.countDown();
+            }
+        });
+        healthy.connect(EnumSet.of(EventType.KeyPressed));
+        awaitClients(mServer, 2);
+
+        // execute
+        byte[] data = new byte[32 * 1024];
+        ResponseMessage serial =
+                unsolicited(InterfaceType.RPI, Description.USB_SERIAL_DATA, data);
+        for (int i = 0; i < 200 && mServer.getEvictions() == 0L; i++) {
+            inject(serial, mServerEvents);
+            Thread.sleep(1L);
+        }
+        inject(unsolicited(
+                InterfaceType.MPI, Description.Keyboard_Data, new byte[]{0x0d}),
+                mServerEvents);
+
+        // verify
+        assertThat(mServer.getEvictions(), is(1L));
+        awaitClients(mServer, 1);
+        assertThat(keyPressed.await(5L, TimeUnit.SECONDS), is(true));
+        assertThat(disconnected.getCount(), is(1L));
+        stuck.close();
+    }
+
+    @Test
+    public void handshakeAfterCloseIsRejected() throws Exception {
+        // setup
+        mServer = new EventGatewayServer(mServerEvents, 0);
+        mServer.start();
+        Socket socket = new Socket(InetAddress.getByName(null), mServer.getPort());
+        socket.setSoTimeout(5000);
+        Thread.sleep(100L);
+        mServer.close();
+
+        // execute
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(EventType.maskOf(EnumSet.allOf(EventType.class)));
+        out.flush();
+
+        // verify
+        int read;
+        try {
+            read = socket.getInputStream().read();
+        } catch (SocketException e) {
+            read = -1;
+        }
+        assertThat(read, is(-1));
+        assertThat(mServer.getClientCount(), is(0));
+        socket.close();
+    }
+
+    @Test
+    public void clientSeesDisconnectWhenServerCloses() throws Exception {
+        // setup
+        mServer = new EventGatewayServer(mServerEvents, 0);
+        mServer.start();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        EventGatewayClient client = newClient();
+        client.getMpiEvents().Connected.register(new MpiEventHandler<ConnectionInfo>() {
+            @Override
+            public void handle(@NonNull ConnectionInfo arg) {
+                connected.countDown();
+            }
+        });
+        client.getMpiEvents().Disconnected.register(new MpiEventHandler<ConnectionInfo>() {
+            @Override
+            public void handle(@NonNull ConnectionInfo arg) {
+                disconnected.countDown();
+            }
+        });
+
+        // execute
+        client.connect();
+        awaitClients(mServer, 1);
+        mServer.close();
+
+        // verify
+        assertThat(connected.getCount(), is(0L));
+        assertThat(disconnected.await(5L, TimeUnit.SECONDS), is(true));
+        assertThat(client.isConnected(), is(false));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.examples.flightrecorder;
+
+import com.miurasystems.miuralibrary.comms.FlightRecordDecoder;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Command line tool that prints flight recordings as text.
+ *
+ * <p>Usage: {@code FlightRecordPrinter <dump file>...}
+ *
+ * <p>See {@link com.miurasystems.miuralibrary.comms.FlightRecorder} for how recordings are made.
+ */
+public final class FlightRecordPrinter {
+
+    private FlightRecordPrinter() {
+    }
+
+    /**
+     * Print flight recordings to stdout
+     *
+     * @param args The dump files to print
+     * @throws IOException If a file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: FlightRecordPrinter <dump file>...");
+            return;
+        }
+        for (String file : args) {
+            InputStream stream = new BufferedInputStream(new FileInputStream(file));
+            try {
+                StringBuilder sb = new StringBuilder();
+                FlightRecordDecoder.render(FlightRecordDecoder.decode(stream), sb);
+                System.out.println("=== " + file);
+                System.out.print(sb);
+            } finally {
+                stream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+@ParametersAreNonnullByDefault
+@FieldsAreNonnullByDefault
+@ReturnTypesAreNonnullByDefault
+package com.miurasystems.examples.flightrecorder;
+
+import com.miurasystems.annotations.FieldsAreNonnullByDefault;
+import com.miurasystems.annotations.ReturnTypesAreNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
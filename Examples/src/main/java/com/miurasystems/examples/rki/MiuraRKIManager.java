@@ -8,13 +8,17 @@ import static com.miurasystems.miuralibrary.enums.InterfaceType.MPI;
 import static com.miurasystems.miuralibrary.tlv.BinaryUtil.parseHexBinary;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.miurasystems.miuralibrary.MpiClient;
 import com.miurasystems.miuralibrary.api.executor.MiuraManager;
 import com.miurasystems.miuralibrary.api.objects.P2PEStatus;
+import com.miurasystems.miuralibrary.api.objects.SoftwareInfo;
+import com.miurasystems.miuralibrary.api.utils.DeviceFileCache;
 import com.miurasystems.miuralibrary.api.utils.DisplayTextUtils;
 import com.miurasystems.miuralibrary.api.utils.GetDeviceFile;
 import com.miurasystems.miuralibrary.enums.RKIError;
+import com.miurasystems.miuralibrary.enums.ResetDeviceType;
 import com.miurasystems.miuralibrary.enums.SelectFileMode;
 
 import org.slf4j.Logger;
@@ -62,10 +66,24 @@ public final class MiuraRKIManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(MiuraRKIManager.class);
     private static final Charset UTF_8 = Charset.forName("utf-8");
 
+    /*
+     * The init files that only change with the PED's certificates. The others are made afresh
+     * by every P2PE initialise and may be the same size as last time, which a DeviceFileCache
+     * can't tell apart on PEDs without MD5, so they're always read from the PED.
+     */
+    private static final List<String> CACHEABLE_FILES = Arrays.asList(
+        "prod-sign.crt",
+        "terminal.crt"
+    );
+
     private MiuraRKIManager() {
     }
 
-    private static HostRkiCommand p2peReadInitFiles(MpiClient client) throws P2peException {
+    private static HostRkiCommand p2peReadInitFiles(
+        MpiClient client,
+        @Nullable DeviceFileCache cache,
+        @Nullable String serialNumber
+    ) throws P2peException {
         List<String> filenames = Arrays.asList(
             "prod-sign.crt",
             "terminal.crt",
@@ -75,7 +93,12 @@ public final class MiuraRKIManager {
         HashMap<String, String> map = new HashMap<>(4);
 
         for (String filename : filenames) {
-            byte[] bytes = GetDeviceFile.getDeviceFile(client, MPI, filename, null);
+            byte[] bytes;
+            if (cache != null && serialNumber != null && CACHEABLE_FILES.contains(filename)) {
+                bytes = cache.getDeviceFile(client, MPI, serialNumber, filename, null);
+            } else {
+                bytes = GetDeviceFile.getDeviceFile(client, MPI, filename, null);
+            }
             if (bytes == null) {
                 throw new P2peException("Download " + filename + " certificate failed");
             }
@@ -206,10 +229,36 @@ public final class MiuraRKIManager {
     }
 
     public static void injectKeys(MpiClient client) throws P2peException {
+        injectKeys(client, null);
+    }
+
+    /**
+     * Inject keys, getting the PED's certificates from a cache if they haven't changed
+     * since they were last read from it.
+     *
+     * <p>
+     * Only prod-sign.crt and terminal.crt are cached. temp-keyload.crt and suggested-iksn.txt
+     * change with every P2PE initialise, so they're always read from the PED.
+     * </p>
+     *
+     * @param client The client to use
+     * @param cache  Where to keep copies of the certificates, or null to always read them
+     * @throws P2peException If injection failed
+     */
+    public static void injectKeys(
+        MpiClient client,
+        @Nullable DeviceFileCache cache
+    ) throws P2peException {
         LOGGER.trace("Injecting keys...");
 
+        String serialNumber = null;
+        if (cache != null) {
+            SoftwareInfo info = client.resetDevice(MPI, ResetDeviceType.Soft_Reset);
+            serialNumber = info == null ? null : info.getSerialNumber();
+        }
+
         p2peInitialise(client);
-        HostRkiCommand hostCommand = p2peReadInitFiles(client);
+        HostRkiCommand hostCommand = p2peReadInitFiles(client, cache, serialNumber);
         HostRkiResponse hostResponse = requestKeysFromHost(
                 client,
                 hostCommand
@@ -0,0 +1,539 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.api.executor.CommandScheduler;
+import com.miurasystems.miuralibrary.api.objects.TransferStats;
+import com.miurasystems.miuralibrary.api.utils.StreamBinaryFile;
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Uploads a file with STREAM BINARY, sizing the chunks to suit the link.
+ *
+ * <p>
+ * {@link StreamBinaryFile} sends 128 KB chunks with a 100 second stream timeout, and reads
+ * each chunk from its source only once the last has been acknowledged. Over a slow link a
+ * chunk that size holds up other work for seconds, and over a fast one the link is idle
+ * whilst each chunk is acknowledged. Instead, this uploader:
+ * </p>
+ * <ul>
+ * <li>reads the next chunk from its source whilst the device is receiving the last one,</li>
+ * <li>keeps up to {@link #MAX_DEPTH} chunks in flight, so the link isn't idle whilst a chunk
+ * is acknowledged, and</li>
+ * <li>sizes each chunk from the link's measured throughput and acknowledgement latency.</li>
+ * </ul>
+ *
+ * <h3>Chunk size</h3>
+ * <p>
+ * The first chunk is a small probe. The gap between the acknowledgements of back-to-back
+ * chunks, or the difference between a chunk's round trip and the probe's, gives the time the
+ * link takes per byte. The probe's round trip, less the time to send it, is the
+ * acknowledgement latency. Chunks are sized to take {@link #TARGET_CHUNK_MILLIS} to send, so
+ * that priority work and cancellation don't wait long, but no less than the acknowledgement
+ * latency, or {@link #UNPIPELINED_LATENCY_MULTIPLE} times it if chunks are sent one at a time.
+ * The stream timeout given to the device is sized from the same measurements.
+ * </p>
+ *
+ * <h3>Errors</h3>
+ * <p>
+ * A chunk that fails fails the upload, as with StreamBinaryFile. The responses to any chunks
+ * behind it are collected first.
+ * </p>
+ *
+ * <p>
+ * Whilst chunks are in flight the client's responses on this NAD belong to the uploader, so
+ * as with {@link WindowedFileReader} it {@link MpiClient#lockChannel locks} the NAD whilst
+ * streaming. It waits for its chunks to be acknowledged and unlocks the NAD before yielding
+ * to {@link CommandScheduler#yieldToPriorityWork() priority work}, and before returning.
+ * </p>
+ */
+public final class AdaptiveStreamUploader {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveStreamUploader.class);
+
+    /** The smallest chunk sent, apart from the last. Also the size of the probe. */
+    public static final int MIN_CHUNK_SIZE = 0x1000;
+
+    /** The largest chunk sent, as StreamBinaryFile sends */
+    public static final int MAX_CHUNK_SIZE = 0x20000;
+
+    /** The chunk size used until the link has been measured */
+    public static final int INITIAL_CHUNK_SIZE = 0x4000;
+
+    /**
+     * The most chunks in flight at once.
+     *
+     * <p>One being received by the device, and the next queued behind it.
+     */
+    public static final int MAX_DEPTH = 2;
+
+    /** How long a chunk should take to send */
+    public static final int TARGET_CHUNK_MILLIS = 250;
+
+    /** Unpipelined chunks must be this many times the acknowledgement latency */
+    public static final int UNPIPELINED_LATENCY_MULTIPLE = 4;
+
+    /** Stream timeout until the link has been measured, in seconds */
+    public static final int DEFAULT_STREAM_TIMEOUT = 100;
+
+    /** The shortest stream timeout given, in seconds */
+    public static final int MIN_STREAM_TIMEOUT = 10;
+
+    /** The stream timeout allows this many times the time a chunk should take */
+    private static final int STREAM_TIMEOUT_MARGIN = 4;
+
+    /** STREAM BINARY's offset is 24 bits */
+    private static final long MAX_FILE_SIZE = 0xFFFFFF;
+
+    /** Weight of the newest sample in the time per byte average, as 1/N */
+    private static final int TIME_PER_BYTE_WEIGHT = 4;
+
+    private static final long TARGET_CHUNK_NANOS = TARGET_CHUNK_MILLIS * 1000000L;
+
+    /**
+     * Told about each chunk as it's acknowledged.
+     */
+    public interface ChunkListener {
+        /**
+         * @param offset         Where the chunk was written on the device
+         * @param size           The chunk's size
+         * @param rttMicros      From sending the chunk to its acknowledgement, in microseconds
+         * @param bytesPerSecond The link's estimated throughput. 0 if not measured yet.
+         */
+        void onChunk(int offset, int size, long rttMicros, long bytesPerSecond);
+    }
+
+    /**
+     * Where the chunks come from.
+     */
+    private interface Source {
+        /**
+         * Get the next chunk ready to send.
+         *
+         * @param size The most to get ready
+         * @return The size of the chunk. 0 at the end of the file.
+         */
+        int prepare(int size) throws IOException;
+
+        /**
+         * Send the chunk got ready by {@link #prepare}.
+         *
+         * @return The session's command id. -1 in case of error.
+         */
+        int send(int offset, int size, int timeout);
+    }
+
+    /**
+     * A STREAM BINARY in flight.
+     */
+    private static final class Chunk {
+        final int mOffset;
+        final int mSize;
+        final long mSentNanos;
+
+        Chunk(int offset, int size, long sentNanos) {
+            mOffset = offset;
+            mSize = size;
+            mSentNanos = sentNanos;
+        }
+    }
+
+    @NonNull
+    private final MpiClient mClient;
+    @NonNull
+    private final InterfaceType mNad;
+    private final int mMaxDepth;
+
+    @NonNull
+    private final ArrayDeque<Chunk> mInFlight = new ArrayDeque<>();
+
+    @Nullable
+    private ChunkListener mListener;
+
+    private boolean mLocked;
+
+    private int mChunkSize = INITIAL_CHUNK_SIZE;
+    private int mStreamTimeout = DEFAULT_STREAM_TIMEOUT;
+    private double mNanosPerByte;
+    private long mAckLatencyNanos = -1L;
+    private int mProbeSize;
+    private long mProbeRttNanos;
+    private long mLastAckNanos;
+
+    private long mBytesSent;
+    private long mElapsedNanos;
+    private int mChunksSent;
+    private int mMaxDepthUsed;
+    private int mErrors;
+
+    /**
+     * Create an uploader that keeps up to {@link #MAX_DEPTH} chunks in flight.
+     *
+     * @param client The client to upload with
+     * @param nad    The device to upload to
+     */
+    public AdaptiveStreamUploader(@NonNull MpiClient client, @NonNull InterfaceType nad) {
+        this(client, nad, MAX_DEPTH);
+    }
+
+    /**
+     * Create an uploader.
+     *
+     * @param client   The client to upload with
+     * @param nad      The device to upload to
+     * @param maxDepth The most chunks in flight at once. 1 waits for each chunk to be
+     *                 acknowledged before sending the next.
+     */
+    public AdaptiveStreamUploader(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType nad,
+            int maxDepth
+    ) {
+        if (maxDepth < 1 || maxDepth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Invalid maxDepth: " + maxDepth);
+        }
+        mClient = client;
+        mNad = nad;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * @param listener Told about each chunk as it's acknowledged, or null
+     */
+    public void setChunkListener(@Nullable ChunkListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Upload the rest of a stream to a file on the device.
+     *
+     * @param fileName The name of the file on the device. It's truncated first.
+     * @param in       The stream to upload. It's not closed.
+     * @param progress Called every {@link StreamBinaryFile#MIN_BYTES_BETWEEN_PROGRESS} bytes,
+     *                 if non-null
+     * @return true if the whole stream was uploaded. If false, the reason has been logged.
+     */
+    public boolean upload(
+            @NonNull String fileName,
+            @NonNull final InputStream in,
+            @Nullable StreamBinaryFile.ProgressCallback progress
+    ) {
+        final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+        return upload(fileName, new Source() {
+            @Override
+            public int prepare(int size) throws IOException {
+                int fill = 0;
+                while (fill < size) {
+                    int n = in.read(buffer, fill, size - fill);
+                    if (n < 0) {
+                        break;
+                    }
+                    fill += n;
+                }
+                return fill;
+            }
+
+            @Override
+            public int send(int offset, int size, int timeout) {
+                // The session has written the buffer by the time this returns, so it's free
+                return mClient.sendStreamBinary(mNad, buffer, offset, size, timeout);
+            }
+        }, progress);
+    }
+
+    /**
+     * Upload a local file to a file on the device, without reading it into the heap.
+     *
+     * <p>
+     * See {@link com.miurasystems.miuralibrary.comms.Connector#getOutputChannel()}. The file
+     * isn't read by the uploader, so the OS's read ahead overlaps reading it with sending it.
+     * </p>
+     *
+     * @param fileName The name of the file on the device. It's truncated first.
+     * @param file     The local file to upload
+     * @param progress Called every {@link StreamBinaryFile#MIN_BYTES_BETWEEN_PROGRESS} bytes,
+     *                 if non-null
+     * @return true if the whole file was uploaded. If false, the reason has been logged.
+     */
+    public boolean upload(
+            @NonNull String fileName,
+            @NonNull File file,
+            @Nullable StreamBinaryFile.ProgressCallback progress
+    ) {
+        try (FileInputStream in = new FileInputStream(file)) {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            return upload(fileName, new Source() {
+                private long mPrepared;
+
+                @Override
+                public int prepare(int chunkSize) {
+                    return (int) Math.min(chunkSize, size - mPrepared);
+                }
+
+                @Override
+                public int send(int offset, int chunkSize, int timeout) {
+                    mPrepared += chunkSize;
+                    return mClient.sendStreamBinary(
+                            mNad, channel, offset, offset, chunkSize, timeout);
+                }
+            }, progress);
+        } catch (IOException e) {
+            LOGGER.warn("Exception reading " + file, e);
+            return false;
+        }
+    }
+
+    private boolean upload(
+            @NonNull String fileName,
+            @NonNull Source source,
+            @Nullable StreamBinaryFile.ProgressCallback progress
+    ) {
+        long start = System.nanoTime();
+        try {
+            int pedFileSize = mClient.selectFile(mNad, SelectFileMode.Truncate, fileName);
+            if (pedFileSize < 0) {
+                return false;
+            }
+            if (!mClient.lockChannel(mNad)) {
+                LOGGER.debug("upload: interrupted waiting for {}", mNad);
+                return false;
+            }
+            mLocked = true;
+            return uploadChunks(source, progress);
+        } catch (IOException e) {
+            LOGGER.warn("Exception reading upload", e);
+            finishInFlight();
+            return false;
+        } finally {
+            if (mLocked) {
+                mLocked = false;
+                mClient.unlockChannel(mNad);
+            }
+            mElapsedNanos += System.nanoTime() - start;
+        }
+    }
+
+    private boolean uploadChunks(
+            @NonNull Source source,
+            @Nullable StreamBinaryFile.ProgressCallback progress
+    ) throws IOException {
+        long startBytes = mBytesSent;
+        int lastProgress = 0;
+        int nextOffset = 0;
+        int ready = source.prepare(mProbeSize == 0 ? MIN_CHUNK_SIZE : mChunkSize);
+
+        while (ready > 0 || !mInFlight.isEmpty()) {
+            while (ready > 0 && mInFlight.size() < mMaxDepth) {
+                if (CommandScheduler.hasPriorityWork()) {
+                    if (!finishInFlight() || !yieldToPriorityWork()) {
+                        return false;
+                    }
+                }
+                if (mClient.isCancelled()) {
+                    LOGGER.debug("upload: cancelled at {}", nextOffset);
+                    finishInFlight();
+                    return false;
+                }
+                if (nextOffset + ready > MAX_FILE_SIZE) {
+                    LOGGER.warn("File too large to stream: over {} bytes", nextOffset);
+                    finishInFlight();
+                    return false;
+                }
+
+                long now = System.nanoTime();
+                int id = source.send(nextOffset, ready, mStreamTimeout);
+                if (id < 0) {
+                    finishInFlight();
+                    return false;
+                }
+                mInFlight.add(new Chunk(nextOffset, ready, now));
+                mMaxDepthUsed = Math.max(mMaxDepthUsed, mInFlight.size());
+                nextOffset += ready;
+
+                // Read the next chunk whilst the device receives this one
+                ready = source.prepare(mChunkSize);
+            }
+
+            if (!receiveOne()) {
+                finishInFlight();
+                return false;
+            }
+
+            if (progress != null) {
+                int sent = (int) (mBytesSent - startBytes);
+                if (sent - lastProgress >= StreamBinaryFile.MIN_BYTES_BETWEEN_PROGRESS) {
+                    progress.onProgress(sent);
+                    lastProgress = sent;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unlock the NAD whilst priority work runs. Nothing must be in flight.
+     *
+     * @return false if interrupted whilst taking the NAD back
+     */
+    private boolean yieldToPriorityWork() {
+        mLocked = false;
+        mClient.unlockChannel(mNad);
+        CommandScheduler.yieldToPriorityWork();
+        mLocked = mClient.lockChannel(mNad);
+        return mLocked;
+    }
+
+    /**
+     * Receive the response to the oldest chunk in flight.
+     *
+     * @return false if the chunk failed or the session did
+     */
+    private boolean receiveOne() {
+        Chunk chunk = mInFlight.poll();
+        ResponseMessage rm = mClient.receiveResponse(mNad);
+        if (rm == null) {
+            // session's gone, so the other responses won't arrive
+            mInFlight.clear();
+            return false;
+        }
+        long now = System.nanoTime();
+        if (!rm.isSuccess()) {
+            mErrors++;
+            LOGGER.debug("upload: chunk at {} failed: {}", chunk.mOffset, rm);
+            mLastAckNanos = 0L;
+            return false;
+        }
+        measure(chunk, now);
+        mBytesSent += chunk.mSize;
+        mChunksSent++;
+
+        ChunkListener listener = mListener;
+        if (listener != null) {
+            listener.onChunk(chunk.mOffset, chunk.mSize,
+                    (now - chunk.mSentNanos) / 1000L, getBytesPerSecond());
+        }
+        return true;
+    }
+
+    /**
+     * Receive the responses to every chunk in flight.
+     *
+     * @return false if any of them failed
+     */
+    private boolean finishInFlight() {
+        boolean ok = true;
+        while (!mInFlight.isEmpty()) {
+            if (!receiveOne()) {
+                ok = false;
+            }
+        }
+        mLastAckNanos = 0L;
+        return ok;
+    }
+
+    /**
+     * Learn from an acknowledgement's timing and resize the chunks.
+     */
+    private void measure(@NonNull Chunk chunk, long now) {
+        long rtt = now - chunk.mSentNanos;
+
+        // A chunk that was already waiting when the last was acknowledged shows how long
+        // the link takes for its bytes. Otherwise, compare its round trip to the probe's.
+        if (mLastAckNanos != 0L && chunk.mSentNanos <= mLastAckNanos) {
+            addSample(now - mLastAckNanos, chunk.mSize);
+        } else if (mProbeSize == 0) {
+            mProbeSize = chunk.mSize;
+            mProbeRttNanos = rtt;
+        } else if (chunk.mSize > mProbeSize) {
+            addSample(rtt - mProbeRttNanos, chunk.mSize - mProbeSize);
+        }
+        mLastAckNanos = now;
+
+        if (mNanosPerByte <= 0.0) {
+            return;
+        }
+        mAckLatencyNanos = Math.max(0L, mProbeRttNanos - (long) (mProbeSize * mNanosPerByte));
+
+        long latencyNanos = mAckLatencyNanos;
+        if (mMaxDepth == 1) {
+            latencyNanos *= UNPIPELINED_LATENCY_MULTIPLE;
+        }
+        double size = Math.max(TARGET_CHUNK_NANOS, latencyNanos) / mNanosPerByte;
+        mChunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+
+        double timeout = Math.ceil(
+                STREAM_TIMEOUT_MARGIN * mChunkSize * mNanosPerByte / 1000000000.0);
+        mStreamTimeout = (int) Math.max(
+                MIN_STREAM_TIMEOUT, Math.min(DEFAULT_STREAM_TIMEOUT, timeout));
+    }
+
+    private void addSample(long nanos, int bytes) {
+        if (nanos <= 0L) {
+            return;
+        }
+        double sample = (double) nanos / bytes;
+        if (mNanosPerByte <= 0.0) {
+            mNanosPerByte = sample;
+        } else {
+            mNanosPerByte += (sample - mNanosPerByte) / TIME_PER_BYTE_WEIGHT;
+        }
+    }
+
+    /**
+     * @return The bytes sent, time taken etc. by this uploader so far. Its max window is the
+     * most chunks that have been in flight at once.
+     */
+    @NonNull
+    public TransferStats getStats() {
+        return new TransferStats(mBytesSent, mElapsedNanos, mChunksSent, mErrors, mMaxDepthUsed);
+    }
+
+    /**
+     * @return The size the next chunks will be
+     */
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * @return The stream timeout the next chunks will be given, in seconds
+     */
+    public int getStreamTimeout() {
+        return mStreamTimeout;
+    }
+
+    /**
+     * @return The link's estimated throughput, in bytes per second. 0 if not measured yet.
+     */
+    public long getBytesPerSecond() {
+        if (mNanosPerByte <= 0.0) {
+            return 0L;
+        }
+        return (long) (1000000000.0 / mNanosPerByte);
+    }
+
+    /**
+     * @return The estimated acknowledgement latency, in microseconds. -1 if not measured yet.
+     */
+    public long getAckLatencyMicros() {
+        return mAckLatencyNanos < 0L ? -1L : mAckLatencyNanos / 1000L;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Cancels an operation that's running on another thread.
+ *
+ * <p>
+ * An operation may be a single command or many, e.g.
+ * {@link com.miurasystems.miuralibrary.api.utils.GetDeviceFile GetDeviceFile}. The thread
+ * running it calls {@link MpiClient#setCancellationToken(CancellationToken)} first. Once the
+ * token is cancelled:
+ * </p>
+ * <ul>
+ * <li>every command that thread then tries to send fails straight away, as if the device
+ * didn't respond, so a multi-command operation stops at its next command;</li>
+ * <li>if the thread is blocked in a command that waits for the user, e.g. a transaction or
+ * GET NUMERIC DATA, {@link MpiClientMTAbort} sends an ABORT to free it.</li>
+ * </ul>
+ *
+ * <p>
+ * Any other command in flight runs to completion, which its
+ * {@link com.miurasystems.miuralibrary.comms.CommandTimeouts CommandTimeouts} bounds. So the
+ * time from {@link #cancel()} to the thread being freed is at most one command.
+ * </p>
+ *
+ * <p>A token can only be cancelled once. This class is thread safe.</p>
+ */
+public final class CancellationToken {
+
+    /** Guarded by this */
+    private boolean mCancelled;
+
+    /** When cancel() was called, in System.nanoTime(). Guarded by this */
+    private long mCancelledNanos;
+
+    /** Interrupts the current step of the operation. Guarded by this */
+    @Nullable
+    private Runnable mOnCancel;
+
+    /**
+     * Cancel the operation.
+     *
+     * <p>
+     * Runs the current {@link #setOnCancel on-cancel action} on this thread, which may block
+     * whilst an ABORT is exchanged with the device. Does nothing if already cancelled.
+     * </p>
+     */
+    public void cancel() {
+        Runnable onCancel;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            mCancelledNanos = System.nanoTime();
+            onCancel = mOnCancel;
+            mOnCancel = null;
+        }
+        if (onCancel != null) {
+            onCancel.run();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return The System.nanoTime() when {@link #cancel()} was called, or 0 if it hasn't been.
+     */
+    public synchronized long getCancelledNanos() {
+        return mCancelled ? mCancelledNanos : 0L;
+    }
+
+    /**
+     * Set what {@link #cancel()} does to interrupt the operation's current step.
+     *
+     * <p>
+     * Replaces any previous action. Used by MpiClientMTAbort whilst an abortable command is
+     * in flight.
+     * </p>
+     *
+     * @param onCancel The action, or null to clear it
+     * @return false if the token has already been cancelled. The action isn't run or kept.
+     */
+    synchronized boolean setOnCancel(@Nullable Runnable onCancel) {
+        if (mCancelled) {
+            return false;
+        }
+        mOnCancel = onCancel;
+        return true;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.comms.CommandApdu;
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.ResetDeviceType;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVObject;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps what a {@link ResponseCache} learned about a device on disk, so the next connection
+ * to it needn't ask again.
+ *
+ * <p>
+ * Connecting to a device normally means asking for its software info, device info,
+ * configuration, P2PE status etc., which is several round trips. Instead:
+ * </p>
+ * <pre>
+ * {@code
+ * client.setResponseCache(new ResponseCache());
+ * client.openSession();
+ * metadataCache.load(client, InterfaceType.MPI);
+ * // ... discovery as usual, the cached parts don't go to the device ...
+ * metadataCache.save(client, InterfaceType.MPI);
+ * }
+ * </pre>
+ *
+ * <p>
+ * {@link #load} sends one soft reset to get the device's serial number and software versions.
+ * If they match what was saved for that serial number, the saved responses are put in the
+ * client's ResponseCache. Otherwise, e.g. the device's software was updated, nothing is
+ * loaded. Saved files older than the max age are also ignored, as e.g. the configuration
+ * could have been changed by another host.
+ * </p>
+ *
+ * <p>
+ * Each device's responses are kept in a small binary file in the given directory, named after
+ * its serial number.
+ * </p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public final class DeviceMetadataCache {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceMetadataCache.class);
+
+    /** How long a saved file is used for, by default */
+    public static final long DEFAULT_MAX_AGE_MS = TimeUnit.DAYS.toMillis(7L);
+
+    /** "MDC1" */
+    private static final int MAGIC = 0x4D444331;
+    private static final int VERSION = 1;
+
+    /** Sanity limits for reading a file */
+    private static final int MAX_ENTRIES = 64;
+    private static final int MAX_BYTES = 0xFFFF;
+
+    @NonNull
+    private final File mDirectory;
+    private final long mMaxAgeMillis;
+
+    /**
+     * Create a cache that keeps its files in a directory, for {@link #DEFAULT_MAX_AGE_MS}.
+     *
+     * @param directory The directory. It's created if it doesn't exist.
+     */
+    public DeviceMetadataCache(@NonNull File directory) {
+        this(directory, DEFAULT_MAX_AGE_MS);
+    }
+
+    /**
+     * Create a cache that keeps its files in a directory.
+     *
+     * @param directory    The directory. It's created if it doesn't exist.
+     * @param maxAgeMillis How long a saved file is used for
+     */
+    public DeviceMetadataCache(@NonNull File directory, long maxAgeMillis) {
+        if (maxAgeMillis <= 0L) {
+            throw new IllegalArgumentException("maxAgeMillis must be > 0");
+        }
+        mDirectory = directory;
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    @NonNull
+    private static CommandApdu makeSoftReset() {
+        return new CommandApdu(CommandType.Reset_Device, ResetDeviceType.Soft_Reset.getType(), 0);
+    }
+
+    @NonNull
+    private static byte[] toBytes(@NonNull ResponseMessage response) {
+        byte[] body = response.getBody();
+        byte[] bytes = Arrays.copyOf(body, body.length + 2);
+        bytes[body.length] = response.getSw1();
+        bytes[body.length + 1] = response.getSw2();
+        return bytes;
+    }
+
+    @Nullable
+    private static String getSerialNumber(@NonNull ResponseMessage softReset) {
+        List<TLVObject> tlvs = TLVParser.decode(softReset.getBody());
+        TLVObject serial = CommandUtil.firstMatch(tlvs, Description.Interface_Device_Serial_Number);
+        if (serial == null) {
+            return null;
+        }
+        return serial.getData();
+    }
+
+    @NonNull
+    private File getFile(@NonNull String serialNumber, @NonNull InterfaceType nad) {
+        String safe = serialNumber.replaceAll("[^A-Za-z0-9_-]", "_");
+        return new File(mDirectory, "device-" + safe + "-" + nad.name() + ".bin");
+    }
+
+    /**
+     * Identify the device and put what was saved about it in the client's ResponseCache.
+     *
+     * <p>Sends one soft reset to the device, unless the ResponseCache already has one.</p>
+     *
+     * @param client The client. Must have a ResponseCache.
+     * @param nad    The device to identify
+     * @return true if saved responses were loaded, false if there were none, they were out of
+     * date, or the device couldn't be identified
+     */
+    public boolean load(@NonNull MpiClient client, @NonNull InterfaceType nad) {
+        ResponseCache cache = getResponseCache(client);
+
+        CommandApdu softReset = makeSoftReset();
+        ResponseMessage current = client.sendAndReceive(nad, softReset);
+        if (current == null || !current.isSuccess()) {
+            return false;
+        }
+        String serialNumber = getSerialNumber(current);
+        if (serialNumber == null) {
+            return false;
+        }
+
+        File file = getFile(serialNumber, nad);
+        Map<byte[], byte[]> saved;
+        synchronized (this) {
+            if (!file.exists()) {
+                LOGGER.debug("load: nothing saved for {}", serialNumber);
+                return false;
+            }
+            try {
+                saved = read(file);
+            } catch (IOException e) {
+                LOGGER.info("load: can't read {}: {}", file, e.toString());
+                return false;
+            }
+        }
+        if (saved == null) {
+            LOGGER.debug("load: {} is out of date", file);
+            return false;
+        }
+
+        byte[] savedSoftReset = null;
+        for (Map.Entry<byte[], byte[]> entry : saved.entrySet()) {
+            if (Arrays.equals(entry.getKey(), softReset.getBytes())) {
+                savedSoftReset = entry.getValue();
+            }
+        }
+        if (!Arrays.equals(savedSoftReset, toBytes(current))) {
+            LOGGER.info("load: {}'s software has changed", serialNumber);
+            return false;
+        }
+
+        for (Map.Entry<byte[], byte[]> entry : saved.entrySet()) {
+            cache.preload(nad, entry.getKey(), new ResponseMessage(nad, false, entry.getValue()));
+        }
+        LOGGER.debug("load: {} responses for {}", saved.size(), serialNumber);
+        return true;
+    }
+
+    /**
+     * Save what the client's ResponseCache currently knows about the device.
+     *
+     * <p>
+     * Does nothing unless the ResponseCache has the device's soft reset response, e.g.
+     * after {@link #load}.
+     * </p>
+     *
+     * @param client The client. Must have a ResponseCache.
+     * @param nad    The device to save the responses of
+     * @return true if saved
+     */
+    public boolean save(@NonNull MpiClient client, @NonNull InterfaceType nad) {
+        ResponseCache cache = getResponseCache(client);
+        Map<byte[], ResponseMessage> snapshot = cache.snapshot(nad);
+
+        byte[] softReset = makeSoftReset().getBytes();
+        String serialNumber = null;
+        for (Map.Entry<byte[], ResponseMessage> entry : snapshot.entrySet()) {
+            if (Arrays.equals(entry.getKey(), softReset)) {
+                serialNumber = getSerialNumber(entry.getValue());
+            }
+        }
+        if (serialNumber == null) {
+            LOGGER.debug("save: device not identified");
+            return false;
+        }
+
+        synchronized (this) {
+            try {
+                write(getFile(serialNumber, nad), serialNumber, snapshot);
+                return true;
+            } catch (IOException e) {
+                LOGGER.info("save: failed: {}", e.toString());
+                return false;
+            }
+        }
+    }
+
+    @NonNull
+    private static ResponseCache getResponseCache(@NonNull MpiClient client) {
+        ResponseCache cache = client.getResponseCache();
+        if (cache == null) {
+            throw new IllegalArgumentException("client has no ResponseCache");
+        }
+        return cache;
+    }
+
+    /**
+     * Write the responses to a temporary file, then rename it over the real one, so a crash
+     * can't leave a half-written file.
+     */
+    private void write(
+            @NonNull File file,
+            @NonNull String serialNumber,
+            @NonNull Map<byte[], ResponseMessage> responses
+    ) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(serialNumber);
+            out.writeShort(responses.size());
+            for (Map.Entry<byte[], ResponseMessage> entry : responses.entrySet()) {
+                byte[] command = entry.getKey();
+                byte[] response = toBytes(entry.getValue());
+                out.writeShort(command.length);
+                out.write(command);
+                out.writeShort(response.length);
+                out.write(response);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Read a file written by {@link #write}.
+     *
+     * @return The commands and their responses, or null if the file is too old
+     * @throws IOException If the file can't be read or isn't valid
+     */
+    @Nullable
+    private Map<byte[], byte[]> read(@NonNull File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                throw new IOException("Not a metadata file");
+            }
+            long savedAt = in.readLong();
+            long age = System.currentTimeMillis() - savedAt;
+            if (age < 0L || age > mMaxAgeMillis) {
+                return null;
+            }
+            in.readUTF();
+            int count = in.readUnsignedShort();
+            if (count > MAX_ENTRIES) {
+                throw new IOException("Too many entries: " + count);
+            }
+            Map<byte[], byte[]> responses = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                byte[] command = readBytes(in, 4);
+                byte[] response = readBytes(in, 2);
+                responses.put(command, response);
+            }
+            return responses;
+        }
+    }
+
+    @NonNull
+    private static byte[] readBytes(@NonNull DataInputStream in, int min) throws IOException {
+        int length = in.readUnsignedShort();
+        if (length < min || length > MAX_BYTES) {
+            throw new IOException("Invalid length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -11,6 +11,9 @@ import android.support.annotation.Nullable;
 
 import com.miurasystems.miuralibrary.api.objects.BatteryData;
 import com.miurasystems.miuralibrary.api.objects.Capability;
+import com.miurasystems.miuralibrary.api.objects.DeviceSnapshot;
+import com.miurasystems.miuralibrary.api.objects.DeviceSnapshot.Field;
+import com.miurasystems.miuralibrary.api.objects.FileDigest;
 import com.miurasystems.miuralibrary.api.objects.P2PEStatus;
 import com.miurasystems.miuralibrary.api.objects.SoftwareInfo;
 import com.miurasystems.miuralibrary.api.utils.SerialPortProperties;
@@ -48,14 +51,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Adapter that converts Unsolicited PollerMessages into Events
@@ -77,14 +85,20 @@ class UnsolicitedResponseAdapter implements UnsolicitedResponseCallback {
     /** MpiEvents object to post events to. */
     private final MpiEvents mEvents;
 
+    /** The client's ResponseCache, if it has one */
+    private final AtomicReference<ResponseCache> mResponseCache;
+
 
     /**
      * Create a new adapter wrapping the given MpiEvents object
      *
-     * @param events object to post events to
+     * @param events        object to post events to
+     * @param responseCache the client's ResponseCache, which device status changes invalidate
      */
-    UnsolicitedResponseAdapter(MpiEvents events) {
+    UnsolicitedResponseAdapter(
+            MpiEvents events, AtomicReference<ResponseCache> responseCache) {
         mEvents = events;
+        mResponseCache = responseCache;
     }
 
 
@@ -100,6 +114,11 @@ class UnsolicitedResponseAdapter implements UnsolicitedResponseCallback {
                     msg.response.getStatusCode(),
                     BinaryUtil.parseHexString(body));
         }
+        ResponseCache cache = mResponseCache.get();
+        if (cache != null) {
+            cache.onUnsolicitedMessage(msg.response);
+        }
+        UnsolicitedMessageEventDispatcher.signalRawEvent(msg.response, mEvents);
         UnsolicitedMessageEventDispatcher.signalEvent(msg.response, mEvents);
     }
 }
@@ -124,18 +143,27 @@ class ConnectionAdapter implements ConnectionStateCallback {
     /** MpiEvents object to post events to. */
     private final MpiEvents mEvents;
 
+    /** The client's ResponseCache, if it has one */
+    private final AtomicReference<ResponseCache> mResponseCache;
+
     /**
      * Create a new adapter wrapping the given MpiEvents object
      *
-     * @param events object to post events to
+     * @param events        object to post events to
+     * @param responseCache the client's ResponseCache, which (dis)connecting invalidates
      */
-    ConnectionAdapter(MpiEvents events) {
+    ConnectionAdapter(MpiEvents events, AtomicReference<ResponseCache> responseCache) {
         mEvents = events;
+        mResponseCache = responseCache;
     }
 
     @Override
     public void handle(boolean state) {
         LOGGER.info("handle(state:{})", state);
+        ResponseCache cache = mResponseCache.get();
+        if (cache != null) {
+            cache.onConnectionChanged();
+        }
         ConnectionEventDispatcher.signalEvent(state, mEvents);
     }
 }
@@ -249,6 +277,15 @@ class ConnectionAdapter implements ConnectionStateCallback {
  * of sending an abort whilst a transaction is currently in process. An extension of MpiClient is
  * available to account for that in the form of {@link MpiClientMTAbort}.
  * </p>
+ * <p>
+ * Another thread can stop a long operation, e.g. downloading a file, with a
+ * {@link CancellationToken}. See {@link #setCancellationToken(CancellationToken)}.
+ * </p>
+ * <p>
+ * Queries whose answers rarely change, e.g. {@link #getDeviceInfo(InterfaceType)}, can be
+ * answered without a round trip by a {@link ResponseCache}.
+ * See {@link #setResponseCache(ResponseCache)}.
+ * </p>
  */
 public class MpiClient {
 
@@ -266,6 +303,9 @@ public class MpiClient {
     /** Constant for ISO_8859_1 Charset */
     private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
 
+    /** Length of a File_md5sum */
+    private static final int MD5_LENGTH = 16;
+
     /** MpiEvents object to post events to. */
     @NonNull
     private final MpiEvents mMpiEvents;
@@ -299,6 +339,14 @@ public class MpiClient {
     @Nullable
     private MpiProtocolSession mSession;
 
+    /** Each thread's current operation. See {@link #setCancellationToken(CancellationToken)} */
+    @NonNull
+    private final ThreadLocal<CancellationToken> mCancellationToken = new ThreadLocal<>();
+
+    /** Answers repeated queries. Null if there isn't one */
+    @NonNull
+    private final AtomicReference<ResponseCache> mResponseCache = new AtomicReference<>();
+
     /**
      * Create a new MpiClient using the given connector as its communications channel.
      *
@@ -313,8 +361,8 @@ public class MpiClient {
      */
     public MpiClient(@NonNull Connector connector, @NonNull MpiEvents mpiEvents) {
         mMpiEvents = mpiEvents;
-        mConnectionAdapter = new ConnectionAdapter(mpiEvents);
-        mUnsolicitedResponseAdapter = new UnsolicitedResponseAdapter(mpiEvents);
+        mConnectionAdapter = new ConnectionAdapter(mpiEvents, mResponseCache);
+        mUnsolicitedResponseAdapter = new UnsolicitedResponseAdapter(mpiEvents, mResponseCache);
         mConnector = connector;
         mSession = null;
     }
@@ -370,9 +418,75 @@ public class MpiClient {
         return mMpiEvents;
     }
 
+    /**
+     * Let another thread cancel what this thread is doing with this client.
+     *
+     * <p>
+     * Once the token is {@link CancellationToken#cancel() cancelled}, every method this thread
+     * calls fails straight away without sending its command, as if the device hadn't
+     * responded. So a multi-command operation, e.g. GetDeviceFile, stops at its next command.
+     * A command already in flight isn't affected, unless {@link MpiClientMTAbort} can abort it.
+     * </p>
+     *
+     * <p>Remember to clear the token once the operation is finished.</p>
+     *
+     * @param token The token, or null to clear it
+     */
+    public void setCancellationToken(@Nullable CancellationToken token) {
+        if (token == null) {
+            mCancellationToken.remove();
+        } else {
+            mCancellationToken.set(token);
+        }
+    }
+
+    /**
+     * @return This thread's token, if it has one
+     */
+    @Nullable
+    CancellationToken getCancellationToken() {
+        return mCancellationToken.get();
+    }
+
+    /**
+     * @return true if this thread's operation has been cancelled
+     */
+    boolean isCancelled() {
+        CancellationToken token = mCancellationToken.get();
+        return token != null && token.isCancelled();
+    }
+
+    /**
+     * Answer repeated queries from a cache.
+     *
+     * <p>
+     * The cache is invalidated by the client's connection changing, device status changes
+     * and commands that change the device. See {@link ResponseCache}.
+     * A cache can be shared by successive clients for the same device.
+     * </p>
+     *
+     * @param cache The cache, or null to send every command to the device
+     */
+    public void setResponseCache(@Nullable ResponseCache cache) {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        mResponseCache.set(cache);
+    }
+
+    /**
+     * @return The client's cache, or null if it doesn't have one
+     */
+    @Nullable
+    public ResponseCache getResponseCache() {
+        return mResponseCache.get();
+    }
+
     /**
      * Send a CommandApdu and receive an expected response on the given channel.
      *
+     * <p>Answered from the {@link ResponseCache} instead, if it can be.</p>
+     *
      * @param interfaceType Which device to send it to
      * @param command       The command to send
      * @return The ResponseMessage received. Null if an error occurred.
@@ -385,9 +499,26 @@ public class MpiClient {
         if (mSession == null) {
             return null;
         }
+        if (isCancelled()) {
+            LOGGER.debug("sendAndReceive: cancelled, not sending");
+            return null;
+        }
+        ResponseCache cache = mResponseCache.get();
+        long generation = 0L;
+        if (cache != null) {
+            generation = cache.getGeneration();
+            ResponseMessage cached = cache.lookup(interfaceType, command.getBytes());
+            if (cached != null) {
+                return cached;
+            }
+        }
         try {
             mSession.sendCommandAPDU(interfaceType, command);
-            return mSession.receiveResponse(interfaceType);
+            ResponseMessage rm = mSession.receiveResponse(interfaceType);
+            if (cache != null) {
+                cache.store(interfaceType, command.getBytes(), rm, generation);
+            }
+            return rm;
         } catch (IOException | InterruptedException e) {
             // .close will have been called, which sends disconnect event
             LOGGER.warn("sendAndReceive failed:{}", e.toString());
@@ -437,6 +568,34 @@ public class MpiClient {
         }
     }
 
+    /**
+     * Take the given channel for several commands sent with {@link #sendCommand} and
+     * received with {@link #receiveResponse}.
+     *
+     * <p>
+     * Whilst commands are in flight their responses must only be received by the thread that
+     * sent them. MpiClient isn't thread-safe, so this does nothing here, but
+     * {@link MpiClientMTAbort} takes the channel's permits so that no other method, including
+     * abortTransaction, can send or receive on it until {@link #unlockChannel} is called.
+     * </p>
+     *
+     * <p>Don't call other MpiClient methods whilst the channel is locked.</p>
+     *
+     * @param interfaceType Which device to lock
+     * @return true if the channel was locked. false if interrupted whilst waiting for it.
+     */
+    boolean lockChannel(@NonNull InterfaceType interfaceType) {
+        return true;
+    }
+
+    /**
+     * Release a channel taken with {@link #lockChannel}.
+     *
+     * @param interfaceType The device passed to lockChannel
+     */
+    void unlockChannel(@NonNull InterfaceType interfaceType) {
+    }
+
     /**
      * Send a CommandApdu, then a binary blob, then receive response on the given channel.
      * <p>
@@ -456,12 +615,51 @@ public class MpiClient {
             @NonNull byte[] binary,
             int len) {
 
-        if (mSession == null) {
+        if (!canSendBinary()) {
             return null;
         }
         try {
-            mSession.sendCommandAPDU(interfaceType, command);
-            mSession.sendBinaryStream(interfaceType, binary, len);
+            mSession.sendCommandAndBinaryStream(interfaceType, command, binary, len);
+            return mSession.receiveResponse(interfaceType);
+        } catch (IOException | InterruptedException e) {
+            // .close will have been called, which sends disconnect event
+            LOGGER.debug("sendAndReceiveBinary failed:{}", e.toString());
+            return null;
+        }
+    }
+
+    @Nullable
+    private ResponseMessage sendAndReceiveBinary(
+            @NonNull InterfaceType interfaceType,
+            @NonNull CommandApdu command,
+            @NonNull FileChannel file,
+            long position,
+            long count) {
+
+        if (!canSendBinary()) {
+            return null;
+        }
+        try {
+            mSession.sendCommandAndBinaryStream(interfaceType, command, file, position, count);
+            return mSession.receiveResponse(interfaceType);
+        } catch (IOException | InterruptedException e) {
+            // .close will have been called, which sends disconnect event
+            LOGGER.debug("sendAndReceiveBinary failed:{}", e.toString());
+            return null;
+        }
+    }
+
+    @Nullable
+    private ResponseMessage sendAndReceiveBinary(
+            @NonNull InterfaceType interfaceType,
+            @NonNull CommandApdu command,
+            @NonNull ByteBuffer buffer) {
+
+        if (!canSendBinary()) {
+            return null;
+        }
+        try {
+            mSession.sendCommandAndBinaryStream(interfaceType, command, buffer);
             return mSession.receiveResponse(interfaceType);
         } catch (IOException | InterruptedException e) {
             // .close will have been called, which sends disconnect event
@@ -470,6 +668,25 @@ public class MpiClient {
         }
     }
 
+    /**
+     * Check a binary stream can be sent, and invalidate the ResponseCache as it will be.
+     */
+    private boolean canSendBinary() {
+        if (mSession == null) {
+            return false;
+        }
+        if (isCancelled()) {
+            LOGGER.debug("sendAndReceiveBinary: cancelled, not sending");
+            return false;
+        }
+        ResponseCache cache = mResponseCache.get();
+        if (cache != null) {
+            // Streaming changes a file, which may change the device's configuration etc.
+            cache.invalidateAll();
+        }
+        return true;
+    }
+
     @Nullable
     public ArrayList<Capability> getDeviceInfo(@NonNull InterfaceType interfaceType) {
         CommandApdu command = new CommandApdu(CommandType.Get_DeviceInfo);
@@ -527,7 +744,11 @@ public class MpiClient {
         if (rm == null || !rm.isSuccess()) {
             return null;
         }
+        return parseSystemClock(rm);
+    }
 
+    @Nullable
+    private static Date parseSystemClock(@NonNull ResponseMessage rm) {
         List<TLVObject> list = TLVParser.decode(rm.getBody());
         TLVObject tlvObjectDate = CommandUtil.firstMatch(list, Description.Date);
         TLVObject tlvObjectTime = CommandUtil.firstMatch(list, Description.Time);
@@ -588,7 +809,11 @@ public class MpiClient {
         if (rm == null || !rm.isSuccess()) {
             return null;
         }
+        return parseBatteryStatus(rm);
+    }
 
+    @Nullable
+    private static BatteryData parseBatteryStatus(@NonNull ResponseMessage rm) {
         List<TLVObject> tlvObjects = TLVParser.decode(rm.getBody());
         TLVObject tlvBatteryLevel = CommandUtil.firstMatch(tlvObjects, Description.Battery_Status);
         TLVObject tlvChargingStatus = CommandUtil.firstMatch(tlvObjects,
@@ -636,7 +861,7 @@ public class MpiClient {
 
         // cardStatus returns via an unsolicited message, so only send, no receive.
         try {
-            mSession.sendCommandAPDU(interfaceType, command);
+            mSession.sendCommandWithoutResponse(interfaceType, command);
         } catch (IOException e) {
             LOGGER.info("cardStatus failed:{}", e.toString());
         }
@@ -660,7 +885,11 @@ public class MpiClient {
         if (rm == null || !rm.isSuccess()) {
             return null;
         }
+        return parseSoftwareInfo(rm);
+    }
 
+    @Nullable
+    private static SoftwareInfo parseSoftwareInfo(@NonNull ResponseMessage rm) {
         /* Example response.
         e1 L:30 v: [
             t:9f1e l:08 v:3034303030323033 "04000203"
@@ -731,7 +960,11 @@ public class MpiClient {
         if (rm == null || !rm.isSuccess()) {
             return null;
         }
+        return parseConfiguration(rm);
+    }
 
+    @NonNull
+    private static HashMap<String, String> parseConfiguration(@NonNull ResponseMessage rm) {
         List<TLVObject> list = TLVParser.decode(rm.getBody());
         HashMap<String, String> versionMap = new HashMap<>();
 
@@ -774,7 +1007,47 @@ public class MpiClient {
             return -1;
         }
 
+        return getFileSize(TLVParser.decode(rm.getBody()));
+    }
+
+    /**
+     * Select a file in {@link SelectFileMode#AppendWithMD5Response} mode, and get its size and
+     * MD5.
+     *
+     * <p>
+     * As the file is appended to, its MD5 is that of what's been written so far. e.g. to check
+     * the start of an interrupted upload before carrying on from where it stopped.
+     * </p>
+     *
+     * @param interfaceType The device
+     * @param fileName      The file to select
+     * @return The file's size and MD5, or null if it couldn't be selected or the device didn't
+     * give an MD5
+     */
+    @Nullable
+    public FileDigest selectFileWithMd5(
+            @NonNull InterfaceType interfaceType,
+            @NonNull String fileName
+    ) {
+        byte[] ascii = fileName.getBytes(US_ASCII);
+
+        int p1 = SelectFileMode.AppendWithMD5Response.getValue();
+        CommandApdu command = new CommandApdu(CommandType.Select_File, p1, 0x0, ascii);
+        ResponseMessage rm = sendAndReceive(interfaceType, command);
+        if (rm == null || !rm.isSuccess()) {
+            return null;
+        }
+
         List<TLVObject> list = TLVParser.decode(rm.getBody());
+        int fileSize = getFileSize(list);
+        TLVObject tlvMd5 = CommandUtil.firstMatch(list, Description.File_md5sum);
+        if (fileSize < 0 || tlvMd5 == null || tlvMd5.getRawData().length != MD5_LENGTH) {
+            return null;
+        }
+        return new FileDigest(fileSize, tlvMd5.getRawData());
+    }
+
+    private static int getFileSize(@NonNull List<TLVObject> list) {
         TLVObject tlvFileSize = CommandUtil.firstMatch(list, Description.File_Size);
         if (tlvFileSize == null) {
             return -1;
@@ -804,6 +1077,152 @@ public class MpiClient {
                 "streamBinary(nad:{}, md5? {}, binary len:{}, offset: {}, size:{}, timeout:{}",
                 interfaceType, needMd5sum, binary.length, offset, size, timeout);
 
+        CommandApdu command = makeStreamBinary(needMd5sum, offset, size, timeout);
+        ResponseMessage rm = sendAndReceiveBinary(interfaceType, command, binary, size);
+        return rm != null && rm.isSuccess();
+    }
+
+    /**
+     * Stream part of a file to the device, without reading it into the heap.
+     *
+     * <p>
+     * Like {@link #streamBinary(InterfaceType, boolean, byte[], int, int, int)}, but the
+     * binary is sent straight from the file, see
+     * {@link com.miurasystems.miuralibrary.comms.Connector#getOutputChannel()}.
+     * </p>
+     *
+     * @param interfaceType The device to stream to
+     * @param needMd5sum    true to ask for the file's md5sum
+     * @param file          The file to stream from
+     * @param position      Where in file to start reading
+     * @param offset        Where to write on the device
+     * @param size          The number of bytes to stream
+     * @param timeout       Stream timeout, in seconds
+     * @return true if the device accepted the stream
+     * @throws IllegalArgumentException If file doesn't have size bytes from position. Nothing
+     *                                  is sent.
+     */
+    public boolean streamBinary(
+            @NonNull InterfaceType interfaceType,
+            boolean needMd5sum,
+            @NonNull FileChannel file,
+            long position,
+            int offset,
+            int size,
+            int timeout
+    ) {
+        LOGGER.debug(
+                "streamBinary(nad:{}, md5? {}, file position: {}, offset: {}, size:{}, timeout:{}",
+                interfaceType, needMd5sum, position, offset, size, timeout);
+
+        CommandApdu command = makeStreamBinary(needMd5sum, offset, size, timeout);
+        ResponseMessage rm = sendAndReceiveBinary(interfaceType, command, file, position, size);
+        return rm != null && rm.isSuccess();
+    }
+
+    /**
+     * Stream a buffer's remaining bytes to the device, without copying them into the heap.
+     *
+     * <p>
+     * Like {@link #streamBinary(InterfaceType, boolean, byte[], int, int, int)}, but the
+     * binary is e.g. a slice of a read-only {@link java.nio.MappedByteBuffer} shared with
+     * other clients.
+     * </p>
+     *
+     * @param interfaceType The device to stream to
+     * @param needMd5sum    true to ask for the file's md5sum
+     * @param binary        The binary to send. Its position isn't changed.
+     * @param offset        Where to write on the device
+     * @param timeout       Stream timeout, in seconds
+     * @return true if the device accepted the stream
+     */
+    public boolean streamBinary(
+            @NonNull InterfaceType interfaceType,
+            boolean needMd5sum,
+            @NonNull ByteBuffer binary,
+            int offset,
+            int timeout
+    ) {
+        LOGGER.debug("streamBinary(nad:{}, md5? {}, buffer: {}, offset: {}, timeout:{}",
+                interfaceType, needMd5sum, binary.remaining(), offset, timeout);
+
+        CommandApdu command = makeStreamBinary(needMd5sum, offset, binary.remaining(), timeout);
+        ResponseMessage rm = sendAndReceiveBinary(interfaceType, command, binary);
+        return rm != null && rm.isSuccess();
+    }
+
+    /**
+     * Send a STREAM BINARY and its binary, without waiting for the response.
+     *
+     * <p>Receive the response with {@link #receiveResponse}.</p>
+     *
+     * @param interfaceType The device to stream to
+     * @param binary        The binary to send, from index 0
+     * @param offset        Where to write on the device
+     * @param size          The number of bytes to stream
+     * @param timeout       Stream timeout, in seconds
+     * @return The session's command id for this command. -1 in case of error.
+     */
+    int sendStreamBinary(
+            @NonNull InterfaceType interfaceType,
+            @NonNull byte[] binary,
+            int offset,
+            int size,
+            int timeout
+    ) {
+        if (!canSendBinary()) {
+            return -1;
+        }
+        CommandApdu command = makeStreamBinary(false, offset, size, timeout);
+        try {
+            return mSession.sendCommandAndBinaryStream(interfaceType, command, binary, size);
+        } catch (IOException e) {
+            LOGGER.debug("sendStreamBinary failed:{}", e.toString());
+            return -1;
+        }
+    }
+
+    /**
+     * Send a STREAM BINARY and part of a file, without waiting for the response.
+     *
+     * <p>Receive the response with {@link #receiveResponse}.</p>
+     *
+     * @param interfaceType The device to stream to
+     * @param file          The file to stream from
+     * @param position      Where in file to start reading
+     * @param offset        Where to write on the device
+     * @param size          The number of bytes to stream
+     * @param timeout       Stream timeout, in seconds
+     * @return The session's command id for this command. -1 in case of error.
+     */
+    int sendStreamBinary(
+            @NonNull InterfaceType interfaceType,
+            @NonNull FileChannel file,
+            long position,
+            int offset,
+            int size,
+            int timeout
+    ) {
+        if (!canSendBinary()) {
+            return -1;
+        }
+        CommandApdu command = makeStreamBinary(false, offset, size, timeout);
+        try {
+            return mSession.sendCommandAndBinaryStream(
+                    interfaceType, command, file, position, size);
+        } catch (IOException e) {
+            LOGGER.debug("sendStreamBinary failed:{}", e.toString());
+            return -1;
+        }
+    }
+
+    @NonNull
+    private static CommandApdu makeStreamBinary(
+            boolean needMd5sum,
+            int offset,
+            int size,
+            int timeout
+    ) {
         int p1 = 0x00;
         if (needMd5sum) {
             p1 = 0x01;
@@ -828,9 +1247,7 @@ public class MpiClient {
         commandData = CommandUtil.copyArray(commandData, streamTimeout);
         commandData = TLVParser.encode(Description.Command_Data, commandData);
 
-        CommandApdu command = new CommandApdu(CommandType.Stream_Binary, p1, 0x0, commandData);
-        ResponseMessage rm = sendAndReceiveBinary(interfaceType, command, binary, size);
-        return rm != null && rm.isSuccess();
+        return new CommandApdu(CommandType.Stream_Binary, p1, 0x0, commandData);
     }
 
     public boolean systemLog(
@@ -850,6 +1267,14 @@ public class MpiClient {
             int offset,
             int size
     ) {
+        return sendAndReceive(interfaceType, makeReadBinary(fileSize, offset, size));
+    }
+
+    /**
+     * Make a READ BINARY command for {@link #readBinary} or {@link WindowedFileReader}.
+     */
+    @NonNull
+    static CommandApdu makeReadBinary(int fileSize, int offset, int size) {
         if (size > 0xFC) {
             size = 0xFC;
         }
@@ -875,8 +1300,7 @@ public class MpiClient {
             throw new IllegalArgumentException("READ_BINARY max address size is 23 bits");
         }
 
-        CommandApdu command = new CommandApdu(CommandType.Read_Binary, p1, p2, dataField, size);
-        return sendAndReceive(interfaceType, command);
+        return new CommandApdu(CommandType.Read_Binary, p1, p2, dataField, size);
     }
 
     @NonNull
@@ -1078,7 +1502,11 @@ public class MpiClient {
         if (rm == null || !rm.isSuccess()) {
             return null;
         }
+        return parseP2peStatus(rm);
+    }
 
+    @Nullable
+    private static P2PEStatus parseP2peStatus(@NonNull ResponseMessage rm) {
         List<TLVObject> list = TLVParser.decode(rm.getBody());
         TLVObject tlvFileSize = CommandUtil.firstMatch(list, Description.P2PE_Status);
 
@@ -1094,6 +1522,96 @@ public class MpiClient {
         return p2peStatus;
     }
 
+    /**
+     * Get the device's battery, software info, configuration, P2PE status and clock in one go.
+     *
+     * <p>
+     * The five commands are sent back-to-back, with up to {@link WindowedFileReader#MAX_WINDOW}
+     * in flight at once as the session only buffers that many responses, so this takes about
+     * two round trips rather than five. Any the {@link ResponseCache} can answer aren't sent.
+     * A field whose command fails, or whose response can't be parsed, is null in the snapshot
+     * and the rest are still returned.
+     * </p>
+     *
+     * @param interfaceType Which device to ask
+     * @return The snapshot. Never null, but its fields may all have failed.
+     */
+    @NonNull
+    public DeviceSnapshot getDeviceSnapshot(@NonNull InterfaceType interfaceType) {
+        long start = System.nanoTime();
+        Field[] fields = Field.values();
+        // In Field order
+        CommandApdu[] commands = {
+                new CommandApdu(CommandType.Battery_Status, 0, 0),
+                new CommandApdu(CommandType.Reset_Device, ResetDeviceType.Soft_Reset.getType(), 0),
+                new CommandApdu(CommandType.Get_Configuration),
+                new CommandApdu(CommandType.P2PE_Status),
+                new CommandApdu(CommandType.System_Clock),
+        };
+        ResponseMessage[] responses = new ResponseMessage[fields.length];
+        // When each command was sent
+        long[] sentNanos = new long[fields.length];
+        EnumMap<Field, Long> latencies = new EnumMap<>(Field.class);
+
+        ResponseCache cache = mResponseCache.get();
+        long generation = cache == null ? 0L : cache.getGeneration();
+        boolean failed = mSession == null || isCancelled();
+        // Indexes of the commands in flight. Responses come back in the order they were sent.
+        ArrayDeque<Integer> inFlight = new ArrayDeque<>();
+        for (int i = 0; i <= fields.length; i++) {
+            boolean done = failed || i == fields.length;
+            while (!inFlight.isEmpty()
+                    && (done || inFlight.size() >= WindowedFileReader.MAX_WINDOW)) {
+                int sent = inFlight.poll();
+                ResponseMessage rm = receiveResponse(interfaceType);
+                if (rm == null) {
+                    // The session has gone, so the rest won't arrive either
+                    inFlight.clear();
+                    done = true;
+                    break;
+                }
+                responses[sent] = rm;
+                latencies.put(fields[sent], System.nanoTime() - sentNanos[sent]);
+                if (cache != null) {
+                    cache.store(interfaceType, commands[sent].getBytes(), rm, generation);
+                }
+            }
+            if (done) {
+                break;
+            }
+
+            if (cache != null) {
+                ResponseMessage cached = cache.lookup(interfaceType, commands[i].getBytes());
+                if (cached != null) {
+                    responses[i] = cached;
+                    latencies.put(fields[i], DeviceSnapshot.FROM_CACHE);
+                    continue;
+                }
+            }
+            sentNanos[i] = System.nanoTime();
+            if (sendCommand(interfaceType, commands[i]) < 0) {
+                failed = true;
+            } else {
+                inFlight.add(i);
+            }
+        }
+
+        for (int i = 0; i < fields.length; i++) {
+            if (responses[i] != null && !responses[i].isSuccess()) {
+                LOGGER.debug("getDeviceSnapshot: {} failed: {}", fields[i], responses[i]);
+                responses[i] = null;
+            }
+        }
+        return new DeviceSnapshot(
+                responses[0] == null ? null : parseBatteryStatus(responses[0]),
+                responses[1] == null ? null : parseSoftwareInfo(responses[1]),
+                responses[2] == null ? null : parseConfiguration(responses[2]),
+                responses[3] == null ? null : parseP2peStatus(responses[3]),
+                responses[4] == null ? null : parseSystemClock(responses[4]),
+                latencies,
+                System.nanoTime() - start);
+    }
+
     public boolean p2peInitialise(@NonNull InterfaceType interfaceType) {
         CommandApdu command = new CommandApdu(CommandType.P2PE_Initialise);
         ResponseMessage rm = sendAndReceive(interfaceType, command);
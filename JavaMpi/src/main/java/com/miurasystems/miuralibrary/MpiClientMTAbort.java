@@ -9,10 +9,13 @@ import android.support.annotation.Nullable;
 
 import com.miurasystems.miuralibrary.api.objects.BatteryData;
 import com.miurasystems.miuralibrary.api.objects.Capability;
+import com.miurasystems.miuralibrary.api.objects.DeviceSnapshot;
+import com.miurasystems.miuralibrary.api.objects.FileDigest;
 import com.miurasystems.miuralibrary.api.objects.P2PEStatus;
 import com.miurasystems.miuralibrary.api.objects.SoftwareInfo;
 import com.miurasystems.miuralibrary.api.utils.SerialPortProperties;
 import com.miurasystems.miuralibrary.comms.CommandApdu;
+import com.miurasystems.miuralibrary.comms.CommandTimeouts;
 import com.miurasystems.miuralibrary.comms.ConnectionStateCallback;
 import com.miurasystems.miuralibrary.comms.Connector;
 import com.miurasystems.miuralibrary.comms.MpiProtocolSession;
@@ -21,28 +24,29 @@ import com.miurasystems.miuralibrary.comms.UnsolicitedResponseCallback;
 import com.miurasystems.miuralibrary.enums.BacklightSettings;
 import com.miurasystems.miuralibrary.enums.CashDrawer;
 import com.miurasystems.miuralibrary.enums.InterfaceType;
-import com.miurasystems.miuralibrary.enums.OnlinePINError;
 import com.miurasystems.miuralibrary.enums.RKIError;
 import com.miurasystems.miuralibrary.enums.ResetDeviceType;
 import com.miurasystems.miuralibrary.enums.SelectFileMode;
 import com.miurasystems.miuralibrary.enums.StatusSettings;
 import com.miurasystems.miuralibrary.enums.SystemLogMode;
 import com.miurasystems.miuralibrary.enums.TransactionResponse;
-import com.miurasystems.miuralibrary.enums.TransactionType;
 import com.miurasystems.miuralibrary.events.MpiEvents;
 import com.miurasystems.miuralibrary.tlv.BinaryUtil;
-import com.miurasystems.miuralibrary.tlv.TLVObject;
-import com.miurasystems.miuralibrary.tlv.TLVParser;
-import com.miurasystems.miuralibrary.tlv.Track2Data;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.Exchanger;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -66,9 +70,16 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * <p>
  * Note that MpiClient offers some simple multi-threading protection for non-transaction and
  * non-abort methods, but this is very rudimentary in the sense that it only prevents
- * two methods from concurrently executing. It offers no guarantees on
- * the ordering of commands sent to the device if multiple threads decide to try and all
- * send commands at once.
+ * two methods on the same {@link InterfaceType} from concurrently executing. It offers no
+ * guarantees on the ordering of commands sent to the device if multiple threads decide to try
+ * and all send commands at once.
+ * </p>
+ *
+ * <p>
+ * Each InterfaceType is locked separately, so methods on different devices can run at the same
+ * time from different threads. e.g. a long {@link #printText} on the RPI doesn't block a
+ * {@link #displayText} on the MPI. {@link #openSession()} and {@link #closeSession()} lock
+ * every InterfaceType.
  * </p>
  *
  * <p>
@@ -139,6 +150,21 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * <p>
  * So MpiClientMTAbort exists to offer the multi-threaded/mid-transaction abort functionality.
  * </p>
+ *
+ * <h4>Other commands that wait for the user</h4>
+ * <p>
+ * The same applies to every command the PED will interrupt with an ABORT,
+ * {@link #ABORTABLE_COMMANDS}, e.g. {@link #getNumericData} and {@link #getDynamicTip}. All
+ * of them go through the same permit and exchange machinery, whichever method sends them.
+ * </p>
+ * <p>
+ * Rather than calling abortTransaction directly, a thread can be given a
+ * {@link CancellationToken} with {@link #setCancellationToken(CancellationToken)}. Cancelling
+ * it aborts the abortable command the thread is blocked in, if any, and fails any further
+ * commands the thread sends. So multi-command operations such as
+ * {@link com.miurasystems.miuralibrary.api.utils.GetDeviceFile GetDeviceFile} can be stopped
+ * too, after the command in flight.
+ * </p>
  */
 public final class MpiClientMTAbort extends MpiClient {
 
@@ -146,6 +172,10 @@ public final class MpiClientMTAbort extends MpiClient {
      * Synchronisation implementation details
      * ---------------------------------------
      *
+     * Each InterfaceType has its own ChannelLock, and everything below applies to each
+     * InterfaceType separately. Commands to the MPI and RPI are sequenced separately by both
+     * the device and MpiProtocolSession, so they don't need to wait for each other.
+     *
      * The class uses mSemaphore with a permit count of 3.
      * Notionally, one permit is for "sending", one is for "receiving",
      * and one is for "exclusive access". (Or even: a count of one for
@@ -237,7 +267,7 @@ public final class MpiClientMTAbort extends MpiClient {
      *
      */
 
-    /** Maximum number of permits {@link #mSemaphore} will use. */
+    /** Maximum number of permits each ChannelLock will use. */
     private static final int NUM_PERMITS_MAX = 3;
 
     /**
@@ -265,44 +295,73 @@ public final class MpiClientMTAbort extends MpiClient {
             PERMITS_TRANSACTION_RELEASE_AFTER_SEND +
                     PERMITS_TRANSACTION_RELEASE_AFTER_RECEIVE;
 
-    /** SLF4J Logger */
-    private static final Logger LOGGER = LoggerFactory.getLogger(MpiClientMTAbort.class);
-
     /**
-     * The semaphore used to synchronise control to the session and ensure that
-     * aborts can happen even when a transaction is currently blocking to receive.
-     * <p>
-     * Specifically initialised in non-fair mode to allow an abort the _chance_ to jump
-     * to the head of the queue if there were multiple things waiting on the Semaphore.
-     * </p>
+     * The commands that wait for the user, and that the device will interrupt with an ABORT.
+     *
      * <p>
-     * See {@link #abortTransaction(InterfaceType)} for more information.
+     * These are the only commands that {@link CommandTimeouts} doesn't time out by default, so
+     * being able to abort them means every command can be cancelled in bounded time.
      * </p>
      */
-    @NonNull
-    private final Semaphore mSemaphore = new Semaphore(NUM_PERMITS_MAX, false);
+    static final Set<CommandType> ABORTABLE_COMMANDS = Collections.unmodifiableSet(EnumSet.of(
+            CommandType.Start_Transaction,
+            CommandType.Start_Contactless_Transaction,
+            CommandType.Continue_Transaction,
+            CommandType.Online_PIN,
+            CommandType.Get_Numeric_Data,
+            CommandType.Get_Dynamic_Tip,
+            CommandType.Get_Secure_PAN
+    ));
 
-    /**
-     * The synchronisation object that the "abort thread" and the "transaction thread" will
-     * use to swap ResponseMessages, if each thread received the other thread's response.
-     */
-    @NonNull
-    private final Exchanger<ResponseMessage> mExchanger = new Exchanger<>();
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MpiClientMTAbort.class);
 
     /**
-     * Flag set when an {@link #abortTransaction} is currently in the sending process.
-     * <p>
-     * Used to prevent any ABORT commands that might be arriving at the same time
-     * from stealing each other's permits and therefore deadlocking their respective threads.
-     * </p>
-     *
-     * <p>
-     * (Those concurrent aborts would also be useless -- the PED will abort what it's doing on the
-     * first one and therefore there's nothing to abort for the others)
-     * </p>
+     * The synchronisation state of one InterfaceType.
      */
+    private static final class ChannelLock {
+
+        /**
+         * The semaphore used to synchronise control to the session and ensure that
+         * aborts can happen even when a transaction is currently blocking to receive.
+         * <p>
+         * Specifically initialised in non-fair mode to allow an abort the _chance_ to jump
+         * to the head of the queue if there were multiple things waiting on the Semaphore.
+         * </p>
+         * <p>
+         * See {@link MpiClientMTAbort#abortTransaction(InterfaceType)} for more information.
+         * </p>
+         */
+        @NonNull
+        final Semaphore mSemaphore = new Semaphore(NUM_PERMITS_MAX, false);
+
+        /**
+         * The synchronisation object that the "abort thread" and the "transaction thread" will
+         * use to swap ResponseMessages, if each thread received the other thread's response.
+         */
+        @NonNull
+        final Exchanger<ResponseMessage> mExchanger = new Exchanger<>();
+
+        /**
+         * Flag set when an {@link MpiClientMTAbort#abortTransaction} is currently in the
+         * sending process.
+         * <p>
+         * Used to prevent any ABORT commands that might be arriving at the same time
+         * from stealing each other's permits and therefore deadlocking their respective threads.
+         * </p>
+         *
+         * <p>
+         * (Those concurrent aborts would also be useless -- the PED will abort what it's doing
+         * on the first one and therefore there's nothing to abort for the others)
+         * </p>
+         */
+        @NonNull
+        final AtomicBoolean mAbortSending = new AtomicBoolean(false);
+    }
+
+    /** The synchronisation state of each InterfaceType */
     @NonNull
-    private final AtomicBoolean mAbortSending = new AtomicBoolean(false);
+    private final EnumMap<InterfaceType, ChannelLock> mLocks;
 
     /**
      * Create a new MpiClientMTAbort on the given connector that can handle mid-transaction aborts.
@@ -318,57 +377,123 @@ public final class MpiClientMTAbort extends MpiClient {
      */
     public MpiClientMTAbort(@NonNull Connector connector, @NonNull MpiEvents mpiEvents) {
         super(connector, mpiEvents);
+        mLocks = new EnumMap<>(InterfaceType.class);
+        for (InterfaceType interfaceType : InterfaceType.values()) {
+            mLocks.put(interfaceType, new ChannelLock());
+        }
     }
 
     @Override
     public void openSession() throws IOException {
 
+        int locked;
         try {
-            boolean acquired = mSemaphore.tryAcquire(NUM_PERMITS_MAX, 250L, TimeUnit.MILLISECONDS);
-            if (!acquired) {
-                String format = String.format(Locale.ENGLISH,
-                        "openSession: Couldn't get up all permits! Only %d available?",
-                        mSemaphore.availablePermits());
-                LOGGER.warn(format);
-                throw new AssertionError(format);
-            }
+            locked = lockAllChannels(250L);
         } catch (InterruptedException e) {
             LOGGER.trace("InterruptedException in openSession!");
             throw new IOException(e);
         }
+        if (locked != mLocks.size()) {
+            unlockChannels(locked);
+            String format = String.format(Locale.ENGLISH,
+                    "openSession: Couldn't get up all permits! Only %s available?",
+                    availablePermits());
+            LOGGER.warn(format);
+            throw new AssertionError(format);
+        }
 
         try {
             super.openSession();
         } finally {
-            mSemaphore.release(NUM_PERMITS_MAX);
+            unlockChannels(locked);
         }
     }
 
     @Override
     public void closeSession() {
 
-        LOGGER.trace("closeSession. permits: {} aborting: {}",
-                mSemaphore.availablePermits(), mAbortSending);
+        LOGGER.trace("closeSession. permits: {}", availablePermits());
+        int locked;
         try {
-            boolean acquired = mSemaphore.tryAcquire(NUM_PERMITS_MAX, 1500L, TimeUnit.MILLISECONDS);
-            if (!acquired) {
-                String format = String.format(Locale.ENGLISH,
-                        "closeSession: Couldn't clean up all permits! Only %d available?",
-                        mSemaphore.availablePermits());
-                LOGGER.warn(format);
-                throw new AssertionError(format);
-            }
+            locked = lockAllChannels(1500L);
         } catch (InterruptedException e) {
             LOGGER.trace("InterruptedException in closeSession!");
             throw new AssertionError(e);
         }
+        if (locked != mLocks.size()) {
+            unlockChannels(locked);
+            String format = String.format(Locale.ENGLISH,
+                    "closeSession: Couldn't clean up all permits! Only %s available?",
+                    availablePermits());
+            LOGGER.warn(format);
+            throw new AssertionError(format);
+        }
 
         LOGGER.trace("closeSession: permits acquired");
         try {
             super.closeSession();
         } finally {
-            mSemaphore.release(NUM_PERMITS_MAX);
+            unlockChannels(locked);
+        }
+    }
+
+    /**
+     * Acquire every permit of every InterfaceType, in enum order.
+     *
+     * <p>
+     * Always locking in the same order means two threads doing this can't deadlock.
+     * </p>
+     *
+     * @param timeoutMs How long to wait for each InterfaceType's permits
+     * @return How many InterfaceTypes were locked, in enum order. If this is less than all of
+     * them, the caller must unlock the ones that were.
+     * @throws InterruptedException If the permit acquisition is interrupted.
+     *                              Nothing is left locked.
+     */
+    private int lockAllChannels(long timeoutMs) throws InterruptedException {
+        int locked = 0;
+        try {
+            for (InterfaceType interfaceType : InterfaceType.values()) {
+                boolean acquired = mLocks.get(interfaceType).mSemaphore.tryAcquire(
+                        NUM_PERMITS_MAX, timeoutMs, TimeUnit.MILLISECONDS);
+                if (!acquired) {
+                    break;
+                }
+                locked++;
+            }
+        } catch (InterruptedException e) {
+            unlockChannels(locked);
+            throw e;
         }
+        return locked;
+    }
+
+    /**
+     * Release the permits taken by {@link #lockAllChannels(long)}.
+     *
+     * @param locked How many InterfaceTypes were locked
+     */
+    private void unlockChannels(int locked) {
+        InterfaceType[] interfaceTypes = InterfaceType.values();
+        for (int i = 0; i < locked; i++) {
+            mLocks.get(interfaceTypes[i]).mSemaphore.release(NUM_PERMITS_MAX);
+        }
+    }
+
+    /**
+     * @return The available permits of every InterfaceType, for logging.
+     */
+    @NonNull
+    private String availablePermits() {
+        StringBuilder sb = new StringBuilder();
+        for (InterfaceType interfaceType : InterfaceType.values()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(interfaceType).append('=')
+                    .append(mLocks.get(interfaceType).mSemaphore.availablePermits());
+        }
+        return sb.toString();
     }
 
     /**
@@ -378,19 +503,22 @@ public final class MpiClientMTAbort extends MpiClient {
      * Intended to be used by any method that isn't abortTransaction.
      * </p>
      *
-     * @param permits Number of permits to acquire
+     * @param interfaceType The InterfaceType the method sends to
+     * @param permits       Number of permits to acquire
      * @throws InterruptedException If the permit acquisition is interrupted
      */
-    private void lockNonAbort(int permits) throws InterruptedException {
-        LOGGER.trace("acquiring permits for non-Abort");
+    private void lockNonAbort(@NonNull InterfaceType interfaceType, int permits)
+            throws InterruptedException {
+        LOGGER.trace("acquiring permits for non-Abort on {}", interfaceType);
 
-        boolean acquired = mSemaphore.tryAcquire(permits);
+        Semaphore semaphore = mLocks.get(interfaceType).mSemaphore;
+        boolean acquired = semaphore.tryAcquire(permits);
         if (!acquired) {
             LOGGER.warn("Couldn't acquire permits. "
                     + "App is using multiple MpiClientMTAbort methods at once");
 
             try {
-                mSemaphore.acquire(permits);
+                semaphore.acquire(permits);
             } catch (InterruptedException e) {
                 LOGGER.trace("InterruptedException!");
                 throw e;
@@ -406,10 +534,33 @@ public final class MpiClientMTAbort extends MpiClient {
      * Intended to be used by any method that isn't abortTransaction.
      * </p>
      *
-     * @param permits number of permits to release.
+     * @param interfaceType The InterfaceType passed to lockNonAbort
+     * @param permits       number of permits to release.
+     */
+    private void unlockNonAbort(@NonNull InterfaceType interfaceType, int permits) {
+        mLocks.get(interfaceType).mSemaphore.release(permits);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Takes the same permits as a normal method, so nothing else, including abortTransaction,
+     * can send or receive on the channel until it's unlocked.
+     * </p>
      */
-    private void unlockNonAbort(int permits) {
-        mSemaphore.release(permits);
+    @Override
+    boolean lockChannel(@NonNull InterfaceType interfaceType) {
+        try {
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
+        } catch (InterruptedException ignore) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    void unlockChannel(@NonNull InterfaceType interfaceType) {
+        unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
     }
 
     /**
@@ -420,20 +571,24 @@ public final class MpiClientMTAbort extends MpiClient {
      * that it is also willing to swap messages.
      * </p>
      *
-     * @param rm The message this thread will pass to the other thread.
+     * @param lock The ChannelLock of the InterfaceType both threads are using
+     * @param rm   The message this thread will pass to the other thread.
      * @return The message the other thread passed to this thread.
      * @throws TimeoutException If the swapping times out or fails in some manner for this thread.
      */
     @SuppressWarnings("ObjectToString")
     @NonNull
-    private ResponseMessage swapMessages(@NonNull ResponseMessage rm) throws TimeoutException {
+    private static ResponseMessage swapMessages(
+            @NonNull ChannelLock lock,
+            @NonNull ResponseMessage rm
+    ) throws TimeoutException {
         LOGGER.trace("swapMessages({})", rm);
 
         ResponseMessage swappedRm = null;
         try {
             // This may seem long, but it can sometimes take a second for abort to get a response
-            swappedRm = mExchanger.exchange(rm, 2000L, TimeUnit.MILLISECONDS);
-            LOGGER.trace("swapMessages: mExchanger.exchange(...) = {}", swappedRm);
+            swappedRm = lock.mExchanger.exchange(rm, 2000L, TimeUnit.MILLISECONDS);
+            LOGGER.trace("swapMessages: exchange(...) = {}", swappedRm);
         } catch (InterruptedException | TimeoutException e) {
             LOGGER.trace("swapMessages: timed out?!", e.toString());
         }
@@ -467,6 +622,7 @@ public final class MpiClientMTAbort extends MpiClient {
             @NonNull CommandApdu command,
             @NonNull MutableInt permitsUsed
     ) {
+        ChannelLock lock = mLocks.get(interfaceType);
         if (permitsUsed.value <=
                 (PERMITS_TRANSACTION_RELEASE_AFTER_SEND +
                         PERMITS_TRANSACTION_RELEASE_AFTER_RECEIVE)) {
@@ -475,9 +631,9 @@ public final class MpiClientMTAbort extends MpiClient {
         }
 
         LOGGER.trace("sendAndReceiveTransaction");
-        if (mSemaphore.availablePermits() != 0) {
+        if (lock.mSemaphore.availablePermits() != 0) {
             // We should have all the permits at this point
-            throw new AssertionError("mSemaphore.availablePermits() != 0");
+            throw new AssertionError("lock.mSemaphore.availablePermits() != 0");
         }
 
         int id = sendCommand(interfaceType, command);
@@ -494,7 +650,7 @@ public final class MpiClientMTAbort extends MpiClient {
             receiveResponse. If there's some kind of "user action" required on the PED, e.g.
             typing in a PIN, then receiveResponse can potentially block "forever".
         */
-        mSemaphore.release(PERMITS_TRANSACTION_RELEASE_AFTER_SEND);
+        lock.mSemaphore.release(PERMITS_TRANSACTION_RELEASE_AFTER_SEND);
         permitsUsed.value -= PERMITS_TRANSACTION_RELEASE_AFTER_SEND;
         ResponseMessage rm = receiveResponse(interfaceType);
         LOGGER.trace("sendAndReceiveTransaction, receiveResponse: {}", rm);
@@ -509,7 +665,7 @@ public final class MpiClientMTAbort extends MpiClient {
         /*
             We want to know if an abort was sent and do so without any race conditions
             between threads.
-                mAbortSending = big potential for race condition,
+                lock.mAbortSending = big potential for race condition,
                 mSomeOtherBooleanSetAfterAnAbortSends = subtle race condition
                 checking available permits = TOCTOU problem
 
@@ -527,7 +683,7 @@ public final class MpiClientMTAbort extends MpiClient {
                     It can't claim the receive permit until we release it.
         */
         LOGGER.trace("sendAndReceiveTransaction re-aquiring send permit");
-        boolean acquired = mSemaphore.tryAcquire(PERMITS_TRANSACTION_RELEASE_AFTER_SEND);
+        boolean acquired = lock.mSemaphore.tryAcquire(PERMITS_TRANSACTION_RELEASE_AFTER_SEND);
         LOGGER.trace("sendAndReceiveTransaction: acquired = {}", acquired);
 
         if (acquired) {
@@ -537,7 +693,7 @@ public final class MpiClientMTAbort extends MpiClient {
             /* We didn't acquire the permit, which means the abort thread still has it.
                The abort thread will be waiting for the receive permit, so supply it.
            */
-            mSemaphore.release(PERMITS_TRANSACTION_RELEASE_AFTER_RECEIVE);
+            lock.mSemaphore.release(PERMITS_TRANSACTION_RELEASE_AFTER_RECEIVE);
             permitsUsed.value -= PERMITS_TRANSACTION_RELEASE_AFTER_RECEIVE;
             LOGGER.trace(
                     "sendAndReceiveTransaction released permits for abort's receive. "
@@ -556,7 +712,7 @@ public final class MpiClientMTAbort extends MpiClient {
             if (doSwap) {
                 LOGGER.trace("sendAndReceiveTransaction: swapping: {}", rm);
                 try {
-                    rm = swapMessages(rm);
+                    rm = swapMessages(lock, rm);
                 } catch (TimeoutException ignore) {
                     LOGGER.trace("sendAndReceiveTransaction: timed out");
                     return null;
@@ -572,196 +728,92 @@ public final class MpiClientMTAbort extends MpiClient {
             );
             LOGGER.trace(
                     "sendAndReceiveTransaction returning. used: {}, availablePermits: {}",
-                    permitsUsed.value, mSemaphore.availablePermits());
+                    permitsUsed.value, lock.mSemaphore.availablePermits());
         }
         return rm;
     }
 
     /**
-     * {@inheritDoc}
-     * <p>
-     * Unlike the method this overrides (MpiClient#startTransaction),
-     * this method supports mid-transaction aborts via another thread using the
-     * {@link #abortTransaction(InterfaceType)} command.
-     * </p>
-     *
-     * <p>
-     * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
-     * </p>
-     *
-     * <p> <b>The exception to this</b> is that this method is "abort aware" and therefore allows
-     * {@link #abortTransaction(InterfaceType)} to be sent concurrently from another Thread
-     * <i>after</i> this method has started execution and before it <i>receives</i> a Response.
-     * </p>
-     *
-     * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
-     */
-    @NonNull
-    @Override
-    public Result<byte[], TransactionResponse> startTransaction(
-            @NonNull InterfaceType interfaceType,
-            @NonNull TransactionType transactionType,
-            int amountInPennies,
-            int currencyCode
-    ) {
-        MutableInt permitsUsed = new MutableInt(PERMITS_TRANSACTION);
-        try {
-            lockNonAbort(permitsUsed.value);
-        } catch (InterruptedException ignore) {
-            return processTransactionResponse(null);
-        }
-
-        LOGGER.trace("startTransaction");
-        try {
-            CommandApdu command = makeStartTransactionCommand(
-                    transactionType, amountInPennies, currencyCode);
-            ResponseMessage rm = sendAndReceiveAbortAware(interfaceType, command, permitsUsed);
-            return processTransactionResponse(rm);
-        } finally {
-            unlockNonAbort(permitsUsed.value);
-        }
-    }
-
-    /**
-     * {@inheritDoc}
-     * <p>
-     * Unlike the method this overrides (MpiClient#startContactlessTransaction),
-     * this method supports mid-transaction aborts via another thread using the
-     * {@link #abortTransaction(InterfaceType)} command.
-     * </p>
-     *
-     * <p>
-     * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
-     * </p>
-     *
-     * <p> <b>The exception to this</b> is that this method is "abort aware" and therefore allows
-     * {@link #abortTransaction(InterfaceType)} to be sent concurrently from another Thread
-     * <i>after</i> this method has started execution and before it <i>receives</i> a Response.
-     * </p>
-     *
-     * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
-     */
-    @NonNull
-    @Override
-    public Result<byte[], TransactionResponse> startContactlessTransaction(
-            @NonNull InterfaceType interfaceType,
-            @NonNull TransactionType transactionType,
-            int amountInPennies,
-            int currencyCode,
-            @Nullable String languagePreference
-    ) {
-        MutableInt permitsUsed = new MutableInt(PERMITS_TRANSACTION);
-        try {
-            lockNonAbort(permitsUsed.value);
-        } catch (InterruptedException ignore) {
-            return processTransactionResponse(null);
-        }
-
-        LOGGER.trace("startContactlessTransaction");
-        try {
-            CommandApdu command = makeStartContactlessTransactionCommand(
-                    transactionType, amountInPennies, currencyCode, languagePreference);
-            ResponseMessage rm = sendAndReceiveAbortAware(interfaceType, command, permitsUsed);
-            return processTransactionResponse(rm);
-        } finally {
-            unlockNonAbort(permitsUsed.value);
-        }
-    }
-
-    /**
-     * {@inheritDoc}
-     * <p>
-     * Unlike the method this overrides (MpiClient#continueTransaction),
-     * this method supports mid-transaction aborts via another thread using the
-     * {@link #abortTransaction(InterfaceType)} command.
-     * </p>
+     * Send a command and receive its response, in a manner that still allows
+     * {@link #abortTransaction(InterfaceType)} to interrupt it if it's one of
+     * {@link #ABORTABLE_COMMANDS}.
      *
      * <p>
-     * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
-     * </p>
-     *
-     * <p> <b>The exception to this</b> is that this method is "abort aware" and therefore allows
-     * {@link #abortTransaction(InterfaceType)} to be sent concurrently from another Thread
-     * <i>after</i> this method has started execution and before it <i>receives</i> a Response.
+     * Every MpiClient method sends its command through here, so each method that waits for the
+     * user, e.g. {@link #startTransaction} or {@link #getNumericData}, is abort aware without
+     * needing an override of its own. Other commands are sent as normal; the method that sends
+     * them holds the InterfaceType's permits.
      * </p>
-     *
-     * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
      */
-    @NonNull
+    @Nullable
     @Override
-    public Result<byte[], TransactionResponse> continueTransaction(
+    ResponseMessage sendAndReceive(
             @NonNull InterfaceType interfaceType,
-            @NonNull TLVObject transactionInfo
+            @NonNull CommandApdu command
     ) {
-        MutableInt permitsUsed = new MutableInt(PERMITS_TRANSACTION);
-        try {
-            lockNonAbort(permitsUsed.value);
-        } catch (InterruptedException ignore) {
-            return processTransactionResponse(null);
-        }
-
-        LOGGER.trace("continueTransaction");
-        try {
-            byte[] dataField = TLVParser.encode(transactionInfo);
-            CommandApdu command = new CommandApdu(CommandType.Continue_Transaction, dataField);
-            ResponseMessage rm = sendAndReceiveAbortAware(interfaceType, command, permitsUsed);
-            return processTransactionResponse(rm);
-        } finally {
-            unlockNonAbort(permitsUsed.value);
+        byte[] bytes = command.getBytes();
+        CommandType type = CommandType.valueOf(bytes[0], bytes[1]);
+        if (type == null || !ABORTABLE_COMMANDS.contains(type)) {
+            return super.sendAndReceive(interfaceType, command);
         }
+        return sendAndReceiveAbortable(interfaceType, command);
     }
 
     /**
-     * {@inheritDoc}
-     * <p>
-     * Unlike the method this overrides (MpiClient.onlinePin),
-     * this method supports mid-transaction aborts via another thread using the
-     * {@link #abortTransaction(InterfaceType)} command.
-     * </p>
+     * Lock the InterfaceType and send an abortable command with
+     * {@link #sendAndReceiveAbortAware}.
      *
      * <p>
-     * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
-     * </p>
-     *
-     * <p> <b>The exception to this</b> is that this method is "abort aware" and therefore allows
-     * {@link #abortTransaction(InterfaceType)} to be sent concurrently from another Thread
-     * <i>after</i> this method has started execution and before it <i>receives</i> a Response.
+     * Whilst the command is in flight, cancelling this thread's {@link CancellationToken} sends
+     * an ABORT from the cancelling thread. If the token is cancelled before the command is sent,
+     * the command isn't sent.
      * </p>
      *
-     * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
+     * @param interfaceType Which device to send to and receive from
+     * @param command       The command to send
+     * @return The command's ResponseMessage, or null on error or if cancelled before sending.
      */
-    @NonNull
-    @Override
-    public Result<OnlinePinResult, OnlinePINError> onlinePin(
-            @NonNull InterfaceType interfaceType,
-            int amountInPennies,
-            int currencyCode,
-            @NonNull Track2Data maskedTrack2Data,
-            @NonNull String applicationLabel
+    @Nullable
+    private ResponseMessage sendAndReceiveAbortable(
+            @NonNull final InterfaceType interfaceType,
+            @NonNull CommandApdu command
     ) {
         MutableInt permitsUsed = new MutableInt(PERMITS_TRANSACTION);
         try {
-            lockNonAbort(permitsUsed.value);
+            lockNonAbort(interfaceType, permitsUsed.value);
         } catch (InterruptedException ignore) {
-            return processOnlinePinResult(null);
+            return null;
         }
 
-        LOGGER.trace("onlinePin");
+        CancellationToken token = getCancellationToken();
         try {
-            CommandApdu command = makeOnlinePinCommand(
-                    amountInPennies, currencyCode, maskedTrack2Data, applicationLabel);
-            ResponseMessage rm = sendAndReceiveAbortAware(interfaceType, command, permitsUsed);
-            return processOnlinePinResult(rm);
+            /*
+                Registering the abort fails if the token is already cancelled. Otherwise any
+                cancel from now on will abort the command, even if it hasn't been sent yet:
+                abortTransaction waits for the send permit we release after sending.
+            */
+            if (token != null) {
+                boolean registered = token.setOnCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        LOGGER.trace("Cancelled, aborting {}", interfaceType);
+                        abortTransaction(interfaceType);
+                    }
+                });
+                if (!registered) {
+                    LOGGER.debug("sendAndReceiveAbortable: cancelled, not sending");
+                    return null;
+                }
+            }
+            return sendAndReceiveAbortAware(interfaceType, command, permitsUsed);
         } finally {
-            unlockNonAbort(permitsUsed.value);
+            if (token != null) {
+                token.setOnCancel(null);
+            }
+            unlockNonAbort(interfaceType, permitsUsed.value);
         }
     }
 
-
     /**
      * Issues an ABORT command to the Miura device
      *
@@ -785,11 +837,16 @@ public final class MpiClientMTAbort extends MpiClient {
      * </ol>
      * </p>
      * <p>
+     * Any of the {@link #ABORTABLE_COMMANDS} can be interrupted like this, not just
+     * transactions, e.g. {@link #getNumericData}. Cancelling the blocked thread's
+     * {@link CancellationToken} calls this for you.
+     * </p>
+     * <p>
      * Note that if multiple ABORTS are sent concurrently then the SDK ensures that only a single
      * one will be "active" at any one time, the rest are ignored.
      * Once the "active" ABORT has been seen by the PED and responded to then this "active" ABORT
      * will no longer be considered "active" and the SDK will honour any new calls to
-     * abortTransaction. See also {@link #mAbortSending}
+     * abortTransaction. See also {@link ChannelLock#mAbortSending}
      * </p>
      *
      * <p>See the javadoc for MpiClientMTAbort for race and threading concerns</p>
@@ -799,10 +856,11 @@ public final class MpiClientMTAbort extends MpiClient {
      */
     @Override
     public boolean abortTransaction(@NonNull InterfaceType interfaceType) {
+        ChannelLock lock = mLocks.get(interfaceType);
 
         LOGGER.trace("abortTransaction");
 
-        if (!mAbortSending.compareAndSet(false, true)) {
+        if (!lock.mAbortSending.compareAndSet(false, true)) {
             /*
                 There's already an abort sending, which means this one would have no effect.
                 So just ignore this abort. This also protects against the massive deadlocking
@@ -810,13 +868,13 @@ public final class MpiClientMTAbort extends MpiClient {
                 each of them acquires a permit to send, which means nothing can ever give them a
                 permit to receive.
             */
-            LOGGER.trace("mAbortSending already set");
+            LOGGER.trace("lock.mAbortSending already set");
             return true;
         }
 
         final boolean returnValue;
 
-        int numPermits = mSemaphore.drainPermits();
+        int numPermits = lock.mSemaphore.drainPermits();
         if (numPermits == 0) {
             LOGGER.trace("abortTransaction: drained 0");
 
@@ -832,9 +890,10 @@ public final class MpiClientMTAbort extends MpiClient {
             //
             // So we'll just wait for permits to be available and then send the abort as normal.
             try {
-                mSemaphore.acquire(PERMITS_ABORT_NUM_TO_SEND);
+                lock.mSemaphore.acquire(PERMITS_ABORT_NUM_TO_SEND);
             } catch (InterruptedException e) {
                 LOGGER.trace("abortTransaction: acquire interrupted: {}", e.toString());
+                lock.mAbortSending.set(false);
                 return false;
             }
             numPermits = PERMITS_ABORT_NUM_TO_SEND;
@@ -907,7 +966,7 @@ public final class MpiClientMTAbort extends MpiClient {
                     "abortTransaction needs {} extra permit(s)", numExtraPermitsRequiredToReceive);
             if (numExtraPermitsRequiredToReceive > 0) {
                 try {
-                    mSemaphore.acquire(numExtraPermitsRequiredToReceive);
+                    lock.mSemaphore.acquire(numExtraPermitsRequiredToReceive);
                 } catch (InterruptedException e) {
                     LOGGER.trace("abortTransaction: acquire interrupted: {}", e.toString());
                     return false;
@@ -934,7 +993,7 @@ public final class MpiClientMTAbort extends MpiClient {
                 if (doSwap) {
                     LOGGER.trace("abortTransaction: swapping: {}", rm);
                     try {
-                        rm = swapMessages(rm);
+                        rm = swapMessages(lock, rm);
                     } catch (TimeoutException e) {
                         return false;
                     }
@@ -958,7 +1017,7 @@ public final class MpiClientMTAbort extends MpiClient {
             );
             if (numExtraPermitsRequiredForExclusive > 0) {
                 try {
-                    mSemaphore.acquire(numExtraPermitsRequiredForExclusive);
+                    lock.mSemaphore.acquire(numExtraPermitsRequiredForExclusive);
                 } catch (InterruptedException e) {
                     LOGGER.trace("abortTransaction: final acquire interrupted:{}", e.toString());
                     return returnValue;
@@ -968,16 +1027,17 @@ public final class MpiClientMTAbort extends MpiClient {
             }
 
         } finally {
-            mSemaphore.release(numPermits);
-        }
+            lock.mSemaphore.release(numPermits);
 
-        if (!mAbortSending.compareAndSet(true, false)) {
-            // For this to fail is impossible?
-            throw new AssertionError("Failed to release mAbortSending flag");
+            // Also clear it when bailing out early, otherwise every later abort is ignored
+            if (!lock.mAbortSending.compareAndSet(true, false)) {
+                // For this to fail is impossible?
+                throw new AssertionError("Failed to release lock.mAbortSending flag");
+            }
         }
 
         LOGGER.trace("abortTransaction: returning {}", returnValue);
-        LOGGER.trace("abortTransaction: availablePermits: {}", mSemaphore.availablePermits());
+        LOGGER.trace("abortTransaction: availablePermits: {}", lock.mSemaphore.availablePermits());
         return returnValue;
     }
 
@@ -987,7 +1047,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -996,14 +1056,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public ArrayList<Capability> getDeviceInfo(@NonNull InterfaceType interfaceType) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.getDeviceInfo(interfaceType);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1011,7 +1071,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1020,14 +1080,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public Date systemClock(@NonNull InterfaceType interfaceType) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.systemClock(interfaceType);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1035,7 +1095,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1043,14 +1103,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean systemClock(@NonNull InterfaceType interfaceType, @NonNull Date dateTime) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.systemClock(interfaceType, dateTime);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1058,7 +1118,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1067,14 +1127,14 @@ public final class MpiClientMTAbort extends MpiClient {
     public boolean displayText(@NonNull InterfaceType interfaceType, @NonNull String text,
             boolean isFourRow, boolean isBacklightOn, boolean isUTF8Encoding) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.displayText(interfaceType, text, isFourRow, isBacklightOn, isUTF8Encoding);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1082,7 +1142,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1091,14 +1151,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public BatteryData batteryStatus(@NonNull InterfaceType interfaceType, boolean intoSleep) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.batteryStatus(interfaceType, intoSleep);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1106,7 +1166,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1115,7 +1175,7 @@ public final class MpiClientMTAbort extends MpiClient {
     public void cardStatus(@NonNull InterfaceType interfaceType, boolean enableUnsolicited,
             boolean enableAtr, boolean enableTrack1, boolean enableTrack2, boolean enableTrack3) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException e) {
             LOGGER.warn("cardStatus failed to acquire permits:", e.toString());
         }
@@ -1124,7 +1184,7 @@ public final class MpiClientMTAbort extends MpiClient {
                     enableTrack2,
                     enableTrack3);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1132,7 +1192,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1142,14 +1202,14 @@ public final class MpiClientMTAbort extends MpiClient {
     public SoftwareInfo resetDevice(@NonNull InterfaceType interfaceType,
             @NonNull ResetDeviceType type) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.resetDevice(interfaceType, type);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1157,7 +1217,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1166,14 +1226,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public HashMap<String, String> getConfiguration() {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(InterfaceType.MPI, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.getConfiguration();
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(InterfaceType.MPI, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1181,7 +1241,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1190,14 +1250,14 @@ public final class MpiClientMTAbort extends MpiClient {
     public boolean keyboardStatus(@NonNull InterfaceType interfaceType,
             @NonNull StatusSettings statusSetting, @NonNull BacklightSettings backlightSetting) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.keyboardStatus(interfaceType, statusSetting, backlightSetting);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1205,7 +1265,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1214,14 +1274,14 @@ public final class MpiClientMTAbort extends MpiClient {
     public int selectFile(@NonNull InterfaceType interfaceType, @NonNull SelectFileMode mode,
             @NonNull String fileName) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return -1;
         }
         try {
             return super.selectFile(interfaceType, mode, fileName);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1229,7 +1289,32 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
+     * </p>
+     *
+     * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
+     */
+    @Override
+    @Nullable
+    public FileDigest selectFileWithMd5(@NonNull InterfaceType interfaceType,
+            @NonNull String fileName) {
+        try {
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
+        } catch (InterruptedException ignore) {
+            return null;
+        }
+        try {
+            return super.selectFileWithMd5(interfaceType, fileName);
+        } finally {
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1238,14 +1323,63 @@ public final class MpiClientMTAbort extends MpiClient {
     public boolean streamBinary(@NonNull InterfaceType interfaceType, boolean needMd5sum,
             byte[] binary, int offset, int size, int timeout) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.streamBinary(interfaceType, needMd5sum, binary, offset, size, timeout);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
+     * other methods on the same InterfaceType from executing whilst this method is executing
+     * </p>
+     *
+     * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
+     */
+    @Override
+    public boolean streamBinary(@NonNull InterfaceType interfaceType, boolean needMd5sum,
+            @NonNull FileChannel file, long position, int offset, int size, int timeout) {
+        try {
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
+        } catch (InterruptedException ignore) {
+            return false;
+        }
+        try {
+            return super.streamBinary(
+                    interfaceType, needMd5sum, file, position, offset, size, timeout);
+        } finally {
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
+     * other methods on the same InterfaceType from executing whilst this method is executing
+     * </p>
+     *
+     * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
+     */
+    @Override
+    public boolean streamBinary(@NonNull InterfaceType interfaceType, boolean needMd5sum,
+            @NonNull ByteBuffer binary, int offset, int timeout) {
+        try {
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
+        } catch (InterruptedException ignore) {
+            return false;
+        }
+        try {
+            return super.streamBinary(interfaceType, needMd5sum, binary, offset, timeout);
+        } finally {
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1253,7 +1387,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1261,14 +1395,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean systemLog(@NonNull InterfaceType interfaceType, @NonNull SystemLogMode mode) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.systemLog(interfaceType, mode);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1276,7 +1410,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1286,14 +1420,14 @@ public final class MpiClientMTAbort extends MpiClient {
     public ResponseMessage readBinary(@NonNull InterfaceType interfaceType, int fileSize,
             int offset, int size) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.readBinary(interfaceType, fileSize, offset, size);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1301,7 +1435,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1310,14 +1444,39 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public P2PEStatus p2peStatus(@NonNull InterfaceType interfaceType) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.p2peStatus(interfaceType);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
+     * other methods on the same InterfaceType from executing whilst this method is executing
+     * </p>
+     *
+     * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
+     */
+    @NonNull
+    @Override
+    public DeviceSnapshot getDeviceSnapshot(@NonNull InterfaceType interfaceType) {
+        try {
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
+        } catch (InterruptedException ignore) {
+            return new DeviceSnapshot(null, null, null, null, null,
+                    new EnumMap<DeviceSnapshot.Field, Long>(DeviceSnapshot.Field.class), 0L);
+        }
+        try {
+            return super.getDeviceSnapshot(interfaceType);
+        } finally {
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1325,7 +1484,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1333,14 +1492,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean p2peInitialise(@NonNull InterfaceType interfaceType) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.p2peInitialise(interfaceType);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1348,7 +1507,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1357,14 +1516,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public RKIError p2peImport(@NonNull InterfaceType interfaceType) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return RKIError.RkiMiuraInternalError;
         }
         try {
             return super.p2peImport(interfaceType);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1372,7 +1531,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1381,14 +1540,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public ArrayList<String> peripheralStatusCommand() {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.peripheralStatusCommand();
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1396,7 +1555,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1404,14 +1563,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean barcodeStatus(@NonNull InterfaceType interfaceType, boolean codeReporting) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.barcodeStatus(interfaceType, codeReporting);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1419,7 +1578,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1427,14 +1586,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean spoolText(@NonNull InterfaceType interfaceType, @NonNull String text) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.spoolText(interfaceType, text);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1442,7 +1601,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1450,14 +1609,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean spoolImage(@NonNull InterfaceType interfaceType, @NonNull String fileName) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.spoolImage(interfaceType, fileName);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1465,7 +1624,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1473,14 +1632,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean spoolPrint(@NonNull InterfaceType interfaceType) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.spoolPrint(interfaceType);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1488,7 +1647,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1496,14 +1655,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean printESCPOScommand(@NonNull InterfaceType interfaceType, @NonNull String text) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.printESCPOScommand(interfaceType, text);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1511,7 +1670,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1521,14 +1680,14 @@ public final class MpiClientMTAbort extends MpiClient {
     public boolean printText(@NonNull InterfaceType interfaceType, @NonNull String text,
             boolean wait) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.printText(interfaceType, text, wait);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1536,7 +1695,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1545,14 +1704,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean printImage(@NonNull InterfaceType interfaceType, @NonNull String image) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.printImage(interfaceType, image);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1560,7 +1719,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1569,14 +1728,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public CashDrawer cashDrawer(boolean openDrawer) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.cashDrawer(openDrawer);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1584,7 +1743,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1593,14 +1752,14 @@ public final class MpiClientMTAbort extends MpiClient {
     public boolean printerSledStatus(@NonNull InterfaceType interfaceType,
             boolean printerSledStatusEnabled) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.printerSledStatus(interfaceType, printerSledStatusEnabled);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(interfaceType, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1608,7 +1767,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1617,14 +1776,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public HashMap<String, String> getBluetoothInfo() {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return null;
         }
         try {
             return super.getBluetoothInfo();
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1632,7 +1791,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1640,14 +1799,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean setSerialPort(@NonNull SerialPortProperties serialPortProperties) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.setSerialPort(serialPortProperties);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         }
     }
 
@@ -1655,7 +1814,7 @@ public final class MpiClientMTAbort extends MpiClient {
      * {@inheritDoc}
      * <p>
      * <b>Note:</b> This method is multi-thread safe, but only in the sense that it prevents
-     * other methods from executing whilst this method is executing
+     * other methods on the same InterfaceType from executing whilst this method is executing
      * </p>
      *
      * <p>See the javadoc of MpiClientMTAbort for more information on threading concerns</p>
@@ -1663,14 +1822,14 @@ public final class MpiClientMTAbort extends MpiClient {
     @Override
     public boolean sendDataToSerialPort(@NonNull byte[] data) {
         try {
-            lockNonAbort(PERMITS_NORMAL_METHOD);
+            lockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         } catch (InterruptedException ignore) {
             return false;
         }
         try {
             return super.sendDataToSerialPort(data);
         } finally {
-            unlockNonAbort(PERMITS_NORMAL_METHOD);
+            unlockNonAbort(InterfaceType.RPI, PERMITS_NORMAL_METHOD);
         }
     }
 
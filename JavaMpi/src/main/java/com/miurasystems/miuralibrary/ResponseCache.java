@@ -0,0 +1,395 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.ResetDeviceType;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVObject;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the responses to commands that only query the device, so that asking again
+ * doesn't need a round trip.
+ *
+ * <p>
+ * Given to an MpiClient with {@link MpiClient#setResponseCache(ResponseCache)}. A response is
+ * cached if its command's type has a TTL, and the command was successful. The same command
+ * bytes sent to the same device within the TTL get the cached response. By default these are
+ * cached:
+ * </p>
+ * <ul>
+ * <li>{@link CommandType#Get_DeviceInfo}, {@link CommandType#Get_Configuration} and
+ * {@link CommandType#Reset_Device} with {@link ResetDeviceType#Soft_Reset}, i.e. the software
+ * info, for {@link #DEFAULT_STATIC_TTL_MS};</li>
+ * <li>{@link CommandType#P2PE_Status}, {@link CommandType#Bluetooth_Control} and
+ * {@link CommandType#Peripheral_Status} for {@link #DEFAULT_STATUS_TTL_MS}.</li>
+ * </ul>
+ *
+ * <p>
+ * Note a cached soft reset isn't sent, so the device's display etc. isn't reset. Use
+ * {@link #setEnabled(boolean)} or {@link #invalidateAll()} when that matters.
+ * </p>
+ *
+ * <p>
+ * Everything is invalidated when:
+ * </p>
+ * <ul>
+ * <li>the device sends a status change, see
+ * {@link com.miurasystems.miuralibrary.events.MpiEvents#DeviceStatusChanged DeviceStatusChanged};
+ * </li>
+ * <li>the client connects or disconnects;</li>
+ * <li>a command is sent that changes the device, i.e. any other reset, a file upload
+ * (UPDATE BINARY or STREAM BINARY) or P2PE initialise/import.</li>
+ * </ul>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public final class ResponseCache {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCache.class);
+
+    /** TTL for things that only change when the device is reset or updated */
+    public static final long DEFAULT_STATIC_TTL_MS = 300000L;
+
+    /** TTL for things that can change without the device telling us */
+    public static final long DEFAULT_STATUS_TTL_MS = 10000L;
+
+    /** Commands that change what the cached commands would return */
+    private static final EnumSet<CommandType> INVALIDATING_COMMANDS = EnumSet.of(
+            CommandType.Reset_Device,
+            CommandType.Update_Binary,
+            CommandType.Stream_Binary,
+            CommandType.P2PE_Initialise,
+            CommandType.P2PE_Import);
+
+    /**
+     * The device and command bytes a response answered.
+     */
+    private static final class Key {
+        @NonNull
+        private final InterfaceType mNad;
+        @NonNull
+        private final byte[] mCommand;
+        private final int mHash;
+
+        Key(@NonNull InterfaceType nad, @NonNull byte[] command) {
+            mNad = nad;
+            mCommand = command;
+            mHash = 31 * nad.hashCode() + Arrays.hashCode(command);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mNad == other.mNad && Arrays.equals(mCommand, other.mCommand);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    private static final class Entry {
+        @NonNull
+        final ResponseMessage mResponse;
+        final long mExpiresNanos;
+
+        Entry(@NonNull ResponseMessage response, long expiresNanos) {
+            mResponse = response;
+            mExpiresNanos = expiresNanos;
+        }
+    }
+
+    /** The TTL of each cacheable type. Guarded by this. */
+    @NonNull
+    private final EnumMap<CommandType, Long> mTtls;
+
+    /** Guarded by this */
+    @NonNull
+    private final Map<Key, Entry> mEntries;
+
+    /** Incremented by every invalidation. Guarded by this */
+    private long mGeneration;
+
+    private boolean mEnabled;
+    private long mHits;
+    private long mMisses;
+    private long mInvalidations;
+
+    /**
+     * Create an enabled cache with the default TTLs.
+     */
+    public ResponseCache() {
+        mTtls = new EnumMap<>(CommandType.class);
+        mEntries = new HashMap<>();
+        mEnabled = true;
+
+        CommandType[] staticInfo = {
+                CommandType.Get_DeviceInfo,
+                CommandType.Get_Configuration,
+                CommandType.Reset_Device,
+        };
+        for (CommandType type : staticInfo) {
+            mTtls.put(type, DEFAULT_STATIC_TTL_MS);
+        }
+
+        CommandType[] status = {
+                CommandType.P2PE_Status,
+                CommandType.Bluetooth_Control,
+                CommandType.Peripheral_Status,
+        };
+        for (CommandType type : status) {
+            mTtls.put(type, DEFAULT_STATUS_TTL_MS);
+        }
+    }
+
+    /**
+     * Is this command one that can be answered from the cache?
+     */
+    private boolean isCacheable(@Nullable CommandType type, @NonNull byte[] command) {
+        if (type == null || !mTtls.containsKey(type)) {
+            return false;
+        }
+        if (type == CommandType.Reset_Device) {
+            return (command[2] & 0xFF) == ResetDeviceType.Soft_Reset.getType();
+        }
+        return true;
+    }
+
+    /**
+     * Look up the response to a command, ready for {@link #store}.
+     *
+     * <p>
+     * Also invalidates the cache if the command will change the device.
+     * </p>
+     *
+     * @param nad     The device the command is for
+     * @param command The command's bytes
+     * @return The cached response, or null if it's not cached
+     */
+    @Nullable
+    synchronized ResponseMessage lookup(@NonNull InterfaceType nad, @NonNull byte[] command) {
+        if (!mEnabled || command.length < 4) {
+            return null;
+        }
+        CommandType type = CommandType.valueOf(command[0], command[1]);
+        if (!isCacheable(type, command)) {
+            if (type != null && INVALIDATING_COMMANDS.contains(type)) {
+                invalidateLocked(type.name());
+            }
+            return null;
+        }
+
+        Entry entry = mEntries.get(new Key(nad, command));
+        if (entry != null && System.nanoTime() - entry.mExpiresNanos < 0L) {
+            mHits++;
+            return entry.mResponse;
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Get the cache's current generation, to pass to {@link #store}.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Remember a command's response.
+     *
+     * <p>
+     * Ignored if the cache has been invalidated since generation was got, as the response
+     * may be from before the device changed.
+     * </p>
+     *
+     * @param nad        The device the command was for
+     * @param command    The command's bytes
+     * @param response   The response
+     * @param generation {@link #getGeneration()} from before the command was sent
+     */
+    synchronized void store(
+            @NonNull InterfaceType nad,
+            @NonNull byte[] command,
+            @NonNull ResponseMessage response,
+            long generation
+    ) {
+        if (!mEnabled || generation != mGeneration || !response.isSuccess()
+                || command.length < 4) {
+            return;
+        }
+        CommandType type = CommandType.valueOf(command[0], command[1]);
+        if (!isCacheable(type, command)) {
+            return;
+        }
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(mTtls.get(type));
+        mEntries.put(new Key(nad, command), new Entry(response, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Add a response that was got earlier, e.g. loaded by {@link DeviceMetadataCache}.
+     *
+     * <p>It's kept for its type's TTL from now. Ignored if the command isn't cacheable.</p>
+     *
+     * @param nad      The device the command was for
+     * @param command  The command's bytes
+     * @param response The response
+     */
+    synchronized void preload(
+            @NonNull InterfaceType nad,
+            @NonNull byte[] command,
+            @NonNull ResponseMessage response
+    ) {
+        store(nad, command, response, mGeneration);
+    }
+
+    /**
+     * Get the current responses from a device, e.g. to save with {@link DeviceMetadataCache}.
+     *
+     * @param nad The device
+     * @return Each cached command and its response. Expired ones aren't included.
+     */
+    @NonNull
+    synchronized Map<byte[], ResponseMessage> snapshot(@NonNull InterfaceType nad) {
+        Map<byte[], ResponseMessage> snapshot = new LinkedHashMap<>();
+        long now = System.nanoTime();
+        for (Map.Entry<Key, Entry> entry : mEntries.entrySet()) {
+            Key key = entry.getKey();
+            if (key.mNad == nad && now - entry.getValue().mExpiresNanos < 0L) {
+                snapshot.put(key.mCommand, entry.getValue().mResponse);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Invalidate the cache if an unsolicited message is a device status change.
+     *
+     * @param response The unsolicited message
+     */
+    void onUnsolicitedMessage(@NonNull ResponseMessage response) {
+        List<TLVObject> tlvObjects = TLVParser.decode(response.getBody());
+        if (CommandUtil.firstMatch(tlvObjects, Description.Status_Code) != null
+                && CommandUtil.firstMatch(tlvObjects, Description.Status_Text) != null) {
+            invalidate("DeviceStatusChanged");
+        }
+    }
+
+    /**
+     * Invalidate the cache because the client connected or disconnected.
+     */
+    void onConnectionChanged() {
+        invalidate("connection");
+    }
+
+    /**
+     * Forget every cached response, so the next of each command goes to the device.
+     */
+    public void invalidateAll() {
+        invalidate("invalidateAll");
+    }
+
+    private synchronized void invalidate(@NonNull String reason) {
+        invalidateLocked(reason);
+    }
+
+    private void invalidateLocked(@NonNull String reason) {
+        LOGGER.debug("invalidate: {}, {} entries", reason, mEntries.size());
+        mEntries.clear();
+        mGeneration++;
+        mInvalidations++;
+    }
+
+    /**
+     * Turn the cache on or off. Whilst off, every command goes to the device.
+     *
+     * <p>Turning it off also forgets everything it has cached.</p>
+     *
+     * @param enabled true to use the cache
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (!enabled) {
+            invalidateLocked("disabled");
+        }
+        mEnabled = enabled;
+    }
+
+    public synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Cache a command type's responses for a time.
+     *
+     * <p>
+     * Only use this for types that don't change the device.
+     * {@link CommandType#Reset_Device} is only cached for soft resets.
+     * </p>
+     *
+     * @param type  The command type
+     * @param ttlMs How long a response is kept, in milliseconds. 0 to stop caching the type.
+     */
+    public synchronized void setTtl(@NonNull CommandType type, long ttlMs) {
+        if (ttlMs < 0L) {
+            throw new IllegalArgumentException("ttlMs must be >= 0");
+        }
+        if (ttlMs == 0L) {
+            mTtls.remove(type);
+        } else {
+            mTtls.put(type, ttlMs);
+        }
+        invalidateLocked("setTtl " + type);
+    }
+
+    /**
+     * @return The command type's TTL in milliseconds, or 0 if it isn't cached
+     */
+    public synchronized long getTtl(@NonNull CommandType type) {
+        Long ttl = mTtls.get(type);
+        return ttl == null ? 0L : ttl;
+    }
+
+    /**
+     * @return The number of commands answered from the cache
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return The number of cacheable commands that had to go to the device
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return The number of times the cache has been invalidated
+     */
+    public synchronized long getInvalidations() {
+        return mInvalidations;
+    }
+}
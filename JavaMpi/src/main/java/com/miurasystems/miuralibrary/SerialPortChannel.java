@@ -0,0 +1,493 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.comms.CommandApdu;
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEventHandler;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Stream facade over the USB serial adaptor plugged into a POS device.
+ *
+ * <p>
+ * The RPI exposes the serial adaptor as SEND USB SERIAL DATA commands for output
+ * (see {@link MpiClient#sendDataToSerialPort(byte[])}) and
+ * {@link MpiEvents#UsbSerialPortDataReceived} unsolicited events for input.
+ * SerialPortChannel wraps these in an ordinary {@link OutputStream} and {@link InputStream}.
+ * </p>
+ *
+ * <h3>Output</h3>
+ * <p>
+ * Writes are buffered and sent in chunks of up to {@link #MAX_CHUNK_SIZE} bytes.
+ * Rather than waiting for each chunk's response before sending the next, up to
+ * {@code pipelineDepth} chunks are allowed to be outstanding, which hides most of
+ * the link's round trip time. {@link OutputStream#flush()} sends any partial chunk and
+ * waits for every outstanding response. A failure response causes an IOException,
+ * either from the write that noticed it or from flush.
+ * </p>
+ * <p>
+ * Whilst chunks are outstanding the MpiClient's RPI responses belong to the output stream,
+ * so it {@link MpiClient#lockChannel locks} the RPI until they've all been received.
+ * With {@link MpiClientMTAbort} that stops another thread, e.g. one calling
+ * abortTransaction, from receiving the stream's responses. So <b>don't call other
+ * MpiClient methods on this thread without flushing first</b>: with MpiClientMTAbort they'd
+ * wait for the lock forever.
+ * </p>
+ *
+ * <h3>Input</h3>
+ * <p>
+ * Incoming data is copied into a bounded ring buffer by the event handler, which runs on
+ * the SDK's input thread and so must never block. If the buffer is full, the data that doesn't
+ * fit is dropped and counted, see {@link #getOverflowBytes()} and
+ * {@link #getOverflowEvents()}. Reads block until data is available or the channel is closed.
+ * </p>
+ * <p>
+ * The channel registers itself as the {@link MpiEvents#UsbSerialPortDataReceived} handler
+ * in {@link #open()}, replacing any existing handler, and deregisters in {@link #close()}.
+ * </p>
+ */
+public class SerialPortChannel {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerialPortChannel.class);
+
+    /** The most data that can be sent in a single SEND USB SERIAL DATA command */
+    public static final int MAX_CHUNK_SIZE = 249;
+
+    /**
+     * The most commands that can be outstanding at once.
+     *
+     * <p>The session buffers a handful of responses for each NAD,
+     * so don't let the device get further ahead than that.
+     */
+    public static final int MAX_PIPELINE_DEPTH = 3;
+
+    /** Default pipeline depth */
+    public static final int DEFAULT_PIPELINE_DEPTH = 2;
+
+    /** Default size of the receive ring buffer */
+    public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 16 * 1024;
+
+    /** The client used to send data */
+    @NonNull
+    private final MpiClient mClient;
+
+    /** The maximum number of chunks that can be in flight */
+    private final int mPipelineDepth;
+
+    /** Handler registered on UsbSerialPortDataReceived */
+    @NonNull
+    private final MpiEventHandler<byte[]> mDataHandler;
+
+    /** Receive side of the channel */
+    @NonNull
+    private final SerialInputStream mInputStream;
+
+    /** Send side of the channel */
+    @NonNull
+    private final SerialOutputStream mOutputStream;
+
+    /**
+     * Create a new channel with the default sizes
+     *
+     * @param client The client to send and receive serial data on
+     */
+    public SerialPortChannel(@NonNull MpiClient client) {
+        this(client, DEFAULT_RECEIVE_BUFFER_SIZE, DEFAULT_PIPELINE_DEPTH);
+    }
+
+    /**
+     * Create a new channel
+     *
+     * @param client            The client to send and receive serial data on
+     * @param receiveBufferSize The size of the receive ring buffer, in bytes
+     * @param pipelineDepth     How many SEND USB SERIAL DATA commands can be outstanding at once.
+     *                          1 = no pipelining. Max {@link #MAX_PIPELINE_DEPTH}.
+     */
+    public SerialPortChannel(
+            @NonNull MpiClient client,
+            int receiveBufferSize,
+            int pipelineDepth
+    ) {
+        if (receiveBufferSize <= 0) {
+            throw new IllegalArgumentException("receiveBufferSize <= 0");
+        }
+        if (pipelineDepth < 1 || pipelineDepth > MAX_PIPELINE_DEPTH) {
+            throw new IllegalArgumentException("Invalid pipelineDepth: " + pipelineDepth);
+        }
+        mClient = client;
+        mPipelineDepth = pipelineDepth;
+        mInputStream = new SerialInputStream(receiveBufferSize);
+        mOutputStream = new SerialOutputStream();
+        mDataHandler = new MpiEventHandler<byte[]>() {
+            @Override
+            public void handle(@NonNull byte[] arg) {
+                mInputStream.offer(arg);
+            }
+        };
+    }
+
+    /**
+     * Start receiving serial data.
+     */
+    public void open() {
+        mClient.getMpiEvents().UsbSerialPortDataReceived.register(mDataHandler);
+    }
+
+    /**
+     * Stop receiving serial data and close both streams.
+     *
+     * <p>
+     * Does not flush the output stream, but does wait for and discard the responses to its
+     * outstanding chunks, which releases the RPI. So if the output stream has been used, call
+     * this from the thread that wrote to it. Blocked readers return end-of-stream.
+     * </p>
+     */
+    public void close() {
+        mClient.getMpiEvents().UsbSerialPortDataReceived.deregister(mDataHandler);
+        mInputStream.close();
+        mOutputStream.mClosed = true;
+        mOutputStream.discardOutstanding();
+    }
+
+    /**
+     * @return The stream of data received from the serial port
+     */
+    @NonNull
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * @return The stream to write data to the serial port with
+     */
+    @NonNull
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * @return The total number of received bytes dropped because the receive buffer was full
+     */
+    public long getOverflowBytes() {
+        return mInputStream.getOverflowBytes();
+    }
+
+    /**
+     * @return The number of received events that had some or all of their data dropped
+     */
+    public long getOverflowEvents() {
+        return mInputStream.getOverflowEvents();
+    }
+
+    /**
+     * @return The number of SEND USB SERIAL DATA commands sent so far
+     */
+    public long getChunksSent() {
+        return mOutputStream.mChunksSent;
+    }
+
+    /**
+     * Buffers written data and sends it in pipelined chunks.
+     */
+    private final class SerialOutputStream extends OutputStream {
+
+        /** Data waiting to be sent */
+        @NonNull
+        private final byte[] mBuffer = new byte[MAX_CHUNK_SIZE];
+
+        /** Number of bytes in mBuffer */
+        private int mCount;
+
+        /** Number of commands sent whose response hasn't been read */
+        private int mOutstanding;
+
+        /** Whether this stream holds the client's RPI lock */
+        private boolean mLocked;
+
+        /** Number of commands sent */
+        private long mChunksSent;
+
+        /** Once closed, all writes fail */
+        private volatile boolean mClosed;
+
+        /** Once broken (a send or a response failed), all writes fail */
+        private boolean mBroken;
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureUsable();
+            if (mCount == mBuffer.length) {
+                sendBuffer();
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            ensureUsable();
+            while (len > 0) {
+                if (mCount == mBuffer.length) {
+                    sendBuffer();
+                }
+                int n = Math.min(len, mBuffer.length - mCount);
+                System.arraycopy(b, off, mBuffer, mCount, n);
+                mCount += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureUsable();
+            if (mCount > 0) {
+                sendBuffer();
+            }
+            while (mOutstanding > 0) {
+                receiveOne();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                mClosed = true;
+            }
+        }
+
+        /**
+         * Throw if the stream can't be used any more
+         *
+         * @throws IOException if closed or broken
+         */
+        private void ensureUsable() throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (mBroken) {
+                throw new IOException("Serial port stream broken by previous error");
+            }
+        }
+
+        /**
+         * Send the buffer as a single command, first making room in the pipeline.
+         *
+         * @throws IOException if sending fails or an outstanding response was a failure
+         */
+        private void sendBuffer() throws IOException {
+            while (mOutstanding >= mPipelineDepth) {
+                receiveOne();
+            }
+
+            if (!mLocked) {
+                if (!mClient.lockChannel(InterfaceType.RPI)) {
+                    throw new InterruptedIOException("Interrupted waiting for the RPI");
+                }
+                mLocked = true;
+            }
+
+            byte[] data = Arrays.copyOf(mBuffer, mCount);
+            CommandApdu command = new CommandApdu(CommandType.Send_USB_Serial_Data, data);
+            int id = mClient.sendCommand(InterfaceType.RPI, command);
+            if (id < 0) {
+                mBroken = true;
+                discardOutstanding();
+                throw new IOException("Failed to send serial data");
+            }
+            mCount = 0;
+            mOutstanding++;
+            mChunksSent++;
+        }
+
+        /**
+         * Receive the response to the oldest outstanding command.
+         *
+         * @throws IOException if the receive fails or the response was a failure
+         */
+        private void receiveOne() throws IOException {
+            ResponseMessage rm = mClient.receiveResponse(InterfaceType.RPI);
+            mOutstanding--;
+            if (rm == null) {
+                // the session's gone, so the other responses won't arrive
+                mOutstanding = 0;
+            }
+            if (rm == null || !rm.isSuccess()) {
+                mBroken = true;
+                LOGGER.debug("Send_USB_Serial_Data failed: {}", rm);
+                discardOutstanding();
+                throw new IOException("Device rejected serial data");
+            }
+            if (mOutstanding == 0) {
+                unlock();
+            }
+        }
+
+        /**
+         * Receive and ignore the responses to the outstanding commands, then release the RPI.
+         */
+        void discardOutstanding() {
+            while (mOutstanding > 0) {
+                mOutstanding--;
+                if (mClient.receiveResponse(InterfaceType.RPI) == null) {
+                    mOutstanding = 0;
+                }
+            }
+            unlock();
+        }
+
+        private void unlock() {
+            if (mLocked) {
+                mLocked = false;
+                mClient.unlockChannel(InterfaceType.RPI);
+            }
+        }
+    }
+
+    /**
+     * Bounded ring buffer fed by UsbSerialPortDataReceived events.
+     */
+    private static final class SerialInputStream extends InputStream {
+
+        /** The ring */
+        @NonNull
+        private final byte[] mRing;
+
+        /** Index of the next byte to read */
+        private int mHead;
+
+        /** Number of bytes in the ring */
+        private int mSize;
+
+        /** Total bytes dropped */
+        private long mOverflowBytes;
+
+        /** Events that had data dropped */
+        private long mOverflowEvents;
+
+        /** Closed streams return end-of-stream once drained */
+        private boolean mClosed;
+
+        SerialInputStream(int capacity) {
+            mRing = new byte[capacity];
+        }
+
+        /**
+         * Add data to the ring without blocking, dropping what doesn't fit.
+         *
+         * @param data Data from the serial port
+         */
+        synchronized void offer(@NonNull byte[] data) {
+            if (mClosed) {
+                return;
+            }
+            int free = mRing.length - mSize;
+            int n = Math.min(free, data.length);
+            if (n < data.length) {
+                mOverflowBytes += data.length - n;
+                mOverflowEvents++;
+                LOGGER.debug("Serial receive buffer full, dropped {} bytes", data.length - n);
+            }
+
+            int tail = (mHead + mSize) % mRing.length;
+            int first = Math.min(n, mRing.length - tail);
+            System.arraycopy(data, 0, mRing, tail, first);
+            System.arraycopy(data, first, mRing, 0, n - first);
+            mSize += n;
+            if (n > 0) {
+                notifyAll();
+            }
+        }
+
+        synchronized long getOverflowBytes() {
+            return mOverflowBytes;
+        }
+
+        synchronized long getOverflowEvents() {
+            return mOverflowEvents;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (!awaitData()) {
+                return -1;
+            }
+            int b = mRing[mHead] & 0xff;
+            mHead = (mHead + 1) % mRing.length;
+            mSize--;
+            return b;
+        }
+
+        @Override
+        public synchronized int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (!awaitData()) {
+                return -1;
+            }
+            int n = Math.min(len, mSize);
+            int first = Math.min(n, mRing.length - mHead);
+            System.arraycopy(mRing, mHead, b, off, first);
+            System.arraycopy(mRing, 0, b, off + first, n - first);
+            mHead = (mHead + n) % mRing.length;
+            mSize -= n;
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return mSize;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                mClosed = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait until there's data to read.
+         *
+         * @return true if there's data, false if closed and drained
+         * @throws InterruptedIOException if interrupted whilst waiting
+         */
+        private boolean awaitData() throws InterruptedIOException {
+            try {
+                while (mSize == 0 && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for serial data");
+            }
+            return mSize > 0;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.api.executor.CommandScheduler;
+import com.miurasystems.miuralibrary.api.objects.TransferStats;
+import com.miurasystems.miuralibrary.api.utils.GetDeviceFile;
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Reads the selected file with several READ BINARY commands in flight at once.
+ *
+ * <p>
+ * Reading a file one READ BINARY at a time costs a round trip per
+ * {@link #MAX_CHUNK_SIZE} bytes, which over Bluetooth is most of the time taken. Instead, a
+ * window of commands for consecutive chunks is kept in flight, and the chunks are written
+ * out in order as their responses arrive: to an array, a buffer, or a channel. Writing to a
+ * channel or a mapped buffer doesn't hold the whole file on the heap.
+ * </p>
+ *
+ * <h3>Window size</h3>
+ * <p>
+ * The window adapts to the link. The shortest round trip seen approximates the link's
+ * unloaded latency, and the average gap between back-to-back responses is how long the
+ * device takes to serve a chunk. Enough commands to cover one round trip, plus one, keeps the
+ * link busy without queueing more than needed. It's limited by the max window given to the
+ * constructor.
+ * </p>
+ *
+ * <h3>Errors</h3>
+ * <p>
+ * If a chunk fails, the responses to the commands behind it are collected and discarded,
+ * and the rest of the file is read one chunk at a time, as
+ * {@link MpiClient#readBinary} would. A chunk that fails then fails the read. A chunk that's
+ * shorter than asked for restarts the window after it.
+ * </p>
+ *
+ * <p>
+ * Whilst commands are in flight the client's responses on this NAD belong to the reader, so
+ * it {@link MpiClient#lockChannel locks} the NAD for the whole read. With
+ * {@link MpiClientMTAbort} that stops another thread, e.g. one calling abortTransaction,
+ * from receiving the reader's responses. It waits for its commands and unlocks the NAD
+ * before yielding to {@link CommandScheduler#yieldToPriorityWork() priority work}, and
+ * before returning.
+ * </p>
+ */
+public final class WindowedFileReader {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(WindowedFileReader.class);
+
+    /** The most data a single READ BINARY can return */
+    public static final int MAX_CHUNK_SIZE = 252;
+
+    /**
+     * The largest window allowed.
+     *
+     * <p>The session buffers a handful of responses for each NAD,
+     * so don't let the device get further ahead than that.
+     */
+    public static final int MAX_WINDOW = 3;
+
+    /** The window used until the link has been measured */
+    public static final int INITIAL_WINDOW = 2;
+
+    /** Weight of the newest sample in the service time average, as 1/N */
+    private static final int SERVICE_TIME_WEIGHT = 8;
+
+    /**
+     * A READ BINARY in flight.
+     */
+    private static final class Chunk {
+        final int mOffset;
+        final int mSize;
+        final long mSentNanos;
+
+        Chunk(int offset, int size, long sentNanos) {
+            mOffset = offset;
+            mSize = size;
+            mSentNanos = sentNanos;
+        }
+    }
+
+    @NonNull
+    private final MpiClient mClient;
+    @NonNull
+    private final InterfaceType mNad;
+    private final int mMaxWindow;
+
+    @NonNull
+    private final ArrayDeque<Chunk> mInFlight = new ArrayDeque<>();
+
+    private boolean mLocked;
+    private int mWindow;
+    private boolean mFellBack;
+    private long mMinRttNanos = Long.MAX_VALUE;
+    private long mServiceNanos;
+    private long mLastReceiveNanos;
+
+    private long mBytesRead;
+    private long mElapsedNanos;
+    private int mChunksRead;
+    private int mMaxWindowUsed;
+    private int mErrors;
+
+    /**
+     * Create a reader with a window of up to {@link #MAX_WINDOW}.
+     *
+     * @param client The client to read with
+     * @param nad    The device to read from
+     */
+    public WindowedFileReader(@NonNull MpiClient client, @NonNull InterfaceType nad) {
+        this(client, nad, MAX_WINDOW);
+    }
+
+    /**
+     * Create a reader.
+     *
+     * @param client    The client to read with
+     * @param nad       The device to read from
+     * @param maxWindow The most commands in flight at once. 1 reads one chunk at a time.
+     */
+    public WindowedFileReader(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType nad,
+            int maxWindow
+    ) {
+        if (maxWindow < 1 || maxWindow > MAX_WINDOW) {
+            throw new IllegalArgumentException("Invalid maxWindow: " + maxWindow);
+        }
+        mClient = client;
+        mNad = nad;
+        mMaxWindow = maxWindow;
+        mWindow = Math.min(INITIAL_WINDOW, maxWindow);
+    }
+
+    /**
+     * Read the file selected with {@link MpiClient#selectFile} into memory.
+     *
+     * @param fileSize The file's size, as returned by selectFile
+     * @param progress Called every {@link GetDeviceFile#MIN_BYTES_BETWEEN_PROGRESS} bytes,
+     *                 if non-null
+     * @return The file, or null if reading failed or was cancelled
+     */
+    @Nullable
+    public byte[] read(int fileSize, @Nullable GetDeviceFile.ProgressCallback progress) {
+        byte[] content = new byte[fileSize];
+        if (!read(fileSize, ByteBuffer.wrap(content), progress)) {
+            return null;
+        }
+        return content;
+    }
+
+    /**
+     * Read the file selected with {@link MpiClient#selectFile} into a buffer, e.g. a
+     * {@link java.nio.MappedByteBuffer MappedByteBuffer}.
+     *
+     * @param fileSize The file's size, as returned by selectFile
+     * @param out      The buffer to put the file in, from its current position. Must have
+     *                 fileSize bytes remaining.
+     * @param progress Called every {@link GetDeviceFile#MIN_BYTES_BETWEEN_PROGRESS} bytes,
+     *                 if non-null
+     * @return true if the file was read. If false, out has been partly written.
+     */
+    public boolean read(
+            int fileSize,
+            @NonNull final ByteBuffer out,
+            @Nullable GetDeviceFile.ProgressCallback progress
+    ) {
+        if (out.remaining() < fileSize) {
+            throw new IllegalArgumentException("out is too small");
+        }
+        return read(fileSize, new WritableByteChannel() {
+            @Override
+            public int write(@NonNull ByteBuffer src) {
+                int length = src.remaining();
+                out.put(src);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, progress);
+    }
+
+    /**
+     * Read the file selected with {@link MpiClient#selectFile}, writing each chunk to a
+     * channel as it arrives.
+     *
+     * <p>
+     * The chunks are written in order, so at most a window of chunks is held in memory,
+     * whatever the file's size. The channel is not closed.
+     * </p>
+     *
+     * @param fileSize The file's size, as returned by selectFile
+     * @param out      The channel to write the file to
+     * @param progress Called every {@link GetDeviceFile#MIN_BYTES_BETWEEN_PROGRESS} bytes,
+     *                 if non-null
+     * @return true if the file was read. If false, out has been sent part of the file, and the
+     * reason has been logged.
+     */
+    public boolean read(
+            int fileSize,
+            @NonNull WritableByteChannel out,
+            @Nullable GetDeviceFile.ProgressCallback progress
+    ) {
+        return read(fileSize, 0, out, progress);
+    }
+
+    /**
+     * Read the end of the file selected with {@link MpiClient#selectFile}, from an offset,
+     * writing each chunk to a channel as it arrives.
+     *
+     * <p>See {@link #read(int, WritableByteChannel, GetDeviceFile.ProgressCallback)}.</p>
+     *
+     * @param fileSize    The file's size, as returned by selectFile
+     * @param startOffset Where to start reading. Must be in [0, fileSize].
+     * @param out         The channel to write fileSize - startOffset bytes to
+     * @param progress    Called every {@link GetDeviceFile#MIN_BYTES_BETWEEN_PROGRESS} bytes,
+     *                    if non-null
+     * @return true if the rest of the file was read
+     */
+    public boolean read(
+            int fileSize,
+            int startOffset,
+            @NonNull WritableByteChannel out,
+            @Nullable GetDeviceFile.ProgressCallback progress
+    ) {
+        if (startOffset < 0 || startOffset > fileSize) {
+            throw new IllegalArgumentException("Invalid startOffset: " + startOffset);
+        }
+        long start = System.nanoTime();
+        if (!mClient.lockChannel(mNad)) {
+            LOGGER.debug("read: interrupted waiting for {}", mNad);
+            return false;
+        }
+        mLocked = true;
+        try {
+            return readChunks(fileSize, startOffset, out, progress);
+        } catch (IOException e) {
+            LOGGER.warn("Exception writing file", e);
+            drain();
+            return false;
+        } finally {
+            if (mLocked) {
+                mLocked = false;
+                mClient.unlockChannel(mNad);
+            }
+            mElapsedNanos += System.nanoTime() - start;
+        }
+    }
+
+    private boolean readChunks(
+            int fileSize,
+            int startOffset,
+            @NonNull WritableByteChannel out,
+            @Nullable GetDeviceFile.ProgressCallback progress
+    ) throws IOException {
+        int nextOffset = startOffset;
+        int doneOffset = startOffset;
+        int progressBytes = 0;
+
+        while (doneOffset < fileSize) {
+            while (mInFlight.size() < mWindow && nextOffset < fileSize) {
+                if (CommandScheduler.hasPriorityWork()) {
+                    if (!drain()) {
+                        return false;
+                    }
+                    nextOffset = doneOffset;
+                    if (!yieldToPriorityWork()) {
+                        return false;
+                    }
+                }
+                if (mClient.isCancelled()) {
+                    LOGGER.debug("read: cancelled at {}", doneOffset);
+                    drain();
+                    return false;
+                }
+                int size = Math.min(MAX_CHUNK_SIZE, fileSize - nextOffset);
+                long now = System.nanoTime();
+                int id = mClient.sendCommand(
+                        mNad, MpiClient.makeReadBinary(fileSize, nextOffset, size));
+                if (id < 0) {
+                    drain();
+                    return false;
+                }
+                mInFlight.add(new Chunk(nextOffset, size, now));
+                nextOffset += size;
+                mMaxWindowUsed = Math.max(mMaxWindowUsed, mInFlight.size());
+            }
+
+            Chunk chunk = mInFlight.poll();
+            ResponseMessage rm = mClient.receiveResponse(mNad);
+            if (rm == null) {
+                // session's gone, so the other responses won't arrive
+                mInFlight.clear();
+                return false;
+            }
+            measure(chunk, System.nanoTime());
+
+            byte[] data = rm.isSuccess() ? rm.getBody() : null;
+            if (data == null || data.length < 1 || data.length > chunk.mSize) {
+                mErrors++;
+                boolean alone = mInFlight.isEmpty() && mWindow == 1;
+                if (!drain() || alone) {
+                    LOGGER.debug("read: chunk at {} failed: {}", chunk.mOffset, rm);
+                    return false;
+                }
+                LOGGER.debug("read: chunk at {} failed, reading one at a time", chunk.mOffset);
+                mFellBack = true;
+                mWindow = 1;
+                nextOffset = doneOffset;
+                continue;
+            }
+
+            // Responses arrive in the order sent, so this chunk starts at doneOffset
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            doneOffset = chunk.mOffset + data.length;
+            mBytesRead += data.length;
+            mChunksRead++;
+            if (data.length < chunk.mSize) {
+                // the commands behind this one asked for the wrong offsets
+                if (!drain()) {
+                    return false;
+                }
+                nextOffset = doneOffset;
+            }
+
+            if (progress != null) {
+                progressBytes += data.length;
+                if (progressBytes >= GetDeviceFile.MIN_BYTES_BETWEEN_PROGRESS) {
+                    progress.onProgress((float) (doneOffset - startOffset)
+                            / (float) (fileSize - startOffset));
+                    progressBytes = 0;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Learn from a response's timing and resize the window.
+     */
+    private void measure(@NonNull Chunk chunk, long now) {
+        mMinRttNanos = Math.min(mMinRttNanos, now - chunk.mSentNanos);
+
+        // Only a chunk that was already waiting when the last response arrived
+        // shows how quickly the device serves chunks back-to-back.
+        if (mLastReceiveNanos != 0L && chunk.mSentNanos <= mLastReceiveNanos) {
+            long gap = now - mLastReceiveNanos;
+            if (mServiceNanos == 0L) {
+                mServiceNanos = gap;
+            } else {
+                mServiceNanos += (gap - mServiceNanos) / SERVICE_TIME_WEIGHT;
+            }
+        }
+        mLastReceiveNanos = now;
+
+        if (mFellBack || mServiceNanos <= 0L) {
+            return;
+        }
+        long target = (mMinRttNanos + mServiceNanos - 1L) / mServiceNanos + 1L;
+        mWindow = (int) Math.max(1L, Math.min(mMaxWindow, target));
+    }
+
+    /**
+     * Unlock the NAD whilst priority work runs. Nothing must be in flight.
+     *
+     * @return false if interrupted whilst taking the NAD back
+     */
+    private boolean yieldToPriorityWork() {
+        mLocked = false;
+        mClient.unlockChannel(mNad);
+        CommandScheduler.yieldToPriorityWork();
+        mLocked = mClient.lockChannel(mNad);
+        return mLocked;
+    }
+
+    /**
+     * Receive and discard the responses to every command in flight.
+     *
+     * @return false if the session failed
+     */
+    private boolean drain() {
+        while (!mInFlight.isEmpty()) {
+            mInFlight.poll();
+            if (mClient.receiveResponse(mNad) == null) {
+                mInFlight.clear();
+                return false;
+            }
+        }
+        mLastReceiveNanos = 0L;
+        return true;
+    }
+
+    /**
+     * @return The bytes read, time taken etc. by this reader so far
+     */
+    @NonNull
+    public TransferStats getStats() {
+        return new TransferStats(mBytesRead, mElapsedNanos, mChunksRead, mErrors, mMaxWindowUsed);
+    }
+
+    /**
+     * @return The current window size
+     */
+    public int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * @return The most commands that have been in flight at once
+     */
+    public int getMaxWindowUsed() {
+        return mMaxWindowUsed;
+    }
+
+    /**
+     * @return The number of chunks read successfully
+     */
+    public int getChunksRead() {
+        return mChunksRead;
+    }
+
+    /**
+     * @return The number of chunks that failed
+     */
+    public int getErrors() {
+        return mErrors;
+    }
+
+    /**
+     * @return The shortest round trip seen, in microseconds. -1 if nothing's been read.
+     */
+    public long getMinRttMicros() {
+        return mMinRttNanos == Long.MAX_VALUE ? -1L : mMinRttNanos / 1000L;
+    }
+
+    /**
+     * @return The average time between back-to-back responses, in microseconds. 0 if not
+     * measured yet.
+     */
+    public long getServiceTimeMicros() {
+        return mServiceNanos / 1000L;
+    }
+}
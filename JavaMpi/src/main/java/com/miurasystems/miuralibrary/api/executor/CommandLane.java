@@ -0,0 +1,28 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+/**
+ * The priority lanes of a {@link CommandScheduler}, highest priority first.
+ *
+ * <p>
+ * Commands in the same lane run in the order they were scheduled. A command in a higher lane
+ * runs before any queued command in a lower lane, unless the lower one has been waiting long
+ * enough to be aged up. See {@link CommandScheduler}.
+ * </p>
+ */
+public enum CommandLane {
+    /**
+     * Transactions, PIN and numeric entry. Anything a customer is waiting on.
+     *
+     * <p>The only lane that runs at yield points, so its tasks must not select files.</p>
+     */
+    Transaction,
+    /** Display, keyboard, printer and other short commands driven by the app's UI */
+    Interactive,
+    /** Status polling, e.g. battery, clock, configuration and device info */
+    Background,
+    /** Long file uploads and downloads. These yield between chunks to transactions. */
+    BulkTransfer
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread executor with priority lanes, used to run MiuraManager's commands.
+ *
+ * <p>
+ * There's one link to the device, so commands still run one at a time on one thread. But
+ * rather than a single FIFO queue each {@link CommandLane} has its own, and the thread always
+ * takes the next task from the highest priority lane with work waiting. A transaction
+ * scheduled behind a backlog of battery polls and log downloads therefore runs as soon as the
+ * current command finishes.
+ * </p>
+ *
+ * <p>
+ * <b>Aging.</b> To stop a steady stream of high priority work starving the lower lanes, a
+ * task is treated as one lane higher for every {@code agingStep} it has waited. e.g. with the
+ * default step of 1s a background poll that has waited 2s competes as if it were a transaction.
+ * </p>
+ *
+ * <p>
+ * <b>Preemption between chunks.</b> Commands can't be interrupted part way through, but long
+ * running tasks that loop over many commands, such as
+ * {@link com.miurasystems.miuralibrary.api.utils.GetDeviceFile}, call
+ * {@link #yieldToPriorityWork()} between chunks. If the {@link CommandLane#Transaction} lane has
+ * work waiting, it is run there and then, on the same thread, before the loop carries on.
+ * </p>
+ *
+ * <p>
+ * Only transactions run at a yield point. The task that yields is part way through a file,
+ * and work in the other lanes may select a different file or reset the device underneath it.
+ * Transaction tasks must therefore never select files.
+ * </p>
+ *
+ * <p>
+ * Queue depths, wait times and counts for each lane are available from {@link #getStats}.
+ * </p>
+ */
+public class CommandScheduler extends AbstractExecutorService {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandScheduler.class);
+
+    /** Default time a task must wait to be aged up one lane */
+    public static final long DEFAULT_AGING_STEP_MS = 1000L;
+
+    /** The scheduler and lane of the task running on the current thread, if any */
+    private static final ThreadLocal<Running> RUNNING = new ThreadLocal<>();
+
+    private static final CommandLane[] LANES = CommandLane.values();
+
+    /**
+     * A queued task
+     */
+    private static final class Task {
+        @NonNull
+        final Runnable mRunnable;
+        @NonNull
+        final CommandLane mLane;
+        final long mQueuedNanos;
+
+        Task(@NonNull Runnable runnable, @NonNull CommandLane lane, long queuedNanos) {
+            mRunnable = runnable;
+            mLane = lane;
+            mQueuedNanos = queuedNanos;
+        }
+    }
+
+    /**
+     * What's running on a worker thread.
+     */
+    private static final class Running {
+        @NonNull
+        final CommandScheduler mScheduler;
+        @NonNull
+        final CommandLane mLane;
+
+        Running(@NonNull CommandScheduler scheduler, @NonNull CommandLane lane) {
+            mScheduler = scheduler;
+            mLane = lane;
+        }
+    }
+
+    /**
+     * Mutable per-lane counters. Guarded by mLock.
+     */
+    private static final class Counters {
+        int mMaxQueued;
+        long mExecuted;
+        long mRunAtYield;
+        long mAgedAhead;
+        long mTotalWaitNanos;
+        long mMaxWaitNanos;
+    }
+
+    @NonNull
+    private final ThreadFactory mThreadFactory;
+
+    private final long mAgingStepNanos;
+
+    @NonNull
+    private final Object mLock = new Object();
+
+    /** Each lane's queue. Guarded by mLock */
+    @NonNull
+    private final Map<CommandLane, ArrayDeque<Task>> mQueues;
+
+    /** Each lane's counters. Guarded by mLock */
+    @NonNull
+    private final Map<CommandLane, Counters> mCounters;
+
+    /** The worker thread, created by the first execute. Guarded by mLock */
+    @Nullable
+    private Thread mThread;
+
+    /** Guarded by mLock */
+    private boolean mShutdown;
+
+    /** Guarded by mLock */
+    private boolean mTerminated;
+
+    /**
+     * Create a scheduler with the default aging step.
+     *
+     * @param threadFactory Creates the worker thread
+     */
+    public CommandScheduler(@NonNull ThreadFactory threadFactory) {
+        this(threadFactory, DEFAULT_AGING_STEP_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a scheduler
+     *
+     * @param threadFactory Creates the worker thread
+     * @param agingStep     How long a task must wait to be treated as one lane higher
+     * @param unit          The unit of agingStep
+     */
+    public CommandScheduler(
+            @NonNull ThreadFactory threadFactory,
+            long agingStep,
+            @NonNull TimeUnit unit
+    ) {
+        if (agingStep <= 0L) {
+            throw new IllegalArgumentException("agingStep must be positive");
+        }
+        mThreadFactory = threadFactory;
+        mAgingStepNanos = unit.toNanos(agingStep);
+        mQueues = new EnumMap<>(CommandLane.class);
+        mCounters = new EnumMap<>(CommandLane.class);
+        for (CommandLane lane : LANES) {
+            mQueues.put(lane, new ArrayDeque<Task>());
+            mCounters.put(lane, new Counters());
+        }
+    }
+
+    /**
+     * Run higher priority work that's waiting, if called from a task running on a scheduler.
+     *
+     * <p>
+     * Long running tasks should call this between commands. Any tasks queued in the
+     * {@link CommandLane#Transaction} lane are run before this returns, if the calling task is
+     * in a lower lane. Other lanes' tasks wait for the calling task to finish, as they may
+     * select files. If the calling thread isn't a scheduler's worker this does nothing.
+     * </p>
+     */
+    public static void yieldToPriorityWork() {
+        Running running = RUNNING.get();
+        if (running != null) {
+            running.mScheduler.runHigherThan(yieldLimit(running.mLane));
+        }
+    }
+
+    /**
+     * Is there higher priority work waiting for {@link #yieldToPriorityWork()}?
+     *
+     * <p>
+     * For tasks that keep several commands in flight. They must wait for those responses
+     * before yielding, so only do that when there's something to yield to.
+     * </p>
+     *
+     * @return true if called from a task running on a scheduler, and a task is queued in the
+     * {@link CommandLane#Transaction} lane, which is higher than the calling task's
+     */
+    public static boolean hasPriorityWork() {
+        Running running = RUNNING.get();
+        return running != null && running.mScheduler.hasHigherThan(yieldLimit(running.mLane));
+    }
+
+    /**
+     * Get the lane whose higher lanes a task may yield to.
+     *
+     * @param lane The yielding task's lane
+     * @return lane, or {@link CommandLane#Interactive} if that's higher, so that only
+     * {@link CommandLane#Transaction} work runs at a yield point
+     */
+    @NonNull
+    private static CommandLane yieldLimit(@NonNull CommandLane lane) {
+        if (lane.ordinal() > CommandLane.Interactive.ordinal()) {
+            return CommandLane.Interactive;
+        }
+        return lane;
+    }
+
+    /**
+     * Schedule a task in the {@link CommandLane#Interactive} lane.
+     *
+     * @param command The task
+     */
+    @Override
+    public void execute(@NonNull Runnable command) {
+        execute(CommandLane.Interactive, command);
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param lane    The lane to queue it in
+     * @param command The task
+     * @throws RejectedExecutionException If the scheduler has been shut down
+     */
+    public void execute(@NonNull CommandLane lane, @NonNull Runnable command) {
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("CommandScheduler is shut down");
+            }
+            ArrayDeque<Task> queue = mQueues.get(lane);
+            queue.add(new Task(command, lane, System.nanoTime()));
+            Counters counters = mCounters.get(lane);
+            counters.mMaxQueued = Math.max(counters.mMaxQueued, queue.size());
+
+            if (mThread == null) {
+                mThread = mThreadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        workerLoop();
+                    }
+                });
+                mThread.start();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Remove a task that hasn't started yet.
+     *
+     * @param command The task, as given to execute
+     * @return true if it was removed
+     */
+    public boolean remove(@NonNull Runnable command) {
+        synchronized (mLock) {
+            for (ArrayDeque<Task> queue : mQueues.values()) {
+                Iterator<Task> iterator = queue.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().mRunnable == command) {
+                        iterator.remove();
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get a snapshot of a lane's metrics.
+     *
+     * @param lane The lane
+     * @return The lane's metrics
+     */
+    @NonNull
+    public LaneStats getStats(@NonNull CommandLane lane) {
+        synchronized (mLock) {
+            Counters c = mCounters.get(lane);
+            return new LaneStats(lane, mQueues.get(lane).size(), c.mMaxQueued, c.mExecuted,
+                    c.mRunAtYield, c.mAgedAhead, c.mTotalWaitNanos, c.mMaxWaitNanos);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            if (mThread == null) {
+                mTerminated = true;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @NonNull
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> dropped = new ArrayList<>();
+        Thread thread;
+        synchronized (mLock) {
+            shutdown();
+            for (ArrayDeque<Task> queue : mQueues.values()) {
+                for (Task task : queue) {
+                    dropped.add(task.mRunnable);
+                }
+                queue.clear();
+            }
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+        return dropped;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (mLock) {
+            return mShutdown;
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        synchronized (mLock) {
+            return mTerminated;
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        long end = System.nanoTime() + remaining;
+        synchronized (mLock) {
+            while (!mTerminated) {
+                if (remaining <= 0L) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+                remaining = end - System.nanoTime();
+            }
+            return true;
+        }
+    }
+
+    private void workerLoop() {
+        try {
+            while (true) {
+                Task task;
+                synchronized (mLock) {
+                    while ((task = pollLocked(null)) == null) {
+                        if (mShutdown) {
+                            return;
+                        }
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            if (mShutdown) {
+                                return;
+                            }
+                        }
+                    }
+                }
+                run(task);
+            }
+        } finally {
+            synchronized (mLock) {
+                mTerminated = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Run any queued tasks in lanes higher than the given one.
+     */
+    private void runHigherThan(@NonNull CommandLane lane) {
+        while (true) {
+            Task task;
+            synchronized (mLock) {
+                if (mShutdown) {
+                    return;
+                }
+                task = pollLocked(lane);
+                if (task == null) {
+                    return;
+                }
+                mCounters.get(task.mLane).mRunAtYield++;
+            }
+            LOGGER.debug("{} task runs at {} yield point", task.mLane, lane);
+            run(task);
+        }
+    }
+
+    private boolean hasHigherThan(@NonNull CommandLane lane) {
+        synchronized (mLock) {
+            for (CommandLane higher : LANES) {
+                if (higher.ordinal() >= lane.ordinal()) {
+                    break;
+                }
+                if (!mQueues.get(higher).isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void run(@NonNull Task task) {
+        Running previous = RUNNING.get();
+        RUNNING.set(new Running(this, task.mLane));
+        try {
+            task.mRunnable.run();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Task in lane {} threw", task.mLane, e);
+        } finally {
+            if (previous == null) {
+                RUNNING.remove();
+            } else {
+                RUNNING.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Take the next task to run. Must hold mLock.
+     *
+     * @param above If non-null, only consider lanes strictly higher than this one, without
+     *              aging. Otherwise pick from all lanes, with aging.
+     * @return The task, or null if there's nothing suitable.
+     */
+    @Nullable
+    private Task pollLocked(@Nullable CommandLane above) {
+        long now = System.nanoTime();
+        CommandLane best = null;
+        long bestPriority = Long.MAX_VALUE;
+        for (CommandLane lane : LANES) {
+            if (above != null && lane.ordinal() >= above.ordinal()) {
+                break;
+            }
+            Task head = mQueues.get(lane).peek();
+            if (head == null) {
+                continue;
+            }
+            /* Each lane is one aging step behind the lane above it, and waiting makes up
+             * the difference. Lower is better. */
+            long priority = lane.ordinal() * mAgingStepNanos;
+            if (above == null) {
+                priority -= now - head.mQueuedNanos;
+            }
+            // strictly less, so on a tie the natively higher lane wins
+            if (priority < bestPriority) {
+                best = lane;
+                bestPriority = priority;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        Task task = mQueues.get(best).poll();
+        Counters counters = mCounters.get(best);
+        long wait = now - task.mQueuedNanos;
+        counters.mExecuted++;
+        counters.mTotalWaitNanos += wait;
+        counters.mMaxWaitNanos = Math.max(counters.mMaxWaitNanos, wait);
+        for (int i = 0; i < best.ordinal(); i++) {
+            if (!mQueues.get(LANES[i]).isEmpty()) {
+                counters.mAgedAhead++;
+                break;
+            }
+        }
+        return task;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs one device's tasks in order, one at a time, on a pool shared with other devices.
+ *
+ * <p>
+ * The lane never has more than one entry in the pool's queue. That entry runs a single task
+ * and then, if the lane has more, puts itself back on the end of the pool's queue. So with a
+ * FIFO pool each device with outstanding work gets a turn before any device gets a second one.
+ * </p>
+ * <p>
+ * A task can be given a drop callback, which is run instead of the task if the lane is
+ * cleared, or the pool is shut down, before the task starts. That lets the task's caller
+ * complete it with a failure rather than waiting forever.
+ * </p>
+ */
+class DeviceLane {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceLane.class);
+
+    /** Name of the device, for logging */
+    @NonNull
+    private final String mName;
+
+    /** The shared pool to run tasks on */
+    @NonNull
+    private final Executor mPool;
+
+    /** Tasks waiting to run. Guarded by this. */
+    @NonNull
+    private final Queue<Entry> mTasks = new ArrayDeque<>();
+
+    /** true if {@link #mRunNext} is in the pool's queue or running. Guarded by this. */
+    private boolean mScheduled;
+
+    /** Runs the next task then reschedules itself if there are more. */
+    @NonNull
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            Entry entry;
+            synchronized (DeviceLane.this) {
+                entry = mTasks.poll();
+            }
+            List<Entry> dropped = null;
+            try {
+                if (entry != null) {
+                    entry.mTask.run();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("{}: task threw", mName, e);
+            } finally {
+                synchronized (DeviceLane.this) {
+                    mScheduled = false;
+                    if (!scheduleIfNeeded()) {
+                        dropped = takeAll();
+                    }
+                }
+            }
+            if (dropped != null) {
+                notifyDropped(dropped);
+            }
+        }
+    };
+
+    /**
+     * Create a new lane
+     *
+     * @param name The device's name
+     * @param pool The shared pool to run tasks on
+     */
+    DeviceLane(@NonNull String name, @NonNull Executor pool) {
+        mName = name;
+        mPool = pool;
+    }
+
+    /**
+     * Add a task to the end of the lane
+     *
+     * @param task The task to run
+     * @return true if the task was queued. false if the pool has been shut down.
+     */
+    boolean execute(@NonNull Runnable task) {
+        return execute(task, null);
+    }
+
+    /**
+     * Add a task to the end of the lane
+     *
+     * @param task      The task to run
+     * @param onDropped Run instead of the task if it's dropped before starting.
+     *                  Not run if this method returns false.
+     * @return true if the task was queued. false if the pool has been shut down.
+     */
+    synchronized boolean execute(@NonNull Runnable task, @Nullable Runnable onDropped) {
+        Entry entry = new Entry(task, onDropped);
+        mTasks.add(entry);
+        if (scheduleIfNeeded()) {
+            return true;
+        }
+        // Nothing else is queued when the lane isn't scheduled, so this is the only task.
+        mTasks.remove(entry);
+        return false;
+    }
+
+    /**
+     * Drop all tasks that haven't started yet.
+     *
+     * <p>Their drop callbacks are run on the calling thread before this returns.
+     */
+    void clear() {
+        List<Entry> dropped;
+        synchronized (this) {
+            dropped = takeAll();
+        }
+        notifyDropped(dropped);
+    }
+
+    /**
+     * @return The number of tasks waiting to run
+     */
+    synchronized int size() {
+        return mTasks.size();
+    }
+
+    /**
+     * Put the lane on the pool's queue, if it has tasks and isn't already queued.
+     *
+     * <p>Must hold the lock.
+     *
+     * @return false if the pool rejected the lane. The tasks are left for the caller to drop.
+     */
+    private boolean scheduleIfNeeded() {
+        if (mScheduled || mTasks.isEmpty()) {
+            return true;
+        }
+        try {
+            mPool.execute(mRunNext);
+            mScheduled = true;
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("{}: pool rejected lane, dropping {} tasks", mName, mTasks.size());
+            return false;
+        }
+    }
+
+    /**
+     * Remove all waiting tasks.
+     *
+     * <p>Must hold the lock.
+     */
+    @NonNull
+    private List<Entry> takeAll() {
+        List<Entry> entries = new ArrayList<>(mTasks);
+        mTasks.clear();
+        return entries;
+    }
+
+    /**
+     * Run the drop callbacks of tasks that won't run. Must not hold the lock.
+     */
+    private void notifyDropped(@NonNull List<Entry> dropped) {
+        for (Entry entry : dropped) {
+            if (entry.mOnDropped == null) {
+                continue;
+            }
+            try {
+                entry.mOnDropped.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("{}: drop callback threw", mName, e);
+            }
+        }
+    }
+
+    /**
+     * A queued task and what to do if it's dropped
+     */
+    private static final class Entry {
+        @NonNull
+        final Runnable mTask;
+        @Nullable
+        final Runnable mOnDropped;
+
+        Entry(@NonNull Runnable task, @Nullable Runnable onDropped) {
+            mTask = task;
+            mOnDropped = onDropped;
+        }
+    }
+}
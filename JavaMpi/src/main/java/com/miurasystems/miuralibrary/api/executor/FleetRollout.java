@@ -0,0 +1,866 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.api.executor.MiuraManager.AsyncRunnable;
+import com.miurasystems.miuralibrary.api.objects.FileDigest;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes one file, e.g. a firmware image or configuration archive, to many devices at once.
+ *
+ * <p>
+ * The file is mapped read-only once, and every device's upload streams its chunks straight
+ * from that one mapping, see {@link MpiClient#streamBinary(InterfaceType, boolean, ByteBuffer,
+ * int, int)}, rather than each device reading the file again. Its MD5 is also worked out once,
+ * and checked against each device's copy once it's been sent.
+ * </p>
+ *
+ * <p>
+ * The devices are updated in waves, e.g. a canary wave of one device, then ten, then the rest.
+ * See {@link #setWaves}. Within a wave no more than {@link #setConcurrency concurrency}
+ * devices are uploaded to at once, and each device's upload can be limited to a number of
+ * bytes per second, see {@link #setBytesPerSecond}. If the proportion of devices that have
+ * failed goes over {@link #setMaxFailureRate the max failure rate}, no more uploads are
+ * started and the remaining devices are {@link State#Skipped skipped}.
+ * </p>
+ *
+ * <p>
+ * Each upload runs as a task on its device, see {@link MiuraDevice#executeAsync}, so it uses
+ * one of the {@link MiuraDeviceManager}'s pool threads whilst it runs. Devices without an open
+ * session fail straight away. A rate limited upload that gets ahead of its rate doesn't sleep
+ * on its pool thread. It gives the thread back and is rescheduled on its device when it's due,
+ * then checks the file's size on the device before carrying on.
+ * </p>
+ */
+public class FleetRollout {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(FleetRollout.class);
+
+    /** Default number of devices uploaded to at once */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /** Size of each STREAM BINARY */
+    public static final int CHUNK_SIZE = 0x10000;
+
+    /** STREAM BINARY's offset is 24 bits */
+    private static final long MAX_FILE_SIZE = 0xFFFFFF;
+
+    private static final int STREAM_TIMEOUT = 100;
+
+    /** Creates the thread that reschedules rate limited uploads */
+    @NonNull
+    private static final ThreadFactory PACER_THREAD_FACTORY =
+            new MiuraManagerThreadFactory("RolloutPacer");
+
+    /**
+     * Where a device has got to.
+     */
+    public enum State {
+        /** Its upload hasn't started */
+        Pending,
+        /** Its upload is running */
+        Running,
+        /** The file was uploaded and checked */
+        Succeeded,
+        /** The upload failed, see {@link DeviceStatus#getReason()} */
+        Failed,
+        /** The rollout was halted before the device's upload started */
+        Skipped,
+    }
+
+    /**
+     * A snapshot of one device's progress.
+     */
+    public static final class DeviceStatus {
+        @NonNull
+        private final String mName;
+        @NonNull
+        private final State mState;
+        private final int mBytesSent;
+        private final int mTotalBytes;
+        @Nullable
+        private final String mReason;
+
+        DeviceStatus(
+                @NonNull String name,
+                @NonNull State state,
+                int bytesSent,
+                int totalBytes,
+                @Nullable String reason
+        ) {
+            mName = name;
+            mState = state;
+            mBytesSent = bytesSent;
+            mTotalBytes = totalBytes;
+            mReason = reason;
+        }
+
+        /**
+         * @return The name of the device
+         */
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        @NonNull
+        public State getState() {
+            return mState;
+        }
+
+        public int getBytesSent() {
+            return mBytesSent;
+        }
+
+        public int getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        /**
+         * @return Why the upload failed, or null
+         */
+        @Nullable
+        public String getReason() {
+            return mReason;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mState + " " + mBytesSent + "/" + mTotalBytes
+                    + (mReason == null ? "" : " (" + mReason + ")");
+        }
+    }
+
+    /**
+     * The outcome of a rollout.
+     */
+    public static final class Report {
+        @NonNull
+        private final Map<String, DeviceStatus> mDevices;
+        private final boolean mHalted;
+        private final int mWavesRun;
+
+        Report(@NonNull Map<String, DeviceStatus> devices, boolean halted, int wavesRun) {
+            mDevices = Collections.unmodifiableMap(devices);
+            mHalted = halted;
+            mWavesRun = wavesRun;
+        }
+
+        /**
+         * @return Each device's final status, keyed by name, in the order they were updated
+         */
+        @NonNull
+        public Map<String, DeviceStatus> getDevices() {
+            return mDevices;
+        }
+
+        /**
+         * @return true if the rollout stopped because too many devices failed
+         */
+        public boolean isHalted() {
+            return mHalted;
+        }
+
+        /**
+         * @return The number of waves that were started
+         */
+        public int getWavesRun() {
+            return mWavesRun;
+        }
+
+        /**
+         * @param state A state
+         * @return The number of devices that finished in that state
+         */
+        public int count(@NonNull State state) {
+            int count = 0;
+            for (DeviceStatus status : mDevices.values()) {
+                if (status.getState() == state) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Told how a rollout is going.
+     *
+     * <p>
+     * Called from the pool threads running the uploads, and from the thread that called
+     * {@link #rollout}. Calls are made one at a time, in the order the events happened, and
+     * never whilst the rollout's lock is held, so a listener may call {@link #getStatus}.
+     * </p>
+     */
+    public interface RolloutListener {
+        /**
+         * A device has made progress, or finished.
+         *
+         * @param status The device's status
+         */
+        void onDeviceStatus(@NonNull DeviceStatus status);
+
+        /**
+         * A wave has finished.
+         *
+         * @param wave   The wave, from 0
+         * @param halted true if the rollout has been halted
+         */
+        void onWaveFinished(int wave, boolean halted);
+    }
+
+    @NonNull
+    private final MiuraDeviceManager mManager;
+
+    private int mConcurrency = DEFAULT_CONCURRENCY;
+    private long mBytesPerSecond;
+    @NonNull
+    private final Map<String, Long> mDeviceBytesPerSecond = new HashMap<>();
+    @NonNull
+    private int[] mWaves = new int[0];
+    private double mMaxFailureRate = 1.0;
+    @Nullable
+    private RolloutListener mListener;
+
+    /** Guards the state of the current rollout */
+    @NonNull
+    private final Object mLock = new Object();
+    /** Each device's status in the current rollout. Guarded by mLock. */
+    @NonNull
+    private final Map<String, DeviceStatus> mStatuses = new LinkedHashMap<>();
+    /** Uploads running. Guarded by mLock. */
+    private int mRunning;
+    /** Devices that have failed. Guarded by mLock. */
+    private int mFailed;
+    /** true whilst {@link #rollout} is running. Guarded by mLock. */
+    private boolean mInProgress;
+    /** Listener calls waiting to be made, in order. Guarded by mLock. */
+    @NonNull
+    private final ArrayDeque<Runnable> mNotifications = new ArrayDeque<>();
+    /** true whilst a thread is making the calls in mNotifications. Guarded by mLock. */
+    private boolean mNotifying;
+
+    /**
+     * Create a rollout to the devices of a manager
+     *
+     * @param manager The devices' manager
+     */
+    public FleetRollout(@NonNull MiuraDeviceManager manager) {
+        mManager = manager;
+    }
+
+    /**
+     * Set the most devices uploaded to at once. Defaults to {@link #DEFAULT_CONCURRENCY}.
+     *
+     * <p>
+     * Uploads don't run on a device's lane any faster than the manager's pool allows, so
+     * if the manager has a fixed number of threads there's no point in setting it higher.
+     * </p>
+     *
+     * @param concurrency The most devices uploaded to at once
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * Limit how fast each device is sent the file.
+     *
+     * @param bytesPerSecond The most bytes per second sent to each device, or 0 for no limit
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0L) {
+            throw new IllegalArgumentException("bytesPerSecond must be >= 0: " + bytesPerSecond);
+        }
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Limit how fast one device is sent the file, e.g. one on a slow or shared link.
+     *
+     * @param name           The device's name
+     * @param bytesPerSecond The most bytes per second sent to it, or 0 for no limit
+     */
+    public void setBytesPerSecond(@NonNull String name, long bytesPerSecond) {
+        if (bytesPerSecond < 0L) {
+            throw new IllegalArgumentException("bytesPerSecond must be >= 0: " + bytesPerSecond);
+        }
+        synchronized (mDeviceBytesPerSecond) {
+            mDeviceBytesPerSecond.put(name, bytesPerSecond);
+        }
+    }
+
+    /**
+     * Split the devices into waves. Each wave finishes before the next starts.
+     *
+     * <p>
+     * e.g. {@code setWaves(1, 10)} updates one device, then ten, then all of the rest. By
+     * default all devices are in one wave.
+     * </p>
+     *
+     * @param sizes The number of devices in each wave. The devices left over are the last wave.
+     */
+    public void setWaves(@NonNull int... sizes) {
+        for (int size : sizes) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("wave size must be positive: " + size);
+            }
+        }
+        mWaves = sizes.clone();
+    }
+
+    /**
+     * Set when to halt the rollout.
+     *
+     * <p>
+     * The rollout halts as soon as the number of devices that have failed is more than this
+     * proportion of the devices in the waves started so far. e.g. 0.0 halts on the first
+     * failure, and 1.0, the default, never halts.
+     * </p>
+     *
+     * @param maxFailureRate The proportion of devices that may fail, from 0.0 to 1.0
+     */
+    public void setMaxFailureRate(double maxFailureRate) {
+        if (!(maxFailureRate >= 0.0 && maxFailureRate <= 1.0)) {
+            throw new IllegalArgumentException("Invalid maxFailureRate: " + maxFailureRate);
+        }
+        mMaxFailureRate = maxFailureRate;
+    }
+
+    /**
+     * @param listener Told how the rollout is going, or null
+     */
+    public void setListener(@Nullable RolloutListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return Each device's status in the current, or last, rollout
+     */
+    @NonNull
+    public Map<String, DeviceStatus> getStatus() {
+        synchronized (mLock) {
+            return new LinkedHashMap<>(mStatuses);
+        }
+    }
+
+    /**
+     * Upload a file to all of the manager's devices.
+     *
+     * <p>See {@link #rollout(List, File, String)}.</p>
+     */
+    @NonNull
+    public Report rollout(@NonNull File file, @NonNull String fileName)
+            throws IOException, InterruptedException {
+        return rollout(mManager.getDevices(), file, fileName);
+    }
+
+    /**
+     * Upload a file to some devices.
+     *
+     * <p>
+     * <b>Note: This method is not asynchronous.</b> It blocks until the rollout has finished,
+     * so must not be called from a pool thread.
+     * </p>
+     *
+     * @param devices  The devices to upload to, in the order to update them
+     * @param file     The local file
+     * @param fileName The name of the file on the devices
+     * @return What happened on each device
+     * @throws IOException          If the file can't be read
+     * @throws InterruptedException If interrupted whilst waiting for the devices. Uploads
+     *                              already running carry on, until a rate limited one next
+     *                              gets ahead of its rate.
+     */
+    @NonNull
+    public Report rollout(
+            @NonNull List<MiuraDevice> devices,
+            @NonNull File file,
+            @NonNull String fileName
+    ) throws IOException, InterruptedException {
+        MappedByteBuffer source;
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > MAX_FILE_SIZE) {
+                throw new IOException("File too large to stream: " + channel.size());
+            }
+            // The mapping stays valid after the channel's closed
+            source = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+        }
+        byte[] md5 = md5(source);
+
+        synchronized (mLock) {
+            if (mInProgress) {
+                throw new IllegalStateException("A rollout is already in progress");
+            }
+            mInProgress = true;
+            mStatuses.clear();
+            for (MiuraDevice device : devices) {
+                mStatuses.put(device.getName(), new DeviceStatus(
+                        device.getName(), State.Pending, 0, source.capacity(), null));
+            }
+            mRunning = 0;
+            mFailed = 0;
+        }
+
+        // Paced uploads still due when this returns are run before the pacer's thread stops
+        ScheduledExecutorService pacer =
+                Executors.newSingleThreadScheduledExecutor(PACER_THREAD_FACTORY);
+        try {
+            boolean halted = false;
+            int waves = 0;
+            int start = 0;
+            while (start < devices.size() && !halted) {
+                int size = waves < mWaves.length ? mWaves[waves] : devices.size() - start;
+                int end = Math.min(start + size, devices.size());
+                halted = runWave(devices.subList(start, end), end, source, md5, fileName, pacer);
+                LOGGER.info("rollout: wave {} finished, halted? {}", waves, halted);
+                synchronized (mLock) {
+                    waveFinished(waves, halted);
+                }
+                notifyListener();
+                waves++;
+                start = end;
+            }
+
+            Map<String, DeviceStatus> statuses;
+            synchronized (mLock) {
+                for (MiuraDevice device : devices.subList(start, devices.size())) {
+                    setStatus(device.getName(), State.Skipped, 0, null);
+                }
+                statuses = new LinkedHashMap<>(mStatuses);
+            }
+            notifyListener();
+            return new Report(statuses, halted, waves);
+        } finally {
+            pacer.shutdown();
+            synchronized (mLock) {
+                mInProgress = false;
+            }
+        }
+    }
+
+    /**
+     * Upload to the devices of one wave, no more than mConcurrency at a time.
+     *
+     * @param wave         The wave's devices
+     * @param devicesSoFar The number of devices in this wave and those before it
+     * @param pacer        Reschedules rate limited uploads
+     * @return true if the rollout should halt
+     */
+    private boolean runWave(
+            @NonNull List<MiuraDevice> wave,
+            int devicesSoFar,
+            @NonNull ByteBuffer source,
+            @NonNull byte[] md5,
+            @NonNull String fileName,
+            @NonNull ScheduledExecutorService pacer
+    ) throws InterruptedException {
+        int next = 0;
+        while (true) {
+            boolean halted;
+            boolean finished;
+            synchronized (mLock) {
+                halted = mFailed > mMaxFailureRate * devicesSoFar;
+                while (!halted && mRunning < mConcurrency && next < wave.size()) {
+                    MiuraDevice device = wave.get(next++);
+                    Upload upload = new Upload(device, source.duplicate(), md5, fileName, pacer);
+                    // Closing the session drops the task before it starts, which fails it
+                    if (device.schedule(upload, upload.mDropped)) {
+                        mRunning++;
+                        setStatus(device.getName(), State.Running, 0, null);
+                    } else {
+                        mFailed++;
+                        setStatus(device.getName(), State.Failed, 0, "No open session");
+                    }
+                    halted = mFailed > mMaxFailureRate * devicesSoFar;
+                }
+                finished = mRunning == 0;
+                if (finished) {
+                    for (MiuraDevice device : wave.subList(next, wave.size())) {
+                        setStatus(device.getName(), State.Skipped, 0, null);
+                    }
+                }
+            }
+            notifyListener();
+            if (finished) {
+                return halted;
+            }
+
+            synchronized (mLock) {
+                // Wait for an upload to finish, unless one already has since the lock was let go
+                halted = mFailed > mMaxFailureRate * devicesSoFar;
+                boolean canStart = !halted && mRunning < mConcurrency && next < wave.size();
+                if (mRunning > 0 && !canStart) {
+                    mLock.wait();
+                }
+            }
+        }
+    }
+
+    /**
+     * Record a device's status and queue a call to the listener. Call with mLock held, then
+     * {@link #notifyListener()} once it's released.
+     */
+    private void setStatus(
+            @NonNull String name,
+            @NonNull State state,
+            int bytesSent,
+            @Nullable String reason
+    ) {
+        DeviceStatus old = mStatuses.get(name);
+        int total = old == null ? 0 : old.getTotalBytes();
+        final DeviceStatus status = new DeviceStatus(name, state, bytesSent, total, reason);
+        mStatuses.put(name, status);
+        final RolloutListener listener = mListener;
+        if (listener != null) {
+            mNotifications.add(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onDeviceStatus(status);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue a call to the listener that a wave has finished. Call with mLock held, then
+     * {@link #notifyListener()} once it's released.
+     */
+    private void waveFinished(final int wave, final boolean halted) {
+        final RolloutListener listener = mListener;
+        if (listener != null) {
+            mNotifications.add(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onWaveFinished(wave, halted);
+                }
+            });
+        }
+    }
+
+    /**
+     * Make the queued listener calls. Must not hold mLock.
+     *
+     * <p>
+     * Only one thread makes the calls at a time, so they're made in order. If another thread is
+     * already making them, it makes this thread's calls too.
+     * </p>
+     */
+    private void notifyListener() {
+        synchronized (mLock) {
+            if (mNotifying) {
+                return;
+            }
+            mNotifying = true;
+        }
+        while (true) {
+            Runnable notification;
+            synchronized (mLock) {
+                notification = mNotifications.poll();
+                if (notification == null) {
+                    mNotifying = false;
+                    return;
+                }
+            }
+            try {
+                notification.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Rollout listener threw", e);
+            }
+        }
+    }
+
+    private long getBytesPerSecond(@NonNull String name) {
+        synchronized (mDeviceBytesPerSecond) {
+            Long bytesPerSecond = mDeviceBytesPerSecond.get(name);
+            return bytesPerSecond == null ? mBytesPerSecond : bytesPerSecond;
+        }
+    }
+
+    /**
+     * Uploads the file to one device, on one of its manager's pool threads.
+     *
+     * <p>
+     * A rate limited upload may run as several tasks. When it gets ahead of its rate it asks the
+     * pacer to schedule it on its device again once it's due, rather than sleeping on the pool
+     * thread. Other tasks may run on the device in between, so it checks the file's size on the
+     * device before carrying on.
+     * </p>
+     */
+    private final class Upload implements AsyncRunnable {
+        @NonNull
+        private final MiuraDevice mDevice;
+        /** This upload's own view of the shared mapping */
+        @NonNull
+        private final ByteBuffer mSource;
+        @NonNull
+        private final byte[] mMd5;
+        @NonNull
+        private final String mFileName;
+        @NonNull
+        private final ScheduledExecutorService mPacer;
+        private final long mBytesPerSecond;
+
+        /** Fails the upload if its task is dropped before it starts */
+        @NonNull
+        final Runnable mDropped = new Runnable() {
+            @Override
+            public void run() {
+                fail("Session closed");
+            }
+        };
+
+        /** When the file was selected. Only used by the upload's own tasks. */
+        private long mStartNanos;
+        /** How long send wants to pause for, or 0. Only used by the upload's own tasks. */
+        private long mPauseNanos;
+
+        /** Guarded by mLock */
+        private boolean mStarted;
+        /** Guarded by mLock */
+        private boolean mFinished;
+        /** The bytes the device has accepted. Guarded by mLock */
+        private int mSent;
+
+        Upload(
+                @NonNull MiuraDevice device,
+                @NonNull ByteBuffer source,
+                @NonNull byte[] md5,
+                @NonNull String fileName,
+                @NonNull ScheduledExecutorService pacer
+        ) {
+            mDevice = device;
+            mSource = source;
+            mMd5 = md5;
+            mFileName = fileName;
+            mPacer = pacer;
+            mBytesPerSecond = getBytesPerSecond(device.getName());
+        }
+
+        @Override
+        public void runOnAsyncThread(@NonNull MpiClient client) {
+            boolean resuming;
+            synchronized (mLock) {
+                if (mFinished) {
+                    return;
+                }
+                resuming = mStarted;
+                mStarted = true;
+            }
+            String reason;
+            try {
+                reason = resuming ? reselect(client) : select(client);
+                if (reason == null) {
+                    reason = send(client);
+                }
+                if (reason == null && mPauseNanos > 0L) {
+                    pause(mPauseNanos);
+                    return;
+                }
+                if (reason == null) {
+                    reason = check(client);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("{}: upload failed", mDevice.getName(), e);
+                reason = e.toString();
+            }
+            synchronized (mLock) {
+                State state = reason == null ? State.Succeeded : State.Failed;
+                finish(state, mSource.position(), reason);
+            }
+            notifyListener();
+        }
+
+        /**
+         * @return null if the file was selected, or why it wasn't
+         */
+        @Nullable
+        private String select(@NonNull MpiClient client) {
+            InterfaceType nad = mDevice.getInterfaceType();
+            if (client.selectFile(nad, SelectFileMode.Truncate, mFileName) < 0) {
+                return "Select file failed";
+            }
+            mStartNanos = System.nanoTime();
+            return null;
+        }
+
+        /**
+         * Select the file again after a pause, and check nothing else has changed it.
+         *
+         * @return null if the file is as it was left, or why it isn't
+         */
+        @Nullable
+        private String reselect(@NonNull MpiClient client) {
+            int size = client.selectFile(
+                    mDevice.getInterfaceType(), SelectFileMode.Append, mFileName);
+            if (size != mSource.position()) {
+                return "File is " + size + " bytes after pause, expected " + mSource.position();
+            }
+            return null;
+        }
+
+        /**
+         * Stream chunks until the whole file is sent, or the upload gets ahead of its rate.
+         *
+         * <p>
+         * If it's ahead, mPauseNanos is set to how long to pause for. That includes after the
+         * last chunk, so the upload takes no less time than its rate allows.
+         * </p>
+         *
+         * @return null if nothing failed, or why it did
+         */
+        @Nullable
+        private String send(@NonNull MpiClient client) {
+            InterfaceType nad = mDevice.getInterfaceType();
+            int total = mSource.capacity();
+            mPauseNanos = 0L;
+            while (mSource.hasRemaining()) {
+                int offset = mSource.position();
+                ByteBuffer chunk = mSource.duplicate();
+                chunk.limit(Math.min(total, offset + CHUNK_SIZE));
+                if (!client.streamBinary(nad, false, chunk, offset, STREAM_TIMEOUT)) {
+                    return "Stream Binary at " + offset + " failed";
+                }
+                mSource.position(chunk.limit());
+
+                synchronized (mLock) {
+                    mSent = mSource.position();
+                    setStatus(mDevice.getName(), State.Running, mSent, null);
+                }
+                notifyListener();
+
+                long delayNanos = dueNanos() - System.nanoTime();
+                if (delayNanos > 0L) {
+                    mPauseNanos = delayNanos;
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return When the bytes sent so far are due by the upload's rate, as a
+         * {@link System#nanoTime()}
+         */
+        private long dueNanos() {
+            if (mBytesPerSecond <= 0L) {
+                return mStartNanos;
+            }
+            return mStartNanos + TimeUnit.SECONDS.toNanos(mSource.position()) / mBytesPerSecond;
+        }
+
+        /**
+         * Schedule the rest of the upload on the device for when it's due.
+         *
+         * @param delayNanos How long until it's due
+         */
+        private void pause(long delayNanos) {
+            try {
+                mPacer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDevice.schedule(Upload.this, mDropped)) {
+                            fail("Session closed");
+                        }
+                    }
+                }, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                fail("Rollout stopped");
+            }
+        }
+
+        /**
+         * @return null if the device's copy of the file matches, or why it doesn't
+         */
+        @Nullable
+        private String check(@NonNull MpiClient client) {
+            InterfaceType nad = mDevice.getInterfaceType();
+            int total = mSource.capacity();
+            FileDigest digest = client.selectFileWithMd5(nad, mFileName);
+            if (digest != null) {
+                if (digest.getSize() != total || !digest.md5Equals(mMd5)) {
+                    return "MD5 mismatch: " + digest;
+                }
+            } else if (client.selectFile(nad, SelectFileMode.Append, mFileName) != total) {
+                // No File_md5sum, so only the size can be checked
+                return "Size mismatch";
+            }
+            return null;
+        }
+
+        /**
+         * Fail the upload from outside its own tasks. Must not hold mLock.
+         */
+        private void fail(@NonNull String reason) {
+            synchronized (mLock) {
+                finish(State.Failed, mSent, reason);
+            }
+            notifyListener();
+        }
+
+        /**
+         * Record the outcome and let the wave carry on. Call with mLock held, then
+         * {@link #notifyListener()} once it's released.
+         */
+        private void finish(@NonNull State state, int sent, @Nullable String reason) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            mRunning--;
+            if (state == State.Failed) {
+                mFailed++;
+                LOGGER.info("{}: rollout failed: {}", mDevice.getName(), reason);
+            }
+            setStatus(mDevice.getName(), state, sent, reason);
+            mLock.notifyAll();
+        }
+    }
+
+    @NonNull
+    private static byte[] md5(@NonNull ByteBuffer source) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(source.duplicate());
+            return md5.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No MD5", e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of one {@link CommandLane}'s queue metrics, from a {@link CommandScheduler}.
+ */
+public final class LaneStats {
+
+    @NonNull
+    private final CommandLane mLane;
+    private final int mQueued;
+    private final int mMaxQueued;
+    private final long mExecuted;
+    private final long mRunAtYield;
+    private final long mAgedAhead;
+    private final long mTotalWaitNanos;
+    private final long mMaxWaitNanos;
+
+    LaneStats(
+            @NonNull CommandLane lane,
+            int queued,
+            int maxQueued,
+            long executed,
+            long runAtYield,
+            long agedAhead,
+            long totalWaitNanos,
+            long maxWaitNanos
+    ) {
+        mLane = lane;
+        mQueued = queued;
+        mMaxQueued = maxQueued;
+        mExecuted = executed;
+        mRunAtYield = runAtYield;
+        mAgedAhead = agedAhead;
+        mTotalWaitNanos = totalWaitNanos;
+        mMaxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * @return The lane these stats are for
+     */
+    @NonNull
+    public CommandLane getLane() {
+        return mLane;
+    }
+
+    /**
+     * @return The number of tasks currently waiting in the lane
+     */
+    public int getQueued() {
+        return mQueued;
+    }
+
+    /**
+     * @return The deepest the lane's queue has been
+     */
+    public int getMaxQueued() {
+        return mMaxQueued;
+    }
+
+    /**
+     * @return The number of the lane's tasks that have started
+     */
+    public long getExecuted() {
+        return mExecuted;
+    }
+
+    /**
+     * @return How many of the executed tasks ran at a lower lane's yield point
+     */
+    public long getRunAtYield() {
+        return mRunAtYield;
+    }
+
+    /**
+     * @return How many of the executed tasks were aged ahead of a higher lane's task
+     */
+    public long getAgedAhead() {
+        return mAgedAhead;
+    }
+
+    /**
+     * @return The mean time the lane's tasks waited before starting, in microseconds
+     */
+    public long getMeanWaitMicros() {
+        return mExecuted == 0L ? 0L : (mTotalWaitNanos / mExecuted) / 1000L;
+    }
+
+    /**
+     * @return The longest time one of the lane's tasks waited before starting, in microseconds
+     */
+    public long getMaxWaitMicros() {
+        return mMaxWaitNanos / 1000L;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                "%s{queued=%d, maxQueued=%d, executed=%d, runAtYield=%d, agedAhead=%d, "
+                        + "meanWaitUs=%d, maxWaitUs=%d}",
+                mLane, mQueued, mMaxQueued, mExecuted, mRunAtYield, mAgedAhead,
+                getMeanWaitMicros(), getMaxWaitMicros());
+    }
+}
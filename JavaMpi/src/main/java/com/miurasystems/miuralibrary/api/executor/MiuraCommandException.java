@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A Miura command failed, either on the device or in the SDK.
+ *
+ * <p>
+ * The failure an {@link MpiFuture} completes with where the equivalent
+ * {@link MiuraManager} method would call its listener's onError.
+ * </p>
+ */
+public class MiuraCommandException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The error the command reported, e.g. a
+     * {@link com.miurasystems.miuralibrary.enums.TransactionResponse}. null if the command
+     * doesn't report one.
+     */
+    @Nullable
+    private final Enum<?> mError;
+
+    /**
+     * Create a new MiuraCommandException
+     *
+     * @param command The command that failed
+     */
+    public MiuraCommandException(@NonNull String command) {
+        this(command, null);
+    }
+
+    /**
+     * Create a new MiuraCommandException
+     *
+     * @param command The command that failed
+     * @param error   The error the command reported, if any
+     */
+    public MiuraCommandException(@NonNull String command, @Nullable Enum<?> error) {
+        super(error == null ? command + " failed" : command + " failed: " + error);
+        mError = error;
+    }
+
+    /**
+     * @return The error the command reported, e.g. a
+     * {@link com.miurasystems.miuralibrary.enums.TransactionResponse}, or null if it
+     * doesn't report one.
+     */
+    @Nullable
+    public Enum<?> getError() {
+        return mError;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.MpiClientMTAbort;
+import com.miurasystems.miuralibrary.api.executor.MiuraManager.AsyncBooleanRunnable;
+import com.miurasystems.miuralibrary.api.executor.MiuraManager.AsyncRunnable;
+import com.miurasystems.miuralibrary.api.executor.MiuraManager.DeviceType;
+import com.miurasystems.miuralibrary.api.listener.ApiBatteryStatusListener;
+import com.miurasystems.miuralibrary.api.listener.MiuraDefaultListener;
+import com.miurasystems.miuralibrary.api.objects.BatteryData;
+import com.miurasystems.miuralibrary.comms.Connector;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.BinaryUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * A single named Miura device managed by a {@link MiuraDeviceManager}.
+ *
+ * <p>
+ * A MiuraDevice is the multi-device equivalent of {@link MiuraManager}: it owns one
+ * {@link Connector}, the {@link MpiClient} that talks over it and the {@link MpiEvents} that
+ * client signals. Its sessions work the same way as MiuraManager's.
+ * </p>
+ *
+ * <p>
+ * Commands for a device are run in the order they were scheduled, one at a time, but they
+ * don't get a thread of their own. They run on the thread pool shared by all devices in the
+ * {@link MiuraDeviceManager}, which takes one command from each device with work outstanding
+ * in turn. A device with a long queue of commands therefore can't starve the others.
+ * Aborts are run on a separate shared pool, so that they can interrupt a blocked transaction.
+ * </p>
+ *
+ * <p>
+ * As with MiuraManager, listeners are called from the pool threads and events can be
+ * signalled from "any" thread.
+ * </p>
+ */
+public class MiuraDevice {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MiuraDevice.class);
+
+    /** The name the device was registered with */
+    @NonNull
+    private final String mName;
+
+    /** The connector to the device */
+    @NonNull
+    private final Connector mConnector;
+
+    /** MpiEvents object to post this device's events to. */
+    @NonNull
+    private final MpiEvents mMpiEvents;
+
+    /** The MpiClient this device wraps and calls asynchronously */
+    @NonNull
+    private final MpiClient mMpiClient;
+
+    /** Runs this device's commands, in order, on the shared command pool */
+    @NonNull
+    private final DeviceLane mLane;
+
+    /** Runs this device's aborts on the shared abort pool */
+    @NonNull
+    private final DeviceLane mAbortLane;
+
+    /** The device type commands are sent to. */
+    @NonNull
+    private volatile DeviceType mDeviceType;
+
+    /** true between openSession() and closeSession() */
+    private volatile boolean mSessionOpen;
+
+    MiuraDevice(
+            @NonNull String name,
+            @NonNull Connector connector,
+            @NonNull Executor pool,
+            @NonNull Executor abortPool
+    ) {
+        mName = name;
+        mConnector = connector;
+        mMpiEvents = new MpiEvents();
+        mMpiClient = new MpiClientMTAbort(connector, mMpiEvents);
+        mLane = new DeviceLane(name, pool);
+        mAbortLane = new DeviceLane(name, abortPool);
+        mDeviceType = DeviceType.PED;
+        mSessionOpen = false;
+    }
+
+    /**
+     * @return The name the device was registered with
+     */
+    @NonNull
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return The connector to the device
+     */
+    @NonNull
+    public Connector getConnector() {
+        return mConnector;
+    }
+
+    /**
+     * Get this device's MpiEvents object.
+     *
+     * <p>Each device has its own events, so handlers know which device an event came from.
+     *
+     * @return the MpiEvent object.
+     */
+    @NonNull
+    public MpiEvents getMpiEvents() {
+        return mMpiEvents;
+    }
+
+    /**
+     * Get the wrapped MpiClient
+     *
+     * <p>
+     * Note: This is a rather dangerous call. Only use it if you know what you're doing!
+     * Commands sent directly on the client aren't ordered with those scheduled on the device.
+     * </p>
+     *
+     * @return the device's mpi client
+     */
+    @NonNull
+    public MpiClient getMpiClient() {
+        return mMpiClient;
+    }
+
+    /**
+     * @return The device type commands are sent to
+     */
+    @NonNull
+    public DeviceType getDeviceType() {
+        return mDeviceType;
+    }
+
+    /**
+     * Change which device type commands are sent to.
+     *
+     * @param deviceType {@link DeviceType}
+     */
+    public void setDeviceType(@NonNull DeviceType deviceType) {
+        mDeviceType = deviceType;
+    }
+
+    /**
+     * @return InterfaceType Selected type device to communication.
+     */
+    @NonNull
+    InterfaceType getInterfaceType() {
+        switch (mDeviceType) {
+            case PED:
+                return InterfaceType.MPI;
+            case POS:
+                return InterfaceType.RPI;
+            default:
+                return InterfaceType.MPI;
+        }
+    }
+
+    /**
+     * @return true if a session is open
+     */
+    public boolean isSessionOpen() {
+        return mSessionOpen;
+    }
+
+    /**
+     * Opens a new session on the device's Connector.
+     *
+     * <p>Closes any current session first. See {@link MiuraManager#openSession()}.</p>
+     *
+     * <p>
+     * <b>Note: This method is not asynchronous and may block the calling thread.</b>
+     * </p>
+     *
+     * @throws IOException If there was a problem opening the session.
+     */
+    public void openSession() throws IOException {
+        LOGGER.trace("{}: openSession()", mName);
+
+        closeSession();
+        mMpiClient.openSession();
+        mSessionOpen = true;
+    }
+
+    /**
+     * Closes a session on the Connector.
+     *
+     * <p>
+     * Any commands that are scheduled but haven't started are dropped. Those with a listener
+     * have it told of the failure, e.g. {@link MiuraDefaultListener#onError()}, before this
+     * returns.
+     * Will cause a {@link MpiEvents#Disconnected Disconnected} event.
+     * </p>
+     *
+     * <b>Note: This method is not asynchronous and may block the calling thread.</b>
+     */
+    public void closeSession() {
+        LOGGER.trace("{}: closeSession()", mName);
+
+        /* Stop new tasks being scheduled, drop the outstanding ones, then close the client.
+         * Closing the client unblocks any task that's currently waiting on the device.
+         */
+        mSessionOpen = false;
+        mLane.clear();
+        mAbortLane.clear();
+        mMpiClient.closeSession();
+    }
+
+    /**
+     * The given runnable will be scheduled to run in the background on the shared pool.
+     *
+     * <p>
+     * This runnable will be executed after any previously scheduled tasks for this
+     * device have finished. It is dropped if no session is open.
+     * </p>
+     *
+     * @param runnable Task to run
+     */
+    public void executeAsync(@NonNull AsyncRunnable runnable) {
+        schedule(mLane, runnable);
+    }
+
+    /**
+     * Display text on the device.
+     *
+     * @param text     Text to display
+     * @param listener Called on finish, return result of performed action
+     */
+    public void displayText(
+            @NonNull final String text,
+            @Nullable final MiuraDefaultListener listener
+    ) {
+        executeAsyncDefaultListener(mLane, listener, new AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                return client.displayText(getInterfaceType(), text, true, true, true);
+            }
+        });
+    }
+
+    /**
+     * Issues a BATTERY_STATUS command to the device.
+     *
+     * <p>See {@link MiuraManager#getBatteryStatus(ApiBatteryStatusListener)}.</p>
+     *
+     * @param listener Listener to call with results.
+     */
+    public void getBatteryStatus(@NonNull final ApiBatteryStatusListener listener) {
+        schedule(mLane, new AsyncRunnable() {
+            @Override
+            public void runOnAsyncThread(@NonNull MpiClient client) {
+                BatteryData batteryData = client.batteryStatus(getInterfaceType(), false);
+
+                if (batteryData != null) {
+                    int chargingStatusInt = BinaryUtil.ubyteToInt(
+                            batteryData.mChargingStatus.getValue());
+                    listener.onSuccess(chargingStatusInt, batteryData.mBatteryLevel);
+                } else {
+                    listener.onError();
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                listener.onError();
+            }
+        });
+    }
+
+    /**
+     * Abort any contact or contactless transaction processing on the device.
+     *
+     * <p>
+     * Runs on the shared abort pool, so it isn't queued behind the device's other commands.
+     * </p>
+     *
+     * @param listener {@link MiuraDefaultListener} Event listener for the result.
+     */
+    public void abortTransaction(@Nullable final MiuraDefaultListener listener) {
+        LOGGER.debug("{}: abortTransaction", mName);
+
+        executeAsyncDefaultListener(mAbortLane, listener, new AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                return client.abortTransaction(getInterfaceType());
+            }
+        });
+    }
+
+    /**
+     * Schedule a task on one of the device's lanes
+     *
+     * @param lane     The lane to run the task on
+     * @param runnable The task
+     * @return true if the task was scheduled, false if there's no open session
+     */
+    boolean schedule(@NonNull DeviceLane lane, @NonNull final AsyncRunnable runnable) {
+        return schedule(lane, runnable, null);
+    }
+
+    /**
+     * Schedule a task on one of the device's lanes
+     *
+     * @param lane      The lane to run the task on
+     * @param runnable  The task
+     * @param onDropped Run instead of the task if the session closes, or the pool shuts down,
+     *                  before the task starts. Not run if this method returns false.
+     * @return true if the task was scheduled, false if there's no open session
+     */
+    boolean schedule(
+            @NonNull DeviceLane lane,
+            @NonNull final AsyncRunnable runnable,
+            @Nullable Runnable onDropped
+    ) {
+        if (!mSessionOpen) {
+            return false;
+        }
+
+        final MpiClient mpiClient = mMpiClient;
+        return lane.execute(new Runnable() {
+            @Override
+            public void run() {
+                runnable.runOnAsyncThread(mpiClient);
+            }
+        }, onDropped);
+    }
+
+    /**
+     * Schedule a task on the device's command lane
+     *
+     * @param runnable The task
+     * @return true if the task was scheduled, false if there's no open session
+     */
+    boolean schedule(@NonNull AsyncRunnable runnable) {
+        return schedule(mLane, runnable, null);
+    }
+
+    /**
+     * Schedule a task on the device's command lane
+     *
+     * @param runnable  The task
+     * @param onDropped See {@link #schedule(DeviceLane, AsyncRunnable, Runnable)}
+     * @return true if the task was scheduled, false if there's no open session
+     */
+    boolean schedule(@NonNull AsyncRunnable runnable, @Nullable Runnable onDropped) {
+        return schedule(mLane, runnable, onDropped);
+    }
+
+    /**
+     * Runs a given task on the given lane and calls the MiuraDefaultListener afterwards
+     *
+     * @param lane     The lane to run the task on
+     * @param listener Default listener
+     * @param task     Task to run
+     */
+    private void executeAsyncDefaultListener(
+            @NonNull DeviceLane lane,
+            @Nullable final MiuraDefaultListener listener,
+            @NonNull final AsyncBooleanRunnable task
+    ) {
+        schedule(lane, new AsyncRunnable() {
+            @Override
+            public void runOnAsyncThread(@NonNull MpiClient client) {
+                boolean result = task.runOnAsyncThread(client);
+                if (listener == null) {
+                    return;
+                }
+                if (result) {
+                    listener.onSuccess();
+                } else {
+                    listener.onError();
+                }
+            }
+        }, listener == null ? null : new Runnable() {
+            @Override
+            public void run() {
+                listener.onError();
+            }
+        });
+    }
+}
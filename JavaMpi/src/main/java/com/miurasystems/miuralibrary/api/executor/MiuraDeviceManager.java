@@ -0,0 +1,393 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.api.executor.MiuraManager.AsyncRunnable;
+import com.miurasystems.miuralibrary.api.objects.BatteryData;
+import com.miurasystems.miuralibrary.comms.Connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manages many Miura devices from one process.
+ *
+ * <p>
+ * {@link MiuraManager} is a singleton that drives a single Connector with its own pair of
+ * threads. MiuraDeviceManager instead keeps a registry of named {@link MiuraDevice}s, each with
+ * its own Connector, session and {@link com.miurasystems.miuralibrary.events.MpiEvents}.
+ * </p>
+ *
+ * <p>
+ * All of the devices share two thread pools, one for commands and one for aborts. Each
+ * device's commands still run in order, one at a time. By default the pools grow to one
+ * thread per busy device, so a device blocked on a slow command doesn't hold up the others.
+ * A manager can instead be given a fixed number of threads, in which case the pool takes one
+ * command from each device in turn, so a busy device can't starve the others.
+ * See {@link MiuraDevice}.
+ * </p>
+ *
+ * <p>
+ * Bulk operations, such as {@link #displayTextOnAll}, run a command on every registered device
+ * concurrently and report all of the results together once the last device has finished.
+ * </p>
+ *
+ * <p>
+ * The pool threads are not daemon threads. Call {@link #shutdown()} when finished with the
+ * manager.
+ * </p>
+ */
+public class MiuraDeviceManager {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MiuraDeviceManager.class);
+
+    /** Creates threads for {@link #mPool} */
+    @NonNull
+    private static final ThreadFactory POOL_THREAD_FACTORY =
+            new MiuraManagerThreadFactory("DevicePool");
+
+    /** Creates threads for {@link #mAbortPool} */
+    @NonNull
+    private static final ThreadFactory ABORT_THREAD_FACTORY =
+            new MiuraManagerThreadFactory("DeviceAbort");
+
+    /** The pool all devices' commands run on */
+    @NonNull
+    private final ExecutorService mPool;
+
+    /** The pool all devices' aborts run on */
+    @NonNull
+    private final ExecutorService mAbortPool;
+
+    /** The devices, in the order they were added. Guarded by this. */
+    @NonNull
+    private final Map<String, MiuraDevice> mDevices = new LinkedHashMap<>();
+
+    /**
+     * Create a device manager whose pools have a thread for each device with work to do.
+     *
+     * <p>Idle threads are stopped after a minute.</p>
+     */
+    public MiuraDeviceManager() {
+        mPool = Executors.newCachedThreadPool(POOL_THREAD_FACTORY);
+        mAbortPool = Executors.newCachedThreadPool(ABORT_THREAD_FACTORY);
+    }
+
+    /**
+     * Create a device manager with a fixed number of threads.
+     *
+     * <p>
+     * Devices take turns on the threads, so with fewer threads than devices a device's
+     * command can wait for other devices' commands to finish.
+     * </p>
+     *
+     * @param threads The most commands that can run at once, across all devices.
+     *                The same number of threads are used for aborts.
+     */
+    public MiuraDeviceManager(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        mPool = Executors.newFixedThreadPool(threads, POOL_THREAD_FACTORY);
+        mAbortPool = Executors.newFixedThreadPool(threads, ABORT_THREAD_FACTORY);
+    }
+
+    /**
+     * Register a device.
+     *
+     * <p>The device has no open session. See {@link MiuraDevice#openSession()}.</p>
+     *
+     * @param name      A name for the device, unique to this manager, e.g. "lane-3"
+     * @param connector The connector to the device. The device now <b>exclusively</b>
+     *                  "owns" this Connector.
+     * @return The new device
+     * @throws IllegalArgumentException If a device with the same name is already registered
+     */
+    @NonNull
+    public synchronized MiuraDevice addDevice(
+            @NonNull String name,
+            @NonNull Connector connector
+    ) {
+        if (mDevices.containsKey(name)) {
+            throw new IllegalArgumentException("Device already registered: " + name);
+        }
+        MiuraDevice device = new MiuraDevice(name, connector, mPool, mAbortPool);
+        mDevices.put(name, device);
+        return device;
+    }
+
+    /**
+     * Unregister a device, closing its session.
+     *
+     * <b>Note: This method is not asynchronous and may block the calling thread.</b>
+     *
+     * @param name The device's name
+     * @return The device that was removed, or null if there wasn't one with that name
+     */
+    @Nullable
+    public MiuraDevice removeDevice(@NonNull String name) {
+        MiuraDevice device;
+        synchronized (this) {
+            device = mDevices.remove(name);
+        }
+        if (device != null) {
+            device.closeSession();
+        }
+        return device;
+    }
+
+    /**
+     * @param name The device's name
+     * @return The device, or null if there isn't one with that name
+     */
+    @Nullable
+    public synchronized MiuraDevice getDevice(@NonNull String name) {
+        return mDevices.get(name);
+    }
+
+    /**
+     * @return All registered devices, in the order they were added
+     */
+    @NonNull
+    public synchronized List<MiuraDevice> getDevices() {
+        return new ArrayList<>(mDevices.values());
+    }
+
+    /**
+     * Open a session on every registered device, concurrently.
+     *
+     * <p>
+     * <b>Note: This method is not asynchronous.</b> It blocks until all devices have tried to
+     * open a session, so must not be called from a pool thread.
+     * </p>
+     *
+     * @return The devices that failed to open a session, and why. Empty if all opened.
+     * @throws InterruptedException If interrupted whilst waiting for the devices.
+     */
+    @NonNull
+    public Map<String, IOException> openSessions() throws InterruptedException {
+        List<MiuraDevice> devices = getDevices();
+        final Map<String, IOException> failures = new LinkedHashMap<>();
+        final CountDownLatch latch = new CountDownLatch(devices.size());
+
+        for (final MiuraDevice device : devices) {
+            mPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        device.openSession();
+                    } catch (IOException e) {
+                        LOGGER.info("{}: openSession failed", device.getName(), e);
+                        synchronized (failures) {
+                            failures.put(device.getName(), e);
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        latch.await();
+        synchronized (failures) {
+            return new LinkedHashMap<>(failures);
+        }
+    }
+
+    /**
+     * Close the session on every registered device.
+     *
+     * <b>Note: This method is not asynchronous and may block the calling thread.</b>
+     */
+    public void closeSessions() {
+        for (MiuraDevice device : getDevices()) {
+            device.closeSession();
+        }
+    }
+
+    /**
+     * Close all sessions and stop the pools.
+     *
+     * <p>The manager can't be used afterwards.</p>
+     */
+    public void shutdown() {
+        mPool.shutdown();
+        mAbortPool.shutdown();
+        closeSessions();
+        mPool.shutdownNow();
+        mAbortPool.shutdownNow();
+    }
+
+    /**
+     * Run a task on every registered device, concurrently.
+     *
+     * <p>
+     * The task is scheduled on each device in the same way as
+     * {@link MiuraDevice#executeAsync(AsyncRunnable)}, so runs after any commands already
+     * scheduled on that device. Once it has run on every device the listener is given all of
+     * the results, keyed by device name in the order the devices were added.
+     * </p>
+     *
+     * <p>
+     * Devices without an open session don't run the task and their result is null. Nor do
+     * devices whose session closes before the task starts, in which case the listener may be
+     * called from the thread that closed it.
+     * If no device has an open session the listener is called on the calling thread.
+     * </p>
+     *
+     * @param task     The task to run on each device
+     * @param listener Called once with all of the results
+     * @param <T>      The type of the task's result
+     */
+    public <T> void forEachDevice(
+            @NonNull final DeviceTask<T> task,
+            @NonNull final DeviceResultsListener<T> listener
+    ) {
+        List<MiuraDevice> devices = getDevices();
+        final Map<String, T> results = new LinkedHashMap<>();
+        for (MiuraDevice device : devices) {
+            results.put(device.getName(), null);
+        }
+        final AtomicInteger remaining = new AtomicInteger(devices.size());
+        if (devices.isEmpty()) {
+            listener.onComplete(Collections.unmodifiableMap(results));
+            return;
+        }
+
+        for (final MiuraDevice device : devices) {
+            boolean scheduled = device.schedule(new AsyncRunnable() {
+                @Override
+                public void runOnAsyncThread(@NonNull MpiClient client) {
+                    T result = null;
+                    try {
+                        result = task.runOnAsyncThread(device, client);
+                    } finally {
+                        onDeviceComplete(device, result, results, remaining, listener);
+                    }
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    onDeviceComplete(device, null, results, remaining, listener);
+                }
+            });
+            if (!scheduled) {
+                onDeviceComplete(device, null, results, remaining, listener);
+            }
+        }
+    }
+
+    /**
+     * Display text on every registered device, concurrently.
+     *
+     * @param text     Text to display
+     * @param listener Given true for each device that displayed the text, false for those
+     *                 that failed and null for those without an open session.
+     */
+    public void displayTextOnAll(
+            @NonNull final String text,
+            @NonNull DeviceResultsListener<Boolean> listener
+    ) {
+        forEachDevice(new DeviceTask<Boolean>() {
+            @Override
+            public Boolean runOnAsyncThread(
+                    @NonNull MiuraDevice device,
+                    @NonNull MpiClient client
+            ) {
+                return client.displayText(device.getInterfaceType(), text, true, true, true);
+            }
+        }, listener);
+    }
+
+    /**
+     * Query the battery of every registered device, concurrently.
+     *
+     * @param listener Given each device's battery data, or null if the query failed or the
+     *                 device has no open session.
+     */
+    public void getBatteryStatusOfAll(@NonNull DeviceResultsListener<BatteryData> listener) {
+        forEachDevice(new DeviceTask<BatteryData>() {
+            @Nullable
+            @Override
+            public BatteryData runOnAsyncThread(
+                    @NonNull MiuraDevice device,
+                    @NonNull MpiClient client
+            ) {
+                return client.batteryStatus(device.getInterfaceType(), false);
+            }
+        }, listener);
+    }
+
+    /**
+     * Record one device's result and call the listener if it was the last.
+     */
+    private static <T> void onDeviceComplete(
+            @NonNull MiuraDevice device,
+            @Nullable T result,
+            @NonNull Map<String, T> results,
+            @NonNull AtomicInteger remaining,
+            @NonNull DeviceResultsListener<T> listener
+    ) {
+        synchronized (results) {
+            results.put(device.getName(), result);
+        }
+        if (remaining.decrementAndGet() == 0) {
+            Map<String, T> all;
+            synchronized (results) {
+                all = Collections.unmodifiableMap(new LinkedHashMap<>(results));
+            }
+            listener.onComplete(all);
+        }
+    }
+
+    /**
+     * A task run on each device by {@link #forEachDevice}.
+     *
+     * @param <T> The type of the task's result
+     */
+    public interface DeviceTask<T> {
+        /**
+         * The task to run.
+         *
+         * @param device The device the task is running for
+         * @param client The commands should be executed on this client
+         * @return The device's result
+         */
+        @Nullable
+        T runOnAsyncThread(@NonNull MiuraDevice device, @NonNull MpiClient client);
+    }
+
+    /**
+     * Receives the results of a bulk operation.
+     *
+     * @param <T> The type of each device's result
+     */
+    public interface DeviceResultsListener<T> {
+        /**
+         * Called once every device has finished.
+         *
+         * <p>Called from the pool thread that ran the last device's task.</p>
+         *
+         * @param results Each device's result, keyed by device name
+         */
+        void onComplete(@NonNull Map<String, T> results);
+    }
+}
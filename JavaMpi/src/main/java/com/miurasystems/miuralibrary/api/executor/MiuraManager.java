@@ -9,14 +9,16 @@ import static com.miurasystems.miuralibrary.MpiClient.GetNumericDataError;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.miurasystems.miuralibrary.CancellationToken;
 import com.miurasystems.miuralibrary.MpiClient;
 import com.miurasystems.miuralibrary.MpiClientMTAbort;
-import com.miurasystems.miuralibrary.Result;
+import com.miurasystems.miuralibrary.ResponseCache;
 import com.miurasystems.miuralibrary.api.listener.APITransferFileListener;
 import com.miurasystems.miuralibrary.api.listener.ApiBatteryStatusListener;
 import com.miurasystems.miuralibrary.api.listener.ApiBlueToothInfoListener;
 import com.miurasystems.miuralibrary.api.listener.ApiCashDrawerListener;
 import com.miurasystems.miuralibrary.api.listener.ApiContinueTransactionListener;
+import com.miurasystems.miuralibrary.api.listener.ApiDeviceSnapshotListener;
 import com.miurasystems.miuralibrary.api.listener.ApiGetConfigListener;
 import com.miurasystems.miuralibrary.api.listener.ApiGetDeviceFileListener;
 import com.miurasystems.miuralibrary.api.listener.ApiGetDeviceInfoListener;
@@ -28,33 +30,30 @@ import com.miurasystems.miuralibrary.api.listener.ApiP2PEImportListener;
 import com.miurasystems.miuralibrary.api.listener.ApiP2PEStatusListener;
 import com.miurasystems.miuralibrary.api.listener.ApiPeripheralTypeListener;
 import com.miurasystems.miuralibrary.api.listener.ApiStartTransactionListener;
+import com.miurasystems.miuralibrary.api.listener.ApiStreamDeviceFileListener;
 import com.miurasystems.miuralibrary.api.listener.MiuraDefaultListener;
 import com.miurasystems.miuralibrary.api.objects.BatteryData;
 import com.miurasystems.miuralibrary.api.objects.Capability;
+import com.miurasystems.miuralibrary.api.objects.DeviceSnapshot;
 import com.miurasystems.miuralibrary.api.objects.P2PEStatus;
 import com.miurasystems.miuralibrary.api.objects.SoftwareInfo;
+import com.miurasystems.miuralibrary.api.objects.TransferStats;
 import com.miurasystems.miuralibrary.api.utils.GetDeviceFile;
 import com.miurasystems.miuralibrary.api.utils.SerialPortProperties;
 import com.miurasystems.miuralibrary.api.utils.StreamBinaryFile;
 import com.miurasystems.miuralibrary.comms.Connector;
 import com.miurasystems.miuralibrary.enums.BacklightSettings;
-import com.miurasystems.miuralibrary.enums.CashDrawer;
 import com.miurasystems.miuralibrary.enums.ChargingStatus;
 import com.miurasystems.miuralibrary.enums.InterfaceType;
 import com.miurasystems.miuralibrary.enums.OnlinePINError;
 import com.miurasystems.miuralibrary.enums.RKIError;
-import com.miurasystems.miuralibrary.enums.ResetDeviceType;
-import com.miurasystems.miuralibrary.enums.SelectFileMode;
 import com.miurasystems.miuralibrary.enums.StatusSettings;
-import com.miurasystems.miuralibrary.enums.SystemLogMode;
 import com.miurasystems.miuralibrary.enums.TransactionResponse;
 import com.miurasystems.miuralibrary.enums.TransactionType;
 import com.miurasystems.miuralibrary.events.MpiEvents;
 import com.miurasystems.miuralibrary.tlv.BinaryUtil;
-import com.miurasystems.miuralibrary.tlv.Description;
 import com.miurasystems.miuralibrary.tlv.TLVObject;
 import com.miurasystems.miuralibrary.tlv.Track2Data;
-import com.miurasystems.miuralibrary.update.FileUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,13 +61,15 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The primary Miura SDK class apps should use to interact with a Miura devices.
@@ -104,14 +105,25 @@ import java.util.concurrent.atomic.AtomicInteger;
  * </p>
  *
  * <p>
- * MiuraManager only uses a single thread to run all its command-sending methods on, and it
- * will run them in the order the methods were called.
+ * MiuraManager uses a single thread to run its MPI command-sending methods on.
  * It will only send command N after command N-1 has been received.
+ * Each method is scheduled in a priority {@link CommandLane}: transactions first, then
+ * interactive commands, then status polling, then bulk file transfers. Methods in the same
+ * lane run in the order they were called, but e.g. a {@link #startTransaction} will be run
+ * before any battery polls queued ahead of it, and a {@link #getSystemLog} download pauses
+ * between chunks to let it through. See {@link CommandScheduler}.
  * The {@link #abortTransaction(MiuraDefaultListener)} command will use a second thread to
  * ensure it can interrupt a blocked {@link #startTransaction}.
  * </p>
  *
  * <p>
+ * Commands sent to the RPI, e.g. printing, the cash drawer and the serial port, run on a third
+ * thread with its own lanes. The device and {@link MpiClientMTAbort} sequence each
+ * {@link InterfaceType} separately, so a long {@link #printText} on a POS doesn't hold up a
+ * {@link #displayText} on the PED. Commands to the same InterfaceType still run one at a time.
+ * </p>
+ *
+ * <p>
  * The results of the asynchronous operations are returned via <i>listeners</i>. All of the
  * listeners follow the same basic model: If the call worked, onSuccess is called. If they failed,
  * onError is called. See the classes in the package
@@ -119,6 +131,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  * </p>
  *
  * <p>
+ * Every operation is also available through {@link #getFutures()}, which returns an
+ * {@link MpiFuture} instead of taking a listener. Futures can be given a deadline, cancelled,
+ * and combined so independent queries can be waited for as one batch.
+ * </p>
+ *
+ * <p>
  * MiuraManager will invoke all listener callbacks <b>from threads that the SDK has created</b>.
  * The listeners provided by the command methods will be running on the async thread and events
  * can be running on "any" thread. The integrating app should take the appropriate synchronisation
@@ -150,8 +168,9 @@ import java.util.concurrent.atomic.AtomicInteger;
  * to read the Connector's InputStream.
  * MiuraManager spawns this new thread each time openSession() is called.
  * The Event notification callback <b>can happen from either the InputStream reader thread or
- * MiuraManager's async thread</b>. Event handlers need to be aware of this.
- * Command listeners will be invoked by MiuraManager's async thread.
+ * MiuraManager's async threads</b>. Event handlers need to be aware of this.
+ * Command listeners will be invoked by MiuraManager's async threads. The listeners of MPI and
+ * RPI commands can be invoked at the same time.
  * </p>
  *
  * <p>
@@ -221,6 +240,11 @@ public class MiuraManager {
     private static final ThreadFactory ABORT_THREAD_FACTORY =
             new MiuraManagerThreadFactory("AbortThread");
 
+    /** Creates threads for {@link #mRpiExecutor} */
+    @NonNull
+    private static final ThreadFactory RPI_THREAD_FACTORY =
+            new MiuraManagerThreadFactory("RpiThread");
+
     /** MiuraManager's singleton instance. */
     @Nullable
     private static MiuraManager sInstance = null;
@@ -250,7 +274,7 @@ public class MiuraManager {
      * </p>
      */
     @Nullable
-    private ExecutorService mExecutor;
+    private CommandScheduler mExecutor;
 
     /**
      * The executor to run the abort tasks on.
@@ -259,17 +283,37 @@ public class MiuraManager {
      * </p>
      */
     @Nullable
-    private ExecutorService mAbortExecutor;
+    private CommandScheduler mAbortExecutor;
+
+    /**
+     * The executor to run the RPI tasks on, so they don't wait for MPI tasks.
+     * <p> Will be null until {@link #openSession()} is called. And will point to a different
+     * executor each time a new session is opened.
+     * </p>
+     */
+    @Nullable
+    private CommandScheduler mRpiExecutor;
 
     @Nullable
     private Connector mConnector;
 
+    /** The future-returning view of this MiuraManager */
+    @NonNull
+    private final MiuraManagerFutures mFutures;
+
+    /** Answers repeated queries, e.g. software info, for every MpiClient MiuraManager makes */
+    @NonNull
+    private final ResponseCache mResponseCache;
+
     private MiuraManager() {
         mDeviceType = DeviceType.PED;
         mMpiEvents = new MpiEvents();
         mMpiClient = null;
         mExecutor = null;
         mAbortExecutor = null;
+        mRpiExecutor = null;
+        mFutures = new MiuraManagerFutures(this);
+        mResponseCache = new ResponseCache();
     }
 
     /**
@@ -314,6 +358,7 @@ public class MiuraManager {
         // noinspection VariableNotUsedInsideIf
         mConnector = connector;
         mMpiClient = new MpiClientMTAbort(mConnector, mMpiEvents);
+        mMpiClient.setResponseCache(mResponseCache);
     }
 
     /**
@@ -353,9 +398,11 @@ public class MiuraManager {
         //noinspection VariableNotUsedInsideIf
         if (mExecutor != null) throw new IOException("mExecutor != null? ");
         if (mAbortExecutor != null) throw new IOException("mAbortExecutor != null? ");
+        if (mRpiExecutor != null) throw new IOException("mRpiExecutor != null? ");
 
-        mExecutor = Executors.newSingleThreadExecutor(ASYNC_THREAD_FACTORY);
-        mAbortExecutor = Executors.newSingleThreadExecutor(ABORT_THREAD_FACTORY);
+        mExecutor = new CommandScheduler(ASYNC_THREAD_FACTORY);
+        mAbortExecutor = new CommandScheduler(ABORT_THREAD_FACTORY);
+        mRpiExecutor = new CommandScheduler(RPI_THREAD_FACTORY);
         mMpiClient.openSession();
     }
 
@@ -383,6 +430,10 @@ public class MiuraManager {
             /* Stop any new tasks from being added */
             mAbortExecutor.shutdown();
         }
+        if (mRpiExecutor != null) {
+            /* Stop any new tasks from being added */
+            mRpiExecutor.shutdown();
+        }
 
         if (mMpiClient != null) {
             //if (mMpiClient.isOpen()) {
@@ -396,13 +447,30 @@ public class MiuraManager {
              * (If we wanted to keep the same executor we'd need a bunch of logic to track our
              *  own list of tasks etc)
              */
-            mExecutor.shutdownNow();
+            abandonFutureCalls(mExecutor.shutdownNow());
             mExecutor = null;
         }
         if (mAbortExecutor != null) {
-            mAbortExecutor.shutdownNow();
+            abandonFutureCalls(mAbortExecutor.shutdownNow());
             mAbortExecutor = null;
         }
+        if (mRpiExecutor != null) {
+            abandonFutureCalls(mRpiExecutor.shutdownNow());
+            mRpiExecutor = null;
+        }
+    }
+
+    /**
+     * Fail the futures of any future calls that were dropped from an executor's queue
+     *
+     * @param dropped The tasks that never ran
+     */
+    private static void abandonFutureCalls(@NonNull List<Runnable> dropped) {
+        for (Runnable runnable : dropped) {
+            if (runnable instanceof FutureCallRunnable) {
+                ((FutureCallRunnable<?>) runnable).abandon();
+            }
+        }
     }
 
     /**
@@ -456,6 +524,23 @@ public class MiuraManager {
         return mMpiClient;
     }
 
+    /**
+     * Get the cache that answers repeated queries.
+     *
+     * <p>
+     * Screens that load the device info, software info, configuration, P2PE status etc. each
+     * time they're shown get it from here rather than the device. Use
+     * {@link ResponseCache#setEnabled(boolean)} to always ask the device, or
+     * {@link ResponseCache#invalidateAll()} to refresh.
+     * </p>
+     *
+     * @return MiuraManager's ResponseCache
+     */
+    @NonNull
+    public ResponseCache getResponseCache() {
+        return mResponseCache;
+    }
+
     /**
      * Get MiuraManager's current device type.
      *
@@ -480,11 +565,66 @@ public class MiuraManager {
         this.mDeviceType = deviceType;
     }
 
+    /**
+     * Get the future-returning view of MiuraManager.
+     *
+     * <p>
+     * Each method of the returned object is equivalent to the MiuraManager method of the same
+     * name, but returns an {@link MpiFuture} rather than taking a listener.
+     * </p>
+     *
+     * @return The futures API
+     */
+    @NonNull
+    public MiuraManagerFutures getFutures() {
+        return mFutures;
+    }
+
+    /**
+     * Get the queue metrics of each of the MPI async thread's priority lanes.
+     *
+     * @return Each lane's metrics for the current session. Empty if no session is open.
+     */
+    @NonNull
+    public Map<CommandLane, LaneStats> getLaneStats() {
+        return getLaneStats(InterfaceType.MPI);
+    }
+
+    /**
+     * Get the queue metrics of the priority lanes of the thread that runs commands for the
+     * given InterfaceType.
+     *
+     * @param interfaceType The InterfaceType whose thread to report on
+     * @return Each lane's metrics for the current session. Empty if no session is open.
+     */
+    @NonNull
+    public Map<CommandLane, LaneStats> getLaneStats(@NonNull InterfaceType interfaceType) {
+        Map<CommandLane, LaneStats> stats = new EnumMap<>(CommandLane.class);
+        CommandScheduler executor = executorFor(interfaceType);
+        if (executor != null) {
+            for (CommandLane lane : CommandLane.values()) {
+                stats.put(lane, executor.getStats(lane));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Get the executor that runs commands for the given InterfaceType.
+     *
+     * @param interfaceType The InterfaceType the commands are sent to
+     * @return The executor, or null if no session is open
+     */
+    @Nullable
+    private CommandScheduler executorFor(@NonNull InterfaceType interfaceType) {
+        return interfaceType == InterfaceType.RPI ? mRpiExecutor : mExecutor;
+    }
+
     /**
      * @return InterfaceType Selected type device to communication.
      */
     @NonNull
-    private InterfaceType getInterfaceType() {
+    InterfaceType getInterfaceType() {
         switch (mDeviceType) {
             case PED:
                 return InterfaceType.MPI;
@@ -519,21 +659,19 @@ public class MiuraManager {
      * @param listener Listener to call with results.
      */
     public void getBatteryStatus(@NonNull final ApiBatteryStatusListener listener) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.getBatteryStatus(new CommandListener<BatteryData>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                BatteryData batteryData = client.batteryStatus(getInterfaceType(), false);
-
-                if (batteryData != null) {
-                    ChargingStatus chargingStatus = batteryData.mChargingStatus;
-                    int chargingStatusInt = BinaryUtil.ubyteToInt(chargingStatus.getValue());
-                    listener.onSuccess(chargingStatusInt, batteryData.mBatteryLevel);
-                } else {
-                    listener.onError();
-                }
+            public void onSuccess(@Nullable BatteryData batteryData) {
+                ChargingStatus chargingStatus = batteryData.mChargingStatus;
+                int chargingStatusInt = BinaryUtil.ubyteToInt(chargingStatus.getValue());
+                listener.onSuccess(chargingStatusInt, batteryData.mBatteryLevel);
             }
-        });
 
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
+            }
+        });
     }
 
     /**
@@ -557,16 +695,15 @@ public class MiuraManager {
      * @param listener Listener to call with results.
      */
     public void getSoftwareInfo(@NonNull final ApiGetSoftwareInfoListener listener) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.getSoftwareInfo(new CommandListener<SoftwareInfo>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                SoftwareInfo softwareInfo =
-                        client.resetDevice(getInterfaceType(), ResetDeviceType.Soft_Reset);
-                if (softwareInfo != null) {
-                    listener.onSuccess(softwareInfo);
-                } else {
-                    listener.onError();
-                }
+            public void onSuccess(@Nullable SoftwareInfo softwareInfo) {
+                listener.onSuccess(softwareInfo);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
             }
         });
     }
@@ -578,15 +715,15 @@ public class MiuraManager {
      *                 files
      */
     public void getPEDConfig(@NonNull final ApiGetConfigListener listener) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.getPEDConfig(new CommandListener<HashMap<String, String>>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                HashMap<String, String> versionMap = client.getConfiguration();
-                if (versionMap != null) {
-                    listener.onSuccess(versionMap);
-                } else {
-                    listener.onError();
-                }
+            public void onSuccess(@Nullable HashMap<String, String> versionMap) {
+                listener.onSuccess(versionMap);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
             }
         });
     }
@@ -599,12 +736,7 @@ public class MiuraManager {
             @NonNull final String text,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.displayText(getInterfaceType(), text, true, true, true);
-            }
-        });
+        mFutures.displayText(text, defaultListener(listener));
     }
 
     /**
@@ -623,13 +755,7 @@ public class MiuraManager {
             @NonNull final BacklightSettings backlightSettings,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.keyboardStatus(
-                        getInterfaceType(), statusSettings, backlightSettings);
-            }
-        });
+        mFutures.keyboardStatus(statusSettings, backlightSettings, defaultListener(listener));
     }
 
 
@@ -643,27 +769,60 @@ public class MiuraManager {
             @NonNull final String fileName,
             @NonNull final ApiGetDeviceFileListener listener
     ) {
-        executeAsync(new AsyncRunnable() {
+        GetDeviceFile.ProgressCallback progress = new GetDeviceFile.ProgressCallback() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                byte[] deviceFileBytes = GetDeviceFile.getDeviceFile(
-                        client, getInterfaceType(), fileName,
-                        new GetDeviceFile.ProgressCallback() {
-                            @Override
-                            public void onProgress(float fraction) {
-                                listener.onProgress(fraction);
-                            }
-                        });
-                if (deviceFileBytes != null) {
-                    listener.onSuccess(deviceFileBytes);
-                } else {
-                    listener.onError();
-                }
+            public void onProgress(float fraction) {
+                listener.onProgress(fraction);
+            }
+        };
+        mFutures.downloadBinaryWithFileName(fileName, progress, new CommandListener<byte[]>() {
+            @Override
+            public void onSuccess(@Nullable byte[] deviceFileBytes) {
+                listener.onSuccess(deviceFileBytes);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
             }
         });
     }
 
 
+    /**
+     * Download a Binary file from the PED straight to a stream, without holding the whole
+     * file in memory.
+     *
+     * @param fileName The file to download
+     * @param out      Where to write the file. Neither flushed nor closed.
+     * @param listener {@link ApiStreamDeviceFileListener} Event listener for the download
+     */
+    public void downloadBinaryWithFileName(
+            @NonNull final String fileName,
+            @NonNull final OutputStream out,
+            @NonNull final ApiStreamDeviceFileListener listener
+    ) {
+        GetDeviceFile.ProgressCallback progress = new GetDeviceFile.ProgressCallback() {
+            @Override
+            public void onProgress(float fraction) {
+                listener.onProgress(fraction);
+            }
+        };
+        mFutures.downloadBinaryWithFileName(fileName, out, progress,
+                new CommandListener<TransferStats>() {
+                    @Override
+                    public void onSuccess(@Nullable TransferStats stats) {
+                        listener.onSuccess(stats);
+                    }
+
+                    @Override
+                    void onCommandError(@Nullable Enum<?> error) {
+                        listener.onError();
+                    }
+                });
+    }
+
+
     /**
      * Method to transfer a file or input stream to the connected device.
      * The caller needs to specify the name of the file which the device will interpret.
@@ -681,25 +840,24 @@ public class MiuraManager {
             @NonNull final InputStream fileStream,
             @NonNull final APITransferFileListener listener
     ) {
-        executeAsync(new AsyncRunnable() {
+        StreamBinaryFile.ProgressCallback progress = new StreamBinaryFile.ProgressCallback() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                boolean ok = StreamBinaryFile.streamBinaryFile(
-                        client,
-                        getInterfaceType(), fileName, fileStream,
-                        new StreamBinaryFile.ProgressCallback() {
-                            @Override
-                            public void onProgress(int bytesTransferred) {
-                                listener.onProgress(bytesTransferred);
-                            }
-                        });
-                if (ok) {
-                    listener.onSuccess();
-                } else {
-                    listener.onError();
-                }
+            public void onProgress(int bytesTransferred) {
+                listener.onProgress(bytesTransferred);
             }
-        });
+        };
+        mFutures.transferFileToDevice(fileName, fileStream, progress,
+                new CommandListener<Void>() {
+                    @Override
+                    public void onSuccess(@Nullable Void result) {
+                        listener.onSuccess();
+                    }
+
+                    @Override
+                    void onCommandError(@Nullable Enum<?> error) {
+                        listener.onError();
+                    }
+                });
     }
 
     /**
@@ -707,16 +865,20 @@ public class MiuraManager {
      * <p>
      * Two steps method: First selecting file and second upload it.
      * </p>
+     * <p>
+     * The file is streamed straight from disk a chunk at a time, so it needn't fit in memory.
+     * See {@link StreamBinaryFile#streamBinaryFile(MpiClient, InterfaceType, String, File,
+     * StreamBinaryFile.ProgressCallback)}.
+     * </p>
      *
-     * @param file     @link File} Selected file
+     * @param file     {@link File} Selected file. Uploaded with the same name.
      * @param listener {@link MiuraDefaultListener} Listener for action result
      */
     public void uploadBinary(
-            @NonNull File file,
+            @NonNull final File file,
             @Nullable final MiuraDefaultListener listener
     ) {
-        byte[] data = FileUtil.fileToByte(file.getName(), 0, (int) file.length());
-        uploadBinary(data, file.getName(), listener);
+        mFutures.uploadBinary(file, defaultListener(listener));
     }
 
     /**
@@ -734,19 +896,7 @@ public class MiuraManager {
             @NonNull final String fileName,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                int pedFileSize = client.selectFile(
-                        getInterfaceType(), SelectFileMode.Truncate, fileName);
-                //noinspection SimplifiableIfStatement
-                if (pedFileSize < 0) {
-                    return false;
-                }
-                return client.streamBinary(
-                        getInterfaceType(), false, data, 0, data.length, 100);
-            }
-        });
+        mFutures.uploadBinary(data, fileName, defaultListener(listener));
     }
 
     /**
@@ -755,14 +905,7 @@ public class MiuraManager {
      * @param listener {@link MiuraDefaultListener} Result listener
      */
     public void hardReset(@Nullable final MiuraDefaultListener listener) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                SoftwareInfo softwareInfo = client.resetDevice(getInterfaceType(),
-                        ResetDeviceType.Hard_Reset);
-                return softwareInfo != null;
-            }
-        });
+        mFutures.hardReset(defaultListener(listener));
     }
 
     /**
@@ -776,14 +919,7 @@ public class MiuraManager {
      * @param listener {@link MiuraDefaultListener} Result listener
      */
     public void clearDeviceMemory(@Nullable final MiuraDefaultListener listener) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                SoftwareInfo softwareInfo = client.resetDevice(getInterfaceType(),
-                        ResetDeviceType.Clear_Files);
-                return softwareInfo != null;
-            }
-        });
+        mFutures.clearDeviceMemory(defaultListener(listener));
     }
 
     /**
@@ -792,15 +928,15 @@ public class MiuraManager {
      * @param listener {@link ApiGetSystemClockListener} Event listener for result with Device date
      */
     public void getSystemClock(@NonNull final ApiGetSystemClockListener listener) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.getSystemClock(new CommandListener<Date>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                Date dateTime = client.systemClock(getInterfaceType());
-                if (dateTime != null) {
-                    listener.onSuccess(dateTime);
-                } else {
-                    listener.onError();
-                }
+            public void onSuccess(@Nullable Date dateTime) {
+                listener.onSuccess(dateTime);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
             }
         });
     }
@@ -812,33 +948,20 @@ public class MiuraManager {
      *                 content
      */
     public void getSystemLog(@NonNull final ApiGetDeviceFileListener listener) {
-        executeAsync(new AsyncRunnable() {
+        GetDeviceFile.ProgressCallback progress = new GetDeviceFile.ProgressCallback() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                boolean success = client.systemLog(getInterfaceType(),
-                        SystemLogMode.Archive);
-
-                if (success) {
-                    String fileName =
-                            (getInterfaceType() == InterfaceType.MPI) ? "mpi.log" : "rpi.log";
-
-                    byte[] deviceFileBytes = GetDeviceFile.getDeviceFile(
-                            client, getInterfaceType(), fileName,
-                            new GetDeviceFile.ProgressCallback() {
-                                @Override
-                                public void onProgress(float fraction) {
-                                    listener.onProgress(fraction);
-                                }
-                            });
-                    if (deviceFileBytes != null) {
-                        success = client.systemLog(getInterfaceType(), SystemLogMode.Remove);
-                        if (!success) {
-                            LOGGER.debug("Failed to remove system log after retrieve it?");
-                        }
-                        listener.onSuccess(deviceFileBytes);
-                        return;
-                    }
-                }
+            public void onProgress(float fraction) {
+                listener.onProgress(fraction);
+            }
+        };
+        mFutures.getSystemLog(progress, new CommandListener<byte[]>() {
+            @Override
+            public void onSuccess(@Nullable byte[] deviceFileBytes) {
+                listener.onSuccess(deviceFileBytes);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
                 listener.onError();
             }
         });
@@ -850,12 +973,7 @@ public class MiuraManager {
      * @param listener {@link MiuraDefaultListener} Event listener result
      */
     public void deleteLog(@Nullable final MiuraDefaultListener listener) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.systemLog(getInterfaceType(), SystemLogMode.Remove);
-            }
-        });
+        mFutures.deleteLog(defaultListener(listener));
     }
 
     /**
@@ -864,15 +982,15 @@ public class MiuraManager {
      * @param listener {@link ApiGetDeviceInfoListener} Event listener for result
      */
     public void getDeviceInfo(@NonNull final ApiGetDeviceInfoListener listener) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.getDeviceInfo(new CommandListener<ArrayList<Capability>>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                ArrayList<Capability> capabilities = client.getDeviceInfo(getInterfaceType());
-                if (capabilities != null && capabilities.size() > 0) {
-                    listener.onSuccess(capabilities);
-                } else {
-                    listener.onError();
-                }
+            public void onSuccess(@Nullable ArrayList<Capability> capabilities) {
+                listener.onSuccess(capabilities);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
             }
         });
     }
@@ -890,12 +1008,7 @@ public class MiuraManager {
             @NonNull final Date newDate,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.systemClock(getInterfaceType(), newDate);
-            }
-        });
+        mFutures.setSystemClock(newDate, defaultListener(listener));
     }
 
     /**
@@ -908,14 +1021,7 @@ public class MiuraManager {
      * @param enableCardStatusChange status - enable or disable
      */
     public void cardStatus(final boolean enableCardStatusChange) {
-        executeAsync(new AsyncRunnable() {
-            @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                // cardStatus returns nothing! It 'returns' an unsolicited message.
-                client.cardStatus(getInterfaceType(),
-                        enableCardStatusChange, false, true, true, true);
-            }
-        });
+        mFutures.cardStatus(enableCardStatusChange);
     }
 
     /**
@@ -940,36 +1046,28 @@ public class MiuraManager {
             @NonNull final String applicationLabel,
             @NonNull final ApiOnlinePinListener listener
     ) {
-        executeAsync(new AsyncRunnable() {
-            @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                Result<MpiClient.OnlinePinResult, OnlinePINError> errOrResult =
-                        client.onlinePin(
-                                getInterfaceType(), amountInPennies, currencyCode, maskedTrack2Data,
-                                applicationLabel);
-
-                if (errOrResult.isSuccess()) {
-                    MpiClient.OnlinePinResult result = errOrResult.asSuccess().getValue();
-                    switch (result.mType) {
-                        case CancelOrTimeout:
-                            listener.onCancelOrTimeout();
-                            break;
-                        case BypassedPinEntry:
-                            listener.onBypassedPINEntry();
-                            break;
-                        case PinEnteredOk:
-                            if (result.PinData == null || result.PinKsn == null) {
-                                listener.onError(OnlinePINError.INTERNAL_ERROR);
-                                return;
-                            }
-                            listener.onOnlinePIN(result.PinData, result.PinKsn);
-                            break;
+        mFutures.onlinePin(amountInPennies, currencyCode, maskedTrack2Data, applicationLabel,
+                new CommandListener<MpiClient.OnlinePinResult>() {
+                    @Override
+                    public void onSuccess(@Nullable MpiClient.OnlinePinResult result) {
+                        switch (result.mType) {
+                            case CancelOrTimeout:
+                                listener.onCancelOrTimeout();
+                                break;
+                            case BypassedPinEntry:
+                                listener.onBypassedPINEntry();
+                                break;
+                            case PinEnteredOk:
+                                listener.onOnlinePIN(result.PinData, result.PinKsn);
+                                break;
+                        }
                     }
-                } else {
-                    listener.onError(errOrResult.asError().getError());
-                }
-            }
-        });
+
+                    @Override
+                    void onCommandError(@Nullable Enum<?> error) {
+                        listener.onError((OnlinePINError) error);
+                    }
+                });
     }
 
     /**
@@ -1010,20 +1108,9 @@ public class MiuraManager {
             @Nullable final String languagePreference,
             @NonNull final ApiStartTransactionListener listener
     ) {
-        executeAsync(new AsyncRunnable() {
-            @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                Result<byte[], TransactionResponse> response =
-                        client.startContactlessTransaction(
-                                getInterfaceType(),
-                                transactionType, amountInPennies, currencyCode, languagePreference);
-                if (response.isSuccess()) {
-                    listener.onSuccess(response.asSuccess().getValue());
-                } else {
-                    listener.onError(response.asError().getError());
-                }
-            }
-        });
+        mFutures.startContactlessTransaction(
+                transactionType, amountInPennies, currencyCode, languagePreference,
+                transactionListener(listener));
     }
 
     /**
@@ -1042,20 +1129,8 @@ public class MiuraManager {
             final int currencyCode,
             @NonNull final ApiStartTransactionListener listener
     ) {
-        executeAsync(new AsyncRunnable() {
-            @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                Result<byte[], TransactionResponse> response = client.startTransaction(
-                        getInterfaceType(),
-                        transactionType, amountInPennies, currencyCode);
-
-                if (response.isSuccess()) {
-                    listener.onSuccess(response.asSuccess().getValue());
-                } else {
-                    listener.onError(response.asError().getError());
-                }
-            }
-        });
+        mFutures.startTransaction(transactionType, amountInPennies, currencyCode,
+                transactionListener(listener));
     }
 
     /**
@@ -1065,21 +1140,8 @@ public class MiuraManager {
      * @param listener {@link MiuraDefaultListener} Event listener for the result.
      */
     public void abortTransaction(@Nullable final MiuraDefaultListener listener) {
-
-        if (mAbortExecutor == null) {
-            return;
-        }
-
         LOGGER.debug("MiuraManager: abortTransaction");
-
-        executeAsyncDefaultListener(mAbortExecutor, listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                boolean b = client.abortTransaction(getInterfaceType());
-                LOGGER.debug("abortTransaction: aborted");
-                return b;
-            }
-        });
+        mFutures.abortTransaction(defaultListener(listener));
     }
 
     /**
@@ -1095,17 +1157,15 @@ public class MiuraManager {
             @NonNull final ArrayList<TLVObject> tlvObjects,
             @NonNull final ApiContinueTransactionListener listener
     ) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.continueTransaction(tlvObjects, new CommandListener<byte[]>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                TLVObject tlv = new TLVObject(Description.Command_Data, tlvObjects);
-                Result<byte[], TransactionResponse> result =
-                        client.continueTransaction(getInterfaceType(), tlv);
-                if (result.isSuccess()) {
-                    listener.onSuccess(result.asSuccess().getValue());
-                } else {
-                    listener.onError(result.asError().getError());
-                }
+            public void onSuccess(@Nullable byte[] result) {
+                listener.onSuccess(result);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError((TransactionResponse) error);
             }
         });
     }
@@ -1123,23 +1183,41 @@ public class MiuraManager {
      * @param listener {@link ApiPeripheralTypeListener} Event listener Peripheral Type
      */
     public void peripheralStatusCommand(@NonNull final ApiPeripheralTypeListener listener) {
+        mFutures.peripheralStatusCommand(new CommandListener<ArrayList<String>>() {
+            @Override
+            public void onSuccess(@Nullable ArrayList<String> peripheralTypes) {
+                listener.onSuccess(peripheralTypes);
+            }
 
-        if (mMpiClient == null) {
-            return;
-        }
-
-        executeAsync(new AsyncRunnable() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                ArrayList<String> peripheralTypes = client.peripheralStatusCommand();
-                if (peripheralTypes != null) {
-                    listener.onSuccess(peripheralTypes);
-                } else {
-                    listener.onError();
-                }
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
             }
         });
+    }
+
+    /**
+     * Gets the battery, software info, configuration, P2PE status and clock in one go.
+     *
+     * <p>
+     * Quicker than asking for each in turn, see {@link MpiClient#getDeviceSnapshot}.
+     * Fields that failed are null in the snapshot.
+     * </p>
+     *
+     * @param listener {@link ApiDeviceSnapshotListener} Event listener with the snapshot
+     */
+    public void getDeviceSnapshot(@NonNull final ApiDeviceSnapshotListener listener) {
+        mFutures.getDeviceSnapshot(new CommandListener<DeviceSnapshot>() {
+            @Override
+            public void onSuccess(@Nullable DeviceSnapshot snapshot) {
+                listener.onSuccess(snapshot);
+            }
 
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
+            }
+        });
     }
 
     /**
@@ -1148,15 +1226,15 @@ public class MiuraManager {
      * @param listener {@link ApiP2PEStatusListener} Event listener with P2PE status
      */
     public void getP2PEStatus(@NonNull final ApiP2PEStatusListener listener) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.getP2PEStatus(new CommandListener<P2PEStatus>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                P2PEStatus status = client.p2peStatus(getInterfaceType());
-                if (status != null) {
-                    listener.onSuccess(status);
-                } else {
-                    listener.onError();
-                }
+            public void onSuccess(@Nullable P2PEStatus status) {
+                listener.onSuccess(status);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
             }
         });
     }
@@ -1168,12 +1246,7 @@ public class MiuraManager {
      * @param listener {@link MiuraDefaultListener} Event listener for result
      */
     public void P2PEInitialise(@Nullable final MiuraDefaultListener listener) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.p2peInitialise(getInterfaceType());
-            }
-        });
+        mFutures.P2PEInitialise(defaultListener(listener));
     }
 
     /**
@@ -1182,15 +1255,15 @@ public class MiuraManager {
      * @param listener {@link MiuraDefaultListener} Event listener for the result.
      */
     public void P2PEImport(@NonNull final ApiP2PEImportListener listener) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.P2PEImport(new CommandListener<Void>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                RKIError status = client.p2peImport(getInterfaceType());
-                if (status == RKIError.NoError) {
-                    listener.onSuccess();
-                } else {
-                    listener.onError(status);
-                }
+            public void onSuccess(@Nullable Void result) {
+                listener.onSuccess();
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError((RKIError) error);
             }
         });
     }
@@ -1209,12 +1282,7 @@ public class MiuraManager {
             final boolean enabled,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.barcodeStatus(InterfaceType.RPI, enabled);
-            }
-        });
+        mFutures.barcodeScannerStatus(enabled, defaultListener(listener));
     }
 
     /**
@@ -1227,13 +1295,7 @@ public class MiuraManager {
             @NonNull final String text,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.spoolText(getInterfaceType(), text);
-            }
-        });
-
+        mFutures.spoolText(text, defaultListener(listener));
     }
 
     /**
@@ -1252,12 +1314,7 @@ public class MiuraManager {
             @NonNull final String imageFileName,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.spoolImage(getInterfaceType(), imageFileName);
-            }
-        });
+        mFutures.spoolImage(imageFileName, defaultListener(listener));
     }
 
     /**
@@ -1269,12 +1326,7 @@ public class MiuraManager {
      * @param listener {@link MiuraDefaultListener} Event listener for result
      */
     public void spoolPrint(@Nullable final MiuraDefaultListener listener) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.spoolPrint(getInterfaceType());
-            }
-        });
+        mFutures.spoolPrint(defaultListener(listener));
     }
 
     /**
@@ -1289,12 +1341,7 @@ public class MiuraManager {
             @NonNull final String text,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.printESCPOScommand(getInterfaceType(), text);
-            }
-        });
+        mFutures.printESCPOSWithString(text, defaultListener(listener));
     }
 
     /**
@@ -1302,17 +1349,15 @@ public class MiuraManager {
      *
      * @param text     Text to print in ASCII
      * @param listener {@link MiuraDefaultListener} Event listener for result
+     * @deprecated As {@link MpiClient#printText}. Use {@link #spoolText} and {@link #spoolPrint}
+     * instead.
      */
+    @Deprecated
     public void printText(
             @NonNull final String text,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.printText(getInterfaceType(), text, false);
-            }
-        });
+        mFutures.printText(text, defaultListener(listener));
     }
 
     /**
@@ -1322,17 +1367,15 @@ public class MiuraManager {
      *                 {@link MiuraManager#uploadBinary(byte[], String, MiuraDefaultListener)}
      *                 or {@link MiuraManager#uploadBinary(File, MiuraDefaultListener)}
      * @param listener {@link MiuraDefaultListener} Event listener for result
+     * @deprecated As {@link MpiClient#printImage}. Use {@link #spoolImage} and {@link #spoolPrint}
+     * instead.
      */
+    @Deprecated
     public void printImage(
             @NonNull final String image,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.printImage(getInterfaceType(), image);
-            }
-        });
+        mFutures.printImage(image, defaultListener(listener));
     }
 
     /**
@@ -1346,15 +1389,15 @@ public class MiuraManager {
             final boolean openCashDrawer,
             @NonNull final ApiCashDrawerListener listener
     ) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.cashDrawer(openCashDrawer, new CommandListener<Boolean>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                CashDrawer drawStatus = client.cashDrawer(openCashDrawer);
-                if (drawStatus != null) {
-                    listener.onSuccess(drawStatus == CashDrawer.Opened);
-                } else {
-                    listener.onError();
-                }
+            public void onSuccess(@Nullable Boolean opened) {
+                listener.onSuccess(opened);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
             }
         });
     }
@@ -1374,13 +1417,7 @@ public class MiuraManager {
             final boolean printerSledStatusEnabled,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.printerSledStatus(
-                        getInterfaceType(), printerSledStatusEnabled);
-            }
-        });
+        mFutures.printerSledStatus(printerSledStatusEnabled, defaultListener(listener));
     }
 
     /**
@@ -1393,15 +1430,15 @@ public class MiuraManager {
      * @param listener {@link ApiBlueToothInfoListener} Event listener for result
      */
     public void getBluetoothInfo(@NonNull final ApiBlueToothInfoListener listener) {
-        executeAsync(new AsyncRunnable() {
+        mFutures.getBluetoothInfo(new CommandListener<HashMap<String, String>>() {
             @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                HashMap<String, String> bluetoothInfo = client.getBluetoothInfo();
-                if (bluetoothInfo != null) {
-                    listener.onSuccess(bluetoothInfo);
-                } else {
-                    listener.onError();
-                }
+            public void onSuccess(@Nullable HashMap<String, String> bluetoothInfo) {
+                listener.onSuccess(bluetoothInfo);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
             }
         });
     }
@@ -1421,12 +1458,7 @@ public class MiuraManager {
             @NonNull final SerialPortProperties serialPortProperties,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.setSerialPort(serialPortProperties);
-            }
-        });
+        mFutures.configureSerialPort(serialPortProperties, defaultListener(listener));
     }
 
     /**
@@ -1447,12 +1479,7 @@ public class MiuraManager {
             @NonNull final byte[] data,
             @Nullable final MiuraDefaultListener listener
     ) {
-        executeAsyncDefaultListener(listener, new AsyncBooleanRunnable() {
-            @Override
-            public boolean runOnAsyncThread(@NonNull MpiClient client) {
-                return client.sendDataToSerialPort(data);
-            }
-        });
+        mFutures.sendDataToSerialPort(data, defaultListener(listener));
     }
 
     /**
@@ -1535,29 +1562,26 @@ public class MiuraManager {
             @Nullable final Integer amountLine,
             final ApiGetNumericDataListener listener
     ) {
-        final InterfaceType interfaceType = getInterfaceType();
+        mFutures.getNumericData(automaticEnter, backlightOn,
+                firstLineIndex, secondLineIndex, thirdLineIndex, numIntDigits, numFracDigits,
+                numberToEditAscii, currencyCode, currencyExponent, amountInPennies, amountLine,
+                new CommandListener<String>() {
+                    @Override
+                    public void onSuccess(@Nullable String result) {
+                        listener.onSuccess(result);
+                    }
 
-        executeAsync(new AsyncRunnable() {
-            @Override
-            public void runOnAsyncThread(@NonNull MpiClient client) {
-                try {
-                    Result<String, GetNumericDataError> result = client.getNumericData(
-                            interfaceType,
-                            automaticEnter, backlightOn, firstLineIndex, secondLineIndex,
-                            thirdLineIndex, numIntDigits, numFracDigits, numberToEditAscii,
-                            amountInPennies, currencyCode, currencyExponent, amountLine
-                    );
-                    if (result.isSuccess()) {
-                        listener.onSuccess(result.asSuccess().getValue());
-                    } else {
-                        listener.onError(result.asError().getError());
+                    @Override
+                    void onCommandError(@Nullable Enum<?> error) {
+                        listener.onError((GetNumericDataError) error);
                     }
-                } catch (Throwable throwable) {
-                    LOGGER.warn("Exception in getNumericData?", throwable);
-                    listener.onError(GetNumericDataError.InternalError);
-                }
-            }
-        });
+
+                    @Override
+                    void onUnexpectedFailure(@NonNull Throwable failure) {
+                        LOGGER.warn("Exception in getNumericData?", failure);
+                        listener.onError(GetNumericDataError.InternalError);
+                    }
+                });
     }
 
 
@@ -1565,7 +1589,8 @@ public class MiuraManager {
      * The given runnable will be scheduled to run in the background on MiuraManager's async thread.
      *
      * <p>
-     * This runnable will be executed after any previously scheduled tasks have finished,
+     * This runnable is scheduled in the {@link CommandLane#Interactive} lane, and will be
+     * executed after any previously scheduled tasks in that lane or higher have finished,
      * including the ones implicitly scheduled by commands such as
      * e.g. {@note #configureSerialPort}
      * </p>
@@ -1573,8 +1598,49 @@ public class MiuraManager {
      * @param runnable Task to run
      */
     public void executeAsync(final AsyncRunnable runnable) {
+        executeAsync(CommandLane.Interactive, runnable);
+    }
+
+    /**
+     * The given runnable will be scheduled to run in the background on MiuraManager's async thread,
+     * in the given lane.
+     *
+     * <p>
+     * Long running tasks in lower lanes should call
+     * {@link CommandScheduler#yieldToPriorityWork()} between commands, so that a transaction
+     * doesn't have to wait for the whole task to finish. Tasks in the
+     * {@link CommandLane#Transaction} lane may therefore run part way through another task's
+     * file transfer, so they must not select files.
+     * </p>
+     *
+     * @param lane     The priority lane to schedule the task in
+     * @param runnable Task to run
+     */
+    public void executeAsync(@NonNull CommandLane lane, final AsyncRunnable runnable) {
+        executeAsync(InterfaceType.MPI, lane, runnable);
+    }
+
+    /**
+     * The given runnable will be scheduled to run in the background on the async thread for the
+     * given InterfaceType, in the given lane.
+     *
+     * <p>
+     * RPI tasks run on a separate thread to MPI tasks, so they can be in flight at the same
+     * time. The runnable should only send commands to the given InterfaceType, otherwise it may
+     * have to wait for the other thread's commands.
+     * </p>
+     *
+     * @param interfaceType The InterfaceType the runnable sends its commands to
+     * @param lane          The priority lane to schedule the task in
+     * @param runnable      Task to run
+     */
+    public void executeAsync(
+            @NonNull InterfaceType interfaceType,
+            @NonNull CommandLane lane,
+            final AsyncRunnable runnable
+    ) {
         final MpiClient mpiClient = mMpiClient;
-        ExecutorService executor = mExecutor;
+        CommandScheduler executor = executorFor(interfaceType);
         if (mpiClient == null || executor == null) {
             return;
         }
@@ -1583,7 +1649,7 @@ public class MiuraManager {
             todo thread issue: executor could be shutdown at this point.
             Do we have to handle that? i.e. will it throw an exception?
         */
-        executor.execute(new Runnable() {
+        executor.execute(lane, new Runnable() {
             @Override
             public void run() {
                 runnable.runOnAsyncThread(mpiClient);
@@ -1592,62 +1658,210 @@ public class MiuraManager {
     }
 
     /**
-     * Runs a given task in the background and calls the MiuraDefaultListener afterwards
+     * Adapt a MiuraDefaultListener to the future of a MiuraManagerFutures call.
+     *
+     * @param listener Default listener, or null
+     * @return The future listener, or null if listener is null
+     */
+    @Nullable
+    private static CommandListener<Object> defaultListener(
+            @Nullable final MiuraDefaultListener listener
+    ) {
+        if (listener == null) {
+            return null;
+        }
+        return new CommandListener<Object>() {
+            @Override
+            public void onSuccess(@Nullable Object result) {
+                listener.onSuccess();
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError();
+            }
+        };
+    }
+
+    /**
+     * Adapt an ApiStartTransactionListener to the future of a transaction call.
+     *
+     * @param listener Transaction listener
+     * @return The future listener
+     */
+    @NonNull
+    private static CommandListener<byte[]> transactionListener(
+            @NonNull final ApiStartTransactionListener listener
+    ) {
+        return new CommandListener<byte[]>() {
+            @Override
+            public void onSuccess(@Nullable byte[] result) {
+                listener.onSuccess(result);
+            }
+
+            @Override
+            void onCommandError(@Nullable Enum<?> error) {
+                listener.onError((TransactionResponse) error);
+            }
+        };
+    }
+
+    /**
+     * Calls an Api*Listener when the future of a MiuraManagerFutures call completes.
      *
      * <p>
-     * All async methods using MiuraDefaultListener will have the same code to call the listeners.
-     * This method reduces the amount of boilerplate and automatically
-     * calls the correct method in MiuraDefaultListener depending on the result of
-     * {@code task.run()}.
+     * A {@link MiuraCommandException} goes to {@link #onCommandError}, with the command's error
+     * if it has one. The listener methods have never been told about a missing or closed session,
+     * so IOExceptions are dropped, as the command would have been before. Anything else is
+     * logged and dropped, unless {@link #onUnexpectedFailure} is overridden.
      * </p>
      *
-     * @param listener Default listener
-     * @param task     Task to run
+     * @param <T> The type of the future's result
      */
-    private void executeAsyncDefaultListener(
-            @Nullable final MiuraDefaultListener listener,
-            @NonNull final AsyncBooleanRunnable task
+    private abstract static class CommandListener<T> implements MpiFuture.Listener<T> {
+
+        @Override
+        public void onFailure(@NonNull Throwable failure) {
+            if (failure instanceof MiuraCommandException) {
+                onCommandError(((MiuraCommandException) failure).getError());
+            } else if (failure instanceof IOException) {
+                LOGGER.debug("Command dropped: {}", failure.getMessage());
+            } else {
+                onUnexpectedFailure(failure);
+            }
+        }
+
+        /**
+         * The command failed
+         *
+         * @param error The error the command gave, if any
+         */
+        abstract void onCommandError(@Nullable Enum<?> error);
+
+        /**
+         * The call threw something other than a MiuraCommandException
+         *
+         * @param failure What it threw
+         */
+        void onUnexpectedFailure(@NonNull Throwable failure) {
+            LOGGER.warn("Unexpected failure in async call", failure);
+        }
+    }
+
+    /**
+     * Schedule a call on the async thread and return a future for its result.
+     *
+     * <p>
+     * Unlike {@link #executeAsync(AsyncRunnable)} the call isn't silently dropped if there's
+     * no session; the future fails with an IOException instead. If the session closes before
+     * the call runs, the future fails the same way.
+     * </p>
+     *
+     * <p>
+     * Cancelling the future whilst the call is running cancels the call's
+     * {@link CancellationToken}, from the abort thread. That aborts the command in flight if it
+     * waits for the user, e.g. a transaction, and fails any further commands the call sends.
+     * </p>
+     *
+     * @param onAbortThread true to run the call on the abort thread, rather than the async thread
+     * @param lane          The priority lane to schedule the call in
+     * @param listener      Added to the future before the call is queued, or null
+     * @param call          The call to make
+     * @param <T>           The type of the call's result
+     * @return A future for the call's result
+     */
+    @NonNull
+    <T> MpiFuture<T> submit(
+            boolean onAbortThread,
+            @NonNull CommandLane lane,
+            @Nullable MpiFuture.Listener<? super T> listener,
+            @NonNull AsyncCall<T> call
     ) {
-        executeAsyncDefaultListener(mExecutor, listener, task);
+        return submit(onAbortThread ? mAbortExecutor : mExecutor, lane, listener, call);
     }
 
     /**
-     * Runs a given task on the given executor and calls the MiuraDefaultListener afterwards
+     * Schedule a call on the async thread for the given InterfaceType and return a future for
+     * its result.
      *
      * <p>
-     * All async methods using MiuraDefaultListener will have the same code to call the listeners.
-     * This method reduces the amount of boilerplate and automatically
-     * calls the correct method in MiuraDefaultListener depending on the result of
-     * {@code task.run()}.
+     * See {@link #submit(boolean, CommandLane, AsyncCall)}. RPI calls run on a separate
+     * thread to MPI calls.
      * </p>
      *
-     * @param executor The executor to schedule the task on
-     * @param listener Default listener
-     * @param task     Task to run
+     * @param interfaceType The InterfaceType the call sends its commands to
+     * @param lane          The priority lane to schedule the call in
+     * @param listener      Added to the future before the call is queued, or null
+     * @param call          The call to make
+     * @param <T>           The type of the call's result
+     * @return A future for the call's result
      */
-    private void executeAsyncDefaultListener(
-            @Nullable ExecutorService executor,
-            @Nullable final MiuraDefaultListener listener,
-            @NonNull final AsyncBooleanRunnable task
+    @NonNull
+    <T> MpiFuture<T> submit(
+            @NonNull InterfaceType interfaceType,
+            @NonNull CommandLane lane,
+            @Nullable MpiFuture.Listener<? super T> listener,
+            @NonNull AsyncCall<T> call
+    ) {
+        return submit(executorFor(interfaceType), lane, listener, call);
+    }
+
+    @NonNull
+    private <T> MpiFuture<T> submit(
+            @Nullable final CommandScheduler executor,
+            @NonNull CommandLane lane,
+            @Nullable MpiFuture.Listener<? super T> listener,
+            @NonNull AsyncCall<T> call
     ) {
         final MpiClient mpiClient = mMpiClient;
-        if (executor == null || mpiClient == null) {
-            return;
+        final CommandScheduler abortExecutor = mAbortExecutor;
+        if (mpiClient == null || executor == null || abortExecutor == null) {
+            MpiFuture<T> failed = MpiFuture.failed(new IOException("No session open"));
+            if (listener != null) {
+                failed.addListener(listener);
+            }
+            return failed;
         }
-        executor.execute(new Runnable() {
+
+        final MpiFuture<T> future = new MpiFuture<>();
+        if (listener != null) {
+            future.addListener(listener);
+        }
+        final CancellationToken token = new CancellationToken();
+        final FutureCallRunnable<T> runnable =
+                new FutureCallRunnable<>(future, mpiClient, token, call);
+
+        Runnable dequeue = new Runnable() {
             @Override
             public void run() {
-                boolean result = task.runOnAsyncThread(mpiClient);
-                if (listener == null) {
-                    return;
-                }
-                if (result) {
-                    listener.onSuccess();
-                } else {
-                    listener.onError();
+                executor.remove(runnable);
+            }
+        };
+        Runnable cancel = new Runnable() {
+            @Override
+            public void run() {
+                LOGGER.debug("MiuraManager: cancelling running future");
+                // The token may send an ABORT and wait for its response, so not on this thread
+                try {
+                    abortExecutor.execute(CommandLane.Transaction, new Runnable() {
+                        @Override
+                        public void run() {
+                            token.cancel();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    LOGGER.debug("Session closed, not cancelling");
                 }
             }
-        });
+        };
+        future.setCancelActions(dequeue, cancel);
+
+        try {
+            executor.execute(lane, runnable);
+        } catch (RejectedExecutionException e) {
+            future.fail(new IOException("Session closed", e));
+        }
+        return future;
     }
 
     @NonNull
@@ -1687,39 +1901,77 @@ public class MiuraManager {
         boolean runOnAsyncThread(@NonNull MpiClient client);
     }
 
-}
-
-/**
- * Creates new threads for MiuraManager's executor services.
- */
-class MiuraManagerThreadFactory implements ThreadFactory {
-
-    /** Each thread created is given a unique number. */
-    private final AtomicInteger threadNumber = new AtomicInteger(0);
     /**
-     * The prefix to give each thread's name.
+     * A call that runs in the background on MiuraManager's async threads and
+     * completes an {@link MpiFuture}.
+     *
+     * @param <T> The type of the call's result
      */
-    private final String mThreadPrefix;
+    interface AsyncCall<T> {
+        /**
+         * The call to make.
+         *
+         * @param client The commands should be executed on this client
+         * @return The result to complete the future with
+         * @throws MiuraCommandException If the command failed.
+         */
+        @Nullable
+        T runOnAsyncThread(@NonNull MpiClient client) throws MiuraCommandException;
+    }
 
     /**
-     * Create a new MiuraManagerThreadFactory.
+     * Runs an AsyncCall and completes its future.
      *
-     * @param prefix A thread's name will be "MiuraManager-PREFIX-ID"
+     * @param <T> The type of the call's result
      */
-    MiuraManagerThreadFactory(String prefix) {
-        mThreadPrefix = prefix;
-    }
+    private static final class FutureCallRunnable<T> implements Runnable {
+
+        @NonNull
+        private final MpiFuture<T> mFuture;
+
+        @NonNull
+        private final MpiClient mMpiClient;
+
+        /** Cancelled if the future is cancelled whilst the call is running */
+        @NonNull
+        private final CancellationToken mToken;
+
+        @NonNull
+        private final AsyncCall<T> mCall;
+
+        FutureCallRunnable(
+                @NonNull MpiFuture<T> future,
+                @NonNull MpiClient mpiClient,
+                @NonNull CancellationToken token,
+                @NonNull AsyncCall<T> call
+        ) {
+            mFuture = future;
+            mMpiClient = mpiClient;
+            mToken = token;
+            mCall = call;
+        }
 
-    @Override
-    public Thread newThread(@NonNull Runnable r) {
-        int id = threadNumber.getAndIncrement();
-        String name = "MiuraManager-" + mThreadPrefix + "-" + id;
-        Thread t = new Thread(r, name);
-        if (t.isDaemon()) {
-            t.setDaemon(false);
+        @Override
+        public void run() {
+            if (!mFuture.start()) {
+                // cancelled or timed out whilst queued
+                return;
+            }
+            mMpiClient.setCancellationToken(mToken);
+            try {
+                mFuture.succeed(mCall.runOnAsyncThread(mMpiClient));
+            } catch (MiuraCommandException | RuntimeException e) {
+                mFuture.fail(e);
+            } finally {
+                mMpiClient.setCancellationToken(null);
+            }
+        }
+
+        /**
+         * The session closed before the call could run.
+         */
+        void abandon() {
+            mFuture.fail(new IOException("Session closed"));
         }
-        // if (t.getPriority() != Thread.NORM_PRIORITY)
-        //    t.setPriority(Thread.NORM_PRIORITY);
-        return t;
     }
 }
@@ -0,0 +1,1423 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import static com.miurasystems.miuralibrary.MpiClient.GetNumericDataError;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.Result;
+import com.miurasystems.miuralibrary.api.executor.MiuraManager.AsyncCall;
+import com.miurasystems.miuralibrary.api.listener.MiuraDefaultListener;
+import com.miurasystems.miuralibrary.api.objects.BatteryData;
+import com.miurasystems.miuralibrary.api.objects.Capability;
+import com.miurasystems.miuralibrary.api.objects.DeviceSnapshot;
+import com.miurasystems.miuralibrary.api.objects.P2PEStatus;
+import com.miurasystems.miuralibrary.api.objects.SoftwareInfo;
+import com.miurasystems.miuralibrary.api.objects.TransferStats;
+import com.miurasystems.miuralibrary.api.utils.GetDeviceFile;
+import com.miurasystems.miuralibrary.api.utils.SerialPortProperties;
+import com.miurasystems.miuralibrary.api.utils.StreamBinaryFile;
+import com.miurasystems.miuralibrary.enums.BacklightSettings;
+import com.miurasystems.miuralibrary.enums.CashDrawer;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.OnlinePINError;
+import com.miurasystems.miuralibrary.enums.RKIError;
+import com.miurasystems.miuralibrary.enums.ResetDeviceType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+import com.miurasystems.miuralibrary.enums.StatusSettings;
+import com.miurasystems.miuralibrary.enums.SystemLogMode;
+import com.miurasystems.miuralibrary.enums.TransactionResponse;
+import com.miurasystems.miuralibrary.enums.TransactionType;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVObject;
+import com.miurasystems.miuralibrary.tlv.Track2Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * The future-returning view of {@link MiuraManager}.
+ *
+ * <p>
+ * Get one with {@link MiuraManager#getFutures()}. Each method here is equivalent to the
+ * MiuraManager method of the same name and is scheduled on the same thread, in the same order,
+ * as MiuraManager's own methods. But rather than taking a listener it returns an
+ * {@link MpiFuture}, which:
+ * </p>
+ * <ul>
+ * <li>succeeds with the value the listener's onSuccess would have been given</li>
+ * <li>fails with a {@link MiuraCommandException} where onError would have been called</li>
+ * <li>fails with an IOException if there's no open session, instead of silently doing
+ * nothing</li>
+ * <li>can be given a deadline with {@link MpiFuture#withTimeout} and cancelled with
+ * {@link MpiFuture#cancel}</li>
+ * </ul>
+ *
+ * <p>
+ * Cancelling a future whilst it's running frees its thread as soon as possible. Transactions,
+ * online PIN and numeric entry are aborted on the device. Multi-command operations, e.g.
+ * {@link #downloadBinaryWithFileName}, stop after the command in flight. Other commands run to
+ * completion in the background and their result is discarded.
+ * </p>
+ *
+ * <p>
+ * MiuraManager's listener methods are built on these, so there's one implementation of each
+ * operation. Each has a package-private overload that takes an {@link MpiFuture.Listener},
+ * which is added before the command is queued so that it's always called on the async thread.
+ * </p>
+ *
+ * <p>
+ * Independent queries can be issued together and waited for as one batch, e.g.
+ * </p>
+ * <pre>{@code
+ *     MiuraManagerFutures futures = MiuraManager.getInstance().getFutures();
+ *     MpiFuture<BatteryData> battery = futures.getBatteryStatus();
+ *     MpiFuture<SoftwareInfo> software = futures.getSoftwareInfo();
+ *     MpiFuture<Date> clock = futures.getSystemClock();
+ *     MpiFuture.allOf(battery, software, clock)
+ *             .withTimeout(10L, TimeUnit.SECONDS)
+ *             .addListener(...);
+ * }</pre>
+ */
+public class MiuraManagerFutures {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MiuraManagerFutures.class);
+
+    /** The MiuraManager whose threads and session the futures use */
+    @NonNull
+    private final MiuraManager mManager;
+
+    /**
+     * Create the futures view of a MiuraManager
+     *
+     * @param manager The manager to schedule commands on
+     */
+    MiuraManagerFutures(@NonNull MiuraManager manager) {
+        mManager = manager;
+    }
+
+    /**
+     * See {@link MiuraManager#getBatteryStatus}
+     *
+     * @return A future for the battery data
+     */
+    @NonNull
+    public MpiFuture<BatteryData> getBatteryStatus() {
+        return getBatteryStatus(null);
+    }
+
+    @NonNull
+    MpiFuture<BatteryData> getBatteryStatus(
+            @Nullable MpiFuture.Listener<? super BatteryData> listener
+    ) {
+        return submit(CommandLane.Background, listener, new AsyncCall<BatteryData>() {
+            @Override
+            public BatteryData runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return check("BATTERY STATUS",
+                        client.batteryStatus(mManager.getInterfaceType(), false));
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#getSoftwareInfo}
+     *
+     * @return A future for the software info
+     */
+    @NonNull
+    public MpiFuture<SoftwareInfo> getSoftwareInfo() {
+        return getSoftwareInfo(null);
+    }
+
+    @NonNull
+    MpiFuture<SoftwareInfo> getSoftwareInfo(
+            @Nullable MpiFuture.Listener<? super SoftwareInfo> listener
+    ) {
+        return submit(CommandLane.Background, listener, new AsyncCall<SoftwareInfo>() {
+            @Override
+            public SoftwareInfo runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return check("RESET DEVICE", client.resetDevice(
+                        mManager.getInterfaceType(), ResetDeviceType.Soft_Reset));
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#getPEDConfig}
+     *
+     * @return A future for the map of configuration file name to version
+     */
+    @NonNull
+    public MpiFuture<HashMap<String, String>> getPEDConfig() {
+        return getPEDConfig(null);
+    }
+
+    @NonNull
+    MpiFuture<HashMap<String, String>> getPEDConfig(
+            @Nullable MpiFuture.Listener<? super HashMap<String, String>> listener
+    ) {
+        return submit(CommandLane.Background, listener, new AsyncCall<HashMap<String, String>>() {
+            @Override
+            public HashMap<String, String> runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return check("GET CONFIGURATION", client.getConfiguration());
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#displayText}
+     *
+     * @param text Text to display
+     * @return A future that succeeds once the text is displayed
+     */
+    @NonNull
+    public MpiFuture<Void> displayText(@NonNull final String text) {
+        return displayText(text, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> displayText(
+            @NonNull final String text,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submitBoolean("DISPLAY TEXT", listener, new MiuraManager.AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                return client.displayText(mManager.getInterfaceType(), text, true, true, true);
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#keyboardStatus}
+     *
+     * @param statusSettings    Use it to enable/disable sending keyboard events
+     * @param backlightSettings Use it to enable/disable keyboard backlight (on selected devices)
+     * @return A future that succeeds once the settings are applied
+     */
+    @NonNull
+    public MpiFuture<Void> keyboardStatus(
+            @NonNull final StatusSettings statusSettings,
+            @NonNull final BacklightSettings backlightSettings
+    ) {
+        return keyboardStatus(statusSettings, backlightSettings, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> keyboardStatus(
+            @NonNull final StatusSettings statusSettings,
+            @NonNull final BacklightSettings backlightSettings,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submitBoolean("KEYBOARD STATUS", listener, new MiuraManager.AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                return client.keyboardStatus(
+                        mManager.getInterfaceType(), statusSettings, backlightSettings);
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#downloadBinaryWithFileName}
+     *
+     * @param fileName The file to download
+     * @param progress Optional progress callback, called on the async thread
+     * @return A future for the file's contents
+     */
+    @NonNull
+    public MpiFuture<byte[]> downloadBinaryWithFileName(
+            @NonNull final String fileName,
+            @Nullable final GetDeviceFile.ProgressCallback progress
+    ) {
+        return downloadBinaryWithFileName(fileName, progress, null);
+    }
+
+    @NonNull
+    MpiFuture<byte[]> downloadBinaryWithFileName(
+            @NonNull final String fileName,
+            @Nullable final GetDeviceFile.ProgressCallback progress,
+            @Nullable MpiFuture.Listener<? super byte[]> listener
+    ) {
+        return submit(CommandLane.BulkTransfer, listener, new AsyncCall<byte[]>() {
+            @Override
+            public byte[] runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return check("download " + fileName, GetDeviceFile.getDeviceFile(
+                        client, mManager.getInterfaceType(), fileName, progress));
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#downloadBinaryWithFileName(String, OutputStream,
+     * com.miurasystems.miuralibrary.api.listener.ApiStreamDeviceFileListener)}
+     *
+     * @param fileName The file to download
+     * @param out      Where to write the file. Neither flushed nor closed.
+     * @param progress Optional progress callback, called on the async thread
+     * @return A future for the download's size, duration and throughput
+     */
+    @NonNull
+    public MpiFuture<TransferStats> downloadBinaryWithFileName(
+            @NonNull final String fileName,
+            @NonNull final OutputStream out,
+            @Nullable final GetDeviceFile.ProgressCallback progress
+    ) {
+        return downloadBinaryWithFileName(fileName, out, progress, null);
+    }
+
+    @NonNull
+    MpiFuture<TransferStats> downloadBinaryWithFileName(
+            @NonNull final String fileName,
+            @NonNull final OutputStream out,
+            @Nullable final GetDeviceFile.ProgressCallback progress,
+            @Nullable MpiFuture.Listener<? super TransferStats> listener
+    ) {
+        return submit(CommandLane.BulkTransfer, listener, new AsyncCall<TransferStats>() {
+            @Override
+            public TransferStats runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return check("download " + fileName, GetDeviceFile.streamDeviceFile(
+                        client, mManager.getInterfaceType(), fileName, out, progress));
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#transferFileToDevice}
+     *
+     * @param fileName   File name for the file to be sent to the Device.
+     * @param fileStream Input stream for the file to send
+     * @param progress   Optional progress callback, called on the async thread
+     * @return A future that succeeds once the file is transferred
+     */
+    @NonNull
+    public MpiFuture<Void> transferFileToDevice(
+            @NonNull final String fileName,
+            @NonNull final InputStream fileStream,
+            @Nullable final StreamBinaryFile.ProgressCallback progress
+    ) {
+        return transferFileToDevice(fileName, fileStream, progress, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> transferFileToDevice(
+            @NonNull final String fileName,
+            @NonNull final InputStream fileStream,
+            @Nullable final StreamBinaryFile.ProgressCallback progress,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submitBoolean(CommandLane.BulkTransfer,
+                "transfer " + fileName, listener, new MiuraManager.AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                return StreamBinaryFile.streamBinaryFile(
+                        client, mManager.getInterfaceType(), fileName, fileStream, progress);
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#uploadBinary(File, MiuraDefaultListener)}
+     *
+     * @param file The file to upload
+     * @return A future that succeeds once the file is uploaded
+     */
+    @NonNull
+    public MpiFuture<Void> uploadBinary(@NonNull final File file) {
+        return uploadBinary(file, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> uploadBinary(
+            @NonNull final File file,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submitBoolean(CommandLane.BulkTransfer,
+                "upload " + file.getName(), listener, new MiuraManager.AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                return StreamBinaryFile.streamBinaryFile(
+                        client, mManager.getInterfaceType(), file.getName(), file, null);
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#uploadBinary(byte[], String, MiuraDefaultListener)}
+     *
+     * @param data     file raw data
+     * @param fileName selected file name
+     * @return A future that succeeds once the file is uploaded
+     */
+    @NonNull
+    public MpiFuture<Void> uploadBinary(
+            @NonNull final byte[] data,
+            @NonNull final String fileName
+    ) {
+        return uploadBinary(data, fileName, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> uploadBinary(
+            @NonNull final byte[] data,
+            @NonNull final String fileName,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submitBoolean(CommandLane.BulkTransfer,
+                "upload " + fileName, listener, new MiuraManager.AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                InterfaceType interfaceType = mManager.getInterfaceType();
+                int pedFileSize = client.selectFile(
+                        interfaceType, SelectFileMode.Truncate, fileName);
+                //noinspection SimplifiableIfStatement
+                if (pedFileSize < 0) {
+                    return false;
+                }
+                return client.streamBinary(interfaceType, false, data, 0, data.length, 100);
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#hardReset}
+     *
+     * @return A future that succeeds once the device has reset
+     */
+    @NonNull
+    public MpiFuture<Void> hardReset() {
+        return hardReset(null);
+    }
+
+    @NonNull
+    MpiFuture<Void> hardReset(@Nullable MpiFuture.Listener<? super Void> listener) {
+        return resetDevice(ResetDeviceType.Hard_Reset, listener);
+    }
+
+    /**
+     * See {@link MiuraManager#clearDeviceMemory}
+     *
+     * @return A future that succeeds once the files are cleared
+     */
+    @NonNull
+    public MpiFuture<Void> clearDeviceMemory() {
+        return clearDeviceMemory(null);
+    }
+
+    @NonNull
+    MpiFuture<Void> clearDeviceMemory(@Nullable MpiFuture.Listener<? super Void> listener) {
+        return resetDevice(ResetDeviceType.Clear_Files, listener);
+    }
+
+    /**
+     * See {@link MiuraManager#getSystemClock}
+     *
+     * @return A future for the device's date
+     */
+    @NonNull
+    public MpiFuture<Date> getSystemClock() {
+        return getSystemClock(null);
+    }
+
+    @NonNull
+    MpiFuture<Date> getSystemClock(@Nullable MpiFuture.Listener<? super Date> listener) {
+        return submit(CommandLane.Background, listener, new AsyncCall<Date>() {
+            @Override
+            public Date runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return check("SYSTEM CLOCK", client.systemClock(mManager.getInterfaceType()));
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#getSystemLog}
+     *
+     * @param progress Optional progress callback, called on the async thread
+     * @return A future for the log's contents
+     */
+    @NonNull
+    public MpiFuture<byte[]> getSystemLog(@Nullable final GetDeviceFile.ProgressCallback progress) {
+        return getSystemLog(progress, null);
+    }
+
+    @NonNull
+    MpiFuture<byte[]> getSystemLog(
+            @Nullable final GetDeviceFile.ProgressCallback progress,
+            @Nullable MpiFuture.Listener<? super byte[]> listener
+    ) {
+        return submit(CommandLane.BulkTransfer, listener, new AsyncCall<byte[]>() {
+            @Override
+            public byte[] runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                InterfaceType interfaceType = mManager.getInterfaceType();
+                if (!client.systemLog(interfaceType, SystemLogMode.Archive)) {
+                    throw new MiuraCommandException("SYSTEM LOG");
+                }
+
+                String fileName = (interfaceType == InterfaceType.MPI) ? "mpi.log" : "rpi.log";
+                byte[] deviceFileBytes = check("download " + fileName,
+                        GetDeviceFile.getDeviceFile(client, interfaceType, fileName, progress));
+                if (!client.systemLog(interfaceType, SystemLogMode.Remove)) {
+                    LOGGER.debug("Failed to remove system log after retrieve it?");
+                }
+                return deviceFileBytes;
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#deleteLog}
+     *
+     * @return A future that succeeds once the log is removed
+     */
+    @NonNull
+    public MpiFuture<Void> deleteLog() {
+        return deleteLog(null);
+    }
+
+    @NonNull
+    MpiFuture<Void> deleteLog(@Nullable MpiFuture.Listener<? super Void> listener) {
+        return submitBoolean(CommandLane.BulkTransfer,
+                "SYSTEM LOG", listener, new MiuraManager.AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                return client.systemLog(mManager.getInterfaceType(), SystemLogMode.Remove);
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#getDeviceInfo}
+     *
+     * @return A future for the device's capabilities
+     */
+    @NonNull
+    public MpiFuture<ArrayList<Capability>> getDeviceInfo() {
+        return getDeviceInfo(null);
+    }
+
+    @NonNull
+    MpiFuture<ArrayList<Capability>> getDeviceInfo(
+            @Nullable MpiFuture.Listener<? super ArrayList<Capability>> listener
+    ) {
+        return submit(CommandLane.Background, listener, new AsyncCall<ArrayList<Capability>>() {
+            @Override
+            public ArrayList<Capability> runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                ArrayList<Capability> capabilities =
+                        client.getDeviceInfo(mManager.getInterfaceType());
+                if (capabilities == null || capabilities.isEmpty()) {
+                    throw new MiuraCommandException("GET DEVICE INFO");
+                }
+                return capabilities;
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#setSystemClock}
+     *
+     * @param newDate {@link Date} Date to set
+     * @return A future that succeeds once the clock is set
+     */
+    @NonNull
+    public MpiFuture<Void> setSystemClock(@NonNull final Date newDate) {
+        return setSystemClock(newDate, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> setSystemClock(
+            @NonNull final Date newDate,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submitBoolean("SYSTEM CLOCK", listener, new MiuraManager.AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                return client.systemClock(mManager.getInterfaceType(), newDate);
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#cardStatus}
+     *
+     * @param enableCardStatusChange status - enable or disable
+     * @return A future that succeeds once the command has been sent.
+     * The card status itself arrives as an event.
+     */
+    @NonNull
+    public MpiFuture<Void> cardStatus(final boolean enableCardStatusChange) {
+        return cardStatus(enableCardStatusChange, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> cardStatus(
+            final boolean enableCardStatusChange,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submit(CommandLane.Interactive, listener, new AsyncCall<Void>() {
+            @Override
+            public Void runOnAsyncThread(@NonNull MpiClient client) {
+                client.cardStatus(mManager.getInterfaceType(),
+                        enableCardStatusChange, false, true, true, true);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#onlinePin}
+     *
+     * <p>Abortable. Fails with the {@link OnlinePINError} as the exception's error.</p>
+     *
+     * @param amountInPennies  Amount in pennies
+     * @param currencyCode     ISO 4217 code
+     * @param maskedTrack2Data The masked track 2 data
+     * @param applicationLabel he text to be displayed during PIN entry
+     * @return A future for the online PIN result. The result may be a cancel or bypass.
+     */
+    @NonNull
+    public MpiFuture<MpiClient.OnlinePinResult> onlinePin(
+            final int amountInPennies,
+            final int currencyCode,
+            @NonNull final Track2Data maskedTrack2Data,
+            @NonNull final String applicationLabel
+    ) {
+        return onlinePin(amountInPennies, currencyCode, maskedTrack2Data, applicationLabel, null);
+    }
+
+    @NonNull
+    MpiFuture<MpiClient.OnlinePinResult> onlinePin(
+            final int amountInPennies,
+            final int currencyCode,
+            @NonNull final Track2Data maskedTrack2Data,
+            @NonNull final String applicationLabel,
+            @Nullable MpiFuture.Listener<? super MpiClient.OnlinePinResult> listener
+    ) {
+        return submitAbortable(listener, new AsyncCall<MpiClient.OnlinePinResult>() {
+            @Override
+            public MpiClient.OnlinePinResult runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                Result<MpiClient.OnlinePinResult, OnlinePINError> result = client.onlinePin(
+                        mManager.getInterfaceType(), amountInPennies, currencyCode,
+                        maskedTrack2Data, applicationLabel);
+                MpiClient.OnlinePinResult pinResult = unwrap("ONLINE PIN", result);
+                if (pinResult.mType == MpiClient.OnlinePinResultType.PinEnteredOk
+                        && (pinResult.PinData == null || pinResult.PinKsn == null)) {
+                    throw new MiuraCommandException("ONLINE PIN", OnlinePINError.INTERNAL_ERROR);
+                }
+                return pinResult;
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#startContactlessTransaction}
+     *
+     * <p>Abortable. Fails with the {@link TransactionResponse} as the exception's error.</p>
+     *
+     * @param transactionType    The {@link TransactionType}
+     * @param amountInPennies    Amount in pennies
+     * @param currencyCode       ISO 4217 code
+     * @param languagePreference Optional 2 digit country code
+     * @return A future for the transaction's result data
+     */
+    @NonNull
+    public MpiFuture<byte[]> startContactlessTransaction(
+            @NonNull final TransactionType transactionType,
+            final int amountInPennies,
+            final int currencyCode,
+            @Nullable final String languagePreference
+    ) {
+        return startContactlessTransaction(
+                transactionType, amountInPennies, currencyCode, languagePreference, null);
+    }
+
+    @NonNull
+    MpiFuture<byte[]> startContactlessTransaction(
+            @NonNull final TransactionType transactionType,
+            final int amountInPennies,
+            final int currencyCode,
+            @Nullable final String languagePreference,
+            @Nullable MpiFuture.Listener<? super byte[]> listener
+    ) {
+        return submitAbortable(listener, new AsyncCall<byte[]>() {
+            @Override
+            public byte[] runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return unwrap("START CONTACTLESS TRANSACTION",
+                        client.startContactlessTransaction(mManager.getInterfaceType(),
+                                transactionType, amountInPennies, currencyCode,
+                                languagePreference));
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#startTransaction}
+     *
+     * <p>Abortable. Fails with the {@link TransactionResponse} as the exception's error.</p>
+     *
+     * @param transactionType The {@link TransactionType}
+     * @param amountInPennies Amount in pennies
+     * @param currencyCode    ISO 4217 code
+     * @return A future for the transaction's result data
+     */
+    @NonNull
+    public MpiFuture<byte[]> startTransaction(
+            @NonNull final TransactionType transactionType,
+            final int amountInPennies,
+            final int currencyCode
+    ) {
+        return startTransaction(transactionType, amountInPennies, currencyCode, null);
+    }
+
+    @NonNull
+    MpiFuture<byte[]> startTransaction(
+            @NonNull final TransactionType transactionType,
+            final int amountInPennies,
+            final int currencyCode,
+            @Nullable MpiFuture.Listener<? super byte[]> listener
+    ) {
+        return submitAbortable(listener, new AsyncCall<byte[]>() {
+            @Override
+            public byte[] runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return unwrap("START TRANSACTION", client.startTransaction(
+                        mManager.getInterfaceType(),
+                        transactionType, amountInPennies, currencyCode));
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#abortTransaction}
+     *
+     * <p>
+     * Runs on the abort thread. Usually it's simpler to {@link MpiFuture#cancel cancel} the
+     * transaction's future.
+     * </p>
+     *
+     * @return A future that succeeds once the device has aborted
+     */
+    @NonNull
+    public MpiFuture<Void> abortTransaction() {
+        return abortTransaction(null);
+    }
+
+    @NonNull
+    MpiFuture<Void> abortTransaction(@Nullable MpiFuture.Listener<? super Void> listener) {
+        return mManager.submit(true, CommandLane.Transaction, listener, new AsyncCall<Void>() {
+            @Override
+            public Void runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                if (!client.abortTransaction(mManager.getInterfaceType())) {
+                    throw new MiuraCommandException("ABORT");
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#continueTransaction}
+     *
+     * <p>Abortable. Fails with the {@link TransactionResponse} as the exception's error.</p>
+     *
+     * @param tlvObjects List of {@link TLVObject}
+     * @return A future for the transaction's result data
+     */
+    @NonNull
+    public MpiFuture<byte[]> continueTransaction(@NonNull final ArrayList<TLVObject> tlvObjects) {
+        return continueTransaction(tlvObjects, null);
+    }
+
+    @NonNull
+    MpiFuture<byte[]> continueTransaction(
+            @NonNull final ArrayList<TLVObject> tlvObjects,
+            @Nullable MpiFuture.Listener<? super byte[]> listener
+    ) {
+        return submitAbortable(listener, new AsyncCall<byte[]>() {
+            @Override
+            public byte[] runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                TLVObject tlv = new TLVObject(Description.Command_Data, tlvObjects);
+                return unwrap("CONTINUE TRANSACTION",
+                        client.continueTransaction(mManager.getInterfaceType(), tlv));
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#peripheralStatusCommand}
+     *
+     * @return A future for the list of connected peripherals. May be empty.
+     */
+    @NonNull
+    public MpiFuture<ArrayList<String>> peripheralStatusCommand() {
+        return peripheralStatusCommand(null);
+    }
+
+    @NonNull
+    MpiFuture<ArrayList<String>> peripheralStatusCommand(
+            @Nullable MpiFuture.Listener<? super ArrayList<String>> listener
+    ) {
+        return submit(InterfaceType.RPI, CommandLane.Background, listener,
+                new AsyncCall<ArrayList<String>>() {
+                    @Override
+                    public ArrayList<String> runOnAsyncThread(@NonNull MpiClient client)
+                            throws MiuraCommandException {
+                        return check("PERIPHERAL STATUS", client.peripheralStatusCommand());
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#getP2PEStatus}
+     *
+     * @return A future for the P2PE status
+     */
+    @NonNull
+    public MpiFuture<P2PEStatus> getP2PEStatus() {
+        return getP2PEStatus(null);
+    }
+
+    @NonNull
+    MpiFuture<P2PEStatus> getP2PEStatus(@Nullable MpiFuture.Listener<? super P2PEStatus> listener) {
+        return submit(CommandLane.Background, listener, new AsyncCall<P2PEStatus>() {
+            @Override
+            public P2PEStatus runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return check("P2PE STATUS", client.p2peStatus(mManager.getInterfaceType()));
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#getDeviceSnapshot}
+     *
+     * <p>Succeeds with a partial snapshot if only some fields failed.</p>
+     *
+     * @return A future for the snapshot
+     */
+    @NonNull
+    public MpiFuture<DeviceSnapshot> getDeviceSnapshot() {
+        return getDeviceSnapshot(null);
+    }
+
+    @NonNull
+    MpiFuture<DeviceSnapshot> getDeviceSnapshot(
+            @Nullable MpiFuture.Listener<? super DeviceSnapshot> listener
+    ) {
+        return submit(CommandLane.Background, listener, new AsyncCall<DeviceSnapshot>() {
+            @Override
+            public DeviceSnapshot runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                DeviceSnapshot snapshot = client.getDeviceSnapshot(mManager.getInterfaceType());
+                if (snapshot.getFailedFields().size() == DeviceSnapshot.Field.values().length) {
+                    throw new MiuraCommandException("DEVICE SNAPSHOT");
+                }
+                return snapshot;
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#P2PEInitialise}
+     *
+     * @return A future that succeeds once the files are prepared
+     */
+    @NonNull
+    public MpiFuture<Void> P2PEInitialise() {
+        return P2PEInitialise(null);
+    }
+
+    @NonNull
+    MpiFuture<Void> P2PEInitialise(@Nullable MpiFuture.Listener<? super Void> listener) {
+        return submitBoolean("P2PE INITIALISE", listener, new MiuraManager.AsyncBooleanRunnable() {
+            @Override
+            public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                return client.p2peInitialise(mManager.getInterfaceType());
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#P2PEImport}
+     *
+     * <p>Fails with the {@link RKIError} as the exception's error.</p>
+     *
+     * @return A future that succeeds once the keys are imported
+     */
+    @NonNull
+    public MpiFuture<Void> P2PEImport() {
+        return P2PEImport(null);
+    }
+
+    @NonNull
+    MpiFuture<Void> P2PEImport(@Nullable MpiFuture.Listener<? super Void> listener) {
+        return submit(CommandLane.Interactive, listener, new AsyncCall<Void>() {
+            @Override
+            public Void runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                RKIError status = client.p2peImport(mManager.getInterfaceType());
+                if (status != RKIError.NoError) {
+                    throw new MiuraCommandException("P2PE IMPORT", status);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * See {@link MiuraManager#barcodeScannerStatus}
+     *
+     * @param enabled Flag for enable or disable
+     * @return A future that succeeds once the scanner is configured
+     */
+    @NonNull
+    public MpiFuture<Void> barcodeScannerStatus(final boolean enabled) {
+        return barcodeScannerStatus(enabled, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> barcodeScannerStatus(
+            final boolean enabled,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submitBoolean(InterfaceType.RPI, "BAR CODE SCANNER STATUS", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.barcodeStatus(InterfaceType.RPI, enabled);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#spoolText}
+     *
+     * @param text Text to print in ASCII
+     * @return A future that succeeds once the text is spooled
+     */
+    @NonNull
+    public MpiFuture<Void> spoolText(@NonNull final String text) {
+        return spoolText(text, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> spoolText(
+            @NonNull final String text,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        final InterfaceType interfaceType = mManager.getInterfaceType();
+
+        return submitBoolean(interfaceType, "SPOOL TEXT", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.spoolText(interfaceType, text);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#spoolImage}
+     *
+     * @param imageFileName Image path on device
+     * @return A future that succeeds once the image is spooled
+     */
+    @NonNull
+    public MpiFuture<Void> spoolImage(@NonNull final String imageFileName) {
+        return spoolImage(imageFileName, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> spoolImage(
+            @NonNull final String imageFileName,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        final InterfaceType interfaceType = mManager.getInterfaceType();
+
+        return submitBoolean(interfaceType, "SPOOL IMAGE", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.spoolImage(interfaceType, imageFileName);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#spoolPrint}
+     *
+     * @return A future that succeeds once the spool is printed
+     */
+    @NonNull
+    public MpiFuture<Void> spoolPrint() {
+        return spoolPrint(null);
+    }
+
+    @NonNull
+    MpiFuture<Void> spoolPrint(@Nullable MpiFuture.Listener<? super Void> listener) {
+        final InterfaceType interfaceType = mManager.getInterfaceType();
+
+        return submitBoolean(interfaceType, "SPOOL PRINT", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.spoolPrint(interfaceType);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#printESCPOSWithString}
+     *
+     * @param text String formatted with ESCPOS commands to send to the printer.
+     * @return A future that succeeds once the data is printed
+     */
+    @NonNull
+    public MpiFuture<Void> printESCPOSWithString(@NonNull final String text) {
+        return printESCPOSWithString(text, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> printESCPOSWithString(
+            @NonNull final String text,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        final InterfaceType interfaceType = mManager.getInterfaceType();
+
+        return submitBoolean(interfaceType, "PRINT ESCPOS", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.printESCPOScommand(interfaceType, text);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#printText}
+     *
+     * @param text Text to print in ASCII
+     * @return A future that succeeds once the text is printed
+     * @deprecated As {@link MpiClient#printText}. Use {@link #spoolText} and
+     * {@link #spoolPrint} instead.
+     */
+    @Deprecated
+    @NonNull
+    public MpiFuture<Void> printText(@NonNull final String text) {
+        return printText(text, null);
+    }
+
+    @Deprecated
+    @NonNull
+    MpiFuture<Void> printText(
+            @NonNull final String text,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        final InterfaceType interfaceType = mManager.getInterfaceType();
+
+        return submitBoolean(interfaceType, "PRINT TEXT", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.printText(interfaceType, text, false);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#printImage}
+     *
+     * @param image Image path on device
+     * @return A future that succeeds once the image is printed
+     * @deprecated As {@link MpiClient#printImage}. Use {@link #spoolImage} and
+     * {@link #spoolPrint} instead.
+     */
+    @Deprecated
+    @NonNull
+    public MpiFuture<Void> printImage(@NonNull final String image) {
+        return printImage(image, null);
+    }
+
+    @Deprecated
+    @NonNull
+    MpiFuture<Void> printImage(
+            @NonNull final String image,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        final InterfaceType interfaceType = mManager.getInterfaceType();
+
+        return submitBoolean(interfaceType, "PRINT IMAGE", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.printImage(interfaceType, image);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#cashDrawer}
+     *
+     * @param openCashDrawer Additionally open cash drawer
+     * @return A future for whether the drawer is open
+     */
+    @NonNull
+    public MpiFuture<Boolean> cashDrawer(final boolean openCashDrawer) {
+        return cashDrawer(openCashDrawer, null);
+    }
+
+    @NonNull
+    MpiFuture<Boolean> cashDrawer(
+            final boolean openCashDrawer,
+            @Nullable MpiFuture.Listener<? super Boolean> listener
+    ) {
+        return submit(InterfaceType.RPI, CommandLane.Interactive, listener,
+                new AsyncCall<Boolean>() {
+                    @Override
+                    public Boolean runOnAsyncThread(@NonNull MpiClient client)
+                            throws MiuraCommandException {
+                        CashDrawer drawStatus =
+                                check("CASH DRAWER", client.cashDrawer(openCashDrawer));
+                        return drawStatus == CashDrawer.Opened;
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#printerSledStatus}
+     *
+     * @param printerSledStatusEnabled Enable or disable the printer sled status messages
+     * @return A future that succeeds once the setting is applied
+     */
+    @NonNull
+    public MpiFuture<Void> printerSledStatus(final boolean printerSledStatusEnabled) {
+        return printerSledStatus(printerSledStatusEnabled, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> printerSledStatus(
+            final boolean printerSledStatusEnabled,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        final InterfaceType interfaceType = mManager.getInterfaceType();
+
+        return submitBoolean(interfaceType, "PRINTER SLED STATUS", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.printerSledStatus(
+                                interfaceType, printerSledStatusEnabled);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#getBluetoothInfo}
+     *
+     * @return A future for the 'name' and 'address' of the device
+     */
+    @NonNull
+    public MpiFuture<HashMap<String, String>> getBluetoothInfo() {
+        return getBluetoothInfo(null);
+    }
+
+    @NonNull
+    MpiFuture<HashMap<String, String>> getBluetoothInfo(
+            @Nullable MpiFuture.Listener<? super HashMap<String, String>> listener
+    ) {
+        return submit(InterfaceType.RPI, CommandLane.Background, listener,
+                new AsyncCall<HashMap<String, String>>() {
+                    @Override
+                    public HashMap<String, String> runOnAsyncThread(@NonNull MpiClient client)
+                            throws MiuraCommandException {
+                        return check("BLUETOOTH INFO", client.getBluetoothInfo());
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#configureSerialPort}
+     *
+     * @param serialPortProperties The serial port settings
+     * @return A future that succeeds once the port is configured
+     */
+    @NonNull
+    public MpiFuture<Void> configureSerialPort(
+            @NonNull final SerialPortProperties serialPortProperties
+    ) {
+        return configureSerialPort(serialPortProperties, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> configureSerialPort(
+            @NonNull final SerialPortProperties serialPortProperties,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submitBoolean(InterfaceType.RPI, "CONFIGURE SERIAL PORT", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.setSerialPort(serialPortProperties);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#sendDataToSerialPort}
+     *
+     * @param data Data buffer to send to device
+     * @return A future that succeeds once the data has been written to the serial port
+     */
+    @NonNull
+    public MpiFuture<Void> sendDataToSerialPort(@NonNull final byte[] data) {
+        return sendDataToSerialPort(data, null);
+    }
+
+    @NonNull
+    MpiFuture<Void> sendDataToSerialPort(
+            @NonNull final byte[] data,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submitBoolean(InterfaceType.RPI, "SEND DATA TO SERIAL PORT", listener,
+                new MiuraManager.AsyncBooleanRunnable() {
+                    @Override
+                    public boolean runOnAsyncThread(@NonNull MpiClient client) {
+                        return client.sendDataToSerialPort(data);
+                    }
+                });
+    }
+
+    /**
+     * See {@link MiuraManager#getNumericData}
+     *
+     * <p>Abortable. Fails with the {@link GetNumericDataError} as the exception's error.</p>
+     *
+     * @return A future for the number entered
+     */
+    @NonNull
+    public MpiFuture<String> getNumericData(
+            final boolean automaticEnter,
+            final boolean backlightOn,
+            final int firstLineIndex,
+            final int secondLineIndex,
+            final int thirdLineIndex,
+            final int numIntDigits,
+            final int numFracDigits,
+            @Nullable final String numberToEditAscii,
+            @Nullable final Integer currencyCode,
+            @Nullable final Integer currencyExponent,
+            @Nullable final Integer amountInPennies,
+            @Nullable final Integer amountLine
+    ) {
+        return getNumericData(automaticEnter, backlightOn,
+                firstLineIndex, secondLineIndex, thirdLineIndex, numIntDigits, numFracDigits,
+                numberToEditAscii, currencyCode, currencyExponent, amountInPennies, amountLine,
+                null);
+    }
+
+    @NonNull
+    MpiFuture<String> getNumericData(
+            final boolean automaticEnter,
+            final boolean backlightOn,
+            final int firstLineIndex,
+            final int secondLineIndex,
+            final int thirdLineIndex,
+            final int numIntDigits,
+            final int numFracDigits,
+            @Nullable final String numberToEditAscii,
+            @Nullable final Integer currencyCode,
+            @Nullable final Integer currencyExponent,
+            @Nullable final Integer amountInPennies,
+            @Nullable final Integer amountLine,
+            @Nullable MpiFuture.Listener<? super String> listener
+    ) {
+        final InterfaceType interfaceType = mManager.getInterfaceType();
+
+        return submitAbortable(listener, new AsyncCall<String>() {
+            @Override
+            public String runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                return unwrap("GET NUMERIC DATA", client.getNumericData(
+                        interfaceType,
+                        automaticEnter, backlightOn, firstLineIndex, secondLineIndex,
+                        thirdLineIndex, numIntDigits, numFracDigits, numberToEditAscii,
+                        amountInPennies, currencyCode, currencyExponent, amountLine
+                ));
+            }
+        });
+    }
+
+    @NonNull
+    private MpiFuture<Void> resetDevice(
+            @NonNull final ResetDeviceType type,
+            @Nullable MpiFuture.Listener<? super Void> listener
+    ) {
+        return submit(CommandLane.Interactive, listener, new AsyncCall<Void>() {
+            @Override
+            public Void runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                check("RESET DEVICE", client.resetDevice(mManager.getInterfaceType(), type));
+                return null;
+            }
+        });
+    }
+
+    @NonNull
+    private <T> MpiFuture<T> submit(
+            @NonNull CommandLane lane,
+            @Nullable MpiFuture.Listener<? super T> listener,
+            @NonNull AsyncCall<T> call
+    ) {
+        return mManager.submit(false, lane, listener, call);
+    }
+
+    @NonNull
+    private <T> MpiFuture<T> submit(
+            @NonNull InterfaceType interfaceType,
+            @NonNull CommandLane lane,
+            @Nullable MpiFuture.Listener<? super T> listener,
+            @NonNull AsyncCall<T> call
+    ) {
+        return mManager.submit(interfaceType, lane, listener, call);
+    }
+
+    @NonNull
+    private <T> MpiFuture<T> submitAbortable(
+            @Nullable MpiFuture.Listener<? super T> listener,
+            @NonNull AsyncCall<T> call
+    ) {
+        return mManager.submit(false, CommandLane.Transaction, listener, call);
+    }
+
+    /**
+     * Submit a task that returns false on failure, in the {@link CommandLane#Interactive} lane.
+     *
+     * @param command  The name of the command, for the exception
+     * @param listener Added to the future before the task is queued, or null
+     * @param task     The task to run
+     * @return A future that succeeds if the task returns true
+     */
+    @NonNull
+    private MpiFuture<Void> submitBoolean(
+            @NonNull String command,
+            @Nullable MpiFuture.Listener<? super Void> listener,
+            @NonNull MiuraManager.AsyncBooleanRunnable task
+    ) {
+        return submitBoolean(CommandLane.Interactive, command, listener, task);
+    }
+
+    /**
+     * Submit a task that returns false on failure.
+     *
+     * @param lane     The priority lane to schedule the task in
+     * @param command  The name of the command, for the exception
+     * @param listener Added to the future before the task is queued, or null
+     * @param task     The task to run
+     * @return A future that succeeds if the task returns true
+     */
+    @NonNull
+    private MpiFuture<Void> submitBoolean(
+            @NonNull CommandLane lane,
+            @NonNull String command,
+            @Nullable MpiFuture.Listener<? super Void> listener,
+            @NonNull MiuraManager.AsyncBooleanRunnable task
+    ) {
+        return submit(lane, listener, booleanCall(command, task));
+    }
+
+    /**
+     * Submit a task that returns false on failure, in the {@link CommandLane#Interactive} lane
+     * of the given InterfaceType's thread.
+     *
+     * @param interfaceType The InterfaceType the task sends its commands to
+     * @param command       The name of the command, for the exception
+     * @param listener      Added to the future before the task is queued, or null
+     * @param task          The task to run
+     * @return A future that succeeds if the task returns true
+     */
+    @NonNull
+    private MpiFuture<Void> submitBoolean(
+            @NonNull InterfaceType interfaceType,
+            @NonNull String command,
+            @Nullable MpiFuture.Listener<? super Void> listener,
+            @NonNull MiuraManager.AsyncBooleanRunnable task
+    ) {
+        return submit(interfaceType, CommandLane.Interactive, listener,
+                booleanCall(command, task));
+    }
+
+    /**
+     * Wrap a task that returns false on failure in a call that throws instead.
+     *
+     * @param command The name of the command, for the exception
+     * @param task    The task to run
+     * @return The call
+     */
+    @NonNull
+    private static AsyncCall<Void> booleanCall(
+            @NonNull final String command,
+            @NonNull final MiuraManager.AsyncBooleanRunnable task
+    ) {
+        return new AsyncCall<Void>() {
+            @Override
+            public Void runOnAsyncThread(@NonNull MpiClient client)
+                    throws MiuraCommandException {
+                if (!task.runOnAsyncThread(client)) {
+                    throw new MiuraCommandException(command);
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return value, if it's non-null
+     * @throws MiuraCommandException if value is null, i.e. the command failed
+     */
+    @NonNull
+    private static <T> T check(@NonNull String command, @Nullable T value)
+            throws MiuraCommandException {
+        if (value == null) {
+            throw new MiuraCommandException(command);
+        }
+        return value;
+    }
+
+    /**
+     * @return The result's value, if it's a success
+     * @throws MiuraCommandException with the result's error, if it's an error
+     */
+    @NonNull
+    private static <T, E extends Enum<E>> T unwrap(
+            @NonNull String command,
+            @NonNull Result<T, E> result
+    ) throws MiuraCommandException {
+        if (result.isError()) {
+            throw new MiuraCommandException(command, result.asError().getError());
+        }
+        return result.asSuccess().getValue();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates new threads for MiuraManager's executor services.
+ */
+class MiuraManagerThreadFactory implements ThreadFactory {
+
+    /** Each thread created is given a unique number. */
+    private final AtomicInteger threadNumber = new AtomicInteger(0);
+    /**
+     * The prefix to give each thread's name.
+     */
+    private final String mThreadPrefix;
+
+    /**
+     * Create a new MiuraManagerThreadFactory.
+     *
+     * @param prefix A thread's name will be "MiuraManager-PREFIX-ID"
+     */
+    MiuraManagerThreadFactory(String prefix) {
+        mThreadPrefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(@NonNull Runnable r) {
+        int id = threadNumber.getAndIncrement();
+        String name = "MiuraManager-" + mThreadPrefix + "-" + id;
+        Thread t = new Thread(r, name);
+        if (t.isDaemon()) {
+            t.setDaemon(false);
+        }
+        // if (t.getPriority() != Thread.NORM_PRIORITY)
+        //    t.setPriority(Thread.NORM_PRIORITY);
+        return t;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.comms.HashedWheelTimer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pending result of an asynchronous Miura command.
+ *
+ * <p>
+ * Returned by the methods of {@link MiuraManagerFutures}. A future either succeeds with the
+ * command's result, fails with an exception, or is cancelled:
+ * </p>
+ * <ul>
+ * <li>{@link MiuraCommandException} if the command failed on the device or in the SDK</li>
+ * <li>{@link java.io.IOException} if there was no open session, or it closed before the
+ * command ran</li>
+ * <li>{@link TimeoutException} if the deadline set with {@link #withTimeout} passed first</li>
+ * </ul>
+ *
+ * <p>
+ * Cancelling a future, or its deadline passing, is passed on to the command. If the command is
+ * still queued it is removed from MiuraManager's queue and never sent. If it's running, its
+ * {@link com.miurasystems.miuralibrary.CancellationToken CancellationToken} is cancelled: if
+ * the command in flight is one ABORT can interrupt, e.g. a transaction, an ABORT is sent, and
+ * any further commands it would send fail without being sent. Otherwise the command in flight
+ * finishes in the background and its result is discarded.
+ * </p>
+ *
+ * <p>
+ * Results can be waited for with {@link #get()}, or delivered to a {@link Listener}.
+ * Listeners are called from the thread that completes the future, normally
+ * MiuraManager's async thread, so the same care must be taken as with the api listeners.
+ * A passed deadline completes the future on the SDK's shared
+ * {@link HashedWheelTimer}, so listeners must not block.
+ * Use {@link #allOf} to wait for several independent queries as one batch.
+ * </p>
+ *
+ * @param <T> The type of the command's result
+ */
+public class MpiFuture<T> implements Future<T> {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MpiFuture.class);
+
+    /**
+     * Receives the result of a future.
+     *
+     * @param <T> The type of the result
+     */
+    public interface Listener<T> {
+        /**
+         * The command succeeded
+         *
+         * @param result The command's result
+         */
+        void onSuccess(@Nullable T result);
+
+        /**
+         * The command failed, was cancelled, or its deadline passed
+         *
+         * @param failure Why. A {@link CancellationException} if cancelled.
+         */
+        void onFailure(@NonNull Throwable failure);
+    }
+
+    private enum State {
+        Queued, Running, Succeeded, Failed, Cancelled
+    }
+
+    /** Guarded by this */
+    @NonNull
+    private State mState = State.Queued;
+
+    /** The result, if succeeded. Guarded by this */
+    @Nullable
+    private T mResult;
+
+    /** The failure, if failed or cancelled. Guarded by this */
+    @Nullable
+    private Throwable mFailure;
+
+    /** Listeners waiting for completion. null once complete. Guarded by this */
+    @Nullable
+    private List<Listener<? super T>> mListeners = new ArrayList<>();
+
+    /** Removes the command from its queue, if cancelled whilst queued. Guarded by this */
+    @Nullable
+    private Runnable mDequeueAction;
+
+    /** Interrupts the command on the device, if cancelled whilst running. Guarded by this */
+    @Nullable
+    private Runnable mAbortAction;
+
+    /** The pending deadline, if any. Guarded by this */
+    @Nullable
+    private HashedWheelTimer.Timeout mDeadline;
+
+    /**
+     * Create a future that's waiting to be run.
+     */
+    MpiFuture() {
+    }
+
+    /**
+     * Create a future that has already failed.
+     *
+     * @param failure Why it failed
+     * @param <T>     The type of the result
+     * @return a failed future
+     */
+    @NonNull
+    static <T> MpiFuture<T> failed(@NonNull Throwable failure) {
+        MpiFuture<T> future = new MpiFuture<>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Set what to do when the command is cancelled.
+     *
+     * @param dequeue Removes the command from its queue. Run if cancelled before starting.
+     * @param abort   Interrupts the command. Run if cancelled whilst running.
+     */
+    synchronized void setCancelActions(@Nullable Runnable dequeue, @Nullable Runnable abort) {
+        mDequeueAction = dequeue;
+        mAbortAction = abort;
+    }
+
+    /**
+     * Mark the command as running.
+     *
+     * @return false if the future was completed before it started, i.e. don't run it.
+     */
+    synchronized boolean start() {
+        if (mState != State.Queued) {
+            return false;
+        }
+        mState = State.Running;
+        return true;
+    }
+
+    /**
+     * Complete the future successfully.
+     *
+     * @param result The command's result
+     * @return false if the future had already completed
+     */
+    boolean succeed(@Nullable T result) {
+        return complete(State.Succeeded, result, null);
+    }
+
+    /**
+     * Complete the future with a failure.
+     *
+     * @param failure Why the command failed
+     * @return false if the future had already completed
+     */
+    boolean fail(@NonNull Throwable failure) {
+        return complete(State.Failed, null, failure);
+    }
+
+    /**
+     * Set a deadline for the command.
+     *
+     * <p>
+     * If the future hasn't completed in time it fails with a {@link TimeoutException}, and the
+     * command is removed from the queue or aborted, as if {@link #cancel cancelled}.
+     * Replaces any previous deadline.
+     * </p>
+     *
+     * @param timeout How long from now the command has to complete
+     * @param unit    The unit of timeout
+     * @return this future, for chaining
+     */
+    @NonNull
+    public MpiFuture<T> withTimeout(final long timeout, @NonNull final TimeUnit unit) {
+        synchronized (this) {
+            if (isDoneLocked()) {
+                return this;
+            }
+            if (mDeadline != null) {
+                mDeadline.cancel();
+            }
+            mDeadline = HashedWheelTimer.getShared().newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    String message = "Deadline of " + timeout + " " + unit + " passed";
+                    complete(State.Failed, null, new TimeoutException(message));
+                }
+            }, timeout, unit);
+        }
+        return this;
+    }
+
+    /**
+     * Cancel the command.
+     *
+     * <p>
+     * A queued command is removed from the queue. A running command is aborted if it's
+     * abortable, otherwise it completes in the background and its result is discarded. A running
+     * multi-command operation stops after the command in flight.
+     * </p>
+     *
+     * @param mayInterruptIfRunning Ignored. The command is aborted if possible regardless.
+     * @return false if the future had already completed
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(State.Cancelled, null, new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == State.Cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return isDoneLocked();
+    }
+
+    /**
+     * @return true if the future completed successfully
+     */
+    public synchronized boolean isSuccess() {
+        return mState == State.Succeeded;
+    }
+
+    @Nullable
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!isDoneLocked()) {
+            wait();
+        }
+        return reportLocked();
+    }
+
+    @Nullable
+    @Override
+    public synchronized T get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long end = System.nanoTime() + remaining;
+        while (!isDoneLocked()) {
+            if (remaining <= 0L) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = end - System.nanoTime();
+        }
+        return reportLocked();
+    }
+
+    /**
+     * Get the result if the future has succeeded, without waiting.
+     *
+     * @param valueIfAbsent What to return if the future hasn't succeeded
+     * @return The result, or valueIfAbsent
+     */
+    @Nullable
+    public synchronized T getNow(@Nullable T valueIfAbsent) {
+        return mState == State.Succeeded ? mResult : valueIfAbsent;
+    }
+
+    /**
+     * Call a listener when the future completes.
+     *
+     * <p>If the future has already completed the listener is called immediately.</p>
+     *
+     * @param listener The listener
+     * @return this future, for chaining
+     */
+    @NonNull
+    public MpiFuture<T> addListener(@NonNull Listener<? super T> listener) {
+        synchronized (this) {
+            if (mListeners != null) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+        notifyListener(listener);
+        return this;
+    }
+
+    /**
+     * Combine several futures into one that completes when they have all succeeded.
+     *
+     * <p>
+     * Fails as soon as any of them fails, cancelling the rest. Cancelling the combined
+     * future, or its deadline passing, cancels all of them.
+     * Once it has succeeded each future's result can be read with {@link #getNow}.
+     * </p>
+     *
+     * @param futures The futures to combine
+     * @return A future for all of them.
+     */
+    @NonNull
+    public static MpiFuture<Void> allOf(@NonNull MpiFuture<?>... futures) {
+        return allOf(Arrays.asList(futures));
+    }
+
+    /**
+     * Combine several futures into one that completes when they have all succeeded.
+     *
+     * <p>See {@link #allOf(MpiFuture[])}.</p>
+     *
+     * @param futures The futures to combine
+     * @return A future for all of them.
+     */
+    @NonNull
+    public static MpiFuture<Void> allOf(@NonNull final List<? extends MpiFuture<?>> futures) {
+        final MpiFuture<Void> all = new MpiFuture<>();
+        all.start();
+        if (futures.isEmpty()) {
+            all.succeed(null);
+            return all;
+        }
+
+        /* Completing `all` early, by failure, cancellation or deadline, cancels the parts.
+         * Cancelling parts that have already completed does nothing. */
+        final Runnable cancelParts = new Runnable() {
+            @Override
+            public void run() {
+                for (MpiFuture<?> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        };
+        all.setCancelActions(null, cancelParts);
+
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (MpiFuture<?> future : futures) {
+            future.addListener(new Listener<Object>() {
+                @Override
+                public void onSuccess(@Nullable Object result) {
+                    if (remaining.decrementAndGet() == 0) {
+                        all.succeed(null);
+                    }
+                }
+
+                @Override
+                public void onFailure(@NonNull Throwable failure) {
+                    if (all.fail(failure)) {
+                        cancelParts.run();
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * Move to a final state, run cancel actions and notify listeners.
+     */
+    private boolean complete(
+            @NonNull State state,
+            @Nullable T result,
+            @Nullable Throwable failure
+    ) {
+        List<Listener<? super T>> listeners;
+        Runnable action = null;
+        synchronized (this) {
+            if (isDoneLocked()) {
+                return false;
+            }
+            if (state != State.Succeeded) {
+                if (mState == State.Queued) {
+                    action = mDequeueAction;
+                } else if (failure instanceof CancellationException
+                        || failure instanceof TimeoutException) {
+                    action = mAbortAction;
+                }
+            }
+            mState = state;
+            mResult = result;
+            mFailure = failure;
+            listeners = mListeners;
+            mListeners = null;
+            mDequeueAction = null;
+            mAbortAction = null;
+            if (mDeadline != null) {
+                mDeadline.cancel();
+                mDeadline = null;
+            }
+            notifyAll();
+        }
+
+        if (action != null) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Cancel action failed", e);
+            }
+        }
+        if (listeners != null) {
+            for (Listener<? super T> listener : listeners) {
+                notifyListener(listener);
+            }
+        }
+        return true;
+    }
+
+    private void notifyListener(@NonNull Listener<? super T> listener) {
+        State state;
+        T result;
+        Throwable failure;
+        synchronized (this) {
+            state = mState;
+            result = mResult;
+            failure = mFailure;
+        }
+        try {
+            if (state == State.Succeeded) {
+                listener.onSuccess(result);
+            } else {
+                //noinspection ConstantConditions
+                listener.onFailure(failure);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("MpiFuture listener threw", e);
+        }
+    }
+
+    private boolean isDoneLocked() {
+        return mState != State.Queued && mState != State.Running;
+    }
+
+    @Nullable
+    private T reportLocked() throws ExecutionException {
+        switch (mState) {
+            case Succeeded:
+                return mResult;
+            case Cancelled:
+                throw new CancellationException();
+            default:
+                throw new ExecutionException(mFailure);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.listener;
+
+import com.miurasystems.miuralibrary.api.objects.DeviceSnapshot;
+
+/**
+ * Event listener
+ */
+public interface ApiDeviceSnapshotListener {
+
+    /**
+     * @param snapshot {@link DeviceSnapshot} The device's status. Some fields may have failed,
+     *                 see {@link DeviceSnapshot#getFailedFields()}.
+     */
+    void onSuccess(DeviceSnapshot snapshot);
+
+    /**
+     * Every field failed, e.g. the device isn't connected.
+     */
+    void onError();
+}
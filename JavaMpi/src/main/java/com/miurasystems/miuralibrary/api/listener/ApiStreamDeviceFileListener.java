@@ -0,0 +1,35 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.listener;
+
+import com.miurasystems.miuralibrary.api.objects.TransferStats;
+
+/**
+ * Event listener for a file downloaded straight to a stream
+ */
+public interface ApiStreamDeviceFileListener {
+
+    /**
+     * @param stats The download's size, duration and throughput
+     */
+    void onSuccess(TransferStats stats);
+
+    void onError();
+
+    /**
+     * Called at regular intervals whilst reading a file.
+     *
+     * <p>
+     * Called every time
+     * {@link com.miurasystems.miuralibrary.api.utils.GetDeviceFile#MIN_BYTES_BETWEEN_PROGRESS
+     * MIN_BYTES_BETWEEN_PROGRESS}
+     * bytes have been read.
+     * </p>
+     *
+     * <p> <b>Will be called from the async thread</b>.</p>
+     *
+     * @param fraction Current progress amount. Value in range [0.0, 1.0]
+     */
+    void onProgress(float fraction);
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.objects;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An overview of a device's status, collected in one go by
+ * {@link com.miurasystems.miuralibrary.MpiClient#getDeviceSnapshot MpiClient.getDeviceSnapshot}.
+ *
+ * <p>
+ * Each {@link Field} is fetched and parsed separately, so some may have failed whilst the rest
+ * are fine. A failed field's getter returns null.
+ * </p>
+ */
+public final class DeviceSnapshot {
+
+    /** The parts of a snapshot */
+    public enum Field {
+        Battery,
+        SoftwareInfo,
+        Configuration,
+        P2PEStatus,
+        SystemClock,
+    }
+
+    /** Latency of a field answered from the ResponseCache */
+    public static final long FROM_CACHE = 0L;
+
+    /** Latency of a field whose command failed */
+    public static final long FAILED = -1L;
+
+    @Nullable
+    private final BatteryData mBattery;
+    @Nullable
+    private final SoftwareInfo mSoftwareInfo;
+    @Nullable
+    private final Map<String, String> mConfiguration;
+    @Nullable
+    private final P2PEStatus mP2peStatus;
+    @Nullable
+    private final Date mSystemClock;
+    @NonNull
+    private final EnumMap<Field, Long> mLatencyNanos;
+    private final long mTotalNanos;
+
+    /**
+     * @param latencyNanos Each field's time from sending its command to getting its response,
+     *                     or {@link #FROM_CACHE} or {@link #FAILED}
+     * @param totalNanos   The time taken for the whole snapshot
+     */
+    public DeviceSnapshot(
+            @Nullable BatteryData battery,
+            @Nullable SoftwareInfo softwareInfo,
+            @Nullable HashMap<String, String> configuration,
+            @Nullable P2PEStatus p2peStatus,
+            @Nullable Date systemClock,
+            @NonNull Map<Field, Long> latencyNanos,
+            long totalNanos
+    ) {
+        mBattery = battery;
+        mSoftwareInfo = softwareInfo;
+        mConfiguration = configuration == null
+                ? null : Collections.unmodifiableMap(new HashMap<>(configuration));
+        mP2peStatus = p2peStatus;
+        mSystemClock = systemClock == null ? null : new Date(systemClock.getTime());
+        mLatencyNanos = new EnumMap<>(Field.class);
+        for (Field field : Field.values()) {
+            Long latency = latencyNanos.get(field);
+            mLatencyNanos.put(field, latency == null ? FAILED : latency);
+        }
+        mTotalNanos = totalNanos;
+    }
+
+    @Nullable
+    public BatteryData getBattery() {
+        return mBattery;
+    }
+
+    @Nullable
+    public SoftwareInfo getSoftwareInfo() {
+        return mSoftwareInfo;
+    }
+
+    /**
+     * @return The configuration files and their versions, see
+     * {@link com.miurasystems.miuralibrary.MpiClient#getConfiguration()}. Unmodifiable.
+     */
+    @Nullable
+    public Map<String, String> getConfiguration() {
+        return mConfiguration;
+    }
+
+    @Nullable
+    public P2PEStatus getP2peStatus() {
+        return mP2peStatus;
+    }
+
+    @Nullable
+    public Date getSystemClock() {
+        return mSystemClock == null ? null : new Date(mSystemClock.getTime());
+    }
+
+    /**
+     * @param field The field
+     * @return true if the field was fetched and parsed
+     */
+    public boolean isOk(@NonNull Field field) {
+        switch (field) {
+            case Battery:
+                return mBattery != null;
+            case SoftwareInfo:
+                return mSoftwareInfo != null;
+            case Configuration:
+                return mConfiguration != null;
+            case P2PEStatus:
+                return mP2peStatus != null;
+            case SystemClock:
+                return mSystemClock != null;
+            default:
+                throw new AssertionError(field);
+        }
+    }
+
+    /**
+     * @return The fields that failed. Empty if the snapshot is complete.
+     */
+    @NonNull
+    public Set<Field> getFailedFields() {
+        EnumSet<Field> failed = EnumSet.noneOf(Field.class);
+        for (Field field : Field.values()) {
+            if (!isOk(field)) {
+                failed.add(field);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @param field The field
+     * @return The time from sending the field's command to getting its response, in
+     * nanoseconds. {@link #FROM_CACHE} if it didn't need sending, {@link #FAILED} if the
+     * command failed.
+     */
+    public long getLatencyNanos(@NonNull Field field) {
+        return mLatencyNanos.get(field);
+    }
+
+    /**
+     * @return The time taken for the whole snapshot, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceSnapshot{" +
+                "failed=" + getFailedFields() +
+                ", latencyNanos=" + mLatencyNanos +
+                ", totalNanos=" + mTotalNanos +
+                '}';
+    }
+}
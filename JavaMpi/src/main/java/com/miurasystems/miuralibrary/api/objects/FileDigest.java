@@ -0,0 +1,55 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.objects;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.tlv.BinaryUtil;
+
+import java.util.Arrays;
+
+/**
+ * The size and MD5 of a file on a device, as returned by
+ * {@link com.miurasystems.miuralibrary.MpiClient#selectFileWithMd5 MpiClient.selectFileWithMd5}.
+ */
+public final class FileDigest {
+
+    private final int mSize;
+    @NonNull
+    private final byte[] mMd5;
+
+    /**
+     * @param size The file's size
+     * @param md5  The MD5 of the whole file
+     */
+    public FileDigest(int size, @NonNull byte[] md5) {
+        mSize = size;
+        mMd5 = md5.clone();
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return The MD5 of the whole file
+     */
+    @NonNull
+    public byte[] getMd5() {
+        return mMd5.clone();
+    }
+
+    /**
+     * @param md5 An MD5
+     * @return true if it's this file's
+     */
+    public boolean md5Equals(@NonNull byte[] md5) {
+        return Arrays.equals(mMd5, md5);
+    }
+
+    @Override
+    public String toString() {
+        return "FileDigest{size=" + mSize + ", md5=" + BinaryUtil.parseHexString(mMd5) + '}';
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.objects;
+
+import android.support.annotation.NonNull;
+
+/**
+ * What {@link com.miurasystems.miuralibrary.api.utils.DeltaSync DeltaSync} did to bring a
+ * file on a device up to date.
+ */
+public final class FileSyncResult {
+
+    /**
+     * How the file was brought up to date.
+     */
+    public enum Outcome {
+        /** The device already had the file */
+        Unchanged,
+        /** Only the blocks that differed were sent */
+        Delta,
+        /** The whole file was sent */
+        Full,
+        /** The file couldn't be brought up to date */
+        Failed,
+    }
+
+    @NonNull
+    private final Outcome mOutcome;
+    private final long mFileSize;
+    private final long mBytesSent;
+
+    /**
+     * @param outcome   How the file was brought up to date
+     * @param fileSize  The file's size
+     * @param bytesSent The number of bytes of it streamed to the device
+     */
+    public FileSyncResult(@NonNull Outcome outcome, long fileSize, long bytesSent) {
+        mOutcome = outcome;
+        mFileSize = fileSize;
+        mBytesSent = bytesSent;
+    }
+
+    @NonNull
+    public Outcome getOutcome() {
+        return mOutcome;
+    }
+
+    public boolean isSuccess() {
+        return mOutcome != Outcome.Failed;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return How many fewer bytes were sent than uploading the whole file. 0 if it failed.
+     */
+    public long getBytesSaved() {
+        if (mOutcome == Outcome.Failed) {
+            return 0L;
+        }
+        return Math.max(0L, mFileSize - mBytesSent);
+    }
+
+    @Override
+    public String toString() {
+        return "FileSyncResult{" + mOutcome + ", fileSize=" + mFileSize
+                + ", bytesSent=" + mBytesSent + '}';
+    }
+}
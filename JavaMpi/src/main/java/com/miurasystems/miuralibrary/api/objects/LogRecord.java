@@ -0,0 +1,47 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.objects;
+
+import android.support.annotation.NonNull;
+
+/**
+ * One line of a device's system log, as found by
+ * {@link com.miurasystems.miuralibrary.api.utils.SystemLogTailer SystemLogTailer}.
+ */
+public final class LogRecord {
+
+    private final long mOffset;
+    @NonNull
+    private final String mText;
+
+    /**
+     * @param offset Where the line starts in the log file
+     * @param text   The line, without its line ending
+     */
+    public LogRecord(long offset, @NonNull String text) {
+        mOffset = offset;
+        mText = text;
+    }
+
+    /**
+     * @return Where the line starts in the log file. Offsets start again from 0 after the log
+     * is truncated.
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return The line, without its line ending
+     */
+    @NonNull
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public String toString() {
+        return "LogRecord{" + mOffset + ": " + mText + '}';
+    }
+}
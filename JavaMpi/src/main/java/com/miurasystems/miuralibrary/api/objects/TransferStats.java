@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.objects;
+
+import java.util.Locale;
+
+/**
+ * How a file transfer to or from a device went.
+ */
+public final class TransferStats {
+
+    private final long mBytes;
+    private final long mElapsedNanos;
+    private final int mChunks;
+    private final int mErrors;
+    private final int mMaxWindow;
+
+    /**
+     * @param bytes        The number of bytes transferred
+     * @param elapsedNanos The time taken, in nanoseconds
+     * @param chunks       The number of commands that carried data
+     * @param errors       The number of commands that failed and were retried
+     * @param maxWindow    The most commands that were in flight at once
+     */
+    public TransferStats(long bytes, long elapsedNanos, int chunks, int errors, int maxWindow) {
+        mBytes = bytes;
+        mElapsedNanos = elapsedNanos;
+        mChunks = chunks;
+        mErrors = errors;
+        mMaxWindow = maxWindow;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    public int getChunks() {
+        return mChunks;
+    }
+
+    public int getErrors() {
+        return mErrors;
+    }
+
+    public int getMaxWindow() {
+        return mMaxWindow;
+    }
+
+    /**
+     * @return The average throughput, in bytes per second. 0 if nothing took any time.
+     */
+    public long getBytesPerSecond() {
+        if (mElapsedNanos <= 0L) {
+            return 0L;
+        }
+        return (long) (mBytes * 1e9 / mElapsedNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                "TransferStats{bytes=%d, ms=%.1f, bytesPerSecond=%d, chunks=%d, errors=%d, "
+                        + "maxWindow=%d}",
+                mBytes, mElapsedNanos / 1e6, getBytesPerSecond(), mChunks, mErrors, mMaxWindow);
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.api.executor.CommandScheduler;
+import com.miurasystems.miuralibrary.api.objects.FileDigest;
+import com.miurasystems.miuralibrary.api.objects.FileSyncResult;
+import com.miurasystems.miuralibrary.api.objects.FileSyncResult.Outcome;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Brings files on devices up to date by sending only the blocks that have changed.
+ *
+ * <p>
+ * The device can give the MD5 of a whole file, see {@link MpiClient#selectFileWithMd5}, but
+ * not of parts of it. So for each device and file, the MD5 of every block of what was last
+ * synced to it is kept in a small manifest file in the given directory. When a file is synced:
+ * </p>
+ * <ol>
+ * <li>If the device's file already has the local file's size and MD5, nothing is sent.</li>
+ * <li>Otherwise, if the device's file is what the manifest says was last synced, only the
+ * blocks whose MD5 differs from the manifest's, and any new blocks at the end, are streamed,
+ * each to its own Stream_Offset. The device's MD5 is then checked against the local
+ * file's.</li>
+ * <li>Otherwise, e.g. there's no manifest, the local file got shorter, the file was changed on
+ * the device by something else, or the device wouldn't write over the blocks in place, the
+ * whole file is uploaded.</li>
+ * </ol>
+ *
+ * <p>
+ * The bytes not sent are added up for each device, see {@link #getBytesSaved(String)}.
+ * </p>
+ *
+ * <p>
+ * A device without File_md5sum support can't be compared with, so its files are always
+ * uploaded in full.
+ * </p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public final class DeltaSync {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeltaSync.class);
+
+    /** Size of the blocks that are compared, by default */
+    public static final int DEFAULT_BLOCK_SIZE = 0x2000;
+
+    /** Most that's sent in one STREAM BINARY */
+    private static final int MAX_STREAM_SIZE = 0x10000;
+
+    /** STREAM BINARY's offset is 24 bits */
+    private static final long MAX_FILE_SIZE = 0xFFFFFF;
+
+    private static final int STREAM_TIMEOUT = 100;
+
+    private static final int MD5_LENGTH = 16;
+
+    /** "DSM1" */
+    private static final int MAGIC = 0x44534D31;
+    private static final int VERSION = 1;
+
+    @NonNull
+    private final File mDirectory;
+    private final int mBlockSize;
+    @NonNull
+    private final Map<String, Long> mBytesSaved = new HashMap<>();
+
+    /**
+     * Keep manifests in a directory and compare files in blocks of {@link #DEFAULT_BLOCK_SIZE}.
+     *
+     * @param directory The directory. It's created if it doesn't exist.
+     */
+    public DeltaSync(@NonNull File directory) {
+        this(directory, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Keep manifests in a directory.
+     *
+     * @param directory The directory. It's created if it doesn't exist.
+     * @param blockSize Size of the blocks that are compared. Smaller blocks send less when
+     *                  a few bytes change, but make bigger manifests.
+     */
+    public DeltaSync(@NonNull File directory, int blockSize) {
+        if (blockSize < 0x100 || blockSize > MAX_STREAM_SIZE) {
+            throw new IllegalArgumentException("Invalid blockSize: " + blockSize);
+        }
+        mDirectory = directory;
+        mBlockSize = blockSize;
+    }
+
+    /**
+     * The size, MD5 and block MD5s of a file.
+     */
+    private static final class Manifest {
+        final int mBlockSize;
+        final long mLength;
+        @NonNull
+        final byte[] mMd5;
+        @NonNull
+        final byte[][] mBlocks;
+
+        Manifest(int blockSize, long length, @NonNull byte[] md5, @NonNull byte[][] blocks) {
+            mBlockSize = blockSize;
+            mLength = length;
+            mMd5 = md5;
+            mBlocks = blocks;
+        }
+
+        boolean isOnDevice(@NonNull FileDigest device) {
+            return device.getSize() == mLength && device.md5Equals(mMd5);
+        }
+
+        static int blockCount(long length, int blockSize) {
+            return (int) ((length + blockSize - 1) / blockSize);
+        }
+
+        @NonNull
+        static Manifest of(@NonNull FileChannel channel, int blockSize) throws IOException {
+            long length = channel.size();
+            MessageDigest whole = newMd5();
+            MessageDigest block = newMd5();
+            byte[][] blocks = new byte[blockCount(length, blockSize)][];
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+            for (int i = 0; i < blocks.length; i++) {
+                buffer.clear();
+                buffer.limit((int) Math.min(blockSize, length - (long) i * blockSize));
+                long position = (long) i * blockSize;
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("File shorter than expected");
+                    }
+                }
+                buffer.flip();
+                whole.update(buffer.duplicate());
+                block.update(buffer);
+                blocks[i] = block.digest();
+            }
+            return new Manifest(blockSize, length, whole.digest(), blocks);
+        }
+
+        /**
+         * Write to a temporary file, then rename it over the real one, so a crash can't leave
+         * a half-written manifest.
+         */
+        void write(@NonNull File file) throws IOException {
+            File temp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeInt(mBlockSize);
+                out.writeLong(mLength);
+                out.write(mMd5);
+                out.writeInt(mBlocks.length);
+                for (byte[] block : mBlocks) {
+                    out.write(block);
+                }
+            }
+            if (!temp.renameTo(file)) {
+                // Some platforms won't rename over an existing file
+                if (!file.delete() || !temp.renameTo(file)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    temp.delete();
+                    throw new IOException("Can't rename " + temp + " to " + file);
+                }
+            }
+        }
+
+        /**
+         * @throws IOException If the file can't be read or isn't valid
+         */
+        @NonNull
+        static Manifest read(@NonNull File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                    throw new IOException("Not a manifest");
+                }
+                int blockSize = in.readInt();
+                long length = in.readLong();
+                if (blockSize <= 0 || length < 0L || length > MAX_FILE_SIZE) {
+                    throw new IOException("Invalid manifest: " + blockSize + ", " + length);
+                }
+                byte[] md5 = new byte[MD5_LENGTH];
+                in.readFully(md5);
+                int count = in.readInt();
+                if (count != blockCount(length, blockSize)) {
+                    throw new IOException("Invalid block count: " + count);
+                }
+                byte[][] blocks = new byte[count][MD5_LENGTH];
+                for (byte[] block : blocks) {
+                    in.readFully(block);
+                }
+                return new Manifest(blockSize, length, md5, blocks);
+            }
+        }
+    }
+
+    /**
+     * Bring a file on a device up to date with a local file.
+     *
+     * @param client   The client to sync with
+     * @param nad      The device to sync to
+     * @param deviceId Something that identifies the device, e.g. its serial number. Used to
+     *                 keep what was synced to each device apart.
+     * @param fileName The name of the file on the device
+     * @param file     The local file
+     * @param progress Optional progress callback, given the number of bytes sent so far
+     * @return What was done. If it failed, the reason has been logged.
+     */
+    @NonNull
+    public FileSyncResult sync(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType nad,
+            @NonNull String deviceId,
+            @NonNull String fileName,
+            @NonNull File file,
+            @Nullable StreamBinaryFile.ProgressCallback progress
+    ) {
+        long length = file.length();
+        if (!file.isFile() || length > MAX_FILE_SIZE) {
+            LOGGER.warn("Can't sync {}", file);
+            return new FileSyncResult(Outcome.Failed, length, 0L);
+        }
+        File manifestFile = getManifestFile(deviceId, nad, fileName);
+
+        FileSyncResult result;
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            Manifest local = Manifest.of(channel, mBlockSize);
+            result = sync(client, nad, fileName, channel, local, manifestFile, progress);
+        } catch (IOException e) {
+            LOGGER.warn("Exception syncing " + file, e);
+            result = new FileSyncResult(Outcome.Failed, length, 0L);
+        }
+
+        LOGGER.info("sync: {} to {}: {}", fileName, deviceId, result);
+        synchronized (this) {
+            Long saved = mBytesSaved.get(deviceId);
+            mBytesSaved.put(deviceId, (saved == null ? 0L : saved) + result.getBytesSaved());
+        }
+        return result;
+    }
+
+    @NonNull
+    private FileSyncResult sync(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType nad,
+            @NonNull String fileName,
+            @NonNull FileChannel channel,
+            @NonNull Manifest local,
+            @NonNull File manifestFile,
+            @Nullable StreamBinaryFile.ProgressCallback progress
+    ) throws IOException {
+        FileDigest device = client.selectFileWithMd5(nad, fileName);
+        if (device == null) {
+            LOGGER.debug("sync: no MD5 for {}, uploading it all", fileName);
+            boolean ok = StreamBinaryFile.streamChannel(
+                    client, nad, fileName, channel, 0L, local.mLength, progress);
+            return new FileSyncResult(ok ? Outcome.Full : Outcome.Failed,
+                    local.mLength, ok ? local.mLength : 0L);
+        }
+        if (local.isOnDevice(device)) {
+            save(local, manifestFile);
+            return new FileSyncResult(Outcome.Unchanged, local.mLength, 0L);
+        }
+
+        Manifest synced = load(manifestFile);
+        long bytesSent = 0L;
+        if (synced != null && synced.mBlockSize == local.mBlockSize
+                && synced.isOnDevice(device) && local.mLength >= synced.mLength) {
+            /* The file's still selected, in append mode, by selectFileWithMd5 */
+            long sent = sendChangedBlocks(client, nad, channel, local, synced, progress);
+            if (sent >= 0L) {
+                FileDigest updated = client.selectFileWithMd5(nad, fileName);
+                if (updated != null && local.isOnDevice(updated)) {
+                    save(local, manifestFile);
+                    return new FileSyncResult(Outcome.Delta, local.mLength, sent);
+                }
+                LOGGER.info("sync: {} didn't match after sending changed blocks", fileName);
+                bytesSent = sent;
+            }
+        }
+
+        /* Whatever's on the device is unknown from here on */
+        delete(manifestFile);
+        boolean ok = StreamBinaryFile.streamChannel(
+                client, nad, fileName, channel, 0L, local.mLength, progress);
+        FileDigest uploaded = ok ? client.selectFileWithMd5(nad, fileName) : null;
+        if (uploaded == null || !local.isOnDevice(uploaded)) {
+            LOGGER.warn("sync: uploading {} failed, {}", fileName, uploaded);
+            return new FileSyncResult(Outcome.Failed, local.mLength, 0L);
+        }
+        save(local, manifestFile);
+        return new FileSyncResult(Outcome.Full, local.mLength, bytesSent + local.mLength);
+    }
+
+    /**
+     * Stream the blocks of local that differ from synced to their offsets in the device's
+     * file, joining neighbouring ones into one STREAM BINARY.
+     *
+     * @return The number of bytes sent, or -1 if a STREAM BINARY failed
+     */
+    private static long sendChangedBlocks(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType nad,
+            @NonNull FileChannel channel,
+            @NonNull Manifest local,
+            @NonNull Manifest synced,
+            @Nullable StreamBinaryFile.ProgressCallback progress
+    ) {
+        List<long[]> ranges = new ArrayList<>();
+        int blockSize = local.mBlockSize;
+        for (int i = 0; i < local.mBlocks.length; i++) {
+            if (i < synced.mBlocks.length && Arrays.equals(local.mBlocks[i], synced.mBlocks[i])) {
+                continue;
+            }
+            long start = (long) i * blockSize;
+            long end = Math.min(start + blockSize, local.mLength);
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] == start) {
+                last[1] = end;
+            } else {
+                ranges.add(new long[]{start, end});
+            }
+        }
+
+        long bytesSent = 0L;
+        long lastProgress = 0L;
+        for (long[] range : ranges) {
+            for (long offset = range[0]; offset < range[1]; offset += MAX_STREAM_SIZE) {
+                int size = (int) Math.min(MAX_STREAM_SIZE, range[1] - offset);
+                if (!client.streamBinary(
+                        nad, false, channel, offset, (int) offset, size, STREAM_TIMEOUT)) {
+                    LOGGER.info("sync: Stream Binary at {} failed", offset);
+                    return -1L;
+                }
+                bytesSent += size;
+
+                /* Let any transactions queued behind this sync run between chunks */
+                CommandScheduler.yieldToPriorityWork();
+
+                long unreported = bytesSent - lastProgress;
+                if (progress != null
+                        && unreported >= StreamBinaryFile.MIN_BYTES_BETWEEN_PROGRESS) {
+                    progress.onProgress((int) bytesSent);
+                    lastProgress = bytesSent;
+                }
+            }
+        }
+        return bytesSent;
+    }
+
+    /**
+     * @param deviceId A device, as given to {@link #sync}
+     * @return The total bytes not sent to the device, compared with uploading every synced
+     * file in full
+     */
+    public synchronized long getBytesSaved(@NonNull String deviceId) {
+        Long saved = mBytesSaved.get(deviceId);
+        return saved == null ? 0L : saved;
+    }
+
+    /**
+     * @return {@link #getBytesSaved(String)} for every device synced to
+     */
+    @NonNull
+    public synchronized Map<String, Long> getBytesSaved() {
+        return new HashMap<>(mBytesSaved);
+    }
+
+    @NonNull
+    private File getManifestFile(
+            @NonNull String deviceId,
+            @NonNull InterfaceType nad,
+            @NonNull String fileName
+    ) {
+        String safeId = deviceId.replaceAll("[^A-Za-z0-9_-]", "_");
+        String safeName = fileName.replaceAll("[^A-Za-z0-9_.-]", "_");
+        return new File(mDirectory, "sync-" + safeId + "-" + nad.name() + "-" + safeName);
+    }
+
+    @Nullable
+    private synchronized Manifest load(@NonNull File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return Manifest.read(file);
+        } catch (IOException e) {
+            LOGGER.info("load: can't read {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    private synchronized void save(@NonNull Manifest manifest, @NonNull File file) {
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Can't create " + mDirectory);
+            }
+            manifest.write(file);
+        } catch (IOException e) {
+            // The next sync of this file will upload it all, but this one still worked
+            LOGGER.info("save: failed: {}", e.toString());
+        }
+    }
+
+    private synchronized void delete(@NonNull File file) {
+        if (!file.delete() && file.exists()) {
+            LOGGER.warn("Can't delete {}", file);
+        }
+    }
+
+    @NonNull
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No MD5", e);
+        }
+    }
+}
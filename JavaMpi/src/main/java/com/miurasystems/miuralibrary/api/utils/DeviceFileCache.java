@@ -0,0 +1,496 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.WindowedFileReader;
+import com.miurasystems.miuralibrary.api.objects.FileDigest;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+import com.miurasystems.miuralibrary.tlv.BinaryUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps copies of files downloaded from devices on disk, so that downloading one again
+ * needn't read it from the device if it hasn't changed.
+ *
+ * <p>
+ * {@link #getDeviceFile} works like {@link GetDeviceFile#getDeviceFile}, but first selects the
+ * file with {@link MpiClient#selectFileWithMd5}. If the cache has a copy of that file, from
+ * that device, with the same size and MD5, the copy is returned and nothing else is sent to
+ * the device. Otherwise the file is downloaded and a copy kept.
+ * </p>
+ *
+ * <p>
+ * If the device doesn't return File_md5sum, files are selected with
+ * {@link SelectFileMode#Append} and a copy is only matched by its size. Only use the cache
+ * with such devices for files that can't change without changing size.
+ * </p>
+ *
+ * <p>
+ * Copies are kept in a directory, named by the MD5 of their content, so the same file on many
+ * devices, e.g. a certificate, is only kept once. An index says which device's file each copy
+ * is of. When the copies take up more than the cache's max size, the least recently used are
+ * deleted. Each copy's MD5 is checked when it's read back, so a damaged one is treated as a
+ * miss.
+ * </p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public final class DeviceFileCache {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceFileCache.class);
+
+    /** The most bytes of copies kept, by default */
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024L * 1024L;
+
+    private static final String INDEX = "index.bin";
+
+    /** "DFC1" */
+    private static final int MAGIC = 0x44464331;
+    private static final int VERSION = 1;
+
+    /** Sanity limit for reading the index */
+    private static final int MAX_ENTRIES = 0x10000;
+
+    private static final int MD5_LENGTH = 16;
+
+    /**
+     * A cached copy of one device's file.
+     */
+    private static final class Entry {
+        @NonNull
+        final String mDeviceId;
+        @NonNull
+        final InterfaceType mNad;
+        @NonNull
+        final String mFileName;
+        final int mSize;
+        /** The MD5 of the content, which names the copy */
+        @NonNull
+        final byte[] mMd5;
+
+        Entry(
+                @NonNull String deviceId,
+                @NonNull InterfaceType nad,
+                @NonNull String fileName,
+                int size,
+                @NonNull byte[] md5
+        ) {
+            mDeviceId = deviceId;
+            mNad = nad;
+            mFileName = fileName;
+            mSize = size;
+            mMd5 = md5;
+        }
+
+        @NonNull
+        String getKey() {
+            return key(mDeviceId, mNad, mFileName);
+        }
+
+        @NonNull
+        String getBlobName() {
+            return "blob-" + BinaryUtil.parseHexString(mMd5) + ".bin";
+        }
+    }
+
+    @NonNull
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /** The entries, least recently used first. Null until loaded. Guarded by this. */
+    @Nullable
+    private LinkedHashMap<String, Entry> mEntries;
+
+    private long mHits;
+    private long mMisses;
+    private long mBytesSaved;
+
+    /**
+     * Create a cache that keeps its copies in a directory, up to {@link #DEFAULT_MAX_BYTES}.
+     *
+     * @param directory The directory. It's created if it doesn't exist.
+     */
+    public DeviceFileCache(@NonNull File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Create a cache that keeps its copies in a directory.
+     *
+     * @param directory The directory. It's created if it doesn't exist.
+     * @param maxBytes  The most bytes of copies to keep. Files bigger than this aren't cached.
+     */
+    public DeviceFileCache(@NonNull File directory, long maxBytes) {
+        if (maxBytes <= 0L) {
+            throw new IllegalArgumentException("maxBytes must be > 0");
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    @NonNull
+    private static String key(
+            @NonNull String deviceId,
+            @NonNull InterfaceType nad,
+            @NonNull String fileName
+    ) {
+        return deviceId + '\0' + nad.name() + '\0' + fileName;
+    }
+
+    /**
+     * Get a file from a device, or from the cache if it hasn't changed.
+     *
+     * @param client   The client to use
+     * @param nad      The device
+     * @param deviceId Something that identifies the device, e.g. its serial number
+     * @param fileName The file to get
+     * @param progress Optional progress callback, only called if the file is downloaded
+     * @return The file, or null if it's empty, doesn't exist or couldn't be downloaded
+     */
+    @Nullable
+    public byte[] getDeviceFile(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType nad,
+            @NonNull String deviceId,
+            @NonNull String fileName,
+            @Nullable GetDeviceFile.ProgressCallback progress
+    ) {
+        FileDigest digest = client.selectFileWithMd5(nad, fileName);
+        int size = digest != null
+                ? digest.getSize()
+                : client.selectFile(nad, SelectFileMode.Append, fileName);
+        if (size <= 0) {
+            return null;
+        }
+
+        byte[] cached = lookup(deviceId, nad, fileName, size, digest);
+        if (cached != null) {
+            return cached;
+        }
+
+        /* The file's still selected, so carry on as GetDeviceFile would */
+        byte[] data = new WindowedFileReader(client, nad).read(size, progress);
+        if (data == null) {
+            return null;
+        }
+        byte[] md5 = md5(data);
+        if (digest != null && !digest.md5Equals(md5)) {
+            // e.g. the file changed whilst it was being read
+            LOGGER.info("getDeviceFile: {} doesn't match {}, not caching it", fileName, digest);
+            return data;
+        }
+        store(new Entry(deviceId, nad, fileName, size, md5), data);
+        return data;
+    }
+
+    /**
+     * @return The cached copy of the file, or null if there isn't one that matches
+     */
+    @Nullable
+    private synchronized byte[] lookup(
+            @NonNull String deviceId,
+            @NonNull InterfaceType nad,
+            @NonNull String fileName,
+            int size,
+            @Nullable FileDigest digest
+    ) {
+        LinkedHashMap<String, Entry> entries = getEntries();
+        Entry entry = entries.get(key(deviceId, nad, fileName));
+        if (entry == null || entry.mSize != size
+                || (digest != null && !digest.md5Equals(entry.mMd5))) {
+            mMisses++;
+            return null;
+        }
+
+        byte[] data = readBlob(entry);
+        if (data == null) {
+            entries.remove(entry.getKey());
+            deleteUnusedBlob(entry);
+            saveIndex();
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mBytesSaved += size;
+        LOGGER.debug("lookup: {} from cache", fileName);
+        return data;
+    }
+
+    /**
+     * Keep a copy of a file, then delete the least recently used copies until the cache fits.
+     */
+    private synchronized void store(@NonNull Entry entry, @NonNull byte[] data) {
+        if (data.length > mMaxBytes) {
+            return;
+        }
+        LinkedHashMap<String, Entry> entries = getEntries();
+        Entry old = entries.remove(entry.getKey());
+
+        File blob = new File(mDirectory, entry.getBlobName());
+        try {
+            if (!blob.exists()) {
+                writeAtomically(blob, data);
+            }
+            entries.put(entry.getKey(), entry);
+        } catch (IOException e) {
+            LOGGER.info("store: failed: {}", e.toString());
+        }
+        if (old != null) {
+            deleteUnusedBlob(old);
+        }
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (getBytesStored(entries) > mMaxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            deleteUnusedBlob(evicted);
+            LOGGER.debug("store: evicted {}", evicted.mFileName);
+        }
+        saveIndex();
+    }
+
+    /**
+     * @return The bytes taken by the distinct copies
+     */
+    private static long getBytesStored(@NonNull Map<String, Entry> entries) {
+        Map<String, Integer> blobs = new LinkedHashMap<>();
+        for (Entry entry : entries.values()) {
+            blobs.put(entry.getBlobName(), entry.mSize);
+        }
+        long bytes = 0L;
+        for (int size : blobs.values()) {
+            bytes += size;
+        }
+        return bytes;
+    }
+
+    /**
+     * Delete an entry's copy, unless another entry has the same content. Call with this held.
+     */
+    private void deleteUnusedBlob(@NonNull Entry removed) {
+        for (Entry entry : getEntries().values()) {
+            if (Arrays.equals(entry.mMd5, removed.mMd5)) {
+                return;
+            }
+        }
+        File blob = new File(mDirectory, removed.getBlobName());
+        if (!blob.delete() && blob.exists()) {
+            LOGGER.warn("Can't delete {}", blob);
+        }
+    }
+
+    /**
+     * @return The entry's copy, or null if it's missing or damaged
+     */
+    @Nullable
+    private byte[] readBlob(@NonNull Entry entry) {
+        File blob = new File(mDirectory, entry.getBlobName());
+        if (blob.length() != entry.mSize) {
+            return null;
+        }
+        byte[] data = new byte[entry.mSize];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(blob))) {
+            in.readFully(data);
+        } catch (IOException e) {
+            LOGGER.info("readBlob: can't read {}: {}", blob, e.toString());
+            return null;
+        }
+        if (!Arrays.equals(md5(data), entry.mMd5)) {
+            LOGGER.warn("readBlob: {} is damaged", blob);
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * @return The entries, reading the index if it hasn't been. Call with this held.
+     */
+    @NonNull
+    private LinkedHashMap<String, Entry> getEntries() {
+        if (mEntries == null) {
+            mEntries = new LinkedHashMap<>(16, 0.75f, true);
+            File index = new File(mDirectory, INDEX);
+            if (index.exists()) {
+                try {
+                    readIndex(index, mEntries);
+                } catch (IOException | IllegalArgumentException e) {
+                    LOGGER.info("Ignoring index {}: {}", index, e.toString());
+                    mEntries.clear();
+                }
+            }
+        }
+        return mEntries;
+    }
+
+    private static void readIndex(
+            @NonNull File index,
+            @NonNull LinkedHashMap<String, Entry> entries
+    ) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(index)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) {
+                throw new IOException("Not an index");
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ENTRIES) {
+                throw new IOException("Invalid count: " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                String deviceId = in.readUTF();
+                InterfaceType nad = InterfaceType.valueOf(in.readUTF());
+                String fileName = in.readUTF();
+                int size = in.readInt();
+                byte[] md5 = new byte[MD5_LENGTH];
+                in.readFully(md5);
+                Entry entry = new Entry(deviceId, nad, fileName, size, md5);
+                entries.put(entry.getKey(), entry);
+            }
+        }
+    }
+
+    /**
+     * Save the entries, least recently used first. Call with this held.
+     */
+    private void saveIndex() {
+        File index = new File(mDirectory, INDEX);
+        File temp = new File(mDirectory, INDEX + ".tmp");
+        try {
+            ensureDirectory();
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeInt(getEntries().size());
+                for (Entry entry : getEntries().values()) {
+                    out.writeUTF(entry.mDeviceId);
+                    out.writeUTF(entry.mNad.name());
+                    out.writeUTF(entry.mFileName);
+                    out.writeInt(entry.mSize);
+                    out.write(entry.mMd5);
+                }
+            }
+            rename(temp, index);
+        } catch (IOException e) {
+            LOGGER.info("saveIndex: failed: {}", e.toString());
+        }
+    }
+
+    /**
+     * Write to a temporary file, then rename it, so a crash can't leave a half-written file.
+     */
+    private void writeAtomically(@NonNull File file, @NonNull byte[] data) throws IOException {
+        ensureDirectory();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+        }
+        rename(temp, file);
+    }
+
+    private static void rename(@NonNull File temp, @NonNull File file) throws IOException {
+        if (!temp.renameTo(file)) {
+            // Some platforms won't rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                throw new IOException("Can't rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    private void ensureDirectory() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+    }
+
+    /**
+     * Forget every cached copy.
+     */
+    public synchronized void clear() {
+        LinkedHashMap<String, Entry> entries = getEntries();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            deleteUnusedBlob(entry);
+        }
+        saveIndex();
+    }
+
+    /**
+     * @return The number of files cached
+     */
+    public synchronized int size() {
+        return getEntries().size();
+    }
+
+    /**
+     * @return The bytes taken by the cached copies
+     */
+    public synchronized long getBytesStored() {
+        return getBytesStored(getEntries());
+    }
+
+    /**
+     * @return The number of files returned from the cache
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return The number of files that had to be downloaded
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return The proportion of files returned from the cache, or 0 if none have been got
+     */
+    public synchronized double getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0L ? 0.0 : (double) mHits / total;
+    }
+
+    /**
+     * @return The bytes that didn't have to be downloaded
+     */
+    public synchronized long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    @NonNull
+    private static byte[] md5(@NonNull byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No MD5", e);
+        }
+    }
+}
@@ -7,13 +7,29 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.miurasystems.miuralibrary.MpiClient;
-import com.miurasystems.miuralibrary.comms.ResponseMessage;
+import com.miurasystems.miuralibrary.WindowedFileReader;
+import com.miurasystems.miuralibrary.api.objects.TransferStats;
 import com.miurasystems.miuralibrary.enums.InterfaceType;
 import com.miurasystems.miuralibrary.enums.SelectFileMode;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
 public final class GetDeviceFile {
 
-    private static final int MAX_BYTES_TO_READ = 252;
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(GetDeviceFile.class);
+
+    private static final int MAX_BYTES_TO_READ = WindowedFileReader.MAX_CHUNK_SIZE;
 
     /** Number of bytes that we can read between progress calls */
     public static final int MIN_BYTES_BETWEEN_PROGRESS = MAX_BYTES_TO_READ * 8;
@@ -35,39 +51,113 @@ public final class GetDeviceFile {
             return null;
         }
 
-        byte[] contentBytes = new byte[fileSize];
-        int offset = 0;
-        int progressBytes = 0;
+        /* Keep several chunks in flight, see WindowedFileReader */
+        return new WindowedFileReader(client, interfaceType).read(fileSize, progress);
+    }
+
+    /**
+     * Download a file, writing each part to a channel as it arrives.
+     *
+     * <p>
+     * Unlike {@link #getDeviceFile}, the file isn't held in memory, so large files can be
+     * downloaded from many devices at once. The channel is not closed.
+     * </p>
+     *
+     * @param client        The client to download with
+     * @param interfaceType The device to download from
+     * @param fileName      The file to download
+     * @param out           Where to write the file
+     * @param progress      Optional progress callback
+     * @return How long the download took etc., or null if it failed. If it failed, part of
+     * the file may have been written to out.
+     */
+    @Nullable
+    public static TransferStats streamDeviceFile(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType interfaceType,
+            @NonNull String fileName,
+            @NonNull WritableByteChannel out,
+            @Nullable ProgressCallback progress
+    ) {
+        int fileSize = client.selectFile(interfaceType, SelectFileMode.Append, fileName);
+        if (fileSize <= 0) {
+            return null;
+        }
 
-        while (offset < fileSize) {
-            int numToRead = Math.min(MAX_BYTES_TO_READ, fileSize - offset);
+        WindowedFileReader reader = new WindowedFileReader(client, interfaceType);
+        if (!reader.read(fileSize, out, progress)) {
+            return null;
+        }
+        return reader.getStats();
+    }
 
-            ResponseMessage responseMessage = client.readBinary(
-                    interfaceType, fileSize, offset, numToRead);
-            if (responseMessage == null
-                    || !responseMessage.isSuccess()
-                    || responseMessage.getBody().length < 1) {
-                return null;
+    /**
+     * Download a file, writing each part to a stream as it arrives.
+     *
+     * <p>
+     * See {@link #streamDeviceFile(MpiClient, InterfaceType, String, WritableByteChannel,
+     * ProgressCallback)}. The stream is neither flushed nor closed.
+     * </p>
+     */
+    @Nullable
+    public static TransferStats streamDeviceFile(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType interfaceType,
+            @NonNull String fileName,
+            @NonNull OutputStream out,
+            @Nullable ProgressCallback progress
+    ) {
+        return streamDeviceFile(
+                client, interfaceType, fileName, Channels.newChannel(out), progress);
+    }
+
+    /**
+     * Download a file to a local file, which is memory mapped and written as each part
+     * arrives.
+     *
+     * @param client        The client to download with
+     * @param interfaceType The device to download from
+     * @param fileName      The file to download
+     * @param file          The local file to write. Replaced if it exists, and deleted if the
+     *                      download fails.
+     * @param progress      Optional progress callback
+     * @return How long the download took etc., or null if it failed
+     */
+    @Nullable
+    public static TransferStats downloadDeviceFile(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType interfaceType,
+            @NonNull String fileName,
+            @NonNull File file,
+            @Nullable ProgressCallback progress
+    ) {
+        int fileSize = client.selectFile(interfaceType, SelectFileMode.Append, fileName);
+        if (fileSize <= 0) {
+            return null;
+        }
+
+        WindowedFileReader reader = new WindowedFileReader(client, interfaceType);
+        boolean ok;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(fileSize);
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0L, fileSize);
+            ok = reader.read(fileSize, buffer, progress);
+            if (ok) {
+                buffer.force();
             }
+        } catch (IOException e) {
+            LOGGER.warn("Exception writing " + file, e);
+            ok = false;
+        }
 
-            byte[] packet = responseMessage.getBody();
-            int dataSize = packet.length;
-            System.arraycopy(packet, 0, contentBytes, offset, dataSize);
-            offset += dataSize;
-
-            /* Only call the progress callback for larger files. */
-            if (progress != null) {
-                progressBytes += dataSize;
-
-                if (progressBytes >= MIN_BYTES_BETWEEN_PROGRESS) {
-                    float totalBytes = (float) fileSize;
-                    float readBytes = (float) offset;
-                    progress.onProgress(readBytes / totalBytes);
-                    progressBytes = 0;
-                }
+        if (!ok) {
+            if (!file.delete()) {
+                LOGGER.info("Can't delete {}", file);
             }
+            return null;
         }
-        return contentBytes;
+        return reader.getStats();
     }
 
     public interface ProgressCallback {
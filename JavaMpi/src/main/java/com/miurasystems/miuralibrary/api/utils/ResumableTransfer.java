@@ -0,0 +1,451 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.WindowedFileReader;
+import com.miurasystems.miuralibrary.api.executor.CommandScheduler;
+import com.miurasystems.miuralibrary.api.objects.FileDigest;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+import com.miurasystems.miuralibrary.tlv.BinaryUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Uploads and downloads that carry on from where they stopped, and are checked with MD5.
+ *
+ * <p>
+ * As a transfer goes, how far it's got and the MD5 of what's been transferred so far are
+ * saved to a checkpoint file. If the transfer fails, e.g. because the device was
+ * disconnected, call the same method again with the same checkpoint file once reconnected.
+ * It carries on from the checkpoint, rather than from the start, if:
+ * </p>
+ * <ul>
+ * <li>for an upload, the file on the device, selected with
+ * {@link MpiClient#selectFileWithMd5}, has the same MD5 as the same length of the local
+ * file, and the local file hasn't changed since the checkpoint was saved. The upload carries
+ * on from the end of the file on the device.</li>
+ * <li>for a download, the file on the device has the same size and MD5 as when the download
+ * started, and the local file still starts with what the checkpoint says was downloaded.</li>
+ * </ul>
+ *
+ * <p>
+ * When the transfer's finished, the whole file's MD5 is checked against the device's. The
+ * checkpoint file is deleted once the transfer has succeeded, or once it's found to be wrong,
+ * so that the next attempt starts again.
+ * </p>
+ *
+ * <p>Needs a device that returns File_md5sum when a file's selected with
+ * {@link SelectFileMode#AppendWithMD5Response}.</p>
+ */
+public final class ResumableTransfer {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResumableTransfer.class);
+
+    /** Size of each STREAM BINARY in an upload. A checkpoint is saved after each one. */
+    public static final int UPLOAD_CHUNK_SIZE = 0x10000;
+
+    /** A download's checkpoint is saved every this many bytes */
+    public static final int DOWNLOAD_CHECKPOINT_INTERVAL = 0x8000;
+
+    /** STREAM BINARY's offset is 24 bits */
+    private static final long MAX_FILE_SIZE = 0xFFFFFF;
+
+    private static final int STREAM_TIMEOUT = 100;
+
+    private static final int HASH_BUFFER_SIZE = 0x8000;
+
+    private static final String UPLOAD = "upload";
+    private static final String DOWNLOAD = "download";
+
+    private ResumableTransfer() {
+
+    }
+
+    /**
+     * How far a transfer had got, as saved in its checkpoint file.
+     */
+    private static final class Checkpoint {
+        @NonNull
+        final String mDirection;
+        @NonNull
+        final String mDeviceFile;
+        /** The local file's length and modification time, for uploads */
+        final long mLocalLength;
+        final long mLocalModified;
+        /** The device file's size and MD5, for downloads */
+        final long mDeviceSize;
+        @NonNull
+        final String mDeviceMd5;
+
+        long mOffset;
+        @NonNull
+        String mMd5 = "";
+
+        Checkpoint(
+                @NonNull String direction,
+                @NonNull String deviceFile,
+                long localLength,
+                long localModified,
+                long deviceSize,
+                @NonNull String deviceMd5
+        ) {
+            mDirection = direction;
+            mDeviceFile = deviceFile;
+            mLocalLength = localLength;
+            mLocalModified = localModified;
+            mDeviceSize = deviceSize;
+            mDeviceMd5 = deviceMd5;
+        }
+
+        boolean sameTransfer(@NonNull Checkpoint other) {
+            return mDirection.equals(other.mDirection)
+                    && mDeviceFile.equals(other.mDeviceFile)
+                    && mLocalLength == other.mLocalLength
+                    && mLocalModified == other.mLocalModified
+                    && mDeviceSize == other.mDeviceSize
+                    && mDeviceMd5.equals(other.mDeviceMd5);
+        }
+
+        /**
+         * @return The checkpoint saved in file, or null if there isn't a valid one
+         */
+        @Nullable
+        static Checkpoint load(@NonNull File file) {
+            if (!file.isFile()) {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (FileInputStream in = new FileInputStream(file)) {
+                properties.load(in);
+                Checkpoint checkpoint = new Checkpoint(
+                        properties.getProperty("direction", ""),
+                        properties.getProperty("deviceFile", ""),
+                        Long.parseLong(properties.getProperty("localLength", "")),
+                        Long.parseLong(properties.getProperty("localModified", "")),
+                        Long.parseLong(properties.getProperty("deviceSize", "")),
+                        properties.getProperty("deviceMd5", ""));
+                checkpoint.mOffset = Long.parseLong(properties.getProperty("offset", ""));
+                checkpoint.mMd5 = properties.getProperty("md5", "");
+                return checkpoint;
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.debug("Ignoring checkpoint {}: {}", file, e.toString());
+                return null;
+            }
+        }
+
+        /**
+         * Save the checkpoint, so that it's either all written or not at all.
+         */
+        void save(@NonNull File file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("direction", mDirection);
+            properties.setProperty("deviceFile", mDeviceFile);
+            properties.setProperty("localLength", Long.toString(mLocalLength));
+            properties.setProperty("localModified", Long.toString(mLocalModified));
+            properties.setProperty("deviceSize", Long.toString(mDeviceSize));
+            properties.setProperty("deviceMd5", mDeviceMd5);
+            properties.setProperty("offset", Long.toString(mOffset));
+            properties.setProperty("md5", mMd5);
+
+            File temp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, null);
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(file)) {
+                // Some platforms won't rename over an existing file
+                if (!file.delete() || !temp.renameTo(file)) {
+                    throw new IOException("Can't save checkpoint " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Upload a local file to a device, carrying on from the checkpoint if there is one.
+     *
+     * @param client     The client to upload with
+     * @param nad        The device to upload to
+     * @param fileName   The name of the file on the device
+     * @param file       The local file to upload
+     * @param checkpoint Where to keep how far the upload has got
+     * @param progress   Optional progress callback
+     * @return true if the whole file was uploaded and its MD5 checked. If false, the reason has
+     * been logged, and it can be called again to carry on.
+     */
+    public static boolean upload(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType nad,
+            @NonNull String fileName,
+            @NonNull File file,
+            @NonNull File checkpoint,
+            @Nullable StreamBinaryFile.ProgressCallback progress
+    ) {
+        long length = file.length();
+        if (!file.isFile() || length > MAX_FILE_SIZE) {
+            LOGGER.warn("Can't upload {}", file);
+            return false;
+        }
+        Checkpoint current = new Checkpoint(
+                UPLOAD, fileName, length, file.lastModified(), -1L, "");
+        Checkpoint saved = Checkpoint.load(checkpoint);
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            MessageDigest md5 = newMd5();
+
+            int offset = 0;
+            FileDigest device = client.selectFileWithMd5(nad, fileName);
+            if (saved != null && saved.sameTransfer(current)
+                    && device != null && device.getSize() > 0 && device.getSize() <= length) {
+                offset = checkPrefix(channel, md5, saved, device);
+            }
+            if (offset == 0) {
+                md5.reset();
+                if (client.selectFile(nad, SelectFileMode.Truncate, fileName) < 0) {
+                    return false;
+                }
+            } else {
+                LOGGER.info("upload: carrying on with {} from {}", fileName, offset);
+            }
+            save(current, offset, md5, checkpoint);
+
+            int lastProgress = offset;
+            while (offset < length) {
+                int size = (int) Math.min(UPLOAD_CHUNK_SIZE, length - offset);
+                if (!client.streamBinary(
+                        nad, false, channel, offset, offset, size, STREAM_TIMEOUT)) {
+                    LOGGER.debug("upload: Stream Binary at {} failed", offset);
+                    return false;
+                }
+                hash(channel, md5, offset, offset + size);
+                offset += size;
+                save(current, offset, md5, checkpoint);
+
+                /* Let any transactions queued behind this upload run between chunks */
+                CommandScheduler.yieldToPriorityWork();
+
+                if (progress != null
+                        && offset - lastProgress >= StreamBinaryFile.MIN_BYTES_BETWEEN_PROGRESS) {
+                    progress.onProgress(offset);
+                    lastProgress = offset;
+                }
+            }
+
+            FileDigest uploaded = client.selectFileWithMd5(nad, fileName);
+            if (uploaded == null) {
+                LOGGER.debug("upload: can't get {}'s MD5", fileName);
+                return false;
+            }
+            return verify(uploaded, (int) length, md5.digest(), checkpoint);
+        } catch (IOException e) {
+            LOGGER.warn("Exception uploading " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Download a file from a device, carrying on from the checkpoint if there is one.
+     *
+     * @param client     The client to download with
+     * @param nad        The device to download from
+     * @param fileName   The name of the file on the device
+     * @param file       Where to put the file. Overwritten unless the download carries on.
+     * @param checkpoint Where to keep how far the download has got
+     * @param progress   Optional progress callback
+     * @return true if the whole file was downloaded and its MD5 checked. If false, the reason
+     * has been logged, and it can be called again to carry on.
+     */
+    public static boolean download(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType nad,
+            @NonNull String fileName,
+            @NonNull File file,
+            @NonNull File checkpoint,
+            @Nullable GetDeviceFile.ProgressCallback progress
+    ) {
+        FileDigest device = client.selectFileWithMd5(nad, fileName);
+        if (device == null) {
+            return false;
+        }
+        final Checkpoint current = new Checkpoint(DOWNLOAD, fileName, -1L, -1L,
+                device.getSize(), BinaryUtil.parseHexString(device.getMd5()));
+        Checkpoint saved = Checkpoint.load(checkpoint);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final FileChannel channel = raf.getChannel();
+            final MessageDigest md5 = newMd5();
+
+            int offset = 0;
+            if (saved != null && saved.sameTransfer(current)
+                    && saved.mOffset <= channel.size()) {
+                hash(channel, md5, 0L, saved.mOffset);
+                if (BinaryUtil.parseHexString(snapshot(md5)).equals(saved.mMd5)) {
+                    offset = (int) saved.mOffset;
+                    LOGGER.info("download: carrying on with {} from {}", fileName, offset);
+                } else {
+                    md5.reset();
+                }
+            }
+            channel.truncate(offset);
+            channel.position(offset);
+            save(current, offset, md5, checkpoint);
+
+            final File checkpointFile = checkpoint;
+            WritableByteChannel out = new WritableByteChannel() {
+                private int mUnsaved;
+
+                @Override
+                public int write(@NonNull ByteBuffer src) throws IOException {
+                    ByteBuffer hashed = src.duplicate();
+                    int length = channel.write(src);
+                    hashed.limit(hashed.position() + length);
+                    md5.update(hashed);
+                    mUnsaved += length;
+                    if (mUnsaved >= DOWNLOAD_CHECKPOINT_INTERVAL) {
+                        // what the checkpoint covers must be on disk first
+                        channel.force(false);
+                        save(current, channel.position(), md5, checkpointFile);
+                        mUnsaved = 0;
+                    }
+                    return length;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+
+            WindowedFileReader reader = new WindowedFileReader(client, nad);
+            if (!reader.read(device.getSize(), offset, out, progress)) {
+                return false;
+            }
+            channel.force(false);
+            return verify(device, device.getSize(), md5.digest(), checkpoint);
+        } catch (IOException e) {
+            LOGGER.warn("Exception downloading to " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Check the start of the local file matches the device's file and the checkpoint.
+     *
+     * @return How much of the file the device already has, or 0 to start again
+     */
+    private static int checkPrefix(
+            @NonNull FileChannel channel,
+            @NonNull MessageDigest md5,
+            @NonNull Checkpoint saved,
+            @NonNull FileDigest device
+    ) throws IOException {
+        long checkpointOffset = Math.min(saved.mOffset, device.getSize());
+        hash(channel, md5, 0L, checkpointOffset);
+        if (checkpointOffset == saved.mOffset
+                && !BinaryUtil.parseHexString(snapshot(md5)).equals(saved.mMd5)) {
+            LOGGER.debug("upload: local file has changed since the checkpoint");
+            return 0;
+        }
+        hash(channel, md5, checkpointOffset, device.getSize());
+        if (!device.md5Equals(snapshot(md5))) {
+            LOGGER.debug("upload: device's file doesn't match, {}", device);
+            return 0;
+        }
+        return device.getSize();
+    }
+
+    private static boolean verify(
+            @NonNull FileDigest device,
+            int size,
+            @NonNull byte[] md5,
+            @NonNull File checkpoint
+    ) {
+        boolean ok = device.getSize() == size && device.md5Equals(md5);
+        if (!ok) {
+            LOGGER.warn("Transfer failed MD5 check: {} != {}",
+                    device, BinaryUtil.parseHexString(md5));
+        }
+        if (!checkpoint.delete() && checkpoint.exists()) {
+            LOGGER.warn("Can't delete checkpoint {}", checkpoint);
+        }
+        return ok;
+    }
+
+    private static void save(
+            @NonNull Checkpoint checkpoint,
+            long offset,
+            @NonNull MessageDigest md5,
+            @NonNull File file
+    ) throws IOException {
+        checkpoint.mOffset = offset;
+        checkpoint.mMd5 = BinaryUtil.parseHexString(snapshot(md5));
+        checkpoint.save(file);
+    }
+
+    private static void hash(
+            @NonNull FileChannel channel,
+            @NonNull MessageDigest md5,
+            long from,
+            long to
+    ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        long position = from;
+        while (position < to) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("File shorter than expected");
+            }
+            buffer.flip();
+            md5.update(buffer);
+            position += n;
+        }
+    }
+
+    /**
+     * @return The digest of what md5 has been given so far, leaving it to carry on
+     */
+    @NonNull
+    private static byte[] snapshot(@NonNull MessageDigest md5) {
+        try {
+            return ((MessageDigest) md5.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("MD5 can't be cloned", e);
+        }
+    }
+
+    @NonNull
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No MD5", e);
+        }
+    }
+}
@@ -7,14 +7,18 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.api.executor.CommandScheduler;
 import com.miurasystems.miuralibrary.enums.InterfaceType;
 import com.miurasystems.miuralibrary.enums.SelectFileMode;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * Class used to handle streaming a file to a device.
@@ -30,6 +34,9 @@ public final class StreamBinaryFile {
 
     private static final int MAX_BYTES_TO_WRITE = 0x20000;
 
+    /** STREAM BINARY's offset is 24 bits */
+    private static final long MAX_FILE_SIZE = 0xFFFFFF;
+
     private StreamBinaryFile() {
 
     }
@@ -41,6 +48,18 @@ public final class StreamBinaryFile {
             @NonNull InputStream fileInStream,
             @Nullable ProgressCallback progress) {
 
+        if (fileInStream instanceof FileInputStream) {
+            /* Send the rest of the file straight from its channel, rather than via the heap */
+            try (FileChannel channel = ((FileInputStream) fileInStream).getChannel()) {
+                long position = channel.position();
+                return streamChannel(client, interfaceType, fileName, channel,
+                        position, channel.size() - position, progress);
+            } catch (IOException e) {
+                LOGGER.warn("Exception reading fileInStream", e);
+                return false;
+            }
+        }
+
         int pedFileSize = client.selectFile(interfaceType, SelectFileMode.Truncate, fileName);
         if (pedFileSize < 0) {
             return false;
@@ -80,6 +99,92 @@ public final class StreamBinaryFile {
             }
             bytesSent += bytesToSend;
 
+            /* Let any transactions queued behind this upload run between chunks */
+            CommandScheduler.yieldToPriorityWork();
+
+            /* Only call the progress callback for larger files. */
+            if (progress != null) {
+                progressBytes += bytesToSend;
+
+                if (progressBytes >= MIN_BYTES_BETWEEN_PROGRESS) {
+                    progress.onProgress(bytesSent);
+                    progressBytes = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream a local file to a device, without reading it into the heap.
+     *
+     * <p>
+     * Each chunk is sent straight from the file, see
+     * {@link com.miurasystems.miuralibrary.comms.Connector#getOutputChannel()}, so memory use
+     * doesn't depend on the file's size.
+     * </p>
+     *
+     * @param client        The client to stream with
+     * @param interfaceType The device to stream to
+     * @param fileName      The name of the file on the device. It's truncated first.
+     * @param file          The local file to send
+     * @param progress      Optional progress callback
+     * @return true if the whole file was sent
+     */
+    public static boolean streamBinaryFile(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType interfaceType,
+            @NonNull String fileName,
+            @NonNull File file,
+            @Nullable ProgressCallback progress) {
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            return streamChannel(
+                    client, interfaceType, fileName, channel, 0L, channel.size(), progress);
+        } catch (IOException e) {
+            LOGGER.warn("Exception reading " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Truncate the file on the device and stream length bytes of channel to it, from position.
+     */
+    static boolean streamChannel(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType interfaceType,
+            @NonNull String fileName,
+            @NonNull FileChannel channel,
+            long position,
+            long length,
+            @Nullable ProgressCallback progress) {
+
+        if (length > MAX_FILE_SIZE) {
+            LOGGER.warn("File too large to stream: {} bytes", length);
+            return false;
+        }
+
+        int pedFileSize = client.selectFile(interfaceType, SelectFileMode.Truncate, fileName);
+        if (pedFileSize < 0) {
+            return false;
+        }
+
+        int bytesSent = 0;
+        int progressBytes = 0;
+
+        while (bytesSent < length) {
+            int bytesToSend = (int) Math.min(MAX_BYTES_TO_WRITE, length - bytesSent);
+            boolean success = client.streamBinary(interfaceType, false,
+                    channel, position + bytesSent, bytesSent, bytesToSend, 100);
+            if (!success) {
+                LOGGER.debug("Error on Stream Binary command");
+                return false;
+            }
+            bytesSent += bytesToSend;
+
+            /* Let any transactions queued behind this upload run between chunks */
+            CommandScheduler.yieldToPriorityWork();
+
             /* Only call the progress callback for larger files. */
             if (progress != null) {
                 progressBytes += bytesToSend;
@@ -90,6 +195,7 @@ public final class StreamBinaryFile {
                 }
             }
         }
+        return true;
     }
 
     public interface ProgressCallback {
@@ -0,0 +1,312 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.WindowedFileReader;
+import com.miurasystems.miuralibrary.api.objects.LogRecord;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+import com.miurasystems.miuralibrary.enums.SystemLogMode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Follows the system logs of many devices, reading only what's been added since the last poll.
+ *
+ * <p>
+ * {@link com.miurasystems.miuralibrary.api.executor.MiuraManager#getSystemLog MiuraManager
+ * .getSystemLog} downloads the whole log each time. Instead, {@link #poll} remembers how far
+ * it got in each device's log, and reads on from there. Each complete line read is passed to
+ * the {@link Listener} as a {@link LogRecord}. A line that hasn't been finished yet is kept
+ * until it is.
+ * </p>
+ *
+ * <p>
+ * If a log gets shorter, e.g. it was removed with
+ * {@link com.miurasystems.miuralibrary.api.executor.MiuraManager#deleteLog MiuraManager
+ * .deleteLog}, it's read again from the start. So that a log that was replaced by a longer
+ * one is noticed too, each poll also reads back the last {@link #FINGERPRINT_SIZE} bytes of
+ * the previous one and checks they haven't changed. A log replaced by one of exactly the same
+ * size isn't noticed until it grows.
+ * </p>
+ *
+ * <p>
+ * Devices are told apart by an ID chosen by the caller, e.g. their serial number. Offsets are
+ * only kept in memory.
+ * </p>
+ *
+ * <p>This class is thread safe. Different devices can be polled at the same time.</p>
+ */
+public final class SystemLogTailer {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SystemLogTailer.class);
+
+    /** How much of the log is read again to check it's the same log */
+    public static final int FINGERPRINT_SIZE = 32;
+
+    /** Longer lines are split into several records */
+    public static final int MAX_RECORD_LENGTH = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives a log's records. Called on the polling thread.
+     */
+    public interface Listener {
+        /**
+         * @param deviceId The device, as given to {@link #poll}
+         * @param record   The next line of its log
+         */
+        void onRecord(@NonNull String deviceId, @NonNull LogRecord record);
+
+        /**
+         * The log was truncated or replaced, and will be read again from the start.
+         *
+         * @param deviceId       The device, as given to {@link #poll}
+         * @param previousOffset How far the old log had been read
+         */
+        void onTruncated(@NonNull String deviceId, long previousOffset);
+    }
+
+    /**
+     * How far a device's log has been read.
+     */
+    private static final class DeviceLog {
+        long mOffset;
+        @NonNull
+        byte[] mFingerprint = new byte[0];
+        @NonNull
+        final ByteArrayOutputStream mPartial = new ByteArrayOutputStream();
+        long mPartialOffset;
+    }
+
+    @NonNull
+    private final HashMap<String, DeviceLog> mDevices = new HashMap<>();
+
+    /**
+     * Read what's been added to a device's system log since the last poll.
+     *
+     * <p>
+     * Costs a SYSTEM LOG, a SELECT FILE, and enough READ BINARYs for the new part of the log.
+     * </p>
+     *
+     * @param client   The client connected to the device
+     * @param nad      The device
+     * @param deviceId An ID for the device, e.g. its serial number
+     * @param listener Given each new record
+     * @return The number of new bytes read, or -1 if the log couldn't be read. Records passed
+     * to the listener before a failure aren't passed to it again.
+     */
+    public int poll(
+            @NonNull MpiClient client,
+            @NonNull InterfaceType nad,
+            @NonNull String deviceId,
+            @NonNull Listener listener
+    ) {
+        if (!client.systemLog(nad, SystemLogMode.Archive)) {
+            return -1;
+        }
+        String fileName = (nad == InterfaceType.MPI) ? "mpi.log" : "rpi.log";
+        int fileSize = client.selectFile(nad, SelectFileMode.Append, fileName);
+        if (fileSize < 0) {
+            return -1;
+        }
+
+        DeviceLog log = getDeviceLog(deviceId);
+        synchronized (log) {
+            if (fileSize < log.mOffset) {
+                truncated(deviceId, log, listener);
+            }
+            if (fileSize == log.mOffset) {
+                return 0;
+            }
+
+            long previousOffset = log.mOffset;
+            int start = (int) log.mOffset - log.mFingerprint.length;
+            RecordChannel channel = new RecordChannel(deviceId, log, listener);
+            WindowedFileReader reader = new WindowedFileReader(client, nad);
+            if (!reader.read(fileSize, start, channel, null)) {
+                return -1;
+            }
+
+            if (channel.mReplaced) {
+                LOGGER.debug("poll: {}'s log was replaced", deviceId);
+                truncated(deviceId, log, listener);
+                previousOffset = 0L;
+                channel = new RecordChannel(deviceId, log, listener);
+                if (!reader.read(fileSize, 0, channel, null)) {
+                    return -1;
+                }
+            }
+            return (int) (log.mOffset - previousOffset);
+        }
+    }
+
+    /**
+     * @param deviceId The device
+     * @return How far the device's log has been read, 0 if it hasn't been polled
+     */
+    public long getOffset(@NonNull String deviceId) {
+        DeviceLog log;
+        synchronized (mDevices) {
+            log = mDevices.get(deviceId);
+        }
+        if (log == null) {
+            return 0L;
+        }
+        synchronized (log) {
+            return log.mOffset;
+        }
+    }
+
+    /**
+     * Forget how far a device's log has been read, so the next poll reads all of it.
+     *
+     * @param deviceId The device
+     */
+    public void forget(@NonNull String deviceId) {
+        synchronized (mDevices) {
+            mDevices.remove(deviceId);
+        }
+    }
+
+    @NonNull
+    private DeviceLog getDeviceLog(@NonNull String deviceId) {
+        synchronized (mDevices) {
+            DeviceLog log = mDevices.get(deviceId);
+            if (log == null) {
+                log = new DeviceLog();
+                mDevices.put(deviceId, log);
+            }
+            return log;
+        }
+    }
+
+    private static void truncated(
+            @NonNull String deviceId,
+            @NonNull DeviceLog log,
+            @NonNull Listener listener
+    ) {
+        // the old log's unfinished line won't be finished now
+        if (log.mPartial.size() > 0) {
+            emitPartial(deviceId, log, listener);
+        }
+        long previousOffset = log.mOffset;
+        log.mOffset = 0L;
+        log.mFingerprint = new byte[0];
+        listener.onTruncated(deviceId, previousOffset);
+    }
+
+    private static void emitPartial(
+            @NonNull String deviceId,
+            @NonNull DeviceLog log,
+            @NonNull Listener listener
+    ) {
+        byte[] line = log.mPartial.toByteArray();
+        int length = line.length;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        log.mPartial.reset();
+        listener.onRecord(deviceId, new LogRecord(
+                log.mPartialOffset, new String(line, 0, length, UTF_8)));
+    }
+
+    /**
+     * Checks the fingerprint, then splits the rest of what's read into records.
+     */
+    private static final class RecordChannel implements WritableByteChannel {
+        @NonNull
+        private final String mDeviceId;
+        @NonNull
+        private final DeviceLog mLog;
+        @NonNull
+        private final Listener mListener;
+        @NonNull
+        private final byte[] mExpected;
+        private int mChecked;
+        boolean mReplaced;
+
+        RecordChannel(
+                @NonNull String deviceId,
+                @NonNull DeviceLog log,
+                @NonNull Listener listener
+        ) {
+            mDeviceId = deviceId;
+            mLog = log;
+            mListener = listener;
+            mExpected = log.mFingerprint;
+        }
+
+        @Override
+        public int write(@NonNull ByteBuffer src) {
+            int length = src.remaining();
+            if (mReplaced) {
+                // the caller reads it again from the start
+                src.position(src.limit());
+                return length;
+            }
+
+            while (src.hasRemaining() && mChecked < mExpected.length) {
+                if (src.get() != mExpected[mChecked++]) {
+                    mReplaced = true;
+                    src.position(src.limit());
+                    return length;
+                }
+            }
+
+            byte[] data = new byte[src.remaining()];
+            src.get(data);
+            for (byte b : data) {
+                if (mLog.mPartial.size() == 0) {
+                    mLog.mPartialOffset = mLog.mOffset;
+                }
+                mLog.mOffset++;
+                if (b == '\n') {
+                    emitPartial(mDeviceId, mLog, mListener);
+                } else {
+                    mLog.mPartial.write(b);
+                    if (mLog.mPartial.size() >= MAX_RECORD_LENGTH) {
+                        emitPartial(mDeviceId, mLog, mListener);
+                    }
+                }
+            }
+            mLog.mFingerprint = lastBytes(mLog.mFingerprint, data);
+            return length;
+        }
+
+        @NonNull
+        private static byte[] lastBytes(@NonNull byte[] previous, @NonNull byte[] data) {
+            if (data.length >= FINGERPRINT_SIZE) {
+                return Arrays.copyOfRange(data, data.length - FINGERPRINT_SIZE, data.length);
+            }
+            int keep = Math.min(previous.length, FINGERPRINT_SIZE - data.length);
+            byte[] bytes = new byte[keep + data.length];
+            System.arraycopy(previous, previous.length - keep, bytes, 0, keep);
+            System.arraycopy(data, 0, bytes, keep, data.length);
+            return bytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
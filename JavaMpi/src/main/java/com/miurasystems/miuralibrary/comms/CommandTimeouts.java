@@ -0,0 +1,338 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.comms;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link MpiProtocolSession#receiveResponse} waits for each {@link CommandType}.
+ *
+ * <p>
+ * Each Connector has one policy, see {@link Connector#getCommandTimeouts()}. Every command type
+ * is in one of three modes:
+ * </p>
+ * <ul>
+ * <li><b>Unbounded</b>: wait forever. Used for commands that wait for the customer, e.g.
+ * {@link CommandType#Start_Transaction} and {@link CommandType#Get_Numeric_Data}. These are
+ * ended with an ABORT rather than a timeout.</li>
+ * <li><b>Fixed</b>: a set timeout. Used for commands whose time depends on their data rather
+ * than the link, e.g. {@link CommandType#Stream_Binary} and printing. A STREAM BINARY's
+ * timeout starts once its binary stream has been written, so it doesn't include the time
+ * taken to send the stream.</li>
+ * <li><b>Adaptive</b>: the default. The timeout is learned from the latencies of the last
+ * {@link #WINDOW_SIZE} responses of that type: {@link #getP99Multiplier()} times their 99th
+ * percentile, kept between {@link #getMinimumMillis()} and {@link #getMaximumMillis()}. Until
+ * {@link #MIN_SAMPLES} have been seen, {@link #getInitialMillis()} is used.</li>
+ * </ul>
+ *
+ * <p>
+ * A {@link CommandType#Select_File} in {@link SelectFileMode#AppendWithMD5Response} mode makes
+ * the device hash the whole file, so it takes as long as the file is large. Rather than
+ * Select_File's timeout it has its own fixed one, {@link #getMd5SelectMillis()}, and its
+ * latency isn't learned from.
+ * </p>
+ *
+ * <p>
+ * Commands that aren't a known CommandType are never timed out.
+ * </p>
+ *
+ * <p>
+ * A timeout closes the session. Responses aren't tagged with the command they answer, so a
+ * late response can't be told apart from the next command's, and carrying on would leave every
+ * following response one command out of step. See {@link MpiProtocolSession#receiveResponse}.
+ * </p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public final class CommandTimeouts {
+
+    /** A timeout value meaning "wait forever" */
+    public static final long UNBOUNDED = 0L;
+
+    /** The number of recent latencies kept for each adaptive command type */
+    public static final int WINDOW_SIZE = 128;
+
+    /** The number of latencies needed before the adaptive timeout is used */
+    public static final int MIN_SAMPLES = 16;
+
+    private static final long DEFAULT_INITIAL_MS = 30000L;
+    private static final long DEFAULT_MINIMUM_MS = 2000L;
+    private static final long DEFAULT_MAXIMUM_MS = 60000L;
+    private static final int DEFAULT_P99_MULTIPLIER = 4;
+
+    /** For commands that move a lot of data or do slow work on the device */
+    private static final long LONG_RUNNING_MS = 120000L;
+
+    /** For printing, which depends on the length of the text/image */
+    private static final long PRINTING_MS = 60000L;
+
+    /** For SELECT FILE with an MD5, which depends on the size of the file */
+    private static final long MD5_SELECT_MS = LONG_RUNNING_MS;
+
+    /**
+     * The recent latencies of one adaptive command type.
+     */
+    private static final class LatencyWindow {
+        @NonNull
+        private final long[] mSamples = new long[WINDOW_SIZE];
+        private int mCount;
+        private int mNext;
+        /** Cached p99. -1 if it needs recalculating */
+        private long mP99Nanos = -1L;
+
+        void add(long nanos) {
+            mSamples[mNext] = nanos;
+            mNext = (mNext + 1) % WINDOW_SIZE;
+            if (mCount < WINDOW_SIZE) {
+                mCount++;
+            }
+            mP99Nanos = -1L;
+        }
+
+        int count() {
+            return mCount;
+        }
+
+        long p99Nanos() {
+            if (mP99Nanos < 0L) {
+                long[] sorted = Arrays.copyOf(mSamples, mCount);
+                Arrays.sort(sorted);
+                int index = (mCount * 99 + 99) / 100 - 1;
+                mP99Nanos = sorted[Math.max(0, index)];
+            }
+            return mP99Nanos;
+        }
+    }
+
+    /** Fixed and unbounded timeouts. Types not in here are adaptive. Guarded by this. */
+    @NonNull
+    private final EnumMap<CommandType, Long> mFixed;
+
+    /** The latency windows of the adaptive types. Guarded by this. */
+    @NonNull
+    private final EnumMap<CommandType, LatencyWindow> mLatencies;
+
+    private long mInitialMillis;
+    private long mMinimumMillis;
+    private long mMaximumMillis;
+    private int mP99Multiplier;
+    private long mMd5SelectMillis;
+
+    /**
+     * Create a policy with the default timeouts.
+     */
+    public CommandTimeouts() {
+        mFixed = new EnumMap<>(CommandType.class);
+        mLatencies = new EnumMap<>(CommandType.class);
+        mInitialMillis = DEFAULT_INITIAL_MS;
+        mMinimumMillis = DEFAULT_MINIMUM_MS;
+        mMaximumMillis = DEFAULT_MAXIMUM_MS;
+        mP99Multiplier = DEFAULT_P99_MULTIPLIER;
+        mMd5SelectMillis = MD5_SELECT_MS;
+
+        CommandType[] userInteraction = {
+                CommandType.Start_Transaction,
+                CommandType.Continue_Transaction,
+                CommandType.Start_Contactless_Transaction,
+                CommandType.Online_PIN,
+                CommandType.Get_Numeric_Data,
+                CommandType.Get_Dynamic_Tip,
+                CommandType.Get_Secure_PAN,
+        };
+        for (CommandType type : userInteraction) {
+            mFixed.put(type, UNBOUNDED);
+        }
+
+        CommandType[] longRunning = {
+                CommandType.Reset_Device,
+                CommandType.Stream_Binary,
+                CommandType.System_Log,
+                CommandType.P2PE_Initialise,
+                CommandType.P2PE_Import,
+        };
+        for (CommandType type : longRunning) {
+            mFixed.put(type, LONG_RUNNING_MS);
+        }
+
+        CommandType[] printing = {
+                CommandType.Spool_print,
+                CommandType.Print_Text,
+                CommandType.Print_Image,
+                CommandType.print_ESCPOS,
+        };
+        for (CommandType type : printing) {
+            mFixed.put(type, PRINTING_MS);
+        }
+    }
+
+    /**
+     * Get the timeout to use for a command.
+     *
+     * @param type The command's type, or null if it isn't a known CommandType
+     * @return The timeout in milliseconds, or {@link #UNBOUNDED}
+     */
+    public synchronized long getTimeoutMillis(@Nullable CommandType type) {
+        if (type == null) {
+            return UNBOUNDED;
+        }
+        Long fixed = mFixed.get(type);
+        if (fixed != null) {
+            return fixed;
+        }
+
+        LatencyWindow window = mLatencies.get(type);
+        if (window == null || window.count() < MIN_SAMPLES) {
+            return mInitialMillis;
+        }
+        long p99Millis = TimeUnit.NANOSECONDS.toMillis(window.p99Nanos());
+        long timeout = p99Millis * mP99Multiplier;
+        return Math.max(mMinimumMillis, Math.min(mMaximumMillis, timeout));
+    }
+
+    /**
+     * Is a command a SELECT FILE that asks for the file's MD5?
+     *
+     * @param command The command APDU, including the CLA/INS/P1/P2 header
+     * @return true if it's timed by {@link #getMd5SelectMillis()}
+     */
+    public static boolean isMd5Select(@NonNull byte[] command) {
+        return command.length > 2
+                && CommandType.valueOf(command[0], command[1]) == CommandType.Select_File
+                && (command[2] & 0xFF) == SelectFileMode.AppendWithMD5Response.getValue();
+    }
+
+    /**
+     * Record how long a command took to get its response.
+     *
+     * <p>Only affects adaptive command types.</p>
+     *
+     * @param type         The command's type
+     * @param latencyNanos The time between sending the command and receiving its response
+     */
+    public synchronized void recordLatency(@NonNull CommandType type, long latencyNanos) {
+        if (mFixed.containsKey(type)) {
+            return;
+        }
+        LatencyWindow window = mLatencies.get(type);
+        if (window == null) {
+            window = new LatencyWindow();
+            mLatencies.put(type, window);
+        }
+        window.add(latencyNanos);
+    }
+
+    /**
+     * Get the 99th percentile latency of the recent responses to a command type.
+     *
+     * @param type The command type
+     * @return The p99 in milliseconds, or -1 if fewer than {@link #MIN_SAMPLES} have been seen
+     */
+    public synchronized long getP99Millis(@NonNull CommandType type) {
+        LatencyWindow window = mLatencies.get(type);
+        if (window == null || window.count() < MIN_SAMPLES) {
+            return -1L;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(window.p99Nanos());
+    }
+
+    /**
+     * Give a command type a fixed timeout.
+     *
+     * @param type          The command type
+     * @param timeoutMillis The timeout in milliseconds, or {@link #UNBOUNDED}
+     */
+    public synchronized void setFixed(@NonNull CommandType type, long timeoutMillis) {
+        if (timeoutMillis < 0L) {
+            throw new IllegalArgumentException("timeoutMillis must be >= 0");
+        }
+        mFixed.put(type, timeoutMillis);
+        mLatencies.remove(type);
+    }
+
+    /**
+     * Never time out a command type.
+     *
+     * @param type The command type
+     */
+    public void setUnbounded(@NonNull CommandType type) {
+        setFixed(type, UNBOUNDED);
+    }
+
+    /**
+     * Learn a command type's timeout from its latency. This is the default for most types.
+     *
+     * @param type The command type
+     */
+    public synchronized void setAdaptive(@NonNull CommandType type) {
+        mFixed.remove(type);
+    }
+
+    /**
+     * Set the limits used for adaptive command types.
+     *
+     * @param initialMillis The timeout used until enough latencies have been seen
+     * @param minimumMillis The shortest timeout, however fast the responses
+     * @param maximumMillis The longest timeout, however slow the responses
+     * @param p99Multiplier The timeout is this times the p99 latency
+     */
+    public synchronized void setAdaptiveLimits(
+            long initialMillis,
+            long minimumMillis,
+            long maximumMillis,
+            int p99Multiplier
+    ) {
+        if (minimumMillis <= 0L || maximumMillis < minimumMillis
+                || initialMillis <= 0L || p99Multiplier < 1) {
+            throw new IllegalArgumentException("Invalid adaptive limits");
+        }
+        mInitialMillis = initialMillis;
+        mMinimumMillis = minimumMillis;
+        mMaximumMillis = maximumMillis;
+        mP99Multiplier = p99Multiplier;
+    }
+
+    public synchronized long getInitialMillis() {
+        return mInitialMillis;
+    }
+
+    public synchronized long getMinimumMillis() {
+        return mMinimumMillis;
+    }
+
+    public synchronized long getMaximumMillis() {
+        return mMaximumMillis;
+    }
+
+    public synchronized int getP99Multiplier() {
+        return mP99Multiplier;
+    }
+
+    /**
+     * @return The timeout of a SELECT FILE that asks for an MD5, see {@link #isMd5Select}.
+     * In milliseconds, or {@link #UNBOUNDED}.
+     */
+    public synchronized long getMd5SelectMillis() {
+        return mMd5SelectMillis;
+    }
+
+    /**
+     * Set the timeout of a SELECT FILE that asks for an MD5, see {@link #isMd5Select}.
+     *
+     * @param timeoutMillis The timeout in milliseconds, or {@link #UNBOUNDED}
+     */
+    public synchronized void setMd5SelectMillis(long timeoutMillis) {
+        if (timeoutMillis < 0L) {
+            throw new IllegalArgumentException("timeoutMillis must be >= 0");
+        }
+        mMd5SelectMillis = timeoutMillis;
+    }
+}
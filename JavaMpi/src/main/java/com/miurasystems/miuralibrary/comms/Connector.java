@@ -15,6 +15,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 
 /**
@@ -103,6 +104,18 @@ public abstract class Connector {
     @Nullable
     private MpiProtocolSession mSession;
 
+    /**
+     * Records the traffic of this Connector's sessions.
+     */
+    @NonNull
+    private final FlightRecorder mFlightRecorder = new FlightRecorder();
+
+    /**
+     * How long this Connector's sessions wait for each command's response.
+     */
+    @NonNull
+    private final CommandTimeouts mCommandTimeouts = new CommandTimeouts();
+
     /**
      * Open a new session on a Connector.
      * <p>
@@ -158,6 +171,31 @@ public abstract class Connector {
         return mSession;
     }
 
+    /**
+     * Get the flight recorder that records the most recent traffic on this Connector.
+     *
+     * <p>See {@link FlightRecorder}. Set its dump directory to have recordings written
+     * automatically when a session fails.
+     *
+     * @return The Connector's flight recorder
+     */
+    @NonNull
+    public final FlightRecorder getFlightRecorder() {
+        return mFlightRecorder;
+    }
+
+    /**
+     * Get the timeout policy used by this Connector's sessions.
+     *
+     * <p>See {@link CommandTimeouts}. The latencies it learns carry over between sessions.
+     *
+     * @return The Connector's command timeouts
+     */
+    @NonNull
+    public final CommandTimeouts getCommandTimeouts() {
+        return mCommandTimeouts;
+    }
+
     /**
      * Closes any currently open session.
      *
@@ -346,4 +384,24 @@ public abstract class Connector {
      */
     @NonNull
     protected abstract OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Return a channel that writes to the same place as {@link #getOutputStream()}, if the
+     * Connector has one, e.g. a {@link java.nio.channels.SocketChannel SocketChannel}.
+     *
+     * <p>
+     * Files streamed to the device are sent with {@link java.nio.channels.FileChannel#transferTo
+     * FileChannel.transferTo} to this channel, which can avoid copying them through the heap.
+     * If there's no channel, they're written to the output stream in memory mapped slices.
+     * </p>
+     *
+     * <p>The same rules as {@link #getOutputStream()} apply. The default returns null.</p>
+     *
+     * @return A valid output channel, or null if the Connector doesn't have one.
+     * @throws IOException If there was a problem opening the output channel.
+     */
+    @Nullable
+    protected WritableByteChannel getOutputChannel() throws IOException {
+        return null;
+    }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.comms;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.tlv.BinaryUtil;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVObject;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads a {@link FlightRecorder} dump and renders it as text.
+ *
+ * <p>The Examples project has a command line tool, FlightRecordPrinter, that prints dump files.
+ *
+ * <p>
+ * Each packet is shown on one line, followed by the TLV data it carries, where enough of
+ * the APDU was recorded to decode it. e.g.
+ * </p>
+ * <pre>
+ * 10:15:02.125031  MPI -&gt; D0 00 Reset_Device                len 5    d000000000
+ * 10:15:02.163170  MPI &lt;- 9000                  pcb 00 len 180  e181b1...
+ *     E1 Response_Data
+ *         9F1E Interface_Device_Serial_Number: 3134343332383835 "14432885"
+ * </pre>
+ */
+public final class FlightRecordDecoder {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * A decoded flight record
+     */
+    public static final class Record {
+
+        /** When the record was made, in microseconds since the epoch */
+        public final long timeMicros;
+
+        /** When the record was made, System.nanoTime() of the recording process */
+        public final long nanoTime;
+
+        /** What the record is of */
+        @NonNull
+        public final FlightRecorder.Kind kind;
+
+        /** The packet's NAD */
+        public final int nad;
+
+        /** The packet's PCB */
+        public final int pcb;
+
+        /** The full length of the APDU, or event text */
+        public final int length;
+
+        /** The command id, status word or event. See {@link FlightRecorder.Kind} */
+        public final int id;
+
+        /** The recorded start of the APDU or event text */
+        @NonNull
+        public final byte[] payload;
+
+        Record(long timeMicros, long nanoTime, @NonNull FlightRecorder.Kind kind,
+                int nad, int pcb, int length, int id, @NonNull byte[] payload) {
+            this.timeMicros = timeMicros;
+            this.nanoTime = nanoTime;
+            this.kind = kind;
+            this.nad = nad;
+            this.pcb = pcb;
+            this.length = length;
+            this.id = id;
+            this.payload = payload;
+        }
+
+        /**
+         * @return true if only the start of the APDU was recorded
+         */
+        public boolean isTruncated() {
+            return payload.length < length;
+        }
+
+        /**
+         * @return The NAD as an InterfaceType, or null if it's not a valid NAD
+         */
+        @Nullable
+        public InterfaceType getNodeAddress() {
+            return InterfaceType.valueOf((byte) nad);
+        }
+
+        /**
+         * @return The session event, or null if this is not an event record
+         */
+        @Nullable
+        public FlightRecorder.Event getEvent() {
+            FlightRecorder.Event[] events = FlightRecorder.Event.values();
+            if (kind != FlightRecorder.Kind.Event || id >= events.length) {
+                return null;
+            }
+            return events[id];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            render(this, sb);
+            return sb.toString();
+        }
+    }
+
+    private FlightRecordDecoder() {
+    }
+
+    /**
+     * Decode a flight recording, as written by {@link FlightRecorder#dump}
+     *
+     * @param stream The dump
+     * @return The records, oldest first
+     * @throws IOException If the stream fails or isn't a flight recording
+     */
+    @NonNull
+    public static List<Record> decode(@NonNull InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[FlightRecorder.MAGIC.length];
+        in.readFully(magic);
+        boolean wideLength = Arrays.equals(magic, FlightRecorder.MAGIC);
+        if (!wideLength && !Arrays.equals(magic, FlightRecorder.MAGIC_V1)) {
+            throw new IOException("Not a flight recording");
+        }
+        int headerSize = wideLength
+                ? FlightRecorder.RECORD_HEADER_SIZE : FlightRecorder.RECORD_HEADER_SIZE_V1;
+        int recordSize = in.readUnsignedShort();
+        int count = in.readInt();
+        long dumpMillis = in.readLong();
+        long dumpNanos = in.readLong();
+        if (recordSize < headerSize || count < 0) {
+            throw new IOException("Invalid flight recording header");
+        }
+
+        FlightRecorder.Kind[] kinds = FlightRecorder.Kind.values();
+        byte[] record = new byte[recordSize];
+        List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            in.readFully(record);
+            DataInputStream r = new DataInputStream(new ByteArrayInputStream(record));
+            long nanoTime = r.readLong();
+            int kind = r.readUnsignedByte();
+            int nad = r.readUnsignedByte();
+            int pcb = r.readUnsignedByte();
+            int length = wideLength ? r.readInt() : r.readUnsignedShort();
+            int id = r.readUnsignedShort();
+            int captured = r.readUnsignedByte();
+            if (kind >= kinds.length || length < 0 || captured > recordSize - headerSize) {
+                throw new IOException("Invalid flight record " + i);
+            }
+            byte[] payload = new byte[captured];
+            r.readFully(payload);
+
+            long timeMicros = dumpMillis * 1000L - (dumpNanos - nanoTime) / 1000L;
+            records.add(new Record(
+                    timeMicros, nanoTime, kinds[kind], nad, pcb, length, id, payload));
+        }
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Render records as text, one line per record plus any TLV data.
+     *
+     * @param records The records to render
+     * @param out     Where to write the text
+     */
+    public static void render(@NonNull List<Record> records, @NonNull StringBuilder out) {
+        for (Record record : records) {
+            render(record, out);
+        }
+    }
+
+    /**
+     * Render a single record
+     *
+     * @param record The record
+     * @param out    Where to write the text
+     */
+    static void render(@NonNull Record record, @NonNull StringBuilder out) {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.ENGLISH);
+        out.append(format.format(new Date(record.timeMicros / 1000L)));
+        out.append(String.format(Locale.ENGLISH, "%03d  ", record.timeMicros % 1000L));
+
+        InterfaceType nad = record.getNodeAddress();
+        String nadName = nad != null ? nad.name() : String.format("%02x", record.nad);
+        switch (record.kind) {
+            case Command: {
+                CommandType type = CommandType.valueOf(record.id >> 8, record.id & 0xFF);
+                out.append(String.format(Locale.ENGLISH, "%-4s-> %02X %02X %-27s len %-4d ",
+                        nadName, record.id >> 8, record.id & 0xFF,
+                        type != null ? type.name() : "?", record.length));
+                appendHex(record, out);
+                // CLA INS P1 P2 Lc data...
+                if (!record.isTruncated() && record.payload.length > 5) {
+                    int lc = record.payload[4] & 0xFF;
+                    if (5 + lc <= record.payload.length) {
+                        appendTlv(Arrays.copyOfRange(record.payload, 5, 5 + lc), out);
+                    }
+                }
+                break;
+            }
+            case Response: {
+                String sw = record.id != 0 ? String.format("%04X", record.id) : "....";
+                boolean unsolicited = (record.pcb & 0x40) != 0;
+                out.append(String.format(Locale.ENGLISH, "%-4s<- %-4s %-16s pcb %02x len %-4d ",
+                        nadName, sw, unsolicited ? "unsolicited" : "", record.pcb, record.length));
+                appendHex(record, out);
+                boolean chained = (record.pcb & 0x01) != 0;
+                if (!chained && !record.isTruncated() && record.payload.length > 2) {
+                    appendTlv(Arrays.copyOf(record.payload, record.payload.length - 2), out);
+                } else if (record.payload.length > 2) {
+                    appendTlv(record.payload, out);
+                }
+                break;
+            }
+            case Stream:
+                out.append(String.format(Locale.ENGLISH, "%-4s-> %-33s len %-4d ",
+                        nadName, "stream", record.length));
+                appendHex(record, out);
+                break;
+            case Event:
+                FlightRecorder.Event event = record.getEvent();
+                out.append("** ").append(event != null ? event.name() : "Event " + record.id);
+                if (record.payload.length > 0) {
+                    out.append(": ").append(new String(record.payload, US_ASCII));
+                }
+                out.append('\n');
+                break;
+        }
+    }
+
+    private static void appendHex(Record record, StringBuilder out) {
+        out.append(BinaryUtil.parseHexString(record.payload));
+        if (record.isTruncated()) {
+            out.append("...");
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Decode data as TLV and append it, if it is TLV.
+     *
+     * <p>Truncated or non-TLV data is silently skipped; the hex has already been shown.
+     */
+    private static void appendTlv(byte[] data, StringBuilder out) {
+        List<TLVObject> tlvs;
+        try {
+            tlvs = TLVParser.decode(data);
+        } catch (RuntimeException ignore) {
+            return;
+        }
+        StringBuilder tlvText = new StringBuilder();
+        for (TLVObject tlv : tlvs) {
+            if (!appendTlv(tlv, 1, tlvText)) {
+                return;
+            }
+        }
+        out.append(tlvText);
+    }
+
+    private static boolean appendTlv(TLVObject tlv, int depth, StringBuilder out) {
+        Description description = tlv.getTag().description;
+        if (description == Description.UNKNOWN) {
+            // most likely not TLV at all
+            return false;
+        }
+        for (int i = 0; i < depth; i++) {
+            out.append("    ");
+        }
+        out.append(Integer.toHexString(tlv.getTag().getTagID()).toUpperCase(Locale.ENGLISH));
+        out.append(' ').append(description.name());
+        if (tlv.isConstructed() && tlv.getConstrustedTLV() != null) {
+            out.append('\n');
+            for (TLVObject child : tlv.getConstrustedTLV()) {
+                if (!appendTlv(child, depth + 1, out)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        byte[] value = tlv.getRawData();
+        out.append(": ").append(BinaryUtil.parseHexString(value));
+        if (value.length > 0 && !tlv.isRawData()) {
+            out.append(" \"").append(new String(value, US_ASCII)).append('"');
+        }
+        out.append('\n');
+        return true;
+    }
+}
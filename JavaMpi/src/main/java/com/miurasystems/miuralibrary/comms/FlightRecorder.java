@@ -0,0 +1,419 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.comms;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * An always-on, fixed size recording of the most recent MPI protocol traffic.
+ *
+ * <p>
+ * Trace logging every packet is too expensive to leave on in production, so by the time a
+ * device problem is noticed the interesting traffic is gone. The flight recorder instead keeps
+ * the last {@link #getCapacity()} packets and session events in a ring of small binary records:
+ * a timestamp, the direction, NAD, PCB, length, command/status word and the first
+ * {@link #MAX_PAYLOAD} bytes of the APDU. Recording a packet is a handful of array writes
+ * under a lock that is only ever contended whilst a dump copies the ring, and nothing is
+ * formatted until the recording is dumped.
+ * </p>
+ * <p>
+ * Each {@link Connector} owns a FlightRecorder, see {@link Connector#getFlightRecorder()},
+ * which lasts across sessions. It is dumped to {@link #setDumpDirectory(File) the dump
+ * directory}, if one has been set, whenever a session closes due to an error or the
+ * input poller stops unexpectedly. The ring is copied at that moment, but the file is written
+ * on a background thread so the session isn't held up by the disk.
+ * It can also be dumped on demand with {@link #dump(OutputStream)} or
+ * {@link #dumpToFile(String)}.
+ * Use {@link FlightRecordDecoder} to read a dump.
+ * </p>
+ *
+ * <h3>Dump format</h3>
+ * <pre>
+ *     magic "MFR2", u16 record size, u32 record count,
+ *     u64 wall clock ms at dump, u64 System.nanoTime at dump,
+ *     then count records, oldest first:
+ *       u64 nanoTime, u8 kind, u8 nad, u8 pcb, u32 length, u16 id, u8 payload length,
+ *       payload, zero padded to the record size
+ * </pre>
+ * All values are big-endian. "MFR1" dumps are the same but with a u16 length.
+ */
+public final class FlightRecorder {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlightRecorder.class);
+
+    /** Default number of records kept */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** Size of each record, in bytes */
+    static final int RECORD_SIZE = 64;
+
+    /** Size of each record's header, in bytes */
+    static final int RECORD_HEADER_SIZE = 18;
+
+    /** The most payload bytes kept for each record */
+    public static final int MAX_PAYLOAD = RECORD_SIZE - RECORD_HEADER_SIZE;
+
+    /** First bytes of a dump */
+    static final byte[] MAGIC = {'M', 'F', 'R', '2'};
+
+    /** First bytes of a dump from before the length was widened to 32 bits */
+    static final byte[] MAGIC_V1 = {'M', 'F', 'R', '1'};
+
+    /** Size of each record's header in a {@link #MAGIC_V1} dump, in bytes */
+    static final int RECORD_HEADER_SIZE_V1 = 16;
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * What a record is of
+     */
+    public enum Kind {
+        /** A command packet sent to the device. The id is the command's CLA and INS */
+        Command,
+        /** A response packet read from the device. The id is the status word, if unchained */
+        Response,
+        /** Raw bytes sent with sendBinaryStream */
+        Stream,
+        /** A session event. The id is the {@link FlightRecorder.Event}, the payload its text */
+        Event
+    }
+
+    /**
+     * Session events that are recorded alongside the packets.
+     */
+    public enum Event {
+        /** A session was opened */
+        SessionOpened,
+        /** A session was closed normally */
+        SessionClosed,
+        /** A session was closed due to an error. The text is the reason. */
+        SessionError,
+        /** The input poller stopped. The text is the poller's status. */
+        PollerStopped,
+        /** Added with {@link #mark(String)} */
+        Mark
+    }
+
+    /** capacity - 1. Capacity is a power of 2. */
+    private final int mMask;
+
+    /** Guards mRecords and mNextSequence */
+    @NonNull
+    private final Object mLock = new Object();
+
+    /** The records, RECORD_SIZE bytes each */
+    @NonNull
+    private final byte[] mRecords;
+
+    /** The sequence number of the next record */
+    private long mNextSequence;
+
+    /** Where to write automatic dumps. null = don't. */
+    @Nullable
+    private volatile File mDumpDirectory;
+
+    /**
+     * Create a flight recorder with the default capacity
+     */
+    public FlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a flight recorder
+     *
+     * @param capacity The number of records to keep. Rounded up to a power of 2.
+     */
+    public FlightRecorder(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 20)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mRecords = new byte[size * RECORD_SIZE];
+    }
+
+    /**
+     * @return The number of records kept
+     */
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return The number of records made since creation, including those overwritten
+     */
+    public long getRecordCount() {
+        synchronized (mLock) {
+            return mNextSequence;
+        }
+    }
+
+    /**
+     * Set where automatic dumps are written.
+     *
+     * @param directory The directory to write dumps to, or null to disable automatic dumps.
+     */
+    public void setDumpDirectory(@Nullable File directory) {
+        mDumpDirectory = directory;
+    }
+
+    /**
+     * @return The directory automatic dumps are written to, or null if disabled.
+     */
+    @Nullable
+    public File getDumpDirectory() {
+        return mDumpDirectory;
+    }
+
+    /**
+     * Add a marker event to the recording, e.g. to note what the app was doing.
+     *
+     * @param text Text to record. Truncated to {@link #MAX_PAYLOAD} ASCII characters.
+     */
+    public void mark(@NonNull String text) {
+        event(Event.Mark, text);
+    }
+
+    /**
+     * Record a session event
+     *
+     * @param event The event
+     * @param text  Details of the event. Truncated to {@link #MAX_PAYLOAD} ASCII characters.
+     */
+    void event(@NonNull Event event, @NonNull String text) {
+        byte[] bytes = text.getBytes(US_ASCII);
+        record(Kind.Event, 0, 0, bytes.length, event.ordinal(), bytes, 0, bytes.length);
+    }
+
+    /**
+     * Record an APDU sent to, or read from, the device.
+     *
+     * @param kind     Command, Response or Stream
+     * @param nad      The packet's NAD
+     * @param pcb      The packet's PCB
+     * @param apdu     Buffer holding the APDU
+     * @param offset   Offset of the APDU in the buffer
+     * @param length   Length of the APDU
+     * @param id       Command id (CLA, INS) or status word (SW1, SW2). 0 if not known.
+     */
+    void packet(@NonNull Kind kind, @NonNull InterfaceType nad, int pcb,
+            @NonNull byte[] apdu, int offset, int length, int id) {
+        record(kind, nad.getInterfaceType(), pcb, length, id, apdu, offset, length);
+    }
+
+    /**
+     * Record a binary stream sent from a file. Only its length is kept.
+     *
+     * @param nad    The NAD it was sent to
+     * @param length Length of the stream. Recorded as Integer.MAX_VALUE if larger.
+     */
+    void stream(@NonNull InterfaceType nad, long length) {
+        int recorded = (int) Math.min(length, Integer.MAX_VALUE);
+        record(Kind.Stream, nad.getInterfaceType(), 0, recorded, 0, NO_PAYLOAD, 0, 0);
+    }
+
+    /**
+     * Write a record into the next slot of the ring.
+     */
+    private void record(Kind kind, int nad, int pcb, int length, int id,
+            byte[] payload, int offset, int payloadLength) {
+        int captured = Math.min(payloadLength, MAX_PAYLOAD);
+        synchronized (mLock) {
+            int slot = (int) (mNextSequence & mMask);
+            mNextSequence++;
+            int p = slot * RECORD_SIZE;
+
+            long now = System.nanoTime();
+            byte[] r = mRecords;
+            r[p] = (byte) (now >>> 56);
+            r[p + 1] = (byte) (now >>> 48);
+            r[p + 2] = (byte) (now >>> 40);
+            r[p + 3] = (byte) (now >>> 32);
+            r[p + 4] = (byte) (now >>> 24);
+            r[p + 5] = (byte) (now >>> 16);
+            r[p + 6] = (byte) (now >>> 8);
+            r[p + 7] = (byte) now;
+            r[p + 8] = (byte) kind.ordinal();
+            r[p + 9] = (byte) nad;
+            r[p + 10] = (byte) pcb;
+            r[p + 11] = (byte) (length >>> 24);
+            r[p + 12] = (byte) (length >>> 16);
+            r[p + 13] = (byte) (length >>> 8);
+            r[p + 14] = (byte) length;
+            r[p + 15] = (byte) (id >>> 8);
+            r[p + 16] = (byte) id;
+            r[p + 17] = (byte) captured;
+            System.arraycopy(payload, offset, r, p + RECORD_HEADER_SIZE, captured);
+        }
+    }
+
+    /**
+     * The records of a recording at one moment, oldest first, ready to be written out.
+     */
+    private static final class Snapshot {
+        final byte[] mRecords;
+        final int mCount;
+        final long mWallClockMillis;
+        final long mNanoTime;
+
+        Snapshot(byte[] records, int count, long wallClockMillis, long nanoTime) {
+            mRecords = records;
+            mCount = count;
+            mWallClockMillis = wallClockMillis;
+            mNanoTime = nanoTime;
+        }
+
+        void writeTo(OutputStream stream) throws IOException {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.write(MAGIC);
+            out.writeShort(RECORD_SIZE);
+            out.writeInt(mCount);
+            out.writeLong(mWallClockMillis);
+            out.writeLong(mNanoTime);
+            out.write(mRecords, 0, mCount * RECORD_SIZE);
+            out.flush();
+        }
+    }
+
+    /**
+     * Copy the current records out of the ring, oldest first.
+     *
+     * <p>Recording is blocked whilst the ring is copied, which is a couple of array copies.
+     *
+     * @return The copy
+     */
+    @NonNull
+    private Snapshot snapshot() {
+        byte[] records = new byte[getCapacity() * RECORD_SIZE];
+        synchronized (mLock) {
+            long end = mNextSequence;
+            int count = (int) Math.min(end, getCapacity());
+            int firstSlot = (int) ((end - count) & mMask);
+            int firstPart = Math.min(count, getCapacity() - firstSlot);
+            System.arraycopy(mRecords, firstSlot * RECORD_SIZE,
+                    records, 0, firstPart * RECORD_SIZE);
+            System.arraycopy(mRecords, 0,
+                    records, firstPart * RECORD_SIZE, (count - firstPart) * RECORD_SIZE);
+            return new Snapshot(records, count, System.currentTimeMillis(), System.nanoTime());
+        }
+    }
+
+    /**
+     * Write the current recording to a stream. Recording continues whilst dumping.
+     *
+     * @param stream The stream to write to. Not closed.
+     * @throws IOException If writing fails
+     */
+    public void dump(@NonNull OutputStream stream) throws IOException {
+        snapshot().writeTo(stream);
+    }
+
+    /**
+     * Write the current recording to a new file in the dump directory.
+     *
+     * @param reason A short reason, included in the file name
+     * @return The file written, or null if there's no dump directory or the dump failed.
+     */
+    @Nullable
+    public File dumpToFile(@NonNull String reason) {
+        File directory = mDumpDirectory;
+        if (directory == null) {
+            return null;
+        }
+        return writeSnapshot(snapshot(), directory, reason);
+    }
+
+    /**
+     * Copy the current recording and write it to a new file in the dump directory on
+     * a background thread.
+     *
+     * <p>Used when a session fails, so the thread that noticed isn't held up by file I/O.
+     * The file is written under a temporary name and renamed once complete.
+     *
+     * @param reason A short reason, included in the file name
+     */
+    void dumpToFileInBackground(@NonNull final String reason) {
+        final File directory = mDumpDirectory;
+        if (directory == null) {
+            return;
+        }
+        final Snapshot snapshot = snapshot();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot(snapshot, directory, reason);
+            }
+        }, "FlightRecorder dump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Nullable
+    private static File writeSnapshot(
+            @NonNull Snapshot snapshot, @NonNull File directory, @NonNull String reason) {
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ENGLISH)
+                .format(new Date(snapshot.mWallClockMillis));
+        String safeReason = reason.replaceAll("[^A-Za-z0-9]+", "_");
+        String name = "mpi-flight-" + stamp + "-" + safeReason + ".bin";
+        File file = new File(directory, name);
+        File partial = new File(directory, name + ".part");
+        try {
+            OutputStream stream = new BufferedOutputStream(new FileOutputStream(partial));
+            try {
+                snapshot.writeTo(stream);
+            } finally {
+                stream.close();
+            }
+            if (!partial.renameTo(file)) {
+                throw new IOException("Couldn't rename " + partial);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write flight recording to {}", file, e);
+            //noinspection ResultOfMethodCallIgnored
+            partial.delete();
+            return null;
+        }
+        LOGGER.info("Flight recording written to {}", file);
+        return file;
+    }
+
+    /**
+     * Write the current recording to a file
+     *
+     * @param file The file to write. Replaced if it exists.
+     * @throws IOException If writing fails
+     */
+    public void dumpToFile(@NonNull File file) throws IOException {
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            dump(stream);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.comms;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A timer for deadlines that are usually cancelled before they expire.
+ *
+ * <p>
+ * Command and future deadlines are scheduled on every command and almost never fire. A hashed
+ * wheel makes scheduling and cancelling O(1): timeouts are hashed into a ring of buckets by
+ * their deadline, and one thread steps round the ring once per tick, expiring the timeouts in
+ * the current bucket. The cost is precision. A timeout fires up to one tick late, which is fine
+ * for deadlines measured in seconds.
+ * </p>
+ *
+ * <p>
+ * Tasks run on the timer's thread and must be quick. Hand anything slow, e.g. closing a
+ * session, to another thread.
+ * </p>
+ *
+ * <p>
+ * Sessions, clients and MiuraManager share {@link #getShared()}, so all the SDK's deadlines
+ * cost one thread however many devices are connected. The lag metrics show how late
+ * timeouts are firing, e.g. because a task is blocking the timer's thread.
+ * </p>
+ */
+public final class HashedWheelTimer {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private static final long SHARED_TICK_MS = 10L;
+    private static final int SHARED_TICKS_PER_WHEEL = 512;
+
+    /** The shared timer. Created on first use, its thread is a daemon and never stops. */
+    @Nullable
+    private static HashedWheelTimer sShared;
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+        private static final int ST_PENDING = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        @NonNull
+        private final HashedWheelTimer mTimer;
+        @NonNull
+        private final Runnable mTask;
+        /** Deadline relative to the timer's start */
+        private final long mDeadline;
+        @NonNull
+        private final AtomicInteger mState = new AtomicInteger(ST_PENDING);
+
+        /* The following are only used by the worker thread */
+        private long mRemainingRounds;
+        @Nullable
+        private Timeout mNext;
+        @Nullable
+        private Timeout mPrev;
+        @Nullable
+        private Bucket mBucket;
+
+        Timeout(@NonNull HashedWheelTimer timer, @NonNull Runnable task, long deadline) {
+            mTimer = timer;
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * Cancel the task, if it hasn't run yet.
+         *
+         * @return true if cancelled, false if it has already run or been cancelled.
+         */
+        public boolean cancel() {
+            if (!mState.compareAndSet(ST_PENDING, ST_CANCELLED)) {
+                return false;
+            }
+            mTimer.mPending.decrementAndGet();
+            mTimer.mCancelledCount.incrementAndGet();
+            mTimer.mCancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return mState.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return mState.get() == ST_EXPIRED;
+        }
+
+        void expire(long now) {
+            if (!mState.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+                return;
+            }
+            mTimer.mPending.decrementAndGet();
+            mTimer.recordLag(now - mDeadline);
+            try {
+                mTask.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Timer task threw", e);
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts. Only used by the worker thread.
+     */
+    private static final class Bucket {
+        @Nullable
+        private Timeout mHead;
+        @Nullable
+        private Timeout mTail;
+
+        void add(@NonNull Timeout timeout) {
+            timeout.mBucket = this;
+            if (mHead == null) {
+                mHead = timeout;
+                mTail = timeout;
+            } else {
+                mTail.mNext = timeout;
+                timeout.mPrev = mTail;
+                mTail = timeout;
+            }
+        }
+
+        void remove(@NonNull Timeout timeout) {
+            Timeout next = timeout.mNext;
+            if (timeout.mPrev != null) {
+                timeout.mPrev.mNext = next;
+            }
+            if (next != null) {
+                next.mPrev = timeout.mPrev;
+            }
+            if (timeout == mHead) {
+                mHead = next;
+            }
+            if (timeout == mTail) {
+                mTail = timeout.mPrev;
+            }
+            timeout.mPrev = null;
+            timeout.mNext = null;
+            timeout.mBucket = null;
+        }
+
+        void expire(long now) {
+            Timeout timeout = mHead;
+            while (timeout != null) {
+                Timeout next = timeout.mNext;
+                if (timeout.mRemainingRounds <= 0L) {
+                    remove(timeout);
+                    timeout.expire(now);
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.mRemainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    @NonNull
+    private final String mName;
+    private final long mTickNanos;
+    @NonNull
+    private final Bucket[] mWheel;
+    private final int mMask;
+
+    /** Timeouts scheduled since the last tick */
+    @NonNull
+    private final ConcurrentLinkedQueue<Timeout> mNewTimeouts = new ConcurrentLinkedQueue<>();
+
+    /** Timeouts cancelled since the last tick, to be unlinked from their bucket */
+    @NonNull
+    private final ConcurrentLinkedQueue<Timeout> mCancelled = new ConcurrentLinkedQueue<>();
+
+    @NonNull
+    private final AtomicLong mPending = new AtomicLong(0L);
+    @NonNull
+    private final AtomicLong mFiredCount = new AtomicLong(0L);
+    @NonNull
+    private final AtomicLong mCancelledCount = new AtomicLong(0L);
+    @NonNull
+    private final AtomicLong mTotalLagNanos = new AtomicLong(0L);
+    @NonNull
+    private final AtomicLong mMaxLagNanos = new AtomicLong(0L);
+
+    /** Set once the worker starts. Guarded by this */
+    @Nullable
+    private Thread mWorker;
+
+    private final long mStartNanos;
+
+    private volatile boolean mStopped;
+
+    /**
+     * Create a timer.
+     *
+     * @param name          The name of the timer's thread
+     * @param tickDuration  How often the timer checks for expired timeouts
+     * @param unit          The unit of tickDuration
+     * @param ticksPerWheel The number of buckets. Rounded up to a power of 2.
+     */
+    public HashedWheelTimer(
+            @NonNull String name,
+            long tickDuration,
+            @NonNull TimeUnit unit,
+            int ticksPerWheel
+    ) {
+        if (tickDuration <= 0L) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid ticksPerWheel: " + ticksPerWheel);
+        }
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+
+        mName = name;
+        mTickNanos = unit.toNanos(tickDuration);
+        mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+        mMask = size - 1;
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Get the timer shared by the whole SDK.
+     *
+     * @return The shared timer, with a 10ms tick.
+     */
+    @NonNull
+    public static synchronized HashedWheelTimer getShared() {
+        if (sShared == null) {
+            sShared = new HashedWheelTimer("MiuraTimer",
+                    SHARED_TICK_MS, TimeUnit.MILLISECONDS, SHARED_TICKS_PER_WHEEL);
+        }
+        return sShared;
+    }
+
+    /**
+     * Schedule a task to run once, after a delay.
+     *
+     * @param task  The task. Runs on the timer's thread, so must be quick.
+     * @param delay How long from now to run it
+     * @param unit  The unit of delay
+     * @return A handle that can cancel the task
+     * @throws IllegalStateException If the timer has been stopped
+     */
+    @NonNull
+    public Timeout newTimeout(@NonNull Runnable task, long delay, @NonNull TimeUnit unit) {
+        if (mStopped) {
+            throw new IllegalStateException(mName + " is stopped");
+        }
+        startWorker();
+
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(0L, delay)) - mStartNanos;
+        Timeout timeout = new Timeout(this, task, deadline);
+        mPending.incrementAndGet();
+        mNewTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the timer. Pending timeouts never run.
+     */
+    public void stop() {
+        mStopped = true;
+        Thread worker;
+        synchronized (this) {
+            worker = mWorker;
+        }
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * @return The number of timeouts scheduled that haven't run or been cancelled.
+     */
+    public long getPendingCount() {
+        return mPending.get();
+    }
+
+    /**
+     * @return The number of timeouts that have run.
+     */
+    public long getFiredCount() {
+        return mFiredCount.get();
+    }
+
+    /**
+     * @return The number of timeouts that were cancelled.
+     */
+    public long getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    /**
+     * @return How late, on average, timeouts ran after their deadline, in microseconds.
+     */
+    public long getMeanLagMicros() {
+        long fired = mFiredCount.get();
+        return fired == 0L ? 0L : TimeUnit.NANOSECONDS.toMicros(mTotalLagNanos.get() / fired);
+    }
+
+    /**
+     * @return The latest a timeout has run after its deadline, in microseconds.
+     */
+    public long getMaxLagMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(mMaxLagNanos.get());
+    }
+
+    private synchronized void startWorker() {
+        if (mWorker != null) {
+            return;
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                workerLoop();
+            }
+        }, mName);
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    void recordLag(long lagNanos) {
+        long lag = Math.max(0L, lagNanos);
+        mFiredCount.incrementAndGet();
+        mTotalLagNanos.addAndGet(lag);
+        long max = mMaxLagNanos.get();
+        while (lag > max && !mMaxLagNanos.compareAndSet(max, lag)) {
+            max = mMaxLagNanos.get();
+        }
+    }
+
+    private void workerLoop() {
+        long tick = 0L;
+        while (!mStopped) {
+            long now = waitForNextTick(tick);
+            if (now < 0L) {
+                break;
+            }
+            unlinkCancelled();
+            transferNewTimeouts(tick);
+            mWheel[(int) (tick & mMask)].expire(now);
+            tick++;
+        }
+        LOGGER.debug("{} stopped", mName);
+    }
+
+    /**
+     * Sleep until the end of the given tick.
+     *
+     * @return The time, relative to the timer's start, or -1 if stopped.
+     */
+    private long waitForNextTick(long tick) {
+        long tickEnd = mTickNanos * (tick + 1L);
+        while (true) {
+            long now = System.nanoTime() - mStartNanos;
+            long sleepMs = TimeUnit.NANOSECONDS.toMillis(tickEnd - now + 999999L);
+            if (sleepMs <= 0L) {
+                return now;
+            }
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException ignore) {
+                if (mStopped) {
+                    return -1L;
+                }
+            }
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout timeout;
+        while ((timeout = mCancelled.poll()) != null) {
+            Bucket bucket = timeout.mBucket;
+            if (bucket != null) {
+                bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferNewTimeouts(long tick) {
+        // Limit the work per tick, so a flood of new timeouts can't stall the wheel.
+        for (int i = 0; i < 100000; i++) {
+            Timeout timeout = mNewTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = timeout.mDeadline / mTickNanos;
+            timeout.mRemainingRounds = (calculated - tick) / mWheel.length;
+            // If it's already due, put it in the current tick's bucket
+            long ticks = Math.max(calculated, tick);
+            mWheel[(int) (ticks & mMask)].add(timeout);
+        }
+    }
+}
@@ -330,7 +330,6 @@ class InputResponsePoller implements Runnable {
         }
 
         while (threadStatus == PollerStatus.Running) {
-            LOGGER.trace("nextResponse for id:" + solicitedResponseID);
             ResponseMessage response = mReader.nextResponse();
             if (response == null) {
                 threadStatus = PollerStatus.StoppedStreamBroken;
@@ -351,7 +350,6 @@ class InputResponsePoller implements Runnable {
             boolean badCommand = response.getStatusCode() == 0x6F00;
 
             if (response.isUnsolicited() && !badCommand) {
-                LOGGER.trace("isUnsolicited!");
                 unsolicitedCount++;
                 PollerMessage msg = new PollerMessage(solicitedResponseID, response);
                 try {
@@ -450,13 +448,10 @@ class InputResponsePoller implements Runnable {
     private PostingStatus postResponseToQueue(
             InterfaceType nad, PollerMessage msg, long timeout, TimeUnit timeUnit, String what
     ) {
-        LOGGER.trace("postResponseToQueue({}, msg, {}, {}, '{}')",
-                nad, timeout, timeUnit, what);
         BlockingQueue<PollerMessage> queue = mQueues.get(nad);
         try {
             boolean postedOk = queue.offer(msg, timeout, timeUnit);
             if (postedOk) {
-                LOGGER.trace("mQueue.offer ok");
                 return PostingStatus.Ok;
             } else {
                 LOGGER.trace("{} mQueue.offer({}) timed out!?", nad, what);
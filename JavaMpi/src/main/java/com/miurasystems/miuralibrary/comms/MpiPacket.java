@@ -196,6 +196,25 @@ public final class MpiPacket {
         return Arrays.copyOf(mPacket, mPacket.length);
     }
 
+    /**
+     * Add this packet, read from the device, to a flight recording.
+     *
+     * <p>Records the packet's own bytes, so avoids the copy {@link #getBytes()} makes.
+     *
+     * @param recorder The recorder to add the packet to
+     */
+    void recordTo(@NonNull FlightRecorder recorder) {
+        int len = ubyteToInt(mPacket[PKT_LEN]);
+        int statusWord = 0;
+        if (!isChained() && len >= 2) {
+            int sw1 = ubyteToInt(mPacket[PKT_APDU + len - 2]);
+            int sw2 = ubyteToInt(mPacket[PKT_APDU + len - 1]);
+            statusWord = (sw1 << 8) | sw2;
+        }
+        recorder.packet(FlightRecorder.Kind.Response, getNodeAddress(),
+                ubyteToInt(mPacket[PKT_PCB]), mPacket, PKT_APDU, len, statusWord);
+    }
+
     /**
      * Tells if the packet is a 'chained' packet
      *
@@ -16,7 +16,14 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.EnumMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -139,6 +146,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * The session tracks the commands and responses it sends and issues each one an id.
  * The command/response pair will have the same matching ids.
  * </p>
+ *
+ * <p>
+ * Each channel's commands and responses are sequenced separately, so e.g. an RPI command can be
+ * outstanding on one thread whilst another thread sends and receives MPI commands. Only one
+ * thread may receive on each channel at a time.
+ * </p>
  */
 public class MpiProtocolSession {
 
@@ -159,6 +172,9 @@ public class MpiProtocolSession {
      */
     private static final long NO_TIMEOUT_BLOCK = -1L;
 
+    /** How much of a file is mapped at once by sendBinaryStream */
+    private static final long MAPPED_SLICE_SIZE = 1024L * 1024L;
+
     /**
      * The ResponseMessage queues, once queue for each Interface type.
      *
@@ -248,17 +264,132 @@ public class MpiProtocolSession {
     /** has {@link #close()} been called? */
     private boolean mSessionIsClosing;
 
+    /** Is the session being closed due to an error? */
+    private boolean mClosingOnError;
+
+    /**
+     * Records the session's packets and events. Belongs to the Connector.
+     */
+    @NonNull
+    private final FlightRecorder mFlightRecorder;
+
+    /**
+     * How long to wait for each command's response. Belongs to the Connector.
+     */
+    @NonNull
+    private final CommandTimeouts mCommandTimeouts;
+
+    /**
+     * The command and response state of each channel.
+     *
+     * <p>Each channel is sequenced separately, so a command on one channel can be
+     * outstanding whilst another channel's commands are sent and answered, e.g. a long print on
+     * the RPI whilst the MPI displays text.
+     */
+    @NonNull
+    private final EnumMap<InterfaceType, Channel> mChannels;
+
+    /**
+     * Held whilst writing to the Connector's OutputStream, so packets sent to different
+     * channels from different threads don't interleave.
+     */
+    @NonNull
+    private final Object mWriteLock = new Object();
+
+    /**
+     * Wakes a thread waiting for a response when its command's timeout expires.
+     */
+    private static final class CommandDeadline implements Runnable {
+        @NonNull
+        private final Thread mReceiver;
+        private boolean mFinished;
+        private boolean mExpired;
+
+        CommandDeadline(@NonNull Thread receiver) {
+            mReceiver = receiver;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!mFinished) {
+                mExpired = true;
+                mReceiver.interrupt();
+            }
+        }
+
+        synchronized boolean isExpired() {
+            return mExpired;
+        }
+
+        /**
+         * Stop the deadline interrupting the receiver.
+         *
+         * @return true if it had already expired
+         */
+        synchronized boolean finish() {
+            mFinished = true;
+            return mExpired;
+        }
+    }
+
+    /**
+     * A command that has been sent but not had its response read.
+     */
+    private static final class PendingCommand {
+        /** {@link #mSentNanos} whilst the command's binary stream is being written */
+        static final long WRITING = Long.MIN_VALUE;
+
+        final int mId;
+        @Nullable
+        final CommandType mType;
+        /** A SELECT FILE asking for an MD5, see {@link CommandTimeouts#isMd5Select} */
+        final boolean mMd5Select;
+        /**
+         * When the command was sent, in nanoTime, and so when its timeout starts. For a
+         * STREAM_BINARY, when its binary stream finished being written.
+         */
+        volatile long mSentNanos;
+
+        PendingCommand(int id, @Nullable CommandType type, boolean md5Select, long sentNanos) {
+            mId = id;
+            mType = type;
+            mMd5Select = md5Select;
+            mSentNanos = sentNanos;
+        }
+    }
+
     /**
-     * ID of the last solicited response we read from any queue.
-     * -1 if no response has been read yet
+     * The command and response state of one channel.
      */
-    private int mPreviousSolicitedResponseId;
+    private static final class Channel {
+        /**
+         * The commands sent on this channel that are still waiting for a response, oldest first.
+         *
+         * <p>Used to match responses to command ids, to time out
+         * {@link MpiProtocolSession#receiveResponse} and to measure latency for
+         * {@link MpiProtocolSession#mCommandTimeouts}. Concurrent as commands can be
+         * sent on one thread whilst the response to an earlier one is received on another.
+         */
+        @NonNull
+        final ConcurrentLinkedQueue<PendingCommand> mPending =
+                new ConcurrentLinkedQueue<>();
+
+        /**
+         * ID of the last solicited response read from this channel's queue.
+         * -1 if no response has been read yet
+         */
+        volatile int mPreviousSolicitedResponseId = -1;
+
+        /** The last command sent on this channel that expects a response. Null if none yet. */
+        @Nullable
+        volatile PendingCommand mLastSent;
+    }
 
     /**
-     * ID of the last command we sent through the Connector.
-     * -1 if no command has been sent yet
+     * ID of the last command we sent through the Connector, on any channel.
+     * -1 if no command has been sent yet. Written whilst holding {@link #mWriteLock}.
      */
-    private int mPreviousCommandId;
+    private volatile int mPreviousCommandId;
 
     /**
      * Create a new MpiProtocolSession.
@@ -289,6 +420,12 @@ public class MpiProtocolSession {
             @NonNull EnumMap<InterfaceType, LinkedBlockingQueue<PollerMessage>> queues
     ) {
         mConnector = connector;
+        mFlightRecorder = connector.getFlightRecorder();
+        mCommandTimeouts = connector.getCommandTimeouts();
+        mChannels = new EnumMap<>(InterfaceType.class);
+        for (InterfaceType nad : InterfaceType.values()) {
+            mChannels.put(nad, new Channel());
+        }
         mUnsolicitedResponseCallback = unsolicitedResponseCallback;
         mConnectionStateCallback = connectionStateCallback;
         mQueues = queues;
@@ -301,7 +438,6 @@ public class MpiProtocolSession {
         mClosed = false; // whilst it is not-open, it hasn't been closed()
         mSessionIsClosing = false;
 
-        mPreviousSolicitedResponseId = -1;
         mPreviousCommandId = -1;
     }
 
@@ -325,6 +461,11 @@ public class MpiProtocolSession {
             case StoppedQueuePostInterrupted:
             case StoppedStreamBroken:
                 mInputPollerIsActive.set(false);
+                mFlightRecorder.event(FlightRecorder.Event.PollerStopped, status.name());
+                if (!mSessionIsClosing && !mClosed) {
+                    // the device went away, or the stream broke, rather than us closing it.
+                    mFlightRecorder.dumpToFileInBackground("poller-" + status.name());
+                }
                 sendDisconnectEvent();
                 break;
         }
@@ -395,7 +536,7 @@ public class MpiProtocolSession {
     private void validateSessionIsActive() throws IOException {
         validateIsNotClosed();
         if (!mOpened) {
-            close();
+            closeOnError("Session not opened!");
             throw new IOException("Session not opened!");
         }
     }
@@ -410,7 +551,7 @@ public class MpiProtocolSession {
     private void validateSessionInStartup() throws IOException {
         validateIsNotClosed();
         if (mOpened) {
-            close();
+            closeOnError("Session already open!");
             throw new IOException("Session already open!");
         }
     }
@@ -459,6 +600,7 @@ public class MpiProtocolSession {
         }
 
         this.mOpened = true;
+        mFlightRecorder.event(FlightRecorder.Event.SessionOpened, "");
         sendConnectionEvent();
 
         return true;
@@ -498,6 +640,9 @@ public class MpiProtocolSession {
         // session to be used during the closing process and avoid recursive calls in the
         // case of a session error calling close()
         mSessionIsClosing = true;
+        if (!mClosingOnError) {
+            mFlightRecorder.event(FlightRecorder.Event.SessionClosed, "");
+        }
         mConnector.sessionIsClosing(this);
 
         sendDisconnectEvent();
@@ -548,17 +693,34 @@ public class MpiProtocolSession {
         mClosed = true;
     }
 
+    /**
+     * Close the session because of an error, and dump the flight recording.
+     *
+     * @param reason What went wrong. Recorded in the flight recording.
+     */
+    private void closeOnError(String reason) {
+        if (!mClosed && !mSessionIsClosing) {
+            mClosingOnError = true;
+            mFlightRecorder.event(FlightRecorder.Event.SessionError, reason);
+            mFlightRecorder.dumpToFileInBackground("session-error");
+        }
+        close();
+    }
+
     /**
      * Send a command to the given device/channel.
      *
      * <ul>
      * <li>A session must be active to send a command {@link #isActive()}</li>
      * <li>An ID will be assigned to the command, and the ID returned.
-     * The first command sent will have ID 0, the second 1, etc
+     * The first command sent will have ID 0, the second 1, etc. IDs are shared by all channels.
      * </li>
      * <li>If there is a problem writing to a Connector then IOException will be thrown
      * and the session will be closed
      * </li>
+     * <li>Commands can be sent to different channels from different threads. Each
+     * packet is written whole.
+     * </li>
      * </ul>
      *
      * @param nad  The device/channel/node address to send the command to
@@ -569,28 +731,90 @@ public class MpiProtocolSession {
      */
     public int sendCommandAPDU(@NonNull InterfaceType nad, @NonNull CommandApdu apdu)
             throws IOException {
+        return sendCommand(nad, apdu, true);
+    }
+
+    /**
+     * Send a command that the device doesn't give a solicited response to.
+     *
+     * <p>e.g. CARD STATUS, whose answer arrives as an unsolicited message. Unlike
+     * {@link #sendCommandAPDU}, the command isn't added to the channel's outstanding commands,
+     * so it doesn't hold up {@link #receiveResponse} for the next command on the channel, or
+     * lend it its timeout.
+     *
+     * @param nad  The device/channel/node address to send the command to
+     * @param apdu The command to send.
+     * @return The id of the command, see {@link #sendCommandAPDU}. There's no response to
+     * receive with it.
+     * @throws IOException If there was an error writing to the Connector.
+     */
+    public int sendCommandWithoutResponse(@NonNull InterfaceType nad, @NonNull CommandApdu apdu)
+            throws IOException {
+        return sendCommand(nad, apdu, false);
+    }
+
+    private int sendCommand(
+            @NonNull InterfaceType nad,
+            @NonNull CommandApdu apdu,
+            boolean expectResponse
+    ) throws IOException {
 
         validateSessionIsActive();
 
         byte[] bytes = apdu.getBytes();
-        LOGGER.trace("sendCommandAPDU: nad:{} cmd:{} p1:{} p2:{}",
-                nad,
-                CommandType.valueOf(bytes[0], bytes[1]),
-                String.format("0x%02x", bytes[2]),
-                String.format("0x%02x", bytes[3]));
+        int commandId = ((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF);
+        mFlightRecorder.packet(
+                FlightRecorder.Kind.Command, nad, 0, bytes, 0, bytes.length, commandId);
 
         OutputStream outputStream = mConnector.getOutputStream();
+        CommandType type = CommandType.valueOf(bytes[0], bytes[1]);
+
+        synchronized (mWriteLock) {
+            int id = mPreviousCommandId + 1;
+            if (expectResponse) {
+                Channel channel = mChannels.get(nad);
+                PendingCommand pending = new PendingCommand(
+                        id, type, CommandTimeouts.isMd5Select(bytes), System.nanoTime());
+                channel.mPending.add(pending);
+                channel.mLastSent = pending;
+            }
+            if (!MpiPacket.writeToStream(nad, bytes, outputStream)) {
+                closeOnError("Failed to write to stream");
+                throw new IOException("Failed to write to stream");
+            }
 
-        if (!MpiPacket.writeToStream(nad, bytes, outputStream)) {
-            close();
-            throw new IOException("Failed to write to stream");
+            mPreviousCommandId = id;
+            return id;
         }
+    }
 
-        LOGGER.trace(
-                "sendCommandAPDU. prev id = {}, returning id = {}",
-                mPreviousCommandId, mPreviousCommandId + 1);
-        mPreviousCommandId += 1;
-        return mPreviousCommandId;
+    /**
+     * Send a STREAM_BINARY command followed by its binary stream.
+     *
+     * <p>
+     * The binary stream isn't wrapped in packets, so nothing may be written between the command
+     * and its data. Unlike calling {@link #sendCommandAPDU} then {@link #sendBinaryStream},
+     * this holds off commands sent to other channels from other threads until both are written.
+     * </p>
+     *
+     * @param nad   The device/channel/node address to send the command to
+     * @param apdu  The STREAM_BINARY command
+     * @param bytes The binary data to send
+     * @param len   The length of `bytes` to send.
+     * @return The id of the command. See {@link #sendCommandAPDU}.
+     * @throws IOException If there was an error writing to the Connector.
+     */
+    public int sendCommandAndBinaryStream(
+            @NonNull InterfaceType nad,
+            @NonNull CommandApdu apdu,
+            @NonNull @Size(min = 1) byte[] bytes,
+            int len
+    ) throws IOException {
+        synchronized (mWriteLock) {
+            int id = sendCommandAPDU(nad, apdu);
+            sendBinaryStream(nad, bytes, len);
+            return id;
+        }
     }
 
 
@@ -612,16 +836,248 @@ public class MpiProtocolSession {
 
         validateSessionIsActive();
         if (!isConnected()) {
-            close();
+            closeOnError("Connector is not connected");
             throw new IOException("Connector is not connected");
         }
 
+        mFlightRecorder.packet(FlightRecorder.Kind.Stream, nad, 0, bytes, 0, len, 0);
+        PendingCommand command = startStream(nad);
         try {
             OutputStream outputStream = mConnector.getOutputStream();
-            outputStream.write(bytes, 0, len);
-            outputStream.flush();
+            synchronized (mWriteLock) {
+                outputStream.write(bytes, 0, len);
+                outputStream.flush();
+            }
+            finishStream(command);
         } catch (IOException e) {
-            close();
+            closeOnError("sendBinaryStream: " + e);
+            throw e;
+        }
+    }
+
+    /**
+     * Send a STREAM_BINARY command followed by part of a file as its binary stream.
+     *
+     * <p>See {@link #sendCommandAndBinaryStream(InterfaceType, CommandApdu, byte[], int)}.</p>
+     *
+     * @param nad      The device/channel/node address to send the command to
+     * @param apdu     The STREAM_BINARY command
+     * @param file     The file to send from
+     * @param position Where in the file to start
+     * @param count    The number of bytes to send
+     * @return The id of the command. See {@link #sendCommandAPDU}.
+     * @throws IOException              If there was an error reading the file or writing to the
+     *                                  Connector.
+     * @throws IllegalArgumentException If the file doesn't have count bytes from position.
+     *                                  Nothing is sent and the session is left open.
+     */
+    public int sendCommandAndBinaryStream(
+            @NonNull InterfaceType nad,
+            @NonNull CommandApdu apdu,
+            @NonNull FileChannel file,
+            long position,
+            long count
+    ) throws IOException {
+        checkFileRange(file, position, count);
+        synchronized (mWriteLock) {
+            int id = sendCommandAPDU(nad, apdu);
+            sendBinaryStream(nad, file, position, count);
+            return id;
+        }
+    }
+
+    /**
+     * Send part of a file to the device as a binary stream, without reading it into the heap.
+     *
+     * <p>
+     * If the Connector has an {@link Connector#getOutputChannel() output channel} the file is
+     * sent with {@link FileChannel#transferTo}. Otherwise it's mapped a slice at a time and
+     * written to the output stream.
+     * </p>
+     *
+     * Do not call this unless the previous CommandApdu sent to a device was STREAM_BINARY.
+     *
+     * @param nad      The device/channel/node address to send the command to
+     * @param file     The file to send from
+     * @param position Where in the file to start
+     * @param count    The number of bytes to send
+     * @throws IOException              If there was an error reading the file or writing to the
+     *                                  Connector.
+     * @throws IllegalArgumentException If the file doesn't have count bytes from position.
+     *                                  Nothing is sent and the session is left open.
+     */
+    public void sendBinaryStream(
+            @NonNull InterfaceType nad,
+            @NonNull FileChannel file,
+            long position,
+            long count
+    ) throws IOException {
+
+        checkFileRange(file, position, count);
+        validateSessionIsActive();
+        if (!isConnected()) {
+            closeOnError("Connector is not connected");
+            throw new IOException("Connector is not connected");
+        }
+
+        mFlightRecorder.stream(nad, count);
+        PendingCommand command = startStream(nad);
+        try {
+            WritableByteChannel channel = mConnector.getOutputChannel();
+            synchronized (mWriteLock) {
+                if (channel != null) {
+                    while (count > 0L) {
+                        long sent = file.transferTo(position, count, channel);
+                        if (sent <= 0L) {
+                            throw new IOException("File ended " + count + " bytes early");
+                        }
+                        position += sent;
+                        count -= sent;
+                    }
+                } else {
+                    OutputStream outputStream = mConnector.getOutputStream();
+                    WritableByteChannel out = Channels.newChannel(outputStream);
+                    while (count > 0L) {
+                        long size = Math.min(count, MAPPED_SLICE_SIZE);
+                        MappedByteBuffer slice = file.map(
+                                FileChannel.MapMode.READ_ONLY, position, size);
+                        while (slice.hasRemaining()) {
+                            out.write(slice);
+                        }
+                        position += size;
+                        count -= size;
+                    }
+                    outputStream.flush();
+                }
+            }
+            finishStream(command);
+        } catch (IOException e) {
+            closeOnError("sendBinaryStream: " + e);
+            throw e;
+        }
+    }
+
+    /**
+     * Check a file has the bytes to be streamed from it, before anything is sent.
+     *
+     * @param file     The file to send from
+     * @param position Where in the file to start
+     * @param count    The number of bytes to send
+     * @throws IOException              If the file's size couldn't be read
+     * @throws IllegalArgumentException If the file doesn't have count bytes from position
+     */
+    private static void checkFileRange(@NonNull FileChannel file, long position, long count)
+            throws IOException {
+        long size = file.size();
+        if (position < 0L || count < 0L || size - position < count) {
+            throw new IllegalArgumentException(
+                    "File is " + size + " bytes, can't stream " + count + " from " + position);
+        }
+    }
+
+    /**
+     * Hold off the timeout of the STREAM_BINARY whose binary stream is about to be written.
+     *
+     * <p>
+     * A large stream can take longer to write over a slow link than the command's timeout,
+     * and its response can't arrive until it's all been written, so the timeout only starts
+     * once the write has finished. See {@link #finishStream}.
+     * </p>
+     *
+     * @param nad The channel the STREAM_BINARY was sent to
+     * @return The STREAM_BINARY's pending command, or null if there isn't one
+     */
+    @Nullable
+    private PendingCommand startStream(@NonNull InterfaceType nad) {
+        PendingCommand command = mChannels.get(nad).mLastSent;
+        if (command != null) {
+            command.mSentNanos = PendingCommand.WRITING;
+        }
+        return command;
+    }
+
+    /**
+     * Start the timeout of a STREAM_BINARY now its binary stream has been written.
+     *
+     * @param command The command returned by {@link #startStream}
+     */
+    private static void finishStream(@Nullable PendingCommand command) {
+        if (command != null) {
+            command.mSentNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Send a STREAM_BINARY command followed by a buffer's remaining bytes as its binary stream.
+     *
+     * <p>See {@link #sendCommandAndBinaryStream(InterfaceType, CommandApdu, byte[], int)}.</p>
+     *
+     * @param nad    The device/channel/node address to send the command to
+     * @param apdu   The STREAM_BINARY command
+     * @param buffer The binary data to send. Its position isn't changed.
+     * @return The id of the command. See {@link #sendCommandAPDU}.
+     * @throws IOException If there was an error writing to the Connector.
+     */
+    public int sendCommandAndBinaryStream(
+            @NonNull InterfaceType nad,
+            @NonNull CommandApdu apdu,
+            @NonNull ByteBuffer buffer
+    ) throws IOException {
+        synchronized (mWriteLock) {
+            int id = sendCommandAPDU(nad, apdu);
+            sendBinaryStream(nad, buffer);
+            return id;
+        }
+    }
+
+    /**
+     * Send a buffer's remaining bytes to the device as a binary stream.
+     *
+     * <p>
+     * The buffer isn't copied into the heap first, so e.g. a read-only
+     * {@link MappedByteBuffer} can be shared by the sessions of many devices, each sending a
+     * {@link ByteBuffer#duplicate() duplicate} of it.
+     * </p>
+     *
+     * Do not call this unless the previous CommandApdu sent to a device was STREAM_BINARY.
+     *
+     * @param nad    The device/channel/node address to send the command to
+     * @param buffer The binary data to send. Its position isn't changed.
+     * @throws IOException If there was an error writing to the Connector.
+     */
+    public void sendBinaryStream(
+            @NonNull InterfaceType nad,
+            @NonNull ByteBuffer buffer
+    ) throws IOException {
+
+        validateSessionIsActive();
+        if (!isConnected()) {
+            closeOnError("Connector is not connected");
+            throw new IOException("Connector is not connected");
+        }
+
+        ByteBuffer remaining = buffer.duplicate();
+        mFlightRecorder.stream(nad, remaining.remaining());
+        PendingCommand command = startStream(nad);
+        try {
+            WritableByteChannel channel = mConnector.getOutputChannel();
+            synchronized (mWriteLock) {
+                if (channel != null) {
+                    while (remaining.hasRemaining()) {
+                        channel.write(remaining);
+                    }
+                } else {
+                    OutputStream outputStream = mConnector.getOutputStream();
+                    WritableByteChannel out = Channels.newChannel(outputStream);
+                    while (remaining.hasRemaining()) {
+                        out.write(remaining);
+                    }
+                    outputStream.flush();
+                }
+            }
+            finishStream(command);
+        } catch (IOException e) {
+            closeOnError("sendBinaryStream: " + e);
             throw e;
         }
     }
@@ -629,6 +1085,12 @@ public class MpiProtocolSession {
     /**
      * Block until a solicited response is available on the given channel.
      *
+     * <p>
+     * The wait is limited by the Connector's {@link CommandTimeouts} for the oldest command
+     * on the channel still awaiting a response. If that expires the session is closed and an
+     * IOException thrown.
+     * </p>
+     *
      * @param nad Which device/channel to receive the response on
      * @return The next ResponseMessage read from the channel
      * @throws IOException          In case of a Connector error whilst waiting
@@ -671,7 +1133,7 @@ public class MpiProtocolSession {
      * @param nad Which device/channel to receive the response on
      * @param id  The id to validate this ResponseMessage against
      * @return The next ResponseMessage read from the channel
-     * @throws IOException          In case of a Connector error whilst waiting
+     * @throws IOException          In case of a Connector error or timeout whilst waiting
      * @throws InterruptedException If the thread is interrupted whilst waiting.
      */
     @NonNull
@@ -687,8 +1149,10 @@ public class MpiProtocolSession {
      *
      * <p>A response can be received in one of three modes:
      * <ul>
-     * <li>Blocking (no timeout).
-     * Waits until a response is available and returns it.
+     * <li>Blocking (command timeout).
+     * Waits until a response is available and returns it, or until the {@link CommandTimeouts}
+     * for the oldest outstanding command on the channel expires, in which case the
+     * session is closed and an {@code IOException} thrown. Unbounded commands wait forever.
      * {@code timeout =} {@link #NO_TIMEOUT_BLOCK}
      * </li>
      * <li>Blocking with timeout.
@@ -714,11 +1178,12 @@ public class MpiProtocolSession {
      * <p> If there are problems with the InputResponsePoller then an {@code IOException}
      * will be thrown no matter what.
      *
-     * <p> Each ResponseMessage read from the queue is given an id, stating at 0. This id
-     * will match the id of the command that this is a response to.
+     * <p> Each channel is sequenced separately. Responses on a channel are matched, in order,
+     * to the commands sent on that channel, so a thread can receive on one channel whilst other
+     * threads send and receive on others. Only one thread may receive on a channel at a time.
      *
      * <p> If the {@code id} parameter is provided (i.e. non-null) then it must be the
-     * next expected id. No skipping is allowed.
+     * id of the oldest command on the channel that hasn't been answered. No skipping is allowed.
      * If an id is provided that is not the one expected then an {@code IllegalStateException} is
      * thrown.
      * Therefore responses can only be received one id at a time, in order. The id
@@ -739,7 +1204,8 @@ public class MpiProtocolSession {
      * @throws IOException          Two cases:
      *                              1. If there are no messages left to read and the Connector is
      *                              closed;
-     *                              2. In case of some other error during read
+     *                              2. If a NO_TIMEOUT_BLOCK read hits the command timeout;
+     *                              3. In case of some other error during read
      * @throws InterruptedException If the thread is interrupted during a blocking read.
      */
     @Nullable
@@ -757,7 +1223,6 @@ public class MpiProtocolSession {
             throw new IllegalArgumentException("timeout must be greater-than 0");
         }
 
-        LOGGER.trace("receiveResponse({}, {}, {})", nad, timeout, id);
         validateSessionIsActive();
 
         LinkedBlockingQueue<PollerMessage> queue = mQueues.get(nad);
@@ -767,76 +1232,176 @@ public class MpiProtocolSession {
             // don't want to abort too early -- still might be messages available to return.
             PollerMessage msg = queue.peek();
             if (msg == null || msg.response == null) {
-                close();
+                closeOnError("Connector is not connected");
                 throw new IOException("Connector is not connected");
             }
         }
 
-        // mPreviousCommandId is the only thing shared between sendCommandAPDU and receiveResponse
-        // Currently mPreviousCommandId is only ever incremented in send and only read as
-        // an upper bound in receive, so there shouldn't be a problem when sending and receiving
-        // from multiple threads at the same time, as MpiClientMTAbort does.
-        if (mPreviousSolicitedResponseId >= mPreviousCommandId) {
-            // Though it would take around 500 days at 20ms per message to hit this limit
+        // Each channel's commands and responses are sequenced separately, so one thread can
+        // wait on the RPI whilst another sends and receives on the MPI. Only
+        // mPreviousCommandId is shared, and it's only read here as an upper bound.
+        Channel channel = mChannels.get(nad);
+        ConcurrentLinkedQueue<PendingCommand> pendingQueue = channel.mPending;
+        PendingCommand pending = pendingQueue.peek();
+        if (pending == null) {
             String msg = "Trying to read unsolicited response but there"
                     + " are no outstanding commands";
-            close();
+            closeOnError(msg);
             throw new IOException(msg);
         }
 
-        final int nextExpectedId = mPreviousSolicitedResponseId + 1;
-        LOGGER.trace("receiveResponse: nextExpectedId={}", nextExpectedId);
-        if (id != null && id != nextExpectedId) {
+        if (id != null && id != pending.mId) {
             /*
-                For now the client is limited to requesting the next id,
+                For now the client is limited to requesting the next id on the channel,
                     mainly because I'm not sure what should happen to the
                     IDs between the current ID and their ID.
                 Also by limited the app to the nextExpectedId we make the later logic simpler
             */
-            close();
+            closeOnError("id != nextExpectedId");
             throw new IOException("id != nextExpectedId");
         }
 
         PollerMessage msg;
         try {
             if (timeout == NO_TIMEOUT_BLOCK) {
-                msg = queue.take();
+                msg = takeWithCommandTimeout(queue, pending);
             } else if (timeout == NO_TIMEOUT_QUICK) {
                 msg = queue.poll();
             } else {
                 msg = queue.poll(timeout, TimeUnit.MILLISECONDS);
             }
-            LOGGER.trace("receiveResponse: msg={}", msg);
             if (msg == null) {
                 return null;
             }
         } catch (InterruptedException exception) {
-            close();
+            closeOnError("receiveResponse interrupted");
             throw exception;
         }
 
-        LOGGER.trace("receiveResponse: msg.response={}", msg.response);
         if (msg.response == null) {
             // A null response signifies the end-of-queue.
-            // assert solicitedResponseId == mPreviousSolicitedResponseId
-            close();
+            closeOnError("Input ResponseMessage queue closed");
             throw new IOException("Input ResponseMessage queue closed");
         }
 
-        LOGGER.trace("receiveResponse: msg.solicitedResponseId={}", msg.solicitedResponseId);
-        // this comparison avoids roll-over issues and covers all out-of-sync conditions
-        if (msg.solicitedResponseId != nextExpectedId) {
-            close();
+        /*
+            The poller numbers solicited responses in the order they arrive, across all channels.
+            So a channel's responses must have increasing ids, and there can't be more
+            responses than commands. Responses on other channels fill the gaps.
+        */
+        int responseId = msg.solicitedResponseId;
+        if (responseId <= channel.mPreviousSolicitedResponseId
+                || responseId > mPreviousCommandId) {
+            closeOnError("Inconsistent queue producer and consumer?");
             throw new IOException("Inconsistent queue producer and consumer?");
         }
 
-        LOGGER.trace(
-                "receiveResponse: mPreviousSolicitedResponseId=nextExpectedId={}",
-                nextExpectedId);
-        mPreviousSolicitedResponseId = nextExpectedId;
+        channel.mPreviousSolicitedResponseId = responseId;
+        pendingQueue.poll();
+        long sentNanos = pending.mSentNanos;
+        if (pending.mType != null && !pending.mMd5Select
+                && sentNanos != PendingCommand.WRITING) {
+            mCommandTimeouts.recordLatency(pending.mType, System.nanoTime() - sentNanos);
+        }
         return msg.response;
     }
 
+    /**
+     * Take the next message from a queue, waiting no longer than the command's timeout allows.
+     *
+     * <p>If the timeout expires the session is closed, as the response could still arrive
+     * and be mistaken for the next command's. For a STREAM_BINARY the timeout starts once its
+     * binary stream has been written, however long that takes.
+     *
+     * <p>The deadline is a {@link HashedWheelTimer} timeout that interrupts the waiting
+     * thread, rather than a timed wait, so it's cheap to cancel when the response arrives.
+     *
+     * @param queue   The queue to take from
+     * @param pending The command the next message should be the response to,
+     *                or null if unknown. If null there is no timeout.
+     * @return The next message
+     * @throws IOException          If the command timed out
+     * @throws InterruptedException If the thread is interrupted whilst waiting.
+     */
+    @NonNull
+    private PollerMessage takeWithCommandTimeout(
+            @NonNull LinkedBlockingQueue<PollerMessage> queue,
+            @Nullable PendingCommand pending
+    ) throws IOException, InterruptedException {
+        long timeoutMillis;
+        if (pending == null) {
+            timeoutMillis = CommandTimeouts.UNBOUNDED;
+        } else if (pending.mMd5Select) {
+            timeoutMillis = mCommandTimeouts.getMd5SelectMillis();
+        } else {
+            timeoutMillis = mCommandTimeouts.getTimeoutMillis(pending.mType);
+        }
+        if (timeoutMillis == CommandTimeouts.UNBOUNDED) {
+            return queue.take();
+        }
+
+        PollerMessage msg = queue.poll();
+        if (msg != null) {
+            return msg;
+        }
+
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            // Another thread may still be writing the command's binary stream,
+            // in which case its timeout hasn't started yet.
+            long sentNanos = pending.mSentNanos;
+            long remaining = sentNanos == PendingCommand.WRITING
+                    ? timeoutNanos
+                    : timeoutNanos - (System.nanoTime() - sentNanos);
+            msg = takeBefore(queue, remaining);
+            if (msg != null) {
+                return msg;
+            }
+            if (sentNanos != PendingCommand.WRITING && sentNanos == pending.mSentNanos) {
+                break;
+            }
+        }
+
+        String reason = String.format(Locale.ENGLISH,
+                "%s timed out after %dms", pending.mType, timeoutMillis);
+        LOGGER.warn("receiveResponse: {}", reason);
+        closeOnError(reason);
+        throw new IOException(reason);
+    }
+
+    /**
+     * Take the next message from a queue, unless a deadline passes first.
+     *
+     * @param queue         The queue to take from
+     * @param deadlineNanos How long to wait, in nanoseconds
+     * @return The next message, or null if the deadline passed
+     * @throws InterruptedException If the thread is interrupted whilst waiting.
+     */
+    @Nullable
+    private static PollerMessage takeBefore(
+            @NonNull LinkedBlockingQueue<PollerMessage> queue,
+            long deadlineNanos
+    ) throws InterruptedException {
+        CommandDeadline deadline = new CommandDeadline(Thread.currentThread());
+        HashedWheelTimer.Timeout timeout = HashedWheelTimer.getShared().newTimeout(
+                deadline, deadlineNanos, TimeUnit.NANOSECONDS);
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            if (!deadline.isExpired()) {
+                throw e;
+            }
+            return null;
+        } finally {
+            timeout.cancel();
+            if (deadline.finish()) {
+                // The deadline may have interrupted us just as the response arrived
+                //noinspection ResultOfMethodCallIgnored
+                Thread.interrupted();
+            }
+        }
+    }
+
     /**
      * Start the {@code InputResponsePoller} for this session.
      *
@@ -889,7 +1454,7 @@ public class MpiProtocolSession {
             return false;
         }
 
-        ResponseReader reader = new ResponseReader(inputStream);
+        ResponseReader reader = new ResponseReader(inputStream, mFlightRecorder);
         InputResponsePoller pollerRunnable = new InputResponsePoller(
                 reader, this.mQueues,
                 this.mUnsolicitedResponseCallback, pollerStatusCallback,
@@ -14,7 +14,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.List;
 
@@ -79,6 +78,10 @@ public class ResponseReader {
      */
     private boolean mIsBroken;
 
+    /** Where to record each packet read. null = don't record. */
+    @Nullable
+    private final FlightRecorder mFlightRecorder;
+
     /**
      * Construct a ResponseReader to read packets from the given stream.
      *
@@ -89,7 +92,20 @@ public class ResponseReader {
      * @param stream The input stream to read the ResponseMessage from
      */
     public ResponseReader(@NonNull InputStream stream) {
+        this(stream, null);
+    }
+
+    /**
+     * Construct a ResponseReader to read packets from the given stream, and record them.
+     *
+     * <p>See {@link #ResponseReader(InputStream)}
+     *
+     * @param stream         The input stream to read the ResponseMessage from
+     * @param flightRecorder Recorder to add each packet read to, or null.
+     */
+    public ResponseReader(@NonNull InputStream stream, @Nullable FlightRecorder flightRecorder) {
         mStream = stream;
+        mFlightRecorder = flightRecorder;
 
         mAllPendingPackets = new EnumMap<>(InterfaceType.class);
         for (InterfaceType e : InterfaceType.values()) {
@@ -145,8 +161,8 @@ public class ResponseReader {
                 breakReader();
                 return null;
             }
-            if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace("ResponseReader packet read: {}", Arrays.toString(packet.getBytes()));
+            if (mFlightRecorder != null) {
+                packet.recordTo(mFlightRecorder);
             }
 
             InterfaceType nad = packet.getNodeAddress();
@@ -4,6 +4,7 @@
 package com.miurasystems.miuralibrary.events;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +44,14 @@ public class MpiEventPublisher<Event> {
     @NonNull
     private final ReentrantLock mGroupLock;
 
+    /**
+     * Observer told whenever this publisher gains its handler or loses it.
+     * <p> Used by {@link UnsolicitedReportingManager} to drive device-side reporting.
+     * Null if nothing is observing.
+     */
+    @Nullable
+    private volatile SubscriptionObserver mSubscriptionObserver;
+
     /**
      * Create a new MpiEventPublishers in its own group
      */
@@ -87,6 +96,8 @@ public class MpiEventPublisher<Event> {
         MpiEventHandler<Event> oldValue = mHandler.getAndSet(handler);
         if (oldValue != null) {
             LOGGER.debug("register: Handler '{}' overwrote handler '{}'?", handler, oldValue);
+        } else {
+            notifySubscriptionObserver(true);
         }
         return true;
     }
@@ -111,10 +122,60 @@ public class MpiEventPublisher<Event> {
             LOGGER.debug("deregister: Tried to deregister handler '{}' that wasn't set? "
                             + "Leaving as '{}' (possibly)",
                     handler, mHandler.get());
+        } else {
+            notifySubscriptionObserver(false);
         }
         return ok;
     }
 
+    /**
+     * Does this publisher currently have a registered handler?
+     *
+     * @return true if a handler is registered, false otherwise
+     */
+    public boolean hasHandler() {
+        return mHandler.get() != null;
+    }
+
+    /**
+     * Set the observer told about subscription changes on this publisher.
+     *
+     * <p>There is only a single observer. Pass null to remove it.
+     *
+     * @param observer The observer, or null.
+     */
+    void setSubscriptionObserver(@Nullable SubscriptionObserver observer) {
+        mSubscriptionObserver = observer;
+    }
+
+    /**
+     * Tell the current observer, if any, that the publisher gained or lost its handler.
+     *
+     * @param subscribed true if a handler was registered, false if it was removed
+     */
+    private void notifySubscriptionObserver(boolean subscribed) {
+        SubscriptionObserver observer = mSubscriptionObserver;
+        if (observer != null) {
+            observer.subscriptionChanged(subscribed);
+        }
+    }
+
+    /**
+     * Observer of the "has a handler" state of a publisher.
+     */
+    interface SubscriptionObserver {
+
+        /**
+         * Called whenever a publisher goes from no handler to a handler, or vice versa.
+         *
+         * <p>Called on the thread that called register/deregister, which might be an
+         * event handler, so implementations must not block.
+         *
+         * @param subscribed true if the publisher now has a handler, false if it has none
+         */
+        void subscriptionChanged(boolean subscribed);
+    }
+
     /**
      * Notifies the currently registered event handler of the given event.
      *
@@ -4,6 +4,7 @@
 package com.miurasystems.miuralibrary.events;
 
 
+import com.miurasystems.miuralibrary.comms.ResponseMessage;
 import com.miurasystems.miuralibrary.enums.M012Printer;
 import com.miurasystems.miuralibrary.tlv.CardData;
 
@@ -234,6 +235,17 @@ public class MpiEvents {
      */
     public final MpiEventPublisher<byte[]> UsbSerialPortDataReceived;
 
+    /**
+     * Raw unsolicited message event.
+     * <p>
+     * Notified with every unsolicited ResponseMessage read from the device, for any NAD,
+     * just before it is decoded and published to the specific event above.
+     * This allows e.g. forwarding or recording the raw TLV data without taking the
+     * place of an app's handler on the decoded events.
+     * </p>
+     */
+    public final MpiEventPublisher<ResponseMessage> UnsolicitedMessageReceived;
+
     /**
      * Create a new MpiEvents collection
      */
@@ -250,5 +262,6 @@ public class MpiEvents {
         CommsChannelStatusChanged = new MpiEventPublisher<>(groupLock);
         BarcodeScanned = new MpiEventPublisher<>(groupLock);
         UsbSerialPortDataReceived = new MpiEventPublisher<>(groupLock);
+        UnsolicitedMessageReceived = new MpiEventPublisher<>(groupLock);
     }
 }
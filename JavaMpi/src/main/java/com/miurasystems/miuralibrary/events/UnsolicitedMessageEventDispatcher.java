@@ -27,6 +27,19 @@ public final class UnsolicitedMessageEventDispatcher {
     private static final Logger LOGGER =
             LoggerFactory.getLogger(UnsolicitedMessageEventDispatcher.class);
 
+    /**
+     * Publish an unsolicited message, undecoded, on {@link MpiEvents#UnsolicitedMessageReceived}
+     *
+     * @param responseMessage The unsolicited message
+     * @param events          The events to publish to
+     */
+    public static void signalRawEvent(
+            @NonNull ResponseMessage responseMessage,
+            @NonNull MpiEvents events
+    ) {
+        events.UnsolicitedMessageReceived.notifyListener(responseMessage);
+    }
+
     public static void signalEvent(
             @NonNull ResponseMessage responseMessage,
             @NonNull MpiEvents events
@@ -0,0 +1,506 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.events;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.enums.BacklightSettings;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.StatusSettings;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enables device-side unsolicited reporting only whilst something is listening for it.
+ *
+ * <p>
+ * Unsolicited messages such as card status, key presses, barcode scans and printer status
+ * have to be turned on at the device with a command, and stay on until turned off again.
+ * If they are left on when no app code is registered on the matching {@link MpiEventPublisher}
+ * then the device is sending messages that the SDK will read, parse and throw away.
+ * </p>
+ * <p>
+ * UnsolicitedReportingManager observes the publishers in an {@link MpiEvents} and:
+ * </p>
+ * <ul>
+ * <li>enables a reporting feature when its publisher gains a handler</li>
+ * <li>disables it when the publisher loses its handler</li>
+ * </ul>
+ * <p>
+ * Changes are not sent straight away. They're collected for a short batch window and then
+ * only the features whose desired state differs from what was last applied are sent.
+ * So a deregister/register pair (e.g. a screen swapping listeners) results in no commands at all.
+ * </p>
+ *
+ * <table>
+ * <tr><th>Publisher</th><th>Command</th><th>NAD</th></tr>
+ * <tr><td>{@link MpiEvents#CardStatusChanged}</td><td>CARD STATUS</td><td>MPI</td></tr>
+ * <tr><td>{@link MpiEvents#KeyPressed}</td><td>KEYBOARD STATUS</td><td>MPI</td></tr>
+ * <tr><td>{@link MpiEvents#PrinterStatusChanged}</td><td>PRINTER STATUS</td><td>MPI</td></tr>
+ * <tr><td>{@link MpiEvents#BarcodeScanned}</td><td>BAR CODE SCANNER STATUS</td><td>RPI</td></tr>
+ * </table>
+ *
+ * <p>
+ * Commands are issued on the given executor. <b>The MpiClient is not thread-safe</b>, so that
+ * executor must be the one that already serialises all use of the client
+ * (e.g. the single threaded executor an app uses for its MpiClient calls),
+ * or the client must be an {@link com.miurasystems.miuralibrary.MpiClientMTAbort}.
+ * </p>
+ * <p>
+ * If a command fails, the flush is retried with exponential backoff, from
+ * {@link #INITIAL_RETRY_DELAY_MS} up to {@link #MAX_RETRY_DELAY_MS}, until the device
+ * matches the desired state.
+ * </p>
+ * <p>
+ * The device's reporting state doesn't survive a reset or a new session on all connectors.
+ * Call {@link #resync()} after opening a session to push the desired state again.
+ * </p>
+ */
+public class UnsolicitedReportingManager {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(UnsolicitedReportingManager.class);
+
+    /** Default batch window, in milliseconds */
+    public static final long DEFAULT_BATCH_WINDOW_MS = 50L;
+
+    /** How long to wait before retrying after the first failed flush, in milliseconds */
+    public static final long INITIAL_RETRY_DELAY_MS = 250L;
+
+    /** The longest wait between retries, in milliseconds */
+    public static final long MAX_RETRY_DELAY_MS = 30000L;
+
+    /**
+     * The device-side reporting features that are controlled.
+     */
+    public enum Feature {
+        /** CARD STATUS on MPI, feeding {@link MpiEvents#CardStatusChanged} */
+        CardStatus,
+        /** KEYBOARD STATUS on MPI, feeding {@link MpiEvents#KeyPressed} */
+        KeyPressed,
+        /** PRINTER STATUS on MPI, feeding {@link MpiEvents#PrinterStatusChanged} */
+        PrinterStatus,
+        /** BAR CODE SCANNER STATUS on RPI, feeding {@link MpiEvents#BarcodeScanned} */
+        BarcodeScanned,
+    }
+
+    /** Client used to send the reporting commands */
+    @NonNull
+    private final MpiClient mClient;
+
+    /** The events being observed */
+    @NonNull
+    private final MpiEvents mEvents;
+
+    /** Executor the batched flush is run on */
+    @NonNull
+    private final ScheduledExecutorService mExecutor;
+
+    /** How long to wait for more changes before flushing */
+    private final long mBatchWindowMs;
+
+    /** Guards all of the mutable state below */
+    private final Object mLock = new Object();
+
+    /** Features that have a subscriber and should be reporting */
+    @NonNull
+    private final EnumSet<Feature> mDesired = EnumSet.noneOf(Feature.class);
+
+    /**
+     * The state last successfully sent to the device.
+     * <p> A feature missing from the map is in an unknown state and will always be sent.
+     */
+    @NonNull
+    private final EnumMap<Feature, Boolean> mApplied = new EnumMap<>(Feature.class);
+
+    /**
+     * Bumped whenever mApplied is invalidated.
+     * <p> Stops an in-flight flush from recording a state that was invalidated whilst
+     * its command was being sent.
+     */
+    private int mAppliedGeneration;
+
+    /** Is a flush already scheduled? */
+    private boolean mFlushScheduled;
+
+    /** Is a retry of a failed flush already scheduled? */
+    private boolean mRetryScheduled;
+
+    /** The delay before the next retry. 0 if the last flush didn't fail. */
+    private long mRetryDelayMs;
+
+    /** Is the manager currently observing the publishers? */
+    private boolean mStarted;
+
+    /** Number of reporting commands sent. For metrics/testing. */
+    private int mCommandsSent;
+
+    /** Ask for the ATR when a card is inserted */
+    private boolean mCardAtr;
+
+    /** Ask for track 1 data when a card is swiped */
+    private boolean mCardTrack1;
+
+    /** Ask for track 2 data when a card is swiped */
+    private boolean mCardTrack2;
+
+    /** Ask for track 3 data when a card is swiped */
+    private boolean mCardTrack3;
+
+    /**
+     * Create a new UnsolicitedReportingManager with the default batch window
+     *
+     * @param client   The client to send reporting commands with
+     * @param executor The executor to send the commands on. See class doc.
+     */
+    public UnsolicitedReportingManager(
+            @NonNull MpiClient client,
+            @NonNull ScheduledExecutorService executor
+    ) {
+        this(client, executor, DEFAULT_BATCH_WINDOW_MS);
+    }
+
+    /**
+     * Create a new UnsolicitedReportingManager
+     *
+     * <p>Observes {@code client.getMpiEvents()}. Nothing happens until {@link #start()}.
+     *
+     * @param client        The client to send reporting commands with
+     * @param executor      The executor to send the commands on. See class doc.
+     * @param batchWindowMs How long to collect changes for before sending them, in ms.
+     */
+    public UnsolicitedReportingManager(
+            @NonNull MpiClient client,
+            @NonNull ScheduledExecutorService executor,
+            long batchWindowMs
+    ) {
+        if (batchWindowMs < 0L) {
+            throw new IllegalArgumentException("batchWindowMs < 0");
+        }
+        mClient = client;
+        mEvents = client.getMpiEvents();
+        mExecutor = executor;
+        mBatchWindowMs = batchWindowMs;
+
+        mCardAtr = false;
+        mCardTrack1 = true;
+        mCardTrack2 = true;
+        mCardTrack3 = true;
+
+        // Reporting is off after the device powers on, so assume it starts that way.
+        // resync() can be used if that's not the case.
+        for (Feature feature : Feature.values()) {
+            mApplied.put(feature, Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Choose what data CARD STATUS should report whilst it's enabled.
+     *
+     * <p>Defaults to all tracks, no ATR. If card status is currently enabled the new
+     * options are sent at the next flush.
+     *
+     * @param atr    Report the ATR on card insertion
+     * @param track1 Report track 1 data on swipe
+     * @param track2 Report track 2 data on swipe
+     * @param track3 Report track 3 data on swipe
+     */
+    public void setCardStatusOptions(boolean atr, boolean track1, boolean track2, boolean track3) {
+        synchronized (mLock) {
+            mCardAtr = atr;
+            mCardTrack1 = track1;
+            mCardTrack2 = track2;
+            mCardTrack3 = track3;
+            if (mDesired.contains(Feature.CardStatus)) {
+                mApplied.remove(Feature.CardStatus);
+                mAppliedGeneration++;
+                scheduleFlushLocked();
+            }
+        }
+    }
+
+    /**
+     * Start observing the publishers.
+     *
+     * <p>Publishers that already have a handler are treated as freshly subscribed.
+     * This replaces any other UnsolicitedReportingManager observing the same MpiEvents.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+        }
+        for (Feature feature : Feature.values()) {
+            MpiEventPublisher<?> publisher = publisherFor(feature);
+            publisher.setSubscriptionObserver(new FeatureObserver(feature));
+            if (publisher.hasHandler()) {
+                subscriptionChanged(feature, true);
+            }
+        }
+    }
+
+    /**
+     * Stop observing the publishers.
+     *
+     * <p>Device-side reporting is left as it currently is. Pending changes are dropped.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (!mStarted) {
+                return;
+            }
+            mStarted = false;
+            mDesired.clear();
+            mRetryDelayMs = 0L;
+        }
+        for (Feature feature : Feature.values()) {
+            publisherFor(feature).setSubscriptionObserver(null);
+        }
+    }
+
+    /**
+     * Forget what has been sent to the device and push the whole desired state again.
+     *
+     * <p>Use after (re)opening a session or resetting the device. Features without
+     * subscribers are explicitly disabled.
+     */
+    public void resync() {
+        synchronized (mLock) {
+            mApplied.clear();
+            mAppliedGeneration++;
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Is the given feature currently wanted?
+     *
+     * @param feature The feature to check
+     * @return true if the feature's publisher has a handler
+     */
+    public boolean isDesired(@NonNull Feature feature) {
+        synchronized (mLock) {
+            return mDesired.contains(feature);
+        }
+    }
+
+    /**
+     * Get the number of reporting commands sent to the device so far.
+     *
+     * @return the number of commands sent
+     */
+    public int getCommandsSent() {
+        synchronized (mLock) {
+            return mCommandsSent;
+        }
+    }
+
+    /**
+     * Note a subscription change and schedule a flush.
+     *
+     * @param feature    Which feature changed
+     * @param subscribed The new state
+     */
+    private void subscriptionChanged(@NonNull Feature feature, boolean subscribed) {
+        LOGGER.trace("subscriptionChanged({}, {})", feature, subscribed);
+        synchronized (mLock) {
+            if (!mStarted) {
+                return;
+            }
+            if (subscribed) {
+                mDesired.add(feature);
+            } else {
+                mDesired.remove(feature);
+            }
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Schedule a flush at the end of the batch window, unless one is already pending.
+     * <p>Must hold mLock.
+     */
+    private void scheduleFlushLocked() {
+        if (mFlushScheduled) {
+            return;
+        }
+        try {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, mBatchWindowMs, TimeUnit.MILLISECONDS);
+            mFlushScheduled = true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.info("Executor rejected reporting flush: {}", e.toString());
+        }
+    }
+
+    /**
+     * Schedule a retry of a failed flush, backing off after each failure.
+     * <p>Must hold mLock.
+     */
+    private void scheduleRetryLocked() {
+        mRetryDelayMs = (mRetryDelayMs == 0L)
+                ? INITIAL_RETRY_DELAY_MS
+                : Math.min(mRetryDelayMs * 2L, MAX_RETRY_DELAY_MS);
+        if (mRetryScheduled) {
+            return;
+        }
+        try {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mLock) {
+                        mRetryScheduled = false;
+                    }
+                    flush();
+                }
+            }, mRetryDelayMs, TimeUnit.MILLISECONDS);
+            mRetryScheduled = true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.info("Executor rejected reporting retry: {}", e.toString());
+        }
+    }
+
+    /**
+     * Send the commands needed to bring the device in line with the desired state.
+     */
+    private void flush() {
+        EnumMap<Feature, Boolean> changes = new EnumMap<>(Feature.class);
+        boolean atr, track1, track2, track3;
+        int generation;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            if (!mStarted) {
+                // stopped whilst the flush was pending; its changes are dropped
+                return;
+            }
+            generation = mAppliedGeneration;
+            for (Feature feature : Feature.values()) {
+                Boolean wanted = mDesired.contains(feature);
+                if (!wanted.equals(mApplied.get(feature))) {
+                    changes.put(feature, wanted);
+                }
+            }
+            atr = mCardAtr;
+            track1 = mCardTrack1;
+            track2 = mCardTrack2;
+            track3 = mCardTrack3;
+        }
+
+        boolean failed = false;
+        for (Map.Entry<Feature, Boolean> entry : changes.entrySet()) {
+            Feature feature = entry.getKey();
+            boolean enable = entry.getValue();
+            LOGGER.debug("Setting {} reporting to {}", feature, enable);
+
+            boolean ok;
+            switch (feature) {
+                case CardStatus:
+                    // cardStatus is answered by unsolicited messages, so has nothing to check
+                    mClient.cardStatus(InterfaceType.MPI, enable,
+                            enable && atr, enable && track1, enable && track2, enable && track3);
+                    ok = true;
+                    break;
+                case KeyPressed:
+                    StatusSettings status = enable ? StatusSettings.Enable : StatusSettings.Disable;
+                    ok = mClient.keyboardStatus(
+                            InterfaceType.MPI, status, BacklightSettings.NoChange);
+                    break;
+                case PrinterStatus:
+                    ok = mClient.printerSledStatus(InterfaceType.MPI, enable);
+                    break;
+                case BarcodeScanned:
+                    ok = mClient.barcodeStatus(InterfaceType.RPI, enable);
+                    break;
+                default:
+                    throw new AssertionError("Unknown feature " + feature);
+            }
+
+            synchronized (mLock) {
+                mCommandsSent++;
+                if (!ok) {
+                    failed = true;
+                }
+                if (generation != mAppliedGeneration) {
+                    // invalidated whilst sending; the flush that's now scheduled will redo it
+                    continue;
+                }
+                if (ok) {
+                    mApplied.put(feature, enable);
+                } else {
+                    // leave it unknown, so it's retried at the next flush
+                    LOGGER.info("Failed to set {} reporting to {}", feature, enable);
+                    mApplied.remove(feature);
+                }
+            }
+        }
+
+        synchronized (mLock) {
+            if (!failed) {
+                mRetryDelayMs = 0L;
+            } else if (mStarted) {
+                scheduleRetryLocked();
+            }
+        }
+    }
+
+    /**
+     * Get the publisher whose subscribers a feature serves.
+     *
+     * @param feature The feature
+     * @return The matching publisher in mEvents
+     */
+    @NonNull
+    private MpiEventPublisher<?> publisherFor(@NonNull Feature feature) {
+        switch (feature) {
+            case CardStatus:
+                return mEvents.CardStatusChanged;
+            case KeyPressed:
+                return mEvents.KeyPressed;
+            case PrinterStatus:
+                return mEvents.PrinterStatusChanged;
+            case BarcodeScanned:
+                return mEvents.BarcodeScanned;
+            default:
+                throw new AssertionError("Unknown feature " + feature);
+        }
+    }
+
+    /**
+     * Forwards a single publisher's subscription changes to the manager.
+     */
+    private final class FeatureObserver implements MpiEventPublisher.SubscriptionObserver {
+
+        /** The feature the observed publisher is fed by */
+        @NonNull
+        private final Feature mFeature;
+
+        /**
+         * @param feature The feature the observed publisher is fed by
+         */
+        FeatureObserver(@NonNull Feature feature) {
+            mFeature = feature;
+        }
+
+        @Override
+        public void subscriptionChanged(boolean subscribed) {
+            UnsolicitedReportingManager.this.subscriptionChanged(mFeature, subscribed);
+        }
+    }
+}
@@ -4,14 +4,24 @@
 package com.miurasystems.miuralibrary.tlv;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.miurasystems.miuralibrary.CommandUtil;
-import com.miurasystems.miuralibrary.enums.ServiceCode;
 
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
 
+/**
+ * The card data sent with a Card Status unsolicited message.
+ *
+ * <p>
+ * CardData objects are built for every card status change, though most handlers only look at
+ * {@link #getCardStatus()}. So when built by {@link #valueOf(TLVObject)} the other values are
+ * kept as the bytes of the message's TLVs, and are only converted to Strings (and Track2Data
+ * parsed) the first time they are asked for.
+ * </p>
+ */
 public class CardData {
 
     private static final Charset US_ASCII = Charset.forName("US-ASCII");
@@ -23,6 +33,10 @@ public class CardData {
     private String plainTrack1Data;
     private Track2Data plainTrack2Data;
 
+    /* Values not yet converted to their String. null once converted, or if not present. */
+    @Nullable
+    private byte[] answerToResetBytes, sredDataBytes, sredKSNBytes, plainTrack1Bytes;
+
     public byte[] getRaw() {
         return raw;
     }
@@ -31,28 +45,43 @@ public class CardData {
         this.raw = raw;
     }
 
-    public String getAnswerToReset() {
+    public synchronized String getAnswerToReset() {
+        if (answerToResetBytes != null) {
+            answerToReset = TLVObject.dataToString(answerToResetBytes);
+            answerToResetBytes = null;
+        }
         return answerToReset;
     }
 
-    public void setAnswerToReset(String answerToReset) {
+    public synchronized void setAnswerToReset(String answerToReset) {
         this.answerToReset = answerToReset;
+        this.answerToResetBytes = null;
     }
 
-    public String getSredData() {
+    public synchronized String getSredData() {
+        if (sredDataBytes != null) {
+            sredData = TLVObject.dataToString(sredDataBytes);
+            sredDataBytes = null;
+        }
         return sredData;
     }
 
-    public void setSredData(String sredData) {
+    public synchronized void setSredData(String sredData) {
         this.sredData = sredData;
+        this.sredDataBytes = null;
     }
 
-    public String getSredKSN() {
+    public synchronized String getSredKSN() {
+        if (sredKSNBytes != null) {
+            sredKSN = TLVObject.dataToString(sredKSNBytes);
+            sredKSNBytes = null;
+        }
         return sredKSN;
     }
 
-    public void setSredKSN(String sredKSN) {
+    public synchronized void setSredKSN(String sredKSN) {
         this.sredKSN = sredKSN;
+        this.sredKSNBytes = null;
     }
 
     public Track2Data getMaskedTrack2Data() {
@@ -76,14 +105,18 @@ public class CardData {
         return "CardData{" +
                 "cardStatus=" + cardStatus +
                 ", maskedTrack2Data=" + maskedTrack2Data +
-                ", sredKSN='" + sredKSN + '\'' +
-                ", sredData='" + sredData + '\'' +
-                ", answerToReset='" + answerToReset + '\'' +
+                ", sredKSN='" + getSredKSN() + '\'' +
+                ", sredData='" + getSredData() + '\'' +
+                ", answerToReset='" + getAnswerToReset() + '\'' +
                 ", raw=" + Arrays.toString(raw) +
                 '}';
     }
 
-    public String getPlainTrack1Data() {
+    public synchronized String getPlainTrack1Data() {
+        if (plainTrack1Bytes != null) {
+            plainTrack1Data = new String(plainTrack1Bytes, US_ASCII);
+            plainTrack1Bytes = null;
+        }
         return plainTrack1Data;
     }
 
@@ -122,67 +155,37 @@ public class CardData {
         byte swipeStatus = tlvCardStatus.getRawData()[1];
 
         CardStatus cardStatus = parseCardStatus(insertStatus, swipeStatus);
-        Track2Data maskedTrack2Data = parseTrack2Data(tlvMaskedTrack2Data, true);
 
         CardData cardData = new CardData();
-        cardData.setCardStatus(cardStatus);
-        cardData.setRaw(tlvObject.getRawData());
-        cardData.setMaskedTrack2Data(maskedTrack2Data);
+        cardData.cardStatus = cardStatus;
+        cardData.raw = tlvObject.getRawData();
+        if (tlvMaskedTrack2Data != null) {
+            cardData.maskedTrack2Data = Track2Data.valueOf(
+                    tlvMaskedTrack2Data.getRawData(), true);
+        } else {
+            cardData.maskedTrack2Data = new Track2Data();
+            cardData.maskedTrack2Data.setIsMasked(true);
+        }
         if (tlvAnswerToReset != null) {
-            cardData.setAnswerToReset(tlvAnswerToReset.getData());
+            cardData.answerToResetBytes = tlvAnswerToReset.getRawData();
         }
         if (tlvSredData != null) {
-            cardData.setSredData(tlvSredData.getData());
+            cardData.sredDataBytes = tlvSredData.getRawData();
         }
         if (tlvSredKsn != null) {
-            cardData.setSredKSN(tlvSredKsn.getData());
+            cardData.sredKSNBytes = tlvSredKsn.getRawData();
         }
         if (tlvPlainTrack1Data != null) {
-            cardData.plainTrack1Data = new String(tlvPlainTrack1Data.getRawData(), US_ASCII);
+            cardData.plainTrack1Bytes = tlvPlainTrack1Data.getRawData();
         }
         if (tlvPlainTrack2Data != null) {
-            cardData.plainTrack2Data = parseTrack2Data(tlvPlainTrack2Data, false);
+            cardData.plainTrack2Data = Track2Data.valueOf(
+                    tlvPlainTrack2Data.getRawData(), false);
         }
 
         return cardData;
     }
 
-    private static Track2Data parseTrack2Data(TLVObject tlvTrack2Data, boolean isMasked) {
-        Track2Data track2Data = new Track2Data();
-
-        track2Data.setIsMasked(isMasked);
-
-        if (tlvTrack2Data != null) {
-            String track2String = new String(tlvTrack2Data.getRawData());
-
-            int index = track2String.indexOf("=");
-            String pan = track2String.substring(1, index);
-            String expirationDate = track2String.substring(index + 1, index + 2);
-            if (expirationDate.equals("=")) {
-                expirationDate = "";
-                index = index + 2;
-            } else {
-                expirationDate = track2String.substring(index + 1, index + 5);
-                index = index + 5;
-            }
-
-            String serviceCode = track2String.substring(index, index + 1);
-            if (serviceCode.equals("=")) {
-                serviceCode = "";
-            } else {
-                serviceCode = track2String.substring(index, index + 3);
-            }
-
-            track2Data.setPAN(pan);
-            track2Data.setExpirationDate(expirationDate);
-            track2Data.setServiceCode(new ServiceCode(serviceCode));
-            track2Data.setRaw(tlvTrack2Data.getRawData());
-        }
-
-        return track2Data;
-
-    }
-
     private static CardStatus parseCardStatus(byte insertStatus, byte swipeStatus) {
         CardStatus cardStatus = new CardStatus();
         cardStatus.setCardPresent((insertStatus & (1 << 0)) > 0);
@@ -5,6 +5,7 @@ package com.miurasystems.miuralibrary.tlv;
 
 import android.support.annotation.NonNull;
 
+import java.nio.charset.Charset;
 import java.util.List;
 
 // EMV 4.3, Book 3, Annex B defines the 'Rules for BER-TLV Data Objects'
@@ -12,6 +13,9 @@ import java.util.List;
 public class TLVObject {
     public static final String TAG = TLVObject.class.getName();
 
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final char[] LOWER_HEX = "0123456789abcdef".toCharArray();
+
     private int topTag;
     private final Tag tag;
     private int vLength;
@@ -188,15 +192,47 @@ public class TLVObject {
 
     @NonNull
     public String getData() {
-        StringBuilder sb = new StringBuilder();
-        if (new String(rawData).matches("[\\p{Alnum}\\p{Punct}\\p{Space}]*")) {
-            return new String(rawData);
-        } else {
-            for (byte b : rawData) {
-                sb.append(String.format("%2s", Integer.toHexString(b & 0xFF)).replace(' ', '0'));
+        return dataToString(rawData);
+    }
+
+    /**
+     * The String form of a data value, as returned by {@link #getData()}.
+     *
+     * <p>If every byte is printable ASCII or whitespace the value is returned as text,
+     * otherwise it is returned as lower case hex.
+     *
+     * @param data The value's bytes
+     * @return The value as a String
+     */
+    @NonNull
+    static String dataToString(@NonNull byte[] data) {
+        if (isText(data)) {
+            return new String(data, US_ASCII);
+        }
+        char[] chars = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            int v = data[i] & 0xFF;
+            chars[i * 2] = LOWER_HEX[v >>> 4];
+            chars[i * 2 + 1] = LOWER_HEX[v & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Equivalent to matching the data against [\p{Alnum}\p{Punct}\p{Space}]*
+     *
+     * @param data The value's bytes
+     * @return true if every byte is printable ASCII or whitespace
+     */
+    private static boolean isText(@NonNull byte[] data) {
+        for (byte b : data) {
+            boolean printable = b >= 0x21 && b <= 0x7E;
+            boolean space = b == ' ' || (b >= 0x09 && b <= 0x0D);
+            if (!printable && !space) {
+                return false;
             }
-            return sb.toString();
         }
+        return true;
     }
 
     @NonNull
@@ -215,11 +251,7 @@ public class TLVObject {
     }
 
     public boolean isRawData() {
-        if (new String(getRawData()).matches("[\\p{Alnum}\\p{Punct}\\p{Space}]*")) {
-            return false;
-        } else {
-            return true;
-        }
+        return !isText(getRawData());
     }
 
     public int getConstructedTLVLength() {
@@ -3,41 +3,123 @@
  */
 package com.miurasystems.miuralibrary.tlv;
 
+import android.support.annotation.NonNull;
+
 import com.miurasystems.miuralibrary.enums.ServiceCode;
 
 import java.io.Serializable;
+import java.nio.charset.Charset;
 
 /**
  * Class containing the data received on the track 2 of a mag swipe card
  */
 public class Track2Data implements Serializable {
 
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
     private boolean isMasked;
     private String PAN, expirationDate;
     private ServiceCode serviceCode;
     private byte[] raw;
 
+    /**
+     * true if PAN, expirationDate and serviceCode still need parsing from raw.
+     *
+     * <p>Most card status events are only checked for card presence, so the track
+     * isn't split up until one of its fields is asked for.
+     */
+    private boolean needsParse;
+
+    /* Where the expiry and service code start in raw. Found by valueOf. */
+    private int expiryStart, serviceCodeStart;
+
+    public Track2Data() {
+    }
+
+    /**
+     * Create a Track2Data from the track's raw bytes.
+     *
+     * <p>The layout of the track is checked here, but the PAN, expiration date and service
+     * code Strings aren't made until one of them is asked for.
+     *
+     * @param raw      The track 2 data, e.g. ";4761739001010010=15122011143857589?"
+     * @param isMasked true if this is the masked track
+     * @return a new Track2Data
+     * @throws StringIndexOutOfBoundsException if raw is too short or has no field separator
+     */
+    @NonNull
+    static Track2Data valueOf(@NonNull byte[] raw, boolean isMasked) {
+        int separator = indexOf(raw, '=');
+        checkRange(raw, 1, separator);
+
+        int expiryStart = separator + 1;
+        int serviceCodeStart;
+        checkRange(raw, expiryStart, expiryStart + 1);
+        if (raw[expiryStart] == '=') {
+            serviceCodeStart = expiryStart + 1;
+        } else {
+            serviceCodeStart = expiryStart + 4;
+            checkRange(raw, expiryStart, serviceCodeStart);
+        }
+
+        checkRange(raw, serviceCodeStart, serviceCodeStart + 1);
+        if (raw[serviceCodeStart] != '=') {
+            checkRange(raw, serviceCodeStart, serviceCodeStart + 3);
+        }
+
+        Track2Data track2Data = new Track2Data();
+        track2Data.isMasked = isMasked;
+        track2Data.raw = raw;
+        track2Data.expiryStart = expiryStart;
+        track2Data.serviceCodeStart = serviceCodeStart;
+        track2Data.needsParse = true;
+        return track2Data;
+    }
+
+    private static int indexOf(byte[] raw, char c) {
+        for (int i = 0; i < raw.length; i++) {
+            if (raw[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* Throws the same exception String.substring(begin, end) would on the decoded track. */
+    private static void checkRange(byte[] raw, int begin, int end) {
+        if (begin < 0 || end > raw.length || begin > end) {
+            throw new StringIndexOutOfBoundsException(
+                    "begin " + begin + ", end " + end + ", length " + raw.length);
+        }
+    }
+
     public String getPAN() {
+        parseIfNeeded();
         return PAN;
     }
 
     public void setPAN(String PAN) {
+        parseIfNeeded();
         this.PAN = PAN;
     }
 
     public String getExpirationDate() {
+        parseIfNeeded();
         return expirationDate;
     }
 
     public void setExpirationDate(String expirationDate) {
+        parseIfNeeded();
         this.expirationDate = expirationDate;
     }
 
     public ServiceCode getServiceCode() {
+        parseIfNeeded();
         return serviceCode;
     }
 
     public void setServiceCode(ServiceCode serviceCode) {
+        parseIfNeeded();
         this.serviceCode = serviceCode;
     }
 
@@ -46,6 +128,7 @@ public class Track2Data implements Serializable {
     }
 
     public void setRaw(byte[] raw) {
+        parseIfNeeded();
         this.raw = raw;
     }
 
@@ -60,10 +143,39 @@ public class Track2Data implements Serializable {
     @Override
     public String toString() {
         return "Track2Data{" +
-                "PAN='" + PAN + '\'' +
-                ", expirationDate='" + expirationDate + '\'' +
-                ", serviceCode=" + serviceCode +
+                "PAN='" + getPAN() + '\'' +
+                ", expirationDate='" + getExpirationDate() + '\'' +
+                ", serviceCode=" + getServiceCode() +
                 ", isMasked=" + isMasked +
                 '}';
     }
+
+    private synchronized void parseIfNeeded() {
+        if (!needsParse) {
+            return;
+        }
+
+        // valueOf has already checked the layout, so none of this can go out of bounds.
+        String track2String = new String(raw, US_ASCII);
+
+        String pan = track2String.substring(1, expiryStart - 1);
+        String expirationDate;
+        if (track2String.charAt(expiryStart) == '=') {
+            expirationDate = "";
+        } else {
+            expirationDate = track2String.substring(expiryStart, serviceCodeStart);
+        }
+
+        String serviceCode;
+        if (track2String.charAt(serviceCodeStart) == '=') {
+            serviceCode = "";
+        } else {
+            serviceCode = track2String.substring(serviceCodeStart, serviceCodeStart + 3);
+        }
+
+        this.PAN = pan;
+        this.expirationDate = expirationDate;
+        this.serviceCode = new ServiceCode(serviceCode);
+        needsParse = false;
+    }
 }
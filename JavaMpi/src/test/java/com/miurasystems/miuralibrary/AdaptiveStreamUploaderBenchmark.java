@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.AdaptiveStreamUploaderTest.UploadServer;
+import com.miurasystems.miuralibrary.api.utils.StreamBinaryFile;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload throughput of StreamBinaryFile's fixed chunks against AdaptiveStreamUploader,
+ * unpipelined and pipelined, over TCP, Bluetooth and USB-like simulated links.
+ *
+ * <p>
+ * The source is read at {@link #SOURCE_BYTES_PER_SECOND}, like a slow SD card, so reading
+ * ahead shows up. Kept small so it can run with the unit tests. Increase the file sizes for
+ * real numbers.
+ */
+public class AdaptiveStreamUploaderBenchmark {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(AdaptiveStreamUploaderBenchmark.class);
+
+    private static final long SOURCE_BYTES_PER_SECOND = 4L * 1024L * 1024L;
+    private static final long PROCESSING_MICROS = 2000L;
+
+    /**
+     * A simulated link.
+     */
+    private enum Profile {
+        Tcp(3L, 512L * 1024L, 256 * 1024),
+        Bluetooth(20L, 64L * 1024L, 64 * 1024),
+        Usb(1L, 2L * 1024L * 1024L, 512 * 1024);
+
+        final long mLatencyMs;
+        final long mBytesPerSecond;
+        final int mFileSize;
+
+        Profile(long latencyMs, long bytesPerSecond, int fileSize) {
+            mLatencyMs = latencyMs;
+            mBytesPerSecond = bytesPerSecond;
+            mFileSize = fileSize;
+        }
+    }
+
+    /**
+     * An InputStream that takes time to read.
+     */
+    private static final class SlowInputStream extends FilterInputStream {
+        SlowInputStream(@NonNull InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(n * 1000000000L / SOURCE_BYTES_PER_SECOND);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Averages the chunks' round trips.
+     */
+    private static final class RttListener implements AdaptiveStreamUploader.ChunkListener {
+        long mTotalMicros;
+        int mChunks;
+
+        @Override
+        public void onChunk(int offset, int size, long rttMicros, long bytesPerSecond) {
+            mTotalMicros += rttMicros;
+            mChunks++;
+        }
+    }
+
+    private static void report(
+            @NonNull Profile profile, @NonNull String what, long nanos, int chunks,
+            long meanRttMicros, int chunkSize) {
+        String line = String.format(Locale.ENGLISH,
+                "%-10s %-12s %8.1f ms %8.1f KiB/s  chunks %4d  mean rtt %7d us  chunk %6d",
+                profile, what, nanos / 1e6, profile.mFileSize / 1024.0 / (nanos / 1e9),
+                chunks, meanRttMicros, chunkSize);
+        LOGGER.info(line);
+        System.out.println(line);
+    }
+
+    private static void upload(@NonNull Profile profile, int maxDepth) throws IOException {
+        byte[] data = new byte[profile.mFileSize];
+        new Random(profile.mFileSize).nextBytes(data);
+        UploadServer server = new UploadServer();
+        SimulatedDevice device = new SimulatedDevice(server);
+        device.setLatencyMs(profile.mLatencyMs);
+        device.setBandwidth(profile.mBytesPerSecond);
+        device.setProcessingMicros(PROCESSING_MICROS);
+        MpiClient client = new MpiClient(device, new MpiEvents());
+        client.openSession();
+
+        InputStream in = new SlowInputStream(new ByteArrayInputStream(data));
+        boolean ok;
+        long nanos;
+        if (maxDepth == 0) {
+            long start = System.nanoTime();
+            ok = StreamBinaryFile.streamBinaryFile(client, InterfaceType.MPI, "f", in, null);
+            nanos = System.nanoTime() - start;
+            int chunks = server.mChunkSizes.size();
+            report(profile, "fixed", nanos, chunks, -1L, server.mChunkSizes.get(0));
+        } else {
+            AdaptiveStreamUploader uploader =
+                    new AdaptiveStreamUploader(client, InterfaceType.MPI, maxDepth);
+            RttListener listener = new RttListener();
+            uploader.setChunkListener(listener);
+            long start = System.nanoTime();
+            ok = uploader.upload("f", in, null);
+            nanos = System.nanoTime() - start;
+            report(profile, "adaptive " + maxDepth, nanos, listener.mChunks,
+                    listener.mTotalMicros / listener.mChunks, uploader.getChunkSize());
+        }
+        client.closeSession();
+
+        assertThat(ok, is(true));
+        assertThat(server.mFile, is(equalTo(data)));
+    }
+
+    @Test
+    public void uploadMatrix() throws IOException {
+        for (Profile profile : Profile.values()) {
+            // 0 is StreamBinaryFile's fixed chunks
+            for (int maxDepth = 0; maxDepth <= AdaptiveStreamUploader.MAX_DEPTH; maxDepth++) {
+                upload(profile, maxDepth);
+            }
+        }
+    }
+}
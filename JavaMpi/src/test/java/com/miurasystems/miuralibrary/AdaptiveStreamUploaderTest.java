@@ -0,0 +1,322 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.api.objects.TransferStats;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class AdaptiveStreamUploaderTest {
+
+    /**
+     * A PED that puts together the file streamed to it, optionally failing at one offset.
+     */
+    static final class UploadServer implements SimulatedDevice.StreamHandler {
+        volatile byte[] mFile = new byte[0];
+        final List<Integer> mChunkSizes = new ArrayList<>();
+        final List<Integer> mTimeouts = new ArrayList<>();
+        volatile int mFailOffset = -1;
+        final List<CommandType> mCommands =
+                Collections.synchronizedList(new ArrayList<CommandType>());
+        private byte[] mPendingStream;
+
+        /**
+         * @return The value of a 3 byte dfa3xx tag in a STREAM BINARY, or -1
+         */
+        static int getStreamTag(@NonNull byte[] command, int tag, int length) {
+            for (int i = 5; i + 3 + length < command.length; i++) {
+                if (command[i] == (byte) 0xDF && command[i + 1] == (byte) 0xA3
+                        && command[i + 2] == tag && command[i + 3] == length) {
+                    int value = 0;
+                    for (int j = 0; j < length; j++) {
+                        value = (value << 8) | (command[i + 4 + j] & 0xFF);
+                    }
+                    return value;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void handleStream(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] data) {
+            mPendingStream = data;
+        }
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            CommandType type = CommandType.valueOf(command[0], command[1]);
+            mCommands.add(type);
+            if (type == CommandType.Select_File) {
+                mFile = new byte[0];
+                return SimulatedDevice.response(
+                        TLVParser.encode(Description.Response_Data,
+                                TLVParser.encode(Description.File_Size, new byte[4])),
+                        SimulatedDevice.SW_OK);
+            } else if (type == CommandType.Stream_Binary) {
+                int offset = getStreamTag(command, 0x01, 3);
+                byte[] data = mPendingStream;
+                mPendingStream = null;
+                if (data == null || offset != mFile.length || offset == mFailOffset) {
+                    return new byte[]{(byte) 0x9F, (byte) 0x20};
+                }
+                synchronized (this) {
+                    mChunkSizes.add(data.length);
+                    mTimeouts.add(getStreamTag(command, 0x03, 1));
+                }
+                byte[] file = Arrays.copyOf(mFile, offset + data.length);
+                System.arraycopy(data, 0, file, offset, data.length);
+                mFile = file;
+            }
+            return SimulatedDevice.SW_OK;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final UploadServer mServer = new UploadServer();
+    private final SimulatedDevice mDevice = new SimulatedDevice(mServer);
+    private MpiClient mClient;
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.closeSession();
+        }
+    }
+
+    private MpiClient connect() throws IOException {
+        mClient = new MpiClient(mDevice, new MpiEvents());
+        mClient.openSession();
+        return mClient;
+    }
+
+    private static byte[] makeData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void uploadsStream() throws Exception {
+        // setup
+        mDevice.setLatencyMs(2L);
+        mDevice.setBandwidth(2000000L);
+        byte[] data = makeData(300 * 1024 + 17);
+        AdaptiveStreamUploader uploader = new AdaptiveStreamUploader(connect(), InterfaceType.MPI);
+
+        // execute
+        boolean ok = uploader.upload("image.bin", new ByteArrayInputStream(data), null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(mServer.mFile, is(equalTo(data)));
+        TransferStats stats = uploader.getStats();
+        assertThat(stats.getBytes(), is((long) data.length));
+        assertThat(stats.getChunks(), is(mServer.mChunkSizes.size()));
+        assertThat(stats.getMaxWindow(), is(AdaptiveStreamUploader.MAX_DEPTH));
+        assertThat(stats.getErrors(), is(0));
+        assertThat(mServer.mChunkSizes.get(0), is(AdaptiveStreamUploader.MIN_CHUNK_SIZE));
+    }
+
+    @Test
+    public void uploadsFileFromChannel() throws Exception {
+        // setup
+        byte[] data = makeData(200 * 1024);
+        File file = mFolder.newFile("image.bin");
+        Files.write(file.toPath(), data);
+        mDevice.setOutputChannel(true);
+        AdaptiveStreamUploader uploader = new AdaptiveStreamUploader(connect(), InterfaceType.MPI);
+
+        // execute
+        boolean ok = uploader.upload("image.bin", file, null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(mServer.mFile, is(equalTo(data)));
+        assertThat(mDevice.getChannelBytes(), is((long) data.length));
+    }
+
+    @Test
+    public void otherThreadWaitsForUpload() throws Exception {
+        // setup
+        mDevice.setLatencyMs(2L);
+        mDevice.setBandwidth(2000000L);
+        final byte[] data = makeData(100 * 1024);
+        mClient = new MpiClientMTAbort(mDevice, new MpiEvents());
+        mClient.openSession();
+        final AdaptiveStreamUploader uploader =
+                new AdaptiveStreamUploader(mClient, InterfaceType.MPI);
+        final boolean[] uploaded = {false};
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                uploaded[0] = uploader.upload("image.bin", new ByteArrayInputStream(data), null);
+            }
+        });
+        thread.start();
+        while (mServer.mCommands.size() < 5) {
+            Thread.sleep(1L);
+        }
+
+        // execute
+        boolean displayed = mClient.displayText(InterfaceType.MPI, "hello", false, false, false);
+        thread.join();
+
+        // verify
+        assertThat(uploaded[0], is(true));
+        assertThat(mServer.mFile, is(equalTo(data)));
+        assertThat(displayed, is(true));
+        List<CommandType> commands = mServer.mCommands;
+        assertThat(commands.get(commands.size() - 1), is(CommandType.Display_Text));
+        assertThat(commands.subList(1, commands.size() - 1),
+                everyItem(is(CommandType.Stream_Binary)));
+    }
+
+    @Test
+    public void unpipelinedSendsOneAtATime() throws Exception {
+        // setup
+        mDevice.setLatencyMs(2L);
+        byte[] data = makeData(100 * 1024);
+        AdaptiveStreamUploader uploader =
+                new AdaptiveStreamUploader(connect(), InterfaceType.MPI, 1);
+
+        // execute
+        boolean ok = uploader.upload("image.bin", new ByteArrayInputStream(data), null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(mServer.mFile, is(equalTo(data)));
+        assertThat(uploader.getStats().getMaxWindow(), is(1));
+    }
+
+    @Test
+    public void fastLinkGrowsChunks() throws Exception {
+        // setup
+        mDevice.setBandwidth(8000000L);
+        byte[] data = makeData(2 * 1024 * 1024);
+        AdaptiveStreamUploader uploader = new AdaptiveStreamUploader(connect(), InterfaceType.MPI);
+
+        // execute
+        boolean ok = uploader.upload("image.bin", new ByteArrayInputStream(data), null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(uploader.getChunkSize(), is(AdaptiveStreamUploader.MAX_CHUNK_SIZE));
+        assertThat(uploader.getStreamTimeout(), is(AdaptiveStreamUploader.MIN_STREAM_TIMEOUT));
+        assertThat(mServer.mTimeouts.get(0),
+                is(AdaptiveStreamUploader.DEFAULT_STREAM_TIMEOUT));
+        int last = mServer.mTimeouts.size() - 1;
+        assertThat(mServer.mTimeouts.get(last), is(AdaptiveStreamUploader.MIN_STREAM_TIMEOUT));
+    }
+
+    @Test
+    public void slowLinkShrinksChunks() throws Exception {
+        // setup
+        mDevice.setLatencyMs(5L);
+        mDevice.setBandwidth(32000L);
+        byte[] data = makeData(48 * 1024);
+        AdaptiveStreamUploader uploader = new AdaptiveStreamUploader(connect(), InterfaceType.MPI);
+
+        // execute
+        boolean ok = uploader.upload("image.bin", new ByteArrayInputStream(data), null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(mServer.mFile, is(equalTo(data)));
+        assertThat(uploader.getChunkSize(),
+                is(lessThan(AdaptiveStreamUploader.INITIAL_CHUNK_SIZE)));
+        long bytesPerSecond = uploader.getBytesPerSecond();
+        assertThat(bytesPerSecond, is(greaterThan(24000L)));
+        assertThat(bytesPerSecond, is(lessThan(40000L)));
+        assertThat(uploader.getAckLatencyMicros(), is(greaterThan(5000L)));
+    }
+
+    @Test
+    public void listenerToldAboutEachChunk() throws Exception {
+        // setup
+        mDevice.setLatencyMs(1L);
+        byte[] data = makeData(64 * 1024);
+        AdaptiveStreamUploader uploader = new AdaptiveStreamUploader(connect(), InterfaceType.MPI);
+        final List<Integer> offsets = new ArrayList<>();
+        final List<Long> rtts = new ArrayList<>();
+        final int[] total = {0};
+        uploader.setChunkListener(new AdaptiveStreamUploader.ChunkListener() {
+            @Override
+            public void onChunk(int offset, int size, long rttMicros, long bytesPerSecond) {
+                assertThat(offset, is(total[0]));
+                offsets.add(offset);
+                rtts.add(rttMicros);
+                total[0] += size;
+            }
+        });
+
+        // execute
+        boolean ok = uploader.upload("image.bin", new ByteArrayInputStream(data), null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(total[0], is(data.length));
+        assertThat(offsets.size(), is(mServer.mChunkSizes.size()));
+        assertThat(rtts, everyItem(is(greaterThan(2000L))));
+    }
+
+    @Test
+    public void failedChunkFailsUpload() throws Exception {
+        // setup
+        mDevice.setLatencyMs(1L);
+        mServer.mFailOffset = AdaptiveStreamUploader.MIN_CHUNK_SIZE;
+        byte[] data = makeData(100 * 1024);
+        MpiClient client = connect();
+        AdaptiveStreamUploader uploader = new AdaptiveStreamUploader(client, InterfaceType.MPI);
+
+        // execute
+        boolean ok = uploader.upload("image.bin", new ByteArrayInputStream(data), null);
+
+        // verify
+        assertThat(ok, is(false));
+        assertThat(uploader.getStats().getErrors(), is(lessThanOrEqualTo(2)));
+        assertThat(uploader.getStats().getBytes(),
+                is((long) AdaptiveStreamUploader.MIN_CHUNK_SIZE));
+        // the responses to the chunks in flight have been collected
+        assertThat(client.selectFile(InterfaceType.MPI, SelectFileMode.Truncate, "x"), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidDepth() {
+        new AdaptiveStreamUploader(
+                new MpiClient(mDevice, new MpiEvents()), InterfaceType.MPI, 3);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import com.miurasystems.miuralibrary.CancellationTokenTest.Ped;
+import com.miurasystems.miuralibrary.api.utils.GetDeviceFile;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.TransactionType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time from CancellationToken.cancel() to the cancelled thread being free again, for a
+ * command that waits for the user and for a multi-command download.
+ *
+ * <p>Kept small so it can run with the unit tests. Increase REPEATS for real numbers.
+ */
+public class CancellationBenchmark {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CancellationBenchmark.class);
+
+    private static final int REPEATS = 10;
+    private static final long LATENCY_MS = 2L;
+    private static final long BANDWIDTH = 1024L * 1024L;
+
+    /** One cancellable operation against the client */
+    private interface Operation {
+        void run(MpiClient client);
+    }
+
+    private static void report(String what, long totalNanos, long maxNanos) {
+        String line = String.format(Locale.ENGLISH, "%-28s mean %8.2f ms  max %8.2f ms",
+                what, totalNanos / 1e6 / REPEATS, maxNanos / 1e6);
+        LOGGER.info(line);
+        System.out.println(line);
+    }
+
+    /**
+     * Run the operation REPEATS times, cancelling each from this thread once the PED is
+     * waiting for the user, or from the PED itself when cancelAtRead is set.
+     */
+    private static void measure(String what, final Operation operation, int cancelAtRead)
+            throws IOException, InterruptedException {
+        Ped ped = new Ped();
+        SimulatedDevice device = new SimulatedDevice(ped);
+        device.setLatencyMs(LATENCY_MS);
+        device.setBandwidth(BANDWIDTH);
+        final MpiClientMTAbort client = new MpiClientMTAbort(device, new MpiEvents());
+        client.openSession();
+
+        long total = 0L;
+        long max = 0L;
+        for (int i = 0; i < REPEATS; i++) {
+            final CancellationToken token = new CancellationToken();
+            final AtomicLong freedNanos = new AtomicLong(0L);
+            ped.mWaitingForUser = new CountDownLatch(1);
+            ped.mReads.set(0);
+            ped.mCancelAtRead = cancelAtRead;
+            ped.mTokenToCancel = token;
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client.setCancellationToken(token);
+                    try {
+                        operation.run(client);
+                    } finally {
+                        client.setCancellationToken(null);
+                        freedNanos.set(System.nanoTime());
+                    }
+                }
+            }, "CancellationBenchmark");
+            thread.start();
+            if (cancelAtRead < 0) {
+                assertThat(ped.mWaitingForUser.await(5L, TimeUnit.SECONDS), is(true));
+                token.cancel();
+            }
+            thread.join(5000L);
+
+            assertThat(thread.isAlive(), is(false));
+            long latency = freedNanos.get() - token.getCancelledNanos();
+            total += latency;
+            max = Math.max(max, latency);
+        }
+        client.closeSession();
+        report(what, total, max);
+    }
+
+    @Test
+    public void numericEntry() throws Exception {
+        measure("getNumericData (ABORT)", new Operation() {
+            @Override
+            public void run(MpiClient client) {
+                CancellationTokenTest.getNumericData(client);
+            }
+        }, -1);
+    }
+
+    @Test
+    public void transaction() throws Exception {
+        measure("startTransaction (ABORT)", new Operation() {
+            @Override
+            public void run(MpiClient client) {
+                client.startTransaction(InterfaceType.MPI, TransactionType.Purchase, 100, 826);
+            }
+        }, -1);
+    }
+
+    @Test
+    public void download() throws Exception {
+        measure("getDeviceFile (next command)", new Operation() {
+            @Override
+            public void run(MpiClient client) {
+                GetDeviceFile.getDeviceFile(client, InterfaceType.MPI, "big.log", null);
+            }
+        }, 10);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.MpiClient.GetNumericDataError;
+import com.miurasystems.miuralibrary.api.utils.GetDeviceFile;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.TransactionResponse;
+import com.miurasystems.miuralibrary.enums.TransactionType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CancellationTokenTest {
+
+    private static final byte[] SW_USER_CANCELLED = {(byte) 0x9F, (byte) 0x41};
+
+    /**
+     * A PED that waits for the user on transactions and numeric entry until aborted, and
+     * serves one file.
+     */
+    static final class Ped implements SimulatedDevice.CommandHandler {
+        static final int FILE_SIZE = 64 * 1024;
+
+        final AtomicInteger mAborts = new AtomicInteger(0);
+        final AtomicInteger mReads = new AtomicInteger(0);
+        volatile CountDownLatch mWaitingForUser = new CountDownLatch(1);
+
+        /** Cancelled when this many READ BINARYs have been answered, to cancel mid-download */
+        volatile int mCancelAtRead = -1;
+        @Nullable
+        volatile CancellationToken mTokenToCancel;
+
+        private boolean mWaiting;
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            int id = ((command[0] & 0xFF) << 8) | (command[1] & 0xFF);
+            switch (id) {
+                case 0xDED1:
+                case 0xD204:
+                    mWaiting = true;
+                    mWaitingForUser.countDown();
+                    return null;
+                case 0xD0FF:
+                    mAborts.incrementAndGet();
+                    if (mWaiting) {
+                        mWaiting = false;
+                        device.sendResponse(nad, SW_USER_CANCELLED);
+                    }
+                    return SimulatedDevice.SW_OK;
+                case 0x00A4: {
+                    byte[] size = {0, (byte) (FILE_SIZE >> 16), (byte) (FILE_SIZE >> 8),
+                            (byte) FILE_SIZE};
+                    byte[] fileSize = TLVParser.encode(Description.File_Size, size);
+                    return SimulatedDevice.response(
+                            TLVParser.encode(Description.Response_Data, fileSize),
+                            SimulatedDevice.SW_OK);
+                }
+                case 0x00B0: {
+                    int reads = mReads.incrementAndGet();
+                    CancellationToken token = mTokenToCancel;
+                    if (reads == mCancelAtRead && token != null) {
+                        token.cancel();
+                    }
+                    int le = command[command.length - 1] & 0xFF;
+                    return SimulatedDevice.response(new byte[le], SimulatedDevice.SW_OK);
+                }
+                default:
+                    return SimulatedDevice.SW_OK;
+            }
+        }
+    }
+
+    private Ped mPed;
+    private SimulatedDevice mDevice;
+    private MpiClientMTAbort mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        mPed = new Ped();
+        mDevice = new SimulatedDevice(mPed);
+        mClient = new MpiClientMTAbort(mDevice, new MpiEvents());
+        mClient.openSession();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.closeSession();
+    }
+
+    /**
+     * Run a task on a new thread with a token
+     */
+    private Thread runWithToken(final CancellationToken token, final Runnable task) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mClient.setCancellationToken(token);
+                try {
+                    task.run();
+                } finally {
+                    mClient.setCancellationToken(null);
+                }
+            }
+        }, "CancellationTokenTest");
+        thread.start();
+        return thread;
+    }
+
+    static Result<String, GetNumericDataError> getNumericData(MpiClient client) {
+        return client.getNumericData(InterfaceType.MPI, false, true, 1, 2, 3, 6, 2,
+                null, null, null, null, null);
+    }
+
+    @Test
+    public void cancelRunsOnCancelOnce() {
+        // setup
+        final AtomicInteger runs = new AtomicInteger(0);
+        CancellationToken token = new CancellationToken();
+        boolean registered = token.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+
+        // execute
+        token.cancel();
+        token.cancel();
+
+        // verify
+        assertThat(registered, is(true));
+        assertThat(runs.get(), is(1));
+        assertThat(token.isCancelled(), is(true));
+        assertThat(token.getCancelledNanos(), is(greaterThan(0L)));
+        assertThat(token.setOnCancel(null), is(false));
+    }
+
+    @Test
+    public void cancellingNumericDataAbortsIt() throws Exception {
+        // setup
+        CancellationToken token = new CancellationToken();
+        final AtomicReference<Result<String, GetNumericDataError>> result =
+                new AtomicReference<>();
+        Thread thread = runWithToken(token, new Runnable() {
+            @Override
+            public void run() {
+                result.set(getNumericData(mClient));
+            }
+        });
+        assertThat(mPed.mWaitingForUser.await(5L, TimeUnit.SECONDS), is(true));
+
+        // execute
+        token.cancel();
+        thread.join(5000L);
+
+        // verify
+        assertThat(thread.isAlive(), is(false));
+        assertThat(result.get().isError(), is(true));
+        assertThat(result.get().asError().getError(), is(GetNumericDataError.UserCancelled));
+        assertThat(mPed.mAborts.get(), is(1));
+        assertThat(mClient.displayText(InterfaceType.MPI, "still ok", false, false, false),
+                is(true));
+    }
+
+    @Test
+    public void cancellingTransactionAbortsIt() throws Exception {
+        // setup
+        CancellationToken token = new CancellationToken();
+        final AtomicReference<Result<byte[], TransactionResponse>> result =
+                new AtomicReference<>();
+        Thread thread = runWithToken(token, new Runnable() {
+            @Override
+            public void run() {
+                result.set(mClient.startTransaction(
+                        InterfaceType.MPI, TransactionType.Purchase, 100, 826));
+            }
+        });
+        assertThat(mPed.mWaitingForUser.await(5L, TimeUnit.SECONDS), is(true));
+
+        // execute
+        token.cancel();
+        thread.join(5000L);
+
+        // verify
+        assertThat(thread.isAlive(), is(false));
+        assertThat(result.get().isError(), is(true));
+        assertThat(result.get().asError().getError(), is(TransactionResponse.USER_CANCELLED));
+        assertThat(mPed.mAborts.get(), is(1));
+    }
+
+    @Test
+    public void cancelledTokenStopsDownloadAtNextCommand() throws Exception {
+        // setup
+        CancellationToken token = new CancellationToken();
+        mPed.mTokenToCancel = token;
+        mPed.mCancelAtRead = 10;
+        final AtomicReference<byte[]> result = new AtomicReference<>(new byte[0]);
+
+        // execute
+        Thread thread = runWithToken(token, new Runnable() {
+            @Override
+            public void run() {
+                result.set(GetDeviceFile.getDeviceFile(
+                        mClient, InterfaceType.MPI, "big.log", null));
+            }
+        });
+        thread.join(5000L);
+
+        // verify
+        assertThat(thread.isAlive(), is(false));
+        assertThat(result.get(), is(nullValue()));
+        // the reads already in flight when it was cancelled are still answered
+        assertThat(mPed.mReads.get(), is(greaterThanOrEqualTo(10)));
+        assertThat(mPed.mReads.get(),
+                is(lessThanOrEqualTo(10 + WindowedFileReader.MAX_WINDOW - 1)));
+        assertThat(mPed.mAborts.get(), is(0));
+    }
+
+    @Test
+    public void alreadyCancelledNeverSends() throws Exception {
+        // setup
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        final AtomicReference<Object> result = new AtomicReference<>();
+
+        // execute
+        Thread thread = runWithToken(token, new Runnable() {
+            @Override
+            public void run() {
+                result.set(getNumericData(mClient));
+            }
+        });
+        thread.join(5000L);
+
+        // verify
+        assertThat(result.get(), is(instanceOf(Result.Error.class)));
+        assertThat(mDevice.getCommandsHandled(), is(0));
+        assertThat(mPed.mAborts.get(), is(0));
+    }
+}
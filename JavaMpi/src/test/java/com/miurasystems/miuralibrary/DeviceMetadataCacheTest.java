@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+public class DeviceMetadataCacheTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** Answers a soft reset with a serial number and software version, and OKs the rest */
+    private static final class Ped implements SimulatedDevice.CommandHandler {
+        volatile String mVersion = "7-1";
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            CommandType type = CommandType.valueOf(command[0], command[1]);
+            if (type == CommandType.Reset_Device) {
+                byte[] serial = TLVParser.encode(
+                        Description.Interface_Device_Serial_Number, "123-456".getBytes(US_ASCII));
+                byte[] version = TLVParser.encode(
+                        Description.Version, mVersion.getBytes(US_ASCII));
+                byte[] body = new byte[serial.length + version.length];
+                System.arraycopy(serial, 0, body, 0, serial.length);
+                System.arraycopy(version, 0, body, serial.length, version.length);
+                return SimulatedDevice.response(
+                        TLVParser.encode(Description.Response_Data, body), SimulatedDevice.SW_OK);
+            }
+            return SimulatedDevice.SW_OK;
+        }
+    }
+
+    private Ped mPed;
+    private SimulatedDevice mDevice;
+    private DeviceMetadataCache mMetadata;
+
+    @Before
+    public void setUp() throws IOException {
+        mPed = new Ped();
+        mDevice = new SimulatedDevice(mPed);
+        mMetadata = new DeviceMetadataCache(mFolder.newFolder("metadata"));
+    }
+
+    private MpiClient connect() throws IOException {
+        MpiClient client = new MpiClient(mDevice, new MpiEvents());
+        client.setResponseCache(new ResponseCache());
+        client.openSession();
+        return client;
+    }
+
+    /** A cold start: identify, discover and save */
+    private void coldStart() throws IOException {
+        MpiClient client = connect();
+        assertThat(mMetadata.load(client, InterfaceType.MPI), is(false));
+        assertThat(client.getConfiguration(), is(notNullValue()));
+        client.getDeviceInfo(InterfaceType.MPI);
+        assertThat(mMetadata.save(client, InterfaceType.MPI), is(true));
+        client.closeSession();
+    }
+
+    @Test
+    public void warmStartSkipsDiscovery() throws Exception {
+        // setup
+        coldStart();
+        int coldCommands = mDevice.getCommandsHandled();
+
+        // execute
+        MpiClient client = connect();
+        boolean loaded = mMetadata.load(client, InterfaceType.MPI);
+        client.getConfiguration();
+        client.getDeviceInfo(InterfaceType.MPI);
+        client.closeSession();
+
+        // verify
+        assertThat(coldCommands, is(3));
+        assertThat(loaded, is(true));
+        assertThat(mDevice.getCommandsHandled() - coldCommands, is(1));
+    }
+
+    @Test
+    public void softwareUpdateIgnoresSavedMetadata() throws Exception {
+        // setup
+        coldStart();
+        mPed.mVersion = "7-2";
+        int coldCommands = mDevice.getCommandsHandled();
+
+        // execute
+        MpiClient client = connect();
+        boolean loaded = mMetadata.load(client, InterfaceType.MPI);
+        client.getConfiguration();
+        client.closeSession();
+
+        // verify
+        assertThat(loaded, is(false));
+        assertThat(mDevice.getCommandsHandled() - coldCommands, is(2));
+    }
+
+    @Test
+    public void oldMetadataIgnored() throws Exception {
+        // setup
+        coldStart();
+        DeviceMetadataCache shortLived =
+                new DeviceMetadataCache(new File(mFolder.getRoot(), "metadata"), 1L);
+        Thread.sleep(20L);
+
+        // execute
+        MpiClient client = connect();
+        boolean loaded = shortLived.load(client, InterfaceType.MPI);
+        client.closeSession();
+
+        // verify
+        assertThat(loaded, is(false));
+    }
+
+    @Test
+    public void corruptFileIgnored() throws Exception {
+        // setup
+        coldStart();
+        File[] files = new File(mFolder.getRoot(), "metadata").listFiles();
+        assertThat(files.length, is(1));
+        try (FileOutputStream out = new FileOutputStream(files[0])) {
+            out.write(new byte[]{0x4D, 0x44, 0x43, 0x31, 0, 1, 2, 3});
+        }
+
+        // execute
+        MpiClient client = connect();
+        boolean loaded = mMetadata.load(client, InterfaceType.MPI);
+        client.closeSession();
+
+        // verify
+        assertThat(loaded, is(false));
+    }
+
+    @Test
+    public void saveNeedsIdentifiedDevice() throws Exception {
+        // setup
+        MpiClient client = connect();
+        client.getConfiguration();
+
+        // execute
+        boolean saved = mMetadata.save(client, InterfaceType.MPI);
+        client.closeSession();
+
+        // verify
+        assertThat(saved, is(false));
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.api.objects.DeviceSnapshot;
+import com.miurasystems.miuralibrary.api.objects.DeviceSnapshot.Field;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.ChargingStatus;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.ResetDeviceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class DeviceSnapshotTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final long LATENCY_MS = 20L;
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(US_ASCII);
+    }
+
+    /** Answers the snapshot's commands like a PED */
+    private static final class Ped implements SimulatedDevice.CommandHandler {
+        volatile boolean mClockFails;
+        /** When each command arrived, in nanoTime */
+        final List<Long> mArrivals = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            mArrivals.add(System.nanoTime());
+            CommandType type = CommandType.valueOf(command[0], command[1]);
+            if (type == null) {
+                return SimulatedDevice.SW_OK;
+            }
+            byte[] body;
+            switch (type) {
+                case Battery_Status:
+                    body = concat(
+                            TLVParser.encode(Description.Charging_Status,
+                                    new byte[]{ChargingStatus.Charging.getValue()}),
+                            TLVParser.encode(Description.Battery_Status, new byte[]{75}));
+                    break;
+                case Reset_Device:
+                    body = concat(
+                            TLVParser.encode(Description.Interface_Device_Serial_Number,
+                                    ascii("12345678")),
+                            TLVParser.encode(Description.Software_Information, concat(
+                                    TLVParser.encode(Description.Identifier, ascii("M000-MPI")),
+                                    TLVParser.encode(Description.Version, ascii("1-51")))),
+                            TLVParser.encode(Description.Software_Information, concat(
+                                    TLVParser.encode(Description.Identifier, ascii("M000-OS")),
+                                    TLVParser.encode(Description.Version, ascii("9-5")))));
+                    break;
+                case Get_Configuration:
+                    body = concat(
+                            TLVParser.encode(Description.Identifier, ascii("MPI-Dynamic.cfg")),
+                            TLVParser.encode(Description.Version, ascii("3")));
+                    break;
+                case P2PE_Status:
+                    body = TLVParser.encode(Description.P2PE_Status, new byte[]{0x03});
+                    break;
+                case System_Clock:
+                    if (mClockFails) {
+                        return new byte[]{(byte) 0x9F, (byte) 0x20};
+                    }
+                    body = concat(
+                            TLVParser.encode(Description.Date, new byte[]{0x17, 0x06, 0x15}),
+                            TLVParser.encode(Description.Time, new byte[]{0x10, 0x30, 0x00}));
+                    break;
+                default:
+                    return SimulatedDevice.SW_OK;
+            }
+            return SimulatedDevice.response(
+                    TLVParser.encode(Description.Response_Data, body), SimulatedDevice.SW_OK);
+        }
+    }
+
+    private Ped mPed;
+    private SimulatedDevice mDevice;
+    private MpiClient mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        mPed = new Ped();
+        mDevice = new SimulatedDevice(mPed);
+        mDevice.setLatencyMs(LATENCY_MS);
+        mClient = new MpiClient(mDevice, new MpiEvents());
+        mClient.openSession();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.closeSession();
+    }
+
+    @Test
+    public void snapshotHasEveryField() {
+        // execute
+        DeviceSnapshot snapshot = mClient.getDeviceSnapshot(InterfaceType.MPI);
+
+        // verify
+        assertThat(snapshot.getFailedFields(), is(empty()));
+        assertThat(snapshot.getBattery().mBatteryLevel, is(75));
+        assertThat(snapshot.getSoftwareInfo().getSerialNumber(), is(equalTo("12345678")));
+        assertThat(snapshot.getSoftwareInfo().getOsVersion(), is(equalTo("9-5")));
+        assertThat(snapshot.getConfiguration().get("MPI-Dynamic.cfg"), is(equalTo("3")));
+        assertThat(snapshot.getP2peStatus().isPINReady, is(true));
+        assertThat(snapshot.getSystemClock(),
+                is(equalTo(mClient.systemClock(InterfaceType.MPI))));
+        for (Field field : Field.values()) {
+            assertThat(snapshot.getLatencyNanos(field), is(greaterThan(0L)));
+        }
+        assertThat(mDevice.getCommandsHandled(), is(6));
+    }
+
+    @Test
+    public void pipelinedFasterThanOneAtATime() {
+        // setup
+        long start = System.nanoTime();
+        mClient.batteryStatus(InterfaceType.MPI, false);
+        mClient.resetDevice(InterfaceType.MPI, ResetDeviceType.Soft_Reset);
+        mClient.getConfiguration();
+        mClient.p2peStatus(InterfaceType.MPI);
+        mClient.systemClock(InterfaceType.MPI);
+        long sequential = System.nanoTime() - start;
+
+        // execute
+        DeviceSnapshot snapshot = mClient.getDeviceSnapshot(InterfaceType.MPI);
+
+        // verify
+        assertThat(snapshot.getFailedFields(), is(empty()));
+        assertThat(snapshot.getTotalNanos(), is(lessThan(sequential / 2L)));
+    }
+
+    @Test
+    public void commandsInFlightAreLimitedToWindow() {
+        // execute
+        DeviceSnapshot snapshot = mClient.getDeviceSnapshot(InterfaceType.MPI);
+
+        // verify
+        assertThat(snapshot.getFailedFields(), is(empty()));
+        assertThat(mPed.mArrivals.size(), is(Field.values().length));
+        // The command after a full window waits for the first response: another round trip
+        int window = WindowedFileReader.MAX_WINDOW;
+        long waited = mPed.mArrivals.get(window) - mPed.mArrivals.get(window - 1);
+        assertThat(waited, is(greaterThan(TimeUnit.MILLISECONDS.toNanos(LATENCY_MS))));
+    }
+
+    @Test
+    public void failedFieldIsReportedWithTheRest() {
+        // setup
+        mPed.mClockFails = true;
+
+        // execute
+        DeviceSnapshot snapshot = mClient.getDeviceSnapshot(InterfaceType.MPI);
+
+        // verify
+        assertThat(snapshot.getFailedFields(), contains(Field.SystemClock));
+        assertThat(snapshot.getSystemClock(), is(nullValue()));
+        assertThat(snapshot.isOk(Field.Battery), is(true));
+        assertThat(snapshot.getLatencyNanos(Field.SystemClock), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void cachedFieldsAreNotSent() {
+        // setup
+        mClient.setResponseCache(new ResponseCache());
+        mClient.getConfiguration();
+        mClient.p2peStatus(InterfaceType.MPI);
+
+        // execute
+        DeviceSnapshot snapshot = mClient.getDeviceSnapshot(InterfaceType.MPI);
+
+        // verify
+        assertThat(snapshot.getFailedFields(), is(empty()));
+        assertThat(snapshot.getLatencyNanos(Field.Configuration), is(DeviceSnapshot.FROM_CACHE));
+        assertThat(snapshot.getLatencyNanos(Field.P2PEStatus), is(DeviceSnapshot.FROM_CACHE));
+        assertThat(mDevice.getCommandsHandled(), is(5));
+    }
+
+    @Test
+    public void noSessionFailsEveryField() {
+        // setup
+        mClient.closeSession();
+
+        // execute
+        DeviceSnapshot snapshot = mClient.getDeviceSnapshot(InterfaceType.MPI);
+
+        // verify
+        assertThat(snapshot.getFailedFields().size(), is(Field.values().length));
+        assertThat(snapshot.getLatencyNanos(Field.Battery), is(DeviceSnapshot.FAILED));
+    }
+}
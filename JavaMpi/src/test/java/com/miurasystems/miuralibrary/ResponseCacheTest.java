@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.DeviceStatus;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.ResetDeviceType;
+import com.miurasystems.miuralibrary.events.DeviceStatusChange;
+import com.miurasystems.miuralibrary.events.MpiEventHandler;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ResponseCacheTest {
+
+    private SimulatedDevice mDevice;
+    private MpiEvents mEvents;
+    private MpiClient mClient;
+    private ResponseCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDevice = new SimulatedDevice(new SimulatedDevice.CommandHandler() {
+            @Override
+            public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                    @NonNull byte[] command) {
+                return SimulatedDevice.SW_OK;
+            }
+        });
+        mEvents = new MpiEvents();
+        mClient = new MpiClient(mDevice, mEvents);
+        mCache = new ResponseCache();
+        mClient.setResponseCache(mCache);
+        mClient.openSession();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.closeSession();
+    }
+
+    @Test
+    public void repeatedQueryIsAnsweredFromCache() {
+        // setup
+        int before = mDevice.getCommandsHandled();
+
+        // execute
+        for (int i = 0; i < 5; i++) {
+            assertThat(mClient.getConfiguration(), is(notNullValue()));
+        }
+
+        // verify
+        assertThat(mDevice.getCommandsHandled() - before, is(1));
+        assertThat(mCache.getHits(), is(4L));
+        assertThat(mCache.getMisses(), is(1L));
+    }
+
+    @Test
+    public void responseExpiresAfterTtl() throws Exception {
+        // setup
+        mCache.setTtl(CommandType.Get_Configuration, 20L);
+        mClient.getConfiguration();
+
+        // execute
+        Thread.sleep(50L);
+        mClient.getConfiguration();
+
+        // verify
+        assertThat(mDevice.getCommandsHandled(), is(2));
+        assertThat(mCache.getHits(), is(0L));
+    }
+
+    @Test
+    public void nonCacheableCommandsAlwaysSent() {
+        // execute
+        mClient.displayText(InterfaceType.MPI, "one", false, false, false);
+        mClient.displayText(InterfaceType.MPI, "one", false, false, false);
+
+        // verify
+        assertThat(mDevice.getCommandsHandled(), is(2));
+        assertThat(mCache.getMisses(), is(0L));
+    }
+
+    @Test
+    public void hardResetInvalidatesButSoftResetIsCached() {
+        // setup
+        mClient.getConfiguration();
+        mClient.resetDevice(InterfaceType.MPI, ResetDeviceType.Soft_Reset);
+        mClient.resetDevice(InterfaceType.MPI, ResetDeviceType.Soft_Reset);
+        int before = mDevice.getCommandsHandled();
+
+        // execute
+        mClient.resetDevice(InterfaceType.MPI, ResetDeviceType.Hard_Reset);
+        mClient.getConfiguration();
+
+        // verify
+        assertThat(before, is(2));
+        assertThat(mDevice.getCommandsHandled(), is(4));
+        assertThat(mCache.getInvalidations(), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void deviceStatusChangeInvalidates() throws Exception {
+        // setup
+        final CountDownLatch statusSeen = new CountDownLatch(1);
+        mEvents.DeviceStatusChanged.register(new MpiEventHandler<DeviceStatusChange>() {
+            @Override
+            public void handle(@NonNull DeviceStatusChange arg) {
+                statusSeen.countDown();
+            }
+        });
+        mClient.getConfiguration();
+        byte[] body = TLVParser.encode(Description.Response_Data, concat(
+                TLVParser.encode(Description.Status_Code,
+                        new byte[]{DeviceStatus.PinEntryEvent.getValue()}),
+                TLVParser.encode(Description.Status_Text, "PIN".getBytes("US-ASCII"))));
+
+        // execute
+        mDevice.sendUnsolicited(InterfaceType.MPI,
+                SimulatedDevice.response(body, SimulatedDevice.SW_OK));
+        assertThat(statusSeen.await(5L, TimeUnit.SECONDS), is(true));
+        mClient.getConfiguration();
+
+        // verify
+        assertThat(mDevice.getCommandsHandled(), is(2));
+    }
+
+    @Test
+    public void disabledCacheSendsEveryCommand() {
+        // setup
+        mClient.getConfiguration();
+
+        // execute
+        mCache.setEnabled(false);
+        mClient.getConfiguration();
+        mClient.getConfiguration();
+
+        // verify
+        assertThat(mDevice.getCommandsHandled(), is(3));
+        assertThat(mCache.getHits(), is(0L));
+    }
+
+    @Test
+    public void reconnectingInvalidates() throws Exception {
+        // setup
+        mClient.getConfiguration();
+
+        // execute
+        mClient.closeSession();
+        mClient.openSession();
+        mClient.getConfiguration();
+
+        // verify
+        assertThat(mDevice.getCommandsHandled(), is(2));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] both = new byte[a.length + b.length];
+        System.arraycopy(a, 0, both, 0, a.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import com.miurasystems.miuralibrary.SerialPortChannelTest.SerialDevice;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Throughput of SerialPortChannel against a simulated POS, for each pipeline depth,
+ * compared against one blocking sendDataToSerialPort per chunk.
+ *
+ * <p>Kept small so it can run with the unit tests. Increase TOTAL_BYTES for real numbers.
+ */
+public class SerialPortChannelBenchmark {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerialPortChannelBenchmark.class);
+
+    private static final int TOTAL_BYTES = 64 * 1024;
+    private static final long LATENCY_MS = 2L;
+    private static final long BANDWIDTH = 1024L * 1024L;
+
+    private static SimulatedDevice makeDevice(SerialDevice handler) {
+        SimulatedDevice device = new SimulatedDevice(handler);
+        device.setLatencyMs(LATENCY_MS);
+        device.setBandwidth(BANDWIDTH);
+        return device;
+    }
+
+    private static void report(String what, long nanos) {
+        double seconds = nanos / 1e9;
+        String line = String.format(Locale.ENGLISH, "%-28s %8.1f ms %10.1f KiB/s",
+                what, nanos / 1e6, TOTAL_BYTES / 1024.0 / seconds);
+        LOGGER.info(line);
+        System.out.println(line);
+    }
+
+    @Test
+    public void blockingBaseline() throws IOException {
+        SerialDevice handler = new SerialDevice();
+        MpiClient client = new MpiClient(makeDevice(handler), new MpiEvents());
+        client.openSession();
+        byte[] data = new byte[TOTAL_BYTES];
+        new Random(0L).nextBytes(data);
+
+        long start = System.nanoTime();
+        for (int off = 0; off < data.length; off += SerialPortChannel.MAX_CHUNK_SIZE) {
+            int len = Math.min(SerialPortChannel.MAX_CHUNK_SIZE, data.length - off);
+            byte[] chunk = new byte[len];
+            System.arraycopy(data, off, chunk, 0, len);
+            assertThat(client.sendDataToSerialPort(chunk), is(true));
+        }
+        report("sendDataToSerialPort", System.nanoTime() - start);
+        client.closeSession();
+
+        assertThat(handler.mReceived.toByteArray(), is(equalTo(data)));
+    }
+
+    @Test
+    public void pipelinedWrite() throws IOException {
+        for (int depth = 1; depth <= SerialPortChannel.MAX_PIPELINE_DEPTH; depth++) {
+            SerialDevice handler = new SerialDevice();
+            MpiClient client = new MpiClient(makeDevice(handler), new MpiEvents());
+            SerialPortChannel channel = new SerialPortChannel(client, 4096, depth);
+            channel.open();
+            client.openSession();
+            byte[] data = new byte[TOTAL_BYTES];
+            new Random(depth).nextBytes(data);
+
+            long start = System.nanoTime();
+            OutputStream out = channel.getOutputStream();
+            out.write(data);
+            out.flush();
+            report("write, depth " + depth, System.nanoTime() - start);
+
+            channel.close();
+            client.closeSession();
+            assertThat(handler.mReceived.toByteArray(), is(equalTo(data)));
+        }
+    }
+
+    @Test
+    public void pipelinedEcho() throws Exception {
+        SerialDevice handler = new SerialDevice();
+        handler.mEcho = true;
+        MpiClient client = new MpiClient(makeDevice(handler), new MpiEvents());
+        final SerialPortChannel channel = new SerialPortChannel(
+                client, SerialPortChannel.DEFAULT_RECEIVE_BUFFER_SIZE,
+                SerialPortChannel.DEFAULT_PIPELINE_DEPTH);
+        channel.open();
+        client.openSession();
+        final byte[] data = new byte[TOTAL_BYTES];
+        new Random(1L).nextBytes(data);
+        final byte[] echoed = new byte[TOTAL_BYTES];
+
+        long start = System.nanoTime();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = channel.getInputStream();
+                int total = 0;
+                try {
+                    while (total < echoed.length) {
+                        int n = in.read(echoed, total, echoed.length - total);
+                        if (n < 0) break;
+                        total += n;
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("read failed", e);
+                }
+            }
+        });
+        reader.start();
+        OutputStream out = channel.getOutputStream();
+        out.write(data);
+        out.flush();
+        reader.join(10000L);
+        report("echo round trip", System.nanoTime() - start);
+
+        channel.close();
+        client.closeSession();
+        assertThat(channel.getOverflowBytes(), is(0L));
+        assertThat(echoed, is(equalTo(data)));
+    }
+}
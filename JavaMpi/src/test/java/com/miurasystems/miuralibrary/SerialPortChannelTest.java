@@ -0,0 +1,271 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SerialPortChannelTest {
+
+    private MpiClient mClient;
+
+    @After
+    public void teardown() {
+        if (mClient != null) {
+            mClient.closeSession();
+        }
+    }
+
+    /**
+     * A simulated POS that accepts serial data, optionally echoing it back as
+     * unsolicited USB SERIAL DATA messages.
+     */
+    static final class SerialDevice implements SimulatedDevice.CommandHandler {
+        final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        final ByteArrayOutputStream mChunkSizes = new ByteArrayOutputStream();
+        boolean mEcho;
+        boolean mFail;
+
+        @Nullable
+        @Override
+        public synchronized byte[] handle(
+                @NonNull SimulatedDevice device,
+                @NonNull InterfaceType nad,
+                @NonNull byte[] command
+        ) {
+            byte[] data = Arrays.copyOfRange(command, 5, command.length);
+            mReceived.write(data, 0, data.length);
+            mChunkSizes.write(data.length);
+            if (mFail) {
+                return new byte[]{(byte) 0x9f, (byte) 0x40};
+            }
+            if (mEcho) {
+                sendSerialData(device, data);
+            }
+            return SimulatedDevice.SW_OK;
+        }
+
+        static void sendSerialData(SimulatedDevice device, byte[] data) {
+            byte[] body = TLVParser.encode(Description.USB_SERIAL_DATA, data);
+            device.sendUnsolicited(InterfaceType.RPI, SimulatedDevice.response(body,
+                    SimulatedDevice.SW_OK));
+        }
+    }
+
+    private SerialPortChannel openChannel(
+            SimulatedDevice device, int bufferSize, int depth) throws IOException {
+        mClient = new MpiClient(device, new MpiEvents());
+        SerialPortChannel channel = new SerialPortChannel(mClient, bufferSize, depth);
+        channel.open();
+        mClient.openSession();
+        return channel;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFully(InputStream in, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        int total = 0;
+        while (total < size) {
+            int n = in.read(bytes, total, size - total);
+            if (n < 0) {
+                throw new IOException("EOF");
+            }
+            total += n;
+        }
+        return bytes;
+    }
+
+    @Test
+    public void writeIsChunked() throws IOException {
+        // setup
+        SerialDevice handler = new SerialDevice();
+        SimulatedDevice device = new SimulatedDevice(handler);
+        SerialPortChannel channel = openChannel(device, 1024, 2);
+        byte[] data = randomBytes(1000);
+
+        // execute
+        OutputStream out = channel.getOutputStream();
+        out.write(data, 0, 300);
+        out.write(data[300]);
+        out.write(data, 301, 699);
+        out.flush();
+
+        // verify
+        assertThat(channel.getChunksSent(), is(5L));
+        assertThat(handler.mReceived.toByteArray(), is(equalTo(data)));
+        assertThat(handler.mChunkSizes.toByteArray(),
+                is(equalTo(new byte[]{(byte) 249, (byte) 249, (byte) 249, (byte) 249, 4})));
+    }
+
+    @Test
+    public void echo() throws IOException {
+        // setup
+        SerialDevice handler = new SerialDevice();
+        handler.mEcho = true;
+        SimulatedDevice device = new SimulatedDevice(handler);
+        SerialPortChannel channel = openChannel(device, 4096, 3);
+        byte[] data = randomBytes(3000);
+
+        // execute
+        channel.getOutputStream().write(data);
+        channel.getOutputStream().flush();
+        byte[] echoed = readFully(channel.getInputStream(), data.length);
+
+        // verify
+        assertThat(echoed, is(equalTo(data)));
+        assertThat(channel.getOverflowBytes(), is(0L));
+    }
+
+    @Test
+    public void overflowIsCounted() throws Exception {
+        // setup
+        SerialDevice handler = new SerialDevice();
+        SimulatedDevice device = new SimulatedDevice(handler);
+        SerialPortChannel channel = openChannel(device, 100, 1);
+        byte[] data = randomBytes(60);
+
+        // execute
+        for (int i = 0; i < 3; i++) {
+            SerialDevice.sendSerialData(device, data);
+        }
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (channel.getOverflowEvents() < 2L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+
+        // verify
+        assertThat(channel.getOverflowEvents(), is(2L));
+        assertThat(channel.getOverflowBytes(), is(80L));
+        InputStream in = channel.getInputStream();
+        assertThat(in.available(), is(100));
+        assertThat(readFully(in, 60), is(equalTo(data)));
+        assertThat(readFully(in, 40), is(equalTo(Arrays.copyOf(data, 40))));
+
+        // and the buffer is usable once drained
+        SerialDevice.sendSerialData(device, data);
+        assertThat(readFully(in, 60), is(equalTo(data)));
+    }
+
+    @Test
+    public void closeUnblocksReader() throws Exception {
+        // setup
+        SimulatedDevice device = new SimulatedDevice(new SerialDevice());
+        final SerialPortChannel channel = openChannel(device, 100, 1);
+
+        // execute
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException ignore) {
+                }
+                channel.close();
+            }
+        });
+        closer.start();
+        int b = channel.getInputStream().read();
+        closer.join();
+
+        // verify
+        assertThat(b, is(-1));
+    }
+
+    @Test
+    public void outstandingChunksLockRpi() throws Exception {
+        // setup
+        SerialDevice handler = new SerialDevice();
+        SimulatedDevice device = new SimulatedDevice(handler);
+        device.setLatencyMs(5L);
+        mClient = new MpiClientMTAbort(device, new MpiEvents());
+        SerialPortChannel channel = new SerialPortChannel(mClient, 1024, 3);
+        channel.open();
+        mClient.openSession();
+        OutputStream out = channel.getOutputStream();
+        out.write(randomBytes(2 * SerialPortChannel.MAX_CHUNK_SIZE + 1));
+        final boolean[] displayed = {false};
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                displayed[0] = mClient.displayText(
+                        InterfaceType.RPI, "hello", false, false, false);
+            }
+        });
+
+        // execute
+        other.start();
+        other.join(100L);
+        boolean waited = other.isAlive();
+        out.flush();
+        other.join();
+
+        // verify
+        assertThat(waited, is(true));
+        assertThat(displayed[0], is(true));
+        assertThat(channel.getChunksSent(), is(3L));
+    }
+
+    @Test
+    public void failureReleasesRpi() throws Exception {
+        // setup
+        SerialDevice handler = new SerialDevice();
+        handler.mFail = true;
+        SimulatedDevice device = new SimulatedDevice(handler);
+        mClient = new MpiClientMTAbort(device, new MpiEvents());
+        SerialPortChannel channel = new SerialPortChannel(mClient, 1024, 3);
+        channel.open();
+        mClient.openSession();
+        OutputStream out = channel.getOutputStream();
+        out.write(randomBytes(3 * SerialPortChannel.MAX_CHUNK_SIZE + 1));
+
+        // execute
+        try {
+            out.flush();
+        } catch (IOException ignore) {
+        }
+        handler.mFail = false;
+        boolean displayed = mClient.displayText(InterfaceType.RPI, "hello", false, false, false);
+
+        // verify
+        assertThat(displayed, is(true));
+    }
+
+    @Test(expected = IOException.class)
+    public void failureResponseBreaksStream() throws IOException {
+        // setup
+        SerialDevice handler = new SerialDevice();
+        handler.mFail = true;
+        SimulatedDevice device = new SimulatedDevice(handler);
+        SerialPortChannel channel = openChannel(device, 100, 2);
+
+        // execute
+        channel.getOutputStream().write(randomBytes(10));
+        channel.getOutputStream().flush();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import com.miurasystems.miuralibrary.WindowedFileReaderTest.FileServer;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Download throughput of WindowedFileReader against a simulated PED, for each fixed window
+ * and the adaptive one, over links of different latency.
+ *
+ * <p>Kept small so it can run with the unit tests. Increase FILE_SIZE for real numbers.
+ */
+public class WindowedFileReaderBenchmark {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(WindowedFileReaderBenchmark.class);
+
+    private static final int FILE_SIZE = 16 * 1024;
+    private static final long[] LATENCIES_MS = {2L, 10L, 25L};
+    private static final long BANDWIDTH = 32L * 1024L;
+
+    private static void report(String what, long nanos, WindowedFileReader reader) {
+        double seconds = nanos / 1e9;
+        String line = String.format(Locale.ENGLISH,
+                "%-24s %8.1f ms %8.1f KiB/s  rtt %6d us  service %6d us  window %d",
+                what, nanos / 1e6, FILE_SIZE / 1024.0 / seconds,
+                reader.getMinRttMicros(), reader.getServiceTimeMicros(), reader.getWindow());
+        LOGGER.info(line);
+        System.out.println(line);
+    }
+
+    private static void download(long latencyMs, int maxWindow, boolean fixed)
+            throws IOException {
+        FileServer server = new FileServer(FILE_SIZE, latencyMs);
+        SimulatedDevice device = new SimulatedDevice(server);
+        device.setLatencyMs(latencyMs);
+        device.setBandwidth(BANDWIDTH);
+        MpiClient client = new MpiClient(device, new MpiEvents());
+        client.openSession();
+
+        WindowedFileReader reader = new WindowedFileReader(client, InterfaceType.MPI, maxWindow);
+        long start = System.nanoTime();
+        byte[] file = reader.read(FILE_SIZE, null);
+        long nanos = System.nanoTime() - start;
+        client.closeSession();
+
+        String what = String.format(Locale.ENGLISH, "%3d ms, %s %d",
+                latencyMs, fixed ? "window" : "adaptive", maxWindow);
+        report(what, nanos, reader);
+        assertThat(file, is(equalTo(server.mFile)));
+    }
+
+    @Test
+    public void fixedWindows() throws IOException {
+        for (long latencyMs : LATENCIES_MS) {
+            // A max window of 1 or 2 can't adapt past the initial window, so they're fixed.
+            for (int window = 1; window <= WindowedFileReader.INITIAL_WINDOW; window++) {
+                download(latencyMs, window, true);
+            }
+        }
+    }
+
+    @Test
+    public void adaptiveWindow() throws IOException {
+        for (long latencyMs : LATENCIES_MS) {
+            download(latencyMs, WindowedFileReader.MAX_WINDOW, false);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.api.objects.TransferStats;
+import com.miurasystems.miuralibrary.api.utils.GetDeviceFile;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class WindowedFileReaderTest {
+
+    private static final byte[] SW_FILE_NOT_FOUND = {(byte) 0x6A, (byte) 0x82};
+
+    /**
+     * A PED that serves one file, optionally misbehaving at one offset.
+     */
+    static final class FileServer implements SimulatedDevice.CommandHandler {
+        @NonNull
+        final byte[] mFile;
+
+        /** Offset to misbehave at, or -1 */
+        volatile int mBadOffset = -1;
+        /** Fail the read at mBadOffset, rather than returning it short */
+        volatile boolean mFail = true;
+        /** Keep misbehaving, rather than just once */
+        volatile boolean mPersistent;
+        /** The CLA and INS of every command handled, in order */
+        final List<Integer> mCommands = Collections.synchronizedList(new ArrayList<Integer>());
+
+        FileServer(int size, long seed) {
+            mFile = new byte[size];
+            new Random(seed).nextBytes(mFile);
+        }
+
+        static int getOffset(@NonNull byte[] command) {
+            int p1 = command[2] & 0xFF;
+            int p2 = command[3] & 0xFF;
+            if ((p1 & 0x80) == 0) {
+                return (p1 << 8) | p2;
+            }
+            return ((p1 & 0x7F) << 16) | (p2 << 8) | (command[5] & 0xFF);
+        }
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            int id = ((command[0] & 0xFF) << 8) | (command[1] & 0xFF);
+            mCommands.add(id);
+            if (id == 0x00A4) {
+                int size = mFile.length;
+                byte[] sizeBytes = {0, (byte) (size >> 16), (byte) (size >> 8), (byte) size};
+                return SimulatedDevice.response(
+                        TLVParser.encode(Description.Response_Data,
+                                TLVParser.encode(Description.File_Size, sizeBytes)),
+                        SimulatedDevice.SW_OK);
+            }
+            if (id != 0x00B0) {
+                return SimulatedDevice.SW_OK;
+            }
+
+            int offset = getOffset(command);
+            int le = command[command.length - 1] & 0xFF;
+            if (offset == mBadOffset) {
+                if (!mPersistent) {
+                    mBadOffset = -1;
+                }
+                if (mFail) {
+                    return SW_FILE_NOT_FOUND;
+                }
+                le /= 2;
+            }
+            byte[] data = Arrays.copyOfRange(mFile, offset, Math.min(offset + le, mFile.length));
+            return SimulatedDevice.response(data, SimulatedDevice.SW_OK);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MpiClient mClient;
+
+    private FileServer connect(int size, long latencyMs) throws IOException {
+        FileServer server = new FileServer(size, size);
+        SimulatedDevice device = new SimulatedDevice(server);
+        device.setLatencyMs(latencyMs);
+        mClient = new MpiClient(device, new MpiEvents());
+        mClient.openSession();
+        return server;
+    }
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.closeSession();
+        }
+    }
+
+    @Test
+    public void readsLargeFile() throws Exception {
+        // setup
+        FileServer server = connect(40000, 0L);
+
+        // execute
+        byte[] file = GetDeviceFile.getDeviceFile(mClient, InterfaceType.MPI, "big.log", null);
+
+        // verify
+        assertThat(file, is(equalTo(server.mFile)));
+    }
+
+    @Test
+    public void windowGrowsWithLatency() throws Exception {
+        // setup
+        FileServer server = connect(8 * 1024, 10L);
+        WindowedFileReader sequential = new WindowedFileReader(mClient, InterfaceType.MPI, 1);
+        WindowedFileReader windowed = new WindowedFileReader(mClient, InterfaceType.MPI);
+
+        // execute
+        long start = System.nanoTime();
+        byte[] one = sequential.read(server.mFile.length, null);
+        long sequentialNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        byte[] many = windowed.read(server.mFile.length, null);
+        long windowedNanos = System.nanoTime() - start;
+
+        // verify
+        assertThat(one, is(equalTo(server.mFile)));
+        assertThat(many, is(equalTo(server.mFile)));
+        assertThat(sequential.getMaxWindowUsed(), is(1));
+        assertThat(windowed.getMaxWindowUsed(), is(WindowedFileReader.MAX_WINDOW));
+        assertThat(windowedNanos, is(lessThan(sequentialNanos * 2L / 3L)));
+    }
+
+    @Test
+    public void errorFallsBackToOneAtATime() throws Exception {
+        // setup
+        FileServer server = connect(4 * 1024, 1L);
+        server.mBadOffset = 5 * WindowedFileReader.MAX_CHUNK_SIZE;
+        WindowedFileReader reader = new WindowedFileReader(mClient, InterfaceType.MPI);
+
+        // execute
+        byte[] file = reader.read(server.mFile.length, null);
+
+        // verify
+        assertThat(file, is(equalTo(server.mFile)));
+        assertThat(reader.getErrors(), is(1));
+        assertThat(reader.getWindow(), is(1));
+    }
+
+    @Test
+    public void shortReadRestartsWindow() throws Exception {
+        // setup
+        FileServer server = connect(4 * 1024, 1L);
+        server.mBadOffset = 3 * WindowedFileReader.MAX_CHUNK_SIZE;
+        server.mFail = false;
+        WindowedFileReader reader = new WindowedFileReader(mClient, InterfaceType.MPI);
+
+        // execute
+        byte[] file = reader.read(server.mFile.length, null);
+
+        // verify
+        assertThat(file, is(equalTo(server.mFile)));
+        assertThat(reader.getErrors(), is(0));
+    }
+
+    @Test
+    public void persistentErrorFails() throws Exception {
+        // setup
+        FileServer server = connect(4 * 1024, 1L);
+        server.mBadOffset = 5 * WindowedFileReader.MAX_CHUNK_SIZE;
+        server.mPersistent = true;
+        WindowedFileReader reader = new WindowedFileReader(mClient, InterfaceType.MPI);
+
+        // execute
+        byte[] file = reader.read(server.mFile.length, null);
+
+        // verify
+        assertThat(file, is(nullValue()));
+        assertThat(reader.getErrors(), is(2));
+
+        // the session is still usable afterwards
+        server.mBadOffset = -1;
+        assertThat(reader.read(server.mFile.length, null), is(equalTo(server.mFile)));
+    }
+
+    @Test
+    public void noSessionFails() throws Exception {
+        // setup
+        FileServer server = connect(1024, 0L);
+        mClient.closeSession();
+
+        // execute
+        byte[] file = new WindowedFileReader(mClient, InterfaceType.MPI)
+                .read(server.mFile.length, null);
+
+        // verify
+        assertThat(file, is(nullValue()));
+    }
+
+    @Test
+    public void otherThreadWaitsForRead() throws Exception {
+        // setup
+        final FileServer server = new FileServer(30000, 30000);
+        SimulatedDevice device = new SimulatedDevice(server);
+        device.setLatencyMs(2L);
+        mClient = new MpiClientMTAbort(device, new MpiEvents());
+        mClient.openSession();
+        final byte[][] file = new byte[1][];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                file[0] = new WindowedFileReader(mClient, InterfaceType.MPI)
+                        .read(server.mFile.length, null);
+            }
+        });
+        reader.start();
+        while (server.mCommands.size() < 5) {
+            Thread.sleep(1L);
+        }
+
+        // execute
+        boolean displayed = mClient.displayText(InterfaceType.MPI, "hello", false, false, false);
+        reader.join();
+
+        // verify
+        assertThat(file[0], is(equalTo(server.mFile)));
+        assertThat(displayed, is(true));
+        List<Integer> commands = server.mCommands;
+        assertThat(commands.get(commands.size() - 1), is(not(0x00B0)));
+        assertThat(commands.subList(0, commands.size() - 1), everyItem(is(0x00B0)));
+    }
+
+    /** Checks the file arrives in order, a chunk at a time */
+    private static final class ChunkChannel implements WritableByteChannel {
+        final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        int mLargestWrite;
+        int mFailAfter = Integer.MAX_VALUE;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            if (mReceived.size() + length > mFailAfter) {
+                throw new IOException("disk full");
+            }
+            mLargestWrite = Math.max(mLargestWrite, length);
+            byte[] bytes = new byte[length];
+            src.get(bytes);
+            mReceived.write(bytes);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void streamsToChannelChunkByChunk() throws Exception {
+        // setup
+        FileServer server = connect(40000, 0L);
+        ChunkChannel channel = new ChunkChannel();
+        final float[] lastProgress = {0.0f};
+
+        // execute
+        TransferStats stats = GetDeviceFile.streamDeviceFile(
+                mClient, InterfaceType.MPI, "big.log", channel,
+                new GetDeviceFile.ProgressCallback() {
+                    @Override
+                    public void onProgress(float fraction) {
+                        lastProgress[0] = fraction;
+                    }
+                });
+
+        // verify
+        assertThat(stats, is(notNullValue()));
+        assertThat(channel.mReceived.toByteArray(), is(equalTo(server.mFile)));
+        assertThat(channel.mLargestWrite, is(WindowedFileReader.MAX_CHUNK_SIZE));
+        assertThat(stats.getBytes(), is(40000L));
+        assertThat(stats.getBytesPerSecond(), is(greaterThan(0L)));
+        assertThat(lastProgress[0], is(greaterThan(0.9f)));
+    }
+
+    @Test
+    public void streamsToOutputStream() throws Exception {
+        // setup
+        FileServer server = connect(4 * 1024, 1L);
+        server.mBadOffset = 2 * WindowedFileReader.MAX_CHUNK_SIZE;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // execute
+        TransferStats stats = GetDeviceFile.streamDeviceFile(
+                mClient, InterfaceType.MPI, "big.log", out, null);
+
+        // verify
+        assertThat(out.toByteArray(), is(equalTo(server.mFile)));
+        assertThat(stats.getErrors(), is(1));
+    }
+
+    @Test
+    public void channelFailureLeavesSessionUsable() throws Exception {
+        // setup
+        FileServer server = connect(4 * 1024, 1L);
+        ChunkChannel channel = new ChunkChannel();
+        channel.mFailAfter = 1024;
+
+        // execute
+        TransferStats stats = GetDeviceFile.streamDeviceFile(
+                mClient, InterfaceType.MPI, "big.log", channel, null);
+
+        // verify
+        assertThat(stats, is(nullValue()));
+        assertThat(GetDeviceFile.getDeviceFile(mClient, InterfaceType.MPI, "big.log", null),
+                is(equalTo(server.mFile)));
+    }
+
+    @Test
+    public void downloadsToMappedFile() throws Exception {
+        // setup
+        FileServer server = connect(40000, 0L);
+        File file = mFolder.newFile("big.log");
+
+        // execute
+        TransferStats stats = GetDeviceFile.downloadDeviceFile(
+                mClient, InterfaceType.MPI, "big.log", file, null);
+
+        // verify
+        assertThat(stats, is(notNullValue()));
+        assertThat(Files.readAllBytes(file.toPath()), is(equalTo(server.mFile)));
+    }
+
+    @Test
+    public void failedDownloadDeletesFile() throws Exception {
+        // setup
+        FileServer server = connect(4 * 1024, 0L);
+        server.mBadOffset = 5 * WindowedFileReader.MAX_CHUNK_SIZE;
+        server.mPersistent = true;
+        File file = mFolder.newFile("big.log");
+
+        // execute
+        TransferStats stats = GetDeviceFile.downloadDeviceFile(
+                mClient, InterfaceType.MPI, "big.log", file, null);
+
+        // verify
+        assertThat(stats, is(nullValue()));
+        assertThat(file.exists(), is(false));
+    }
+}
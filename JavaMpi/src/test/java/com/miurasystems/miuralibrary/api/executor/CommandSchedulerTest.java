@@ -0,0 +1,247 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CommandSchedulerTest {
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "CommandSchedulerTest");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private CommandScheduler mScheduler;
+    private List<String> mOrder;
+
+    @Before
+    public void setUp() {
+        mScheduler = new CommandScheduler(THREAD_FACTORY);
+        mOrder = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    /** Blocks the worker until released, so tests can build up a queue */
+    private CountDownLatch blockWorker(CommandLane lane) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.execute(lane, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        assertThat(started.await(5L, TimeUnit.SECONDS), is(true));
+        return release;
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mOrder.add(name);
+            }
+        };
+    }
+
+    private void drain() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mScheduler.execute(CommandLane.BulkTransfer, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertThat(done.await(5L, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void higherLanesRunFirst() throws Exception {
+        // setup
+        CountDownLatch release = blockWorker(CommandLane.Interactive);
+        mScheduler.execute(CommandLane.BulkTransfer, record("download"));
+        mScheduler.execute(CommandLane.Background, record("battery1"));
+        mScheduler.execute(CommandLane.Background, record("battery2"));
+        mScheduler.execute(CommandLane.Interactive, record("display"));
+        mScheduler.execute(CommandLane.Transaction, record("transaction"));
+
+        // execute
+        release.countDown();
+        drain();
+
+        // verify
+        assertThat(mOrder, contains(
+                "transaction", "display", "battery1", "battery2", "download"));
+        LaneStats background = mScheduler.getStats(CommandLane.Background);
+        assertThat(background.getMaxQueued(), is(2));
+        assertThat(background.getExecuted(), is(2L));
+        assertThat(background.getQueued(), is(0));
+    }
+
+    @Test
+    public void waitingTasksAreAgedUp() throws Exception {
+        // setup
+        mScheduler = new CommandScheduler(THREAD_FACTORY, 50L, TimeUnit.MILLISECONDS);
+        CountDownLatch release = blockWorker(CommandLane.Transaction);
+        mScheduler.execute(CommandLane.BulkTransfer, record("old download"));
+        Thread.sleep(200L);
+        mScheduler.execute(CommandLane.Transaction, record("new transaction"));
+
+        // execute
+        release.countDown();
+        drain();
+
+        // verify
+        assertThat(mOrder, contains("old download", "new transaction"));
+        assertThat(mScheduler.getStats(CommandLane.BulkTransfer).getAgedAhead(), is(1L));
+    }
+
+    @Test
+    public void yieldRunsHigherLanesMidTask() throws Exception {
+        // setup
+        final CountDownLatch firstChunk = new CountDownLatch(1);
+        final CountDownLatch queued = new CountDownLatch(1);
+        mScheduler.execute(CommandLane.BulkTransfer, new Runnable() {
+            @Override
+            public void run() {
+                mOrder.add("chunk1");
+                firstChunk.countDown();
+                try {
+                    queued.await();
+                } catch (InterruptedException ignore) {
+                }
+                CommandScheduler.yieldToPriorityWork();
+                mOrder.add("chunk2");
+            }
+        });
+        assertThat(firstChunk.await(5L, TimeUnit.SECONDS), is(true));
+        mScheduler.execute(CommandLane.BulkTransfer, record("second download"));
+        mScheduler.execute(CommandLane.Transaction, record("transaction"));
+
+        // execute
+        queued.countDown();
+        drain();
+
+        // verify
+        assertThat(mOrder, contains("chunk1", "transaction", "chunk2", "second download"));
+        assertThat(mScheduler.getStats(CommandLane.Transaction).getRunAtYield(), is(1L));
+    }
+
+    @Test
+    public void yieldOnlyRunsTransactions() throws Exception {
+        // setup
+        final CountDownLatch firstChunk = new CountDownLatch(1);
+        final CountDownLatch queued = new CountDownLatch(1);
+        final AtomicBoolean hadPriorityWork = new AtomicBoolean(true);
+        mScheduler.execute(CommandLane.BulkTransfer, new Runnable() {
+            @Override
+            public void run() {
+                mOrder.add("chunk1");
+                firstChunk.countDown();
+                try {
+                    queued.await();
+                } catch (InterruptedException ignore) {
+                }
+                hadPriorityWork.set(CommandScheduler.hasPriorityWork());
+                CommandScheduler.yieldToPriorityWork();
+                mOrder.add("chunk2");
+            }
+        });
+        assertThat(firstChunk.await(5L, TimeUnit.SECONDS), is(true));
+        mScheduler.execute(CommandLane.Interactive, record("clear files"));
+        mScheduler.execute(CommandLane.Background, record("config"));
+
+        // execute
+        queued.countDown();
+        drain();
+
+        // verify
+        assertThat(hadPriorityWork.get(), is(false));
+        assertThat(mOrder, contains("chunk1", "chunk2", "clear files", "config"));
+        assertThat(mScheduler.getStats(CommandLane.Interactive).getRunAtYield(), is(0L));
+    }
+
+    @Test
+    public void yieldOffWorkerThreadDoesNothing() {
+        // execute
+        CommandScheduler.yieldToPriorityWork();
+
+        // verify
+        assertThat(mOrder, hasSize(0));
+    }
+
+    @Test
+    public void removedTaskNeverRuns() throws Exception {
+        // setup
+        CountDownLatch release = blockWorker(CommandLane.Interactive);
+        Runnable battery = record("battery");
+        mScheduler.execute(CommandLane.Background, battery);
+        mScheduler.execute(CommandLane.Background, record("clock"));
+
+        // execute
+        boolean removed = mScheduler.remove(battery);
+        release.countDown();
+        drain();
+
+        // verify
+        assertThat(removed, is(true));
+        assertThat(mScheduler.remove(battery), is(false));
+        assertThat(mOrder, contains("clock"));
+    }
+
+    @Test
+    public void shutdownNowReturnsQueuedTasks() throws Exception {
+        // setup
+        blockWorker(CommandLane.Interactive);
+        Runnable battery = record("battery");
+        Runnable transaction = record("transaction");
+        mScheduler.execute(CommandLane.Background, battery);
+        mScheduler.execute(CommandLane.Transaction, transaction);
+
+        // execute
+        List<Runnable> dropped = mScheduler.shutdownNow();
+
+        // verify
+        assertThat(dropped, contains(transaction, battery));
+        assertThat(mScheduler.awaitTermination(5L, TimeUnit.SECONDS), is(true));
+        assertThat(mScheduler.isTerminated(), is(true));
+        assertThat(mOrder, hasSize(0));
+        try {
+            mScheduler.execute(record("late"));
+            fail();
+        } catch (RejectedExecutionException ignore) {
+        }
+    }
+}
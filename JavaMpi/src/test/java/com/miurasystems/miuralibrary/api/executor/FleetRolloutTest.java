@@ -0,0 +1,361 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.api.executor.FleetRollout.DeviceStatus;
+import com.miurasystems.miuralibrary.api.executor.FleetRollout.Report;
+import com.miurasystems.miuralibrary.api.executor.FleetRollout.State;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FleetRolloutTest {
+
+    private static final String NAME = "update.tgz";
+
+    /**
+     * A PED that stores one uploaded file, and can be made to reject streams.
+     */
+    private static final class UploadTarget implements SimulatedDevice.StreamHandler {
+        /** Uploads in progress across all targets */
+        private final AtomicInteger mActive;
+        private final AtomicInteger mMaxActive;
+        private final boolean mFail;
+
+        private byte[] mFile = new byte[0];
+        private byte[] mPendingStream;
+        private boolean mUploading;
+
+        UploadTarget(AtomicInteger active, AtomicInteger maxActive, boolean fail) {
+            mActive = active;
+            mMaxActive = maxActive;
+            mFail = fail;
+        }
+
+        @Override
+        public void handleStream(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] data) {
+            mPendingStream = data;
+        }
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            CommandType type = CommandType.valueOf(command[0], command[1]);
+            if (type == CommandType.Select_File) {
+                int p1 = command[2] & 0xFF;
+                if (p1 == 0x01) {
+                    mFile = new byte[0];
+                    mUploading = true;
+                    int active = mActive.incrementAndGet();
+                    while (true) {
+                        int max = mMaxActive.get();
+                        if (active <= max || mMaxActive.compareAndSet(max, active)) {
+                            break;
+                        }
+                    }
+                } else if (mUploading) {
+                    mUploading = false;
+                    mActive.decrementAndGet();
+                }
+                int size = mFile.length;
+                byte[] body = TLVParser.encode(Description.File_Size,
+                        new byte[]{0, (byte) (size >> 16), (byte) (size >> 8), (byte) size});
+                if ((p1 & 0x80) != 0) {
+                    byte[] md5 = TLVParser.encode(Description.File_md5sum, md5(mFile));
+                    body = Arrays.copyOf(body, body.length + md5.length);
+                    System.arraycopy(md5, 0, body, body.length - md5.length, md5.length);
+                }
+                return SimulatedDevice.response(
+                        TLVParser.encode(Description.Response_Data, body), SimulatedDevice.SW_OK);
+            }
+            if (type == CommandType.Stream_Binary) {
+                byte[] data = mPendingStream;
+                mPendingStream = null;
+                if (mFail || data == null) {
+                    mUploading = false;
+                    mActive.decrementAndGet();
+                    return new byte[]{(byte) 0x9F, (byte) 0x20};
+                }
+                int offset = mFile.length;
+                mFile = Arrays.copyOf(mFile, offset + data.length);
+                System.arraycopy(data, 0, mFile, offset, data.length);
+                return SimulatedDevice.SW_OK;
+            }
+            return SimulatedDevice.SW_OK;
+        }
+
+        private static byte[] md5(byte[] data) {
+            try {
+                return MessageDigest.getInstance("MD5").digest(data);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mMaxActive = new AtomicInteger();
+    private final List<UploadTarget> mTargets = new ArrayList<>();
+    private MiuraDeviceManager mManager;
+
+    @After
+    public void tearDown() {
+        if (mManager != null) {
+            mManager.shutdown();
+        }
+    }
+
+    /**
+     * Make a manager with a pool of simulated devices.
+     *
+     * @param failing The indexes of the devices that reject uploads
+     */
+    private FleetRollout makeFleet(int threads, int devices, long latencyMs, Integer... failing)
+            throws Exception {
+        mManager = new MiuraDeviceManager(threads);
+        List<Integer> fail = Arrays.asList(failing);
+        for (int i = 0; i < devices; i++) {
+            UploadTarget target = new UploadTarget(mActive, mMaxActive, fail.contains(i));
+            SimulatedDevice device = new SimulatedDevice(target);
+            device.setLatencyMs(latencyMs);
+            mTargets.add(target);
+            mManager.addDevice("ped-" + i, device);
+        }
+        assertThat(mManager.openSessions().isEmpty(), is(true));
+        return new FleetRollout(mManager);
+    }
+
+    private File makeFile(int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(48L).nextBytes(data);
+        File file = mFolder.newFile(NAME);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    @Test
+    public void everyDeviceGetsTheFile() throws Exception {
+        // setup
+        FleetRollout rollout = makeFleet(4, 6, 0L);
+        File file = makeFile(3 * FleetRollout.CHUNK_SIZE + 100);
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        // execute
+        Report report = rollout.rollout(file, NAME);
+
+        // verify
+        assertThat(report.isHalted(), is(false));
+        assertThat(report.count(State.Succeeded), is(6));
+        assertThat(report.getDevices().keySet(),
+                contains("ped-0", "ped-1", "ped-2", "ped-3", "ped-4", "ped-5"));
+        for (DeviceStatus status : report.getDevices().values()) {
+            assertThat(status.getBytesSent(), is(data.length));
+            assertThat(status.getReason(), is(nullValue()));
+        }
+        for (UploadTarget target : mTargets) {
+            assertThat(target.mFile, is(equalTo(data)));
+        }
+    }
+
+    @Test
+    public void concurrencyIsLimited() throws Exception {
+        // setup
+        FleetRollout rollout = makeFleet(4, 6, 5L);
+        rollout.setConcurrency(2);
+        File file = makeFile(4 * FleetRollout.CHUNK_SIZE);
+
+        // execute
+        Report report = rollout.rollout(file, NAME);
+
+        // verify
+        assertThat(report.count(State.Succeeded), is(6));
+        assertThat(mMaxActive.get(), is(2));
+    }
+
+    @Test
+    public void failingCanaryHaltsRollout() throws Exception {
+        // setup
+        FleetRollout rollout = makeFleet(4, 6, 0L, 0);
+        rollout.setWaves(1, 2);
+        rollout.setMaxFailureRate(0.25);
+        final List<String> waves = Collections.synchronizedList(new ArrayList<String>());
+        rollout.setListener(new FleetRollout.RolloutListener() {
+            @Override
+            public void onDeviceStatus(@NonNull DeviceStatus status) {
+            }
+
+            @Override
+            public void onWaveFinished(int wave, boolean halted) {
+                waves.add(wave + ":" + halted);
+            }
+        });
+        File file = makeFile(FleetRollout.CHUNK_SIZE);
+
+        // execute
+        Report report = rollout.rollout(file, NAME);
+
+        // verify
+        assertThat(report.isHalted(), is(true));
+        assertThat(report.getWavesRun(), is(1));
+        assertThat(waves, contains("0:true"));
+        assertThat(report.getDevices().get("ped-0").getState(), is(State.Failed));
+        assertThat(report.count(State.Skipped), is(5));
+        assertThat(mTargets.get(1).mFile.length, is(0));
+    }
+
+    @Test
+    public void failuresUnderThresholdCarryOn() throws Exception {
+        // setup
+        FleetRollout rollout = makeFleet(2, 8, 0L, 3);
+        rollout.setWaves(2, 2);
+        rollout.setMaxFailureRate(0.25);
+        File file = makeFile(FleetRollout.CHUNK_SIZE);
+
+        // execute
+        Report report = rollout.rollout(file, NAME);
+
+        // verify
+        assertThat(report.isHalted(), is(false));
+        assertThat(report.getWavesRun(), is(3));
+        assertThat(report.count(State.Succeeded), is(7));
+        assertThat(report.getDevices().get("ped-3").getState(), is(State.Failed));
+    }
+
+    @Test
+    public void deviceWithoutSessionFails() throws Exception {
+        // setup
+        FleetRollout rollout = makeFleet(2, 3, 0L);
+        mManager.getDevice("ped-1").closeSession();
+        File file = makeFile(1000);
+
+        // execute
+        Report report = rollout.rollout(file, NAME);
+
+        // verify
+        assertThat(report.count(State.Succeeded), is(2));
+        assertThat(report.getDevices().get("ped-1").getState(), is(State.Failed));
+    }
+
+    @Test
+    public void bytesPerSecondIsLimitedPerDevice() throws Exception {
+        // setup
+        FleetRollout rollout = makeFleet(2, 2, 0L);
+        rollout.setBytesPerSecond("ped-1", 4L * FleetRollout.CHUNK_SIZE);
+        File file = makeFile(2 * FleetRollout.CHUNK_SIZE);
+        long start = System.nanoTime();
+
+        // execute
+        rollout.rollout(Collections.singletonList(mManager.getDevice("ped-0")), file, NAME);
+        long unlimited = System.nanoTime() - start;
+        start = System.nanoTime();
+        rollout.rollout(Collections.singletonList(mManager.getDevice("ped-1")), file, NAME);
+        long limited = System.nanoTime() - start;
+
+        // verify
+        assertThat(limited, is(greaterThanOrEqualTo(450_000_000L)));
+        assertThat(limited, is(greaterThanOrEqualTo(unlimited)));
+        assertThat(rollout.getStatus().get("ped-1").getState(), is(State.Succeeded));
+    }
+
+    @Test
+    public void listenerCanReadStatus() throws Exception {
+        // setup
+        final FleetRollout rollout = makeFleet(2, 2, 0L);
+        final AtomicInteger blocked = new AtomicInteger();
+        rollout.setListener(new FleetRollout.RolloutListener() {
+            @Override
+            public void onDeviceStatus(@NonNull DeviceStatus status) {
+                // Would wait for the rollout's lock if it were called with it held
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        rollout.getStatus();
+                    }
+                });
+                reader.start();
+                try {
+                    reader.join(1000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (reader.isAlive()) {
+                    blocked.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onWaveFinished(int wave, boolean halted) {
+            }
+        });
+        File file = makeFile(2 * FleetRollout.CHUNK_SIZE);
+
+        // execute
+        Report report = rollout.rollout(file, NAME);
+
+        // verify
+        assertThat(report.count(State.Succeeded), is(2));
+        assertThat(blocked.get(), is(0));
+    }
+
+    @Test
+    public void pacedUploadGivesBackPoolThread() throws Exception {
+        // setup
+        FleetRollout rollout = makeFleet(1, 2, 0L);
+        rollout.setConcurrency(2);
+        rollout.setBytesPerSecond("ped-0", 2L * FleetRollout.CHUNK_SIZE);
+        final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+        rollout.setListener(new FleetRollout.RolloutListener() {
+            @Override
+            public void onDeviceStatus(@NonNull DeviceStatus status) {
+                if (status.getState() == State.Succeeded) {
+                    finished.add(status.getName());
+                }
+            }
+
+            @Override
+            public void onWaveFinished(int wave, boolean halted) {
+            }
+        });
+        File file = makeFile(3 * FleetRollout.CHUNK_SIZE);
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        // execute
+        Report report = rollout.rollout(file, NAME);
+
+        // verify
+        assertThat(report.count(State.Succeeded), is(2));
+        assertThat(finished, contains("ped-1", "ped-0"));
+        assertThat(mTargets.get(0).mFile, is(equalTo(data)));
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.api.objects.BatteryData;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.ChargingStatus;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MiuraDeviceManagerTest {
+
+    private MiuraDeviceManager mManager;
+
+    /** Answers Battery_Status with the battery level set, and everything else with OK */
+    private static final class BatteryHandler implements SimulatedDevice.CommandHandler {
+        private final int mLevel;
+
+        BatteryHandler(int level) {
+            mLevel = level;
+        }
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            if (command[0] == (byte) 0xD0 && command[1] == (byte) 0x62) {
+                byte[] level = TLVParser.encode(Description.Battery_Status,
+                        new byte[]{(byte) mLevel});
+                byte[] status = TLVParser.encode(Description.Charging_Status,
+                        new byte[]{ChargingStatus.Charging.getValue()});
+                byte[] body = new byte[level.length + status.length];
+                System.arraycopy(level, 0, body, 0, level.length);
+                System.arraycopy(status, 0, body, level.length, status.length);
+                return SimulatedDevice.response(
+                        TLVParser.encode(Description.Response_Data, body), SimulatedDevice.SW_OK);
+            }
+            return SimulatedDevice.SW_OK;
+        }
+    }
+
+    private static final class ResultsCapture<T> implements
+            MiuraDeviceManager.DeviceResultsListener<T> {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        final AtomicReference<Map<String, T>> mResults = new AtomicReference<>();
+
+        @Override
+        public void onComplete(@NonNull Map<String, T> results) {
+            mResults.set(results);
+            mLatch.countDown();
+        }
+
+        Map<String, T> await() throws InterruptedException {
+            assertThat(mLatch.await(5L, TimeUnit.SECONDS), is(true));
+            return mResults.get();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mManager != null) {
+            mManager.shutdown();
+        }
+    }
+
+    @Test
+    public void bulkOperationsReachEveryDevice() throws Exception {
+        // setup
+        mManager = new MiuraDeviceManager(2);
+        List<SimulatedDevice> devices = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            SimulatedDevice device = new SimulatedDevice(new BatteryHandler(50 + i));
+            devices.add(device);
+            mManager.addDevice("lane-" + i, device);
+        }
+        Map<String, IOException> failures = mManager.openSessions();
+        assertThat(failures.isEmpty(), is(true));
+
+        // execute
+        ResultsCapture<Boolean> displayResults = new ResultsCapture<>();
+        mManager.displayTextOnAll("Next customer", displayResults);
+        ResultsCapture<BatteryData> batteryResults = new ResultsCapture<>();
+        mManager.getBatteryStatusOfAll(batteryResults);
+
+        // verify
+        Map<String, Boolean> displayed = displayResults.await();
+        assertThat(displayed.keySet(), contains("lane-0", "lane-1", "lane-2", "lane-3"));
+        for (Boolean ok : displayed.values()) {
+            assertThat(ok, is(true));
+        }
+
+        Map<String, BatteryData> batteries = batteryResults.await();
+        for (int i = 0; i < 4; i++) {
+            BatteryData data = batteries.get("lane-" + i);
+            assertThat(data, is(notNullValue()));
+            assertThat(data.mBatteryLevel, is(50 + i));
+            assertThat(data.mChargingStatus, is(ChargingStatus.Charging));
+        }
+        for (SimulatedDevice device : devices) {
+            assertThat(device.getCommandsHandled(), is(2));
+        }
+    }
+
+    @Test
+    public void deviceWithoutSessionGetsNullResult() throws Exception {
+        // setup
+        mManager = new MiuraDeviceManager(1);
+        mManager.addDevice("open", new SimulatedDevice(new BatteryHandler(10)));
+        MiuraDevice closed = mManager.addDevice(
+                "closed", new SimulatedDevice(new BatteryHandler(20)));
+        mManager.openSessions();
+        closed.closeSession();
+
+        // execute
+        ResultsCapture<Boolean> results = new ResultsCapture<>();
+        mManager.displayTextOnAll("hello", results);
+
+        // verify
+        Map<String, Boolean> displayed = results.await();
+        assertThat(displayed.get("open"), is(true));
+        assertThat(displayed.containsKey("closed"), is(true));
+        assertThat(displayed.get("closed"), is(nullValue()));
+    }
+
+    @Test
+    public void busyDeviceDoesNotStarveOthers() throws Exception {
+        // setup
+        mManager = new MiuraDeviceManager(1);
+        MiuraDevice busy = mManager.addDevice("busy", new SimulatedDevice(new BatteryHandler(1)));
+        MiuraDevice quiet = mManager.addDevice(
+                "quiet", new SimulatedDevice(new BatteryHandler(2)));
+        mManager.openSessions();
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(6);
+
+        // execute
+        busy.executeAsync(new MiuraManager.AsyncRunnable() {
+            @Override
+            public void runOnAsyncThread(@NonNull MpiClient client) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+                }
+                order.add("busy");
+                done.countDown();
+            }
+        });
+        for (int i = 0; i < 4; i++) {
+            busy.executeAsync(record(order, "busy", done));
+        }
+        quiet.executeAsync(record(order, "quiet", done));
+        release.countDown();
+
+        // verify
+        assertThat(done.await(5L, TimeUnit.SECONDS), is(true));
+        assertThat(order, contains("busy", "quiet", "busy", "busy", "busy", "busy"));
+    }
+
+    @Test
+    public void closeSessionDropsQueuedCommands() throws Exception {
+        // setup
+        mManager = new MiuraDeviceManager(1);
+        SimulatedDevice simulated = new SimulatedDevice(new BatteryHandler(1));
+        final MiuraDevice device = mManager.addDevice("lane", simulated);
+        mManager.openSessions();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        // execute
+        device.executeAsync(new MiuraManager.AsyncRunnable() {
+            @Override
+            public void runOnAsyncThread(@NonNull MpiClient client) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        device.executeAsync(record(order, "dropped", new CountDownLatch(1)));
+        assertThat(started.await(5L, TimeUnit.SECONDS), is(true));
+        device.closeSession();
+        release.countDown();
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        device.openSession();
+        device.executeAsync(record(order, "new session", ran));
+
+        // verify
+        assertThat(ran.await(5L, TimeUnit.SECONDS), is(true));
+        assertThat(order, contains("new session"));
+    }
+
+    @Test
+    public void closeSessionCompletesQueuedBulkOperation() throws Exception {
+        // setup
+        mManager = new MiuraDeviceManager();
+        final MiuraDevice blocked = mManager.addDevice("blocked", new SimulatedDevice(
+                new BatteryHandler(1)));
+        mManager.addDevice("free", new SimulatedDevice(new BatteryHandler(1)));
+        mManager.openSessions();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        blocked.executeAsync(new MiuraManager.AsyncRunnable() {
+            @Override
+            public void runOnAsyncThread(@NonNull MpiClient client) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        assertThat(started.await(5L, TimeUnit.SECONDS), is(true));
+
+        // execute
+        ResultsCapture<Boolean> results = new ResultsCapture<>();
+        mManager.displayTextOnAll("Next customer", results);
+        blocked.closeSession();
+        release.countDown();
+
+        // verify
+        Map<String, Boolean> displayed = results.await();
+        assertThat(displayed.keySet(), contains("blocked", "free"));
+        assertThat(displayed.get("blocked"), is(nullValue()));
+        assertThat(displayed.get("free"), is(true));
+    }
+
+    @Test
+    public void getAndRemoveDevice() throws Exception {
+        // setup
+        mManager = new MiuraDeviceManager();
+        MiuraDevice device = mManager.addDevice("a", new SimulatedDevice(new BatteryHandler(1)));
+
+        // execute
+        MiuraDevice found = mManager.getDevice("a");
+        MiuraDevice removed = mManager.removeDevice("a");
+        MiuraDevice missing = mManager.getDevice("a");
+
+        // verify
+        assertThat(found, is(device));
+        assertThat(removed, is(device));
+        assertThat(missing, is(nullValue()));
+        assertThat(mManager.getDevices().isEmpty(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateNameIsRejected() {
+        mManager = new MiuraDeviceManager(1);
+        mManager.addDevice("a", new SimulatedDevice(new BatteryHandler(1)));
+        mManager.addDevice("a", new SimulatedDevice(new BatteryHandler(1)));
+    }
+
+    @NonNull
+    private static MiuraManager.AsyncRunnable record(
+            @NonNull final List<String> order,
+            @NonNull final String name,
+            @Nullable final CountDownLatch done
+    ) {
+        return new MiuraManager.AsyncRunnable() {
+            @Override
+            public void runOnAsyncThread(@NonNull MpiClient client) {
+                order.add(name);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.executor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.fail;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.api.objects.BatteryData;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.ChargingStatus;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.TransactionType;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MiuraManagerFuturesTest {
+
+    private static final byte[] SW_ERROR = {(byte) 0x9F, (byte) 0x41};
+
+    private MiuraManager mManager;
+    private PedHandler mHandler;
+    private SimulatedDevice mDevice;
+
+    /** Answers battery, display, abortable transactions and numeric entry, and a held drawer */
+    private static final class PedHandler implements SimulatedDevice.CommandHandler {
+        volatile boolean mFailDisplay;
+        final CountDownLatch mDrawerCommandSeen = new CountDownLatch(1);
+        final CountDownLatch mWaitingForUser = new CountDownLatch(1);
+        final AtomicInteger mBatteryCommands = new AtomicInteger(0);
+        final AtomicInteger mAborts = new AtomicInteger(0);
+        private boolean mTransactionPending;
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            int id = ((command[0] & 0xFF) << 8) | (command[1] & 0xFF);
+            switch (id) {
+                case 0xD062: {
+                    mBatteryCommands.incrementAndGet();
+                    byte[] level = TLVParser.encode(Description.Battery_Status,
+                            new byte[]{(byte) 75});
+                    byte[] status = TLVParser.encode(Description.Charging_Status,
+                            new byte[]{ChargingStatus.Charged.getValue()});
+                    byte[] body = new byte[level.length + status.length];
+                    System.arraycopy(level, 0, body, 0, level.length);
+                    System.arraycopy(status, 0, body, level.length, status.length);
+                    return SimulatedDevice.response(
+                            TLVParser.encode(Description.Response_Data, body),
+                            SimulatedDevice.SW_OK);
+                }
+                case 0xD201:
+                    return mFailDisplay ? SW_ERROR : SimulatedDevice.SW_OK;
+                case 0xDED1:
+                case 0xD204:
+                    // transaction and numeric entry wait for the user until aborted
+                    mWaitingForUser.countDown();
+                    mTransactionPending = true;
+                    return null;
+                case 0xD0D0:
+                    // the drawer is answered later by the test
+                    mDrawerCommandSeen.countDown();
+                    return null;
+                case 0xD0FF:
+                    mAborts.incrementAndGet();
+                    if (mTransactionPending) {
+                        mTransactionPending = false;
+                        device.sendResponse(nad, SW_ERROR);
+                    }
+                    return SimulatedDevice.SW_OK;
+                default:
+                    return SimulatedDevice.SW_OK;
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mHandler = new PedHandler();
+        mDevice = new SimulatedDevice(mHandler);
+        mManager = MiuraManager.getInstance();
+        mManager.setDeviceType(MiuraManager.DeviceType.PED);
+        mManager.setConnector(mDevice);
+        mManager.openSession();
+    }
+
+    @After
+    public void tearDown() {
+        mManager.closeSession();
+    }
+
+    @Test
+    public void independentQueriesRunAsOneBatch() throws Exception {
+        // setup
+        MiuraManagerFutures futures = mManager.getFutures();
+
+        // execute
+        MpiFuture<BatteryData> battery = futures.getBatteryStatus();
+        MpiFuture<Void> display = futures.displayText("hello");
+        MpiFuture<Void> all = MpiFuture.allOf(battery, display)
+                .withTimeout(5L, TimeUnit.SECONDS);
+        all.get(5L, TimeUnit.SECONDS);
+
+        // verify
+        assertThat(all.isSuccess(), is(true));
+        assertThat(display.isSuccess(), is(true));
+        BatteryData data = battery.getNow(null);
+        assertThat(data, is(notNullValue()));
+        assertThat(data.mBatteryLevel, is(75));
+        assertThat(data.mChargingStatus, is(ChargingStatus.Charged));
+    }
+
+    @Test
+    public void rpiCommandDoesNotBlockMpi() throws Exception {
+        // setup
+        MiuraManagerFutures futures = mManager.getFutures();
+        MpiFuture<Boolean> drawer = futures.cashDrawer(true);
+        assertThat(mHandler.mDrawerCommandSeen.await(5L, TimeUnit.SECONDS), is(true));
+
+        // execute
+        MpiFuture<Void> display = futures.displayText("hello");
+        display.get(5L, TimeUnit.SECONDS);
+        boolean drawerWaiting = !drawer.isDone();
+        mDevice.sendResponse(InterfaceType.RPI,
+                SimulatedDevice.response(new byte[]{(byte) 0x01}, SimulatedDevice.SW_OK));
+
+        // verify
+        assertThat(display.isSuccess(), is(true));
+        assertThat(drawerWaiting, is(true));
+        assertThat(drawer.get(5L, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void commandFailureFailsFuture() throws Exception {
+        // setup
+        mHandler.mFailDisplay = true;
+
+        // execute
+        MpiFuture<Void> display = mManager.getFutures().displayText("hello");
+
+        // verify
+        try {
+            display.get(5L, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(MiuraCommandException.class)));
+        }
+    }
+
+    @Test
+    public void noSessionFailsImmediately() throws Exception {
+        // setup
+        mManager.closeSession();
+
+        // execute
+        MpiFuture<BatteryData> battery = mManager.getFutures().getBatteryStatus();
+
+        // verify
+        assertThat(battery.isDone(), is(true));
+        try {
+            battery.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(IOException.class)));
+        }
+    }
+
+    @Test
+    public void cancelledWhilstQueuedIsNeverSent() throws Exception {
+        // setup
+        final CountDownLatch release = new CountDownLatch(1);
+        mManager.executeAsync(new MiuraManager.AsyncRunnable() {
+            @Override
+            public void runOnAsyncThread(@NonNull MpiClient client) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        MpiFuture<BatteryData> battery = mManager.getFutures().getBatteryStatus();
+
+        // execute
+        boolean cancelled = battery.cancel(false);
+        release.countDown();
+        mManager.getFutures().displayText("after").get(5L, TimeUnit.SECONDS);
+
+        // verify
+        assertThat(cancelled, is(true));
+        assertThat(battery.isCancelled(), is(true));
+        assertThat(mHandler.mBatteryCommands.get(), is(0));
+        try {
+            battery.get();
+            fail();
+        } catch (CancellationException ignore) {
+        }
+    }
+
+    @Test
+    public void deadlineAbortsRunningTransaction() throws Exception {
+        // execute
+        MpiFuture<byte[]> transaction = mManager.getFutures()
+                .startTransaction(TransactionType.Purchase, 100, 826)
+                .withTimeout(200L, TimeUnit.MILLISECONDS);
+
+        // verify
+        try {
+            transaction.get(5L, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(TimeoutException.class)));
+        }
+
+        // The abort freed the async thread for the next command
+        mManager.getFutures().displayText("next").get(5L, TimeUnit.SECONDS);
+        assertThat(mHandler.mAborts.get(), is(1));
+    }
+
+    @Test
+    public void cancellingNumericEntryAbortsIt() throws Exception {
+        // setup
+        MiuraManagerFutures futures = mManager.getFutures();
+        MpiFuture<String> numeric = futures.getNumericData(
+                false, true, 1, 2, 3, 6, 2, null, null, null, null, null);
+        assertThat(mHandler.mWaitingForUser.await(5L, TimeUnit.SECONDS), is(true));
+
+        // execute
+        boolean cancelled = numeric.cancel(true);
+
+        // verify
+        assertThat(cancelled, is(true));
+        assertThat(numeric.isCancelled(), is(true));
+        // The abort freed the async thread for the next command
+        futures.displayText("next").get(5L, TimeUnit.SECONDS);
+        assertThat(mHandler.mAborts.get(), is(1));
+    }
+
+    @Test
+    public void closingSessionFailsQueuedFutures() throws Exception {
+        // setup
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mManager.executeAsync(new MiuraManager.AsyncRunnable() {
+            @Override
+            public void runOnAsyncThread(@NonNull MpiClient client) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        });
+        MpiFuture<BatteryData> battery = mManager.getFutures().getBatteryStatus();
+        assertThat(started.await(5L, TimeUnit.SECONDS), is(true));
+
+        // execute
+        mManager.closeSession();
+
+        // verify
+        try {
+            battery.get(5L, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(IOException.class)));
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.api.objects.FileSyncResult;
+import com.miurasystems.miuralibrary.api.objects.FileSyncResult.Outcome;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class DeltaSyncTest {
+
+    private static final int BLOCK_SIZE = 0x1000;
+    private static final String NAME = "config.tgz";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ResumableTransferTest.FileSystem mFileSystem =
+            new ResumableTransferTest.FileSystem();
+    private final SimulatedDevice mDevice = new SimulatedDevice(mFileSystem);
+    private MpiClient mClient;
+    private DeltaSync mSync;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mClient = new MpiClient(mDevice, new MpiEvents());
+        mClient.openSession();
+        mSync = new DeltaSync(mFolder.newFolder("manifests"), BLOCK_SIZE);
+        mFile = new File(mFolder.getRoot(), NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.closeSession();
+    }
+
+    private byte[] write(byte[] data) throws IOException {
+        Files.write(mFile.toPath(), data);
+        return data;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private FileSyncResult sync() {
+        mFileSystem.mBytesStreamed = 0L;
+        return mSync.sync(mClient, InterfaceType.MPI, "12345", NAME, mFile, null);
+    }
+
+    @Test
+    public void firstSyncUploadsWholeFile() throws Exception {
+        // setup
+        byte[] data = write(random(20 * BLOCK_SIZE + 7, 1L));
+
+        // execute
+        FileSyncResult result = sync();
+
+        // verify
+        assertThat(result.getOutcome(), is(Outcome.Full));
+        assertThat(result.getBytesSent(), is((long) data.length));
+        assertThat(result.getBytesSaved(), is(0L));
+        assertThat(mFileSystem.mFiles.get(NAME), is(equalTo(data)));
+    }
+
+    @Test
+    public void unchangedFileIsSkipped() throws Exception {
+        // setup
+        byte[] data = write(random(20 * BLOCK_SIZE, 2L));
+        sync();
+
+        // execute
+        FileSyncResult result = sync();
+
+        // verify
+        assertThat(result.getOutcome(), is(Outcome.Unchanged));
+        assertThat(mFileSystem.mBytesStreamed, is(0L));
+        assertThat(result.getBytesSaved(), is((long) data.length));
+        assertThat(mSync.getBytesSaved("12345"), is((long) data.length));
+    }
+
+    @Test
+    public void fileAlreadyOnDeviceIsSkippedWithoutManifest() throws Exception {
+        // setup
+        byte[] data = write(random(5 * BLOCK_SIZE, 3L));
+        mFileSystem.mFiles.put(NAME, data.clone());
+
+        // execute
+        FileSyncResult result = sync();
+
+        // verify
+        assertThat(result.getOutcome(), is(Outcome.Unchanged));
+        assertThat(mFileSystem.mBytesStreamed, is(0L));
+    }
+
+    @Test
+    public void onlyChangedBlocksAreSent() throws Exception {
+        // setup
+        byte[] data = write(random(20 * BLOCK_SIZE + 100, 4L));
+        sync();
+        byte[] changed = Arrays.copyOf(data, data.length + 2 * BLOCK_SIZE);
+        changed[3 * BLOCK_SIZE + 10] ^= 0x55;
+        changed[4 * BLOCK_SIZE] ^= 0x55;
+        changed[10 * BLOCK_SIZE + 1] ^= 0x55;
+        write(changed);
+
+        // execute
+        FileSyncResult result = sync();
+
+        // verify
+        // blocks 3, 4 and 10, then the old partial last block and the new ones
+        long expected = 3 * BLOCK_SIZE + (changed.length - 20 * BLOCK_SIZE);
+        assertThat(result.getOutcome(), is(Outcome.Delta));
+        assertThat(result.getBytesSent(), is(expected));
+        assertThat(mFileSystem.mBytesStreamed, is(expected));
+        assertThat(result.getBytesSaved(), is(changed.length - expected));
+        assertThat(mFileSystem.mFiles.get(NAME), is(equalTo(changed)));
+    }
+
+    @Test
+    public void shorterFileIsUploadedInFull() throws Exception {
+        // setup
+        byte[] data = write(random(20 * BLOCK_SIZE, 5L));
+        sync();
+        byte[] shorter = write(Arrays.copyOf(data, 10 * BLOCK_SIZE));
+
+        // execute
+        FileSyncResult result = sync();
+
+        // verify
+        assertThat(result.getOutcome(), is(Outcome.Full));
+        assertThat(mFileSystem.mFiles.get(NAME), is(equalTo(shorter)));
+    }
+
+    @Test
+    public void fileChangedOnDeviceIsUploadedInFull() throws Exception {
+        // setup
+        byte[] data = write(random(20 * BLOCK_SIZE, 6L));
+        sync();
+        mFileSystem.mFiles.get(NAME)[0] ^= 0x55;
+        data[5 * BLOCK_SIZE] ^= 0x55;
+        write(data);
+
+        // execute
+        FileSyncResult result = sync();
+
+        // verify
+        assertThat(result.getOutcome(), is(Outcome.Full));
+        assertThat(mFileSystem.mBytesStreamed, is((long) data.length));
+        assertThat(mFileSystem.mFiles.get(NAME), is(equalTo(data)));
+    }
+
+    @Test
+    public void deviceThatCantWriteInPlaceGetsWholeFile() throws Exception {
+        // setup
+        byte[] data = write(random(20 * BLOCK_SIZE, 7L));
+        sync();
+        mFileSystem.mAppendOnly = true;
+        data[5 * BLOCK_SIZE] ^= 0x55;
+        write(data);
+
+        // execute
+        FileSyncResult result = sync();
+
+        // verify
+        assertThat(result.getOutcome(), is(Outcome.Full));
+        assertThat(mFileSystem.mFiles.get(NAME), is(equalTo(data)));
+    }
+
+    @Test
+    public void bytesSavedAreKeptPerDevice() throws Exception {
+        // setup
+        byte[] data = write(random(8 * BLOCK_SIZE, 8L));
+        mSync.sync(mClient, InterfaceType.MPI, "A", NAME, mFile, null);
+        mSync.sync(mClient, InterfaceType.MPI, "A", NAME, mFile, null);
+
+        // execute
+        mSync.sync(mClient, InterfaceType.MPI, "B", NAME, mFile, null);
+
+        // verify
+        assertThat(mSync.getBytesSaved("A"), is((long) data.length));
+        assertThat(mSync.getBytesSaved("B"), is((long) data.length));
+        assertThat(mSync.getBytesSaved().size(), is(2));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+public class DeviceFileCacheTest {
+
+    private static final int SIZE = 3000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final ResumableTransferTest.FileSystem mFileSystem =
+            new ResumableTransferTest.FileSystem();
+    private final SimulatedDevice mDevice = new SimulatedDevice(mFileSystem);
+    private MpiClient mClient;
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mClient = new MpiClient(mDevice, new MpiEvents());
+        mClient.openSession();
+        mDirectory = mFolder.newFolder("cache");
+    }
+
+    @After
+    public void tearDown() {
+        mClient.closeSession();
+    }
+
+    private byte[] putFile(String name, long seed) {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        mFileSystem.mFiles.put(name, data);
+        return data;
+    }
+
+    private byte[] get(DeviceFileCache cache, String deviceId, String name) {
+        return cache.getDeviceFile(mClient, InterfaceType.MPI, deviceId, name, null);
+    }
+
+    @Test
+    public void secondGetIsHit() throws Exception {
+        // setup
+        DeviceFileCache cache = new DeviceFileCache(mDirectory);
+        byte[] data = putFile("terminal.crt", 1L);
+        byte[] first = get(cache, "12345", "terminal.crt");
+        long bytesRead = mFileSystem.mBytesRead;
+        int commands = mDevice.getCommandsHandled();
+
+        // execute
+        byte[] second = get(cache, "12345", "terminal.crt");
+
+        // verify
+        assertThat(first, is(equalTo(data)));
+        assertThat(second, is(equalTo(data)));
+        assertThat(bytesRead, is((long) SIZE));
+        assertThat(mFileSystem.mBytesRead, is(bytesRead));
+        assertThat(mDevice.getCommandsHandled() - commands, is(1));
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(1L));
+        assertThat(cache.getHitRate(), is(closeTo(0.5, 0.001)));
+        assertThat(cache.getBytesSaved(), is((long) SIZE));
+    }
+
+    @Test
+    public void changedFileIsDownloadedAgain() throws Exception {
+        // setup
+        DeviceFileCache cache = new DeviceFileCache(mDirectory);
+        byte[] data = putFile("terminal.crt", 2L);
+        get(cache, "12345", "terminal.crt");
+        byte[] changed = data.clone();
+        changed[100] ^= 0x55;
+        mFileSystem.mFiles.put("terminal.crt", changed);
+
+        // execute
+        byte[] result = get(cache, "12345", "terminal.crt");
+
+        // verify
+        assertThat(result, is(equalTo(changed)));
+        assertThat(cache.getHits(), is(0L));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void sameContentIsStoredOnce() throws Exception {
+        // setup
+        DeviceFileCache cache = new DeviceFileCache(mDirectory);
+        putFile("prod-sign.crt", 3L);
+        get(cache, "A", "prod-sign.crt");
+
+        // execute
+        get(cache, "B", "prod-sign.crt");
+
+        // verify
+        assertThat(cache.getMisses(), is(2L));
+        assertThat(cache.size(), is(2));
+        assertThat(cache.getBytesStored(), is((long) SIZE));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        // setup
+        DeviceFileCache cache = new DeviceFileCache(mDirectory, 3 * SIZE);
+        for (int i = 0; i < 3; i++) {
+            putFile("file" + i, 10L + i);
+            get(cache, "12345", "file" + i);
+        }
+        get(cache, "12345", "file0");
+        putFile("file3", 13L);
+
+        // execute
+        get(cache, "12345", "file3");
+
+        // verify
+        assertThat(cache.size(), is(3));
+        assertThat(cache.getBytesStored(), is(3L * SIZE));
+        long hits = cache.getHits();
+        get(cache, "12345", "file0");
+        get(cache, "12345", "file2");
+        assertThat(cache.getHits(), is(hits + 2));
+        get(cache, "12345", "file1");
+        assertThat(cache.getHits(), is(hits + 2));
+    }
+
+    @Test
+    public void entriesSurviveRestart() throws Exception {
+        // setup
+        byte[] data = putFile("terminal.crt", 4L);
+        get(new DeviceFileCache(mDirectory), "12345", "terminal.crt");
+        DeviceFileCache cache = new DeviceFileCache(mDirectory);
+
+        // execute
+        byte[] result = get(cache, "12345", "terminal.crt");
+
+        // verify
+        assertThat(result, is(equalTo(data)));
+        assertThat(cache.getHits(), is(1L));
+    }
+
+    @Test
+    public void damagedCopyIsMiss() throws Exception {
+        // setup
+        DeviceFileCache cache = new DeviceFileCache(mDirectory);
+        byte[] data = putFile("prod-sign.crt", 5L);
+        get(cache, "12345", "prod-sign.crt");
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().startsWith("blob-")) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.seek(10L);
+                    raf.write(data[10] ^ 0x55);
+                }
+            }
+        }
+
+        // execute
+        byte[] result = get(cache, "12345", "prod-sign.crt");
+
+        // verify
+        assertThat(result, is(equalTo(data)));
+        assertThat(cache.getHits(), is(0L));
+        assertThat(mFileSystem.mBytesRead, is(2L * SIZE));
+    }
+
+    @Test
+    public void withoutMd5MatchesBySize() throws Exception {
+        // setup
+        DeviceFileCache cache = new DeviceFileCache(mDirectory);
+        mFileSystem.mNoMd5 = true;
+        byte[] data = putFile("mpi.log", 6L);
+        get(cache, "12345", "mpi.log");
+        mFileSystem.mFiles.put("mpi.log", new byte[SIZE + 1]);
+
+        // execute
+        byte[] grown = get(cache, "12345", "mpi.log");
+
+        // verify
+        assertThat(grown, is(equalTo(new byte[SIZE + 1])));
+        assertThat(cache.getHits(), is(0L));
+        mFileSystem.mFiles.put("mpi.log", data);
+        get(cache, "12345", "mpi.log");
+        get(cache, "12345", "mpi.log");
+        assertThat(cache.getHits(), is(1L));
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+public class ResumableTransferTest {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * A PED with a file system, that can drop the link whilst handling a command.
+     */
+    static final class FileSystem implements SimulatedDevice.StreamHandler {
+        final HashMap<String, byte[]> mFiles = new HashMap<>();
+        private String mSelected;
+        private byte[] mPendingStream;
+
+        /** Drop the link at this many more transfer commands, or -1 not to */
+        volatile int mDropIn = -1;
+        /** Drop it after carrying out the command, rather than before */
+        volatile boolean mDropAfter;
+        /** Only allow streaming to the end of a file, not over what's already there */
+        volatile boolean mAppendOnly;
+        /** Don't return File_md5sum */
+        volatile boolean mNoMd5;
+
+        volatile long mBytesStreamed;
+        volatile long mBytesRead;
+
+        static byte[] md5(@NonNull byte[] data) throws Exception {
+            return MessageDigest.getInstance("MD5").digest(data);
+        }
+
+        private static int getReadOffset(@NonNull byte[] command) {
+            int p1 = command[2] & 0xFF;
+            int p2 = command[3] & 0xFF;
+            if ((p1 & 0x80) == 0) {
+                return (p1 << 8) | p2;
+            }
+            return ((p1 & 0x7F) << 16) | (p2 << 8) | (command[5] & 0xFF);
+        }
+
+        private boolean drop(@NonNull SimulatedDevice device, boolean after) {
+            if (mDropIn < 0 || mDropAfter != after) {
+                return false;
+            }
+            if (mDropIn-- == 0) {
+                device.dropLink();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void handleStream(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] data) {
+            mPendingStream = data;
+        }
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            try {
+                return handleCommand(device, command);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private byte[] handleCommand(@NonNull SimulatedDevice device, @NonNull byte[] command)
+                throws Exception {
+            CommandType type = CommandType.valueOf(command[0], command[1]);
+            if (type == CommandType.Select_File) {
+                int p1 = command[2] & 0xFF;
+                mSelected = new String(command, 5, command[4] & 0xFF, US_ASCII);
+                if (p1 == 0x01 || !mFiles.containsKey(mSelected)) {
+                    mFiles.put(mSelected, new byte[0]);
+                }
+                byte[] file = mFiles.get(mSelected);
+                int size = file.length;
+                byte[] body = TLVParser.encode(Description.File_Size,
+                        new byte[]{0, (byte) (size >> 16), (byte) (size >> 8), (byte) size});
+                if ((p1 & 0x80) != 0 && !mNoMd5) {
+                    byte[] md5 = TLVParser.encode(Description.File_md5sum, md5(file));
+                    body = Arrays.copyOf(body, body.length + md5.length);
+                    System.arraycopy(md5, 0, body, body.length - md5.length, md5.length);
+                }
+                return SimulatedDevice.response(
+                        TLVParser.encode(Description.Response_Data, body), SimulatedDevice.SW_OK);
+            }
+
+            if (type == CommandType.Stream_Binary) {
+                byte[] data = mPendingStream;
+                mPendingStream = null;
+                if (drop(device, false)) {
+                    return null;
+                }
+                byte[] file = mFiles.get(mSelected);
+                int offset = StreamBinaryFileTest.UploadServer.getStreamOffset(command);
+                if (data == null || offset > file.length
+                        || (mAppendOnly && offset != file.length)) {
+                    return new byte[]{(byte) 0x9F, (byte) 0x20};
+                }
+                file = Arrays.copyOf(file, Math.max(file.length, offset + data.length));
+                System.arraycopy(data, 0, file, offset, data.length);
+                mFiles.put(mSelected, file);
+                mBytesStreamed += data.length;
+                return drop(device, true) ? null : SimulatedDevice.SW_OK;
+            }
+
+            if (type == CommandType.Read_Binary) {
+                if (drop(device, false)) {
+                    return null;
+                }
+                byte[] file = mFiles.get(mSelected);
+                int offset = getReadOffset(command);
+                int le = command[command.length - 1] & 0xFF;
+                byte[] data = Arrays.copyOfRange(file, offset, Math.min(offset + le, file.length));
+                mBytesRead += data.length;
+                return drop(device, true)
+                        ? null : SimulatedDevice.response(data, SimulatedDevice.SW_OK);
+            }
+            return SimulatedDevice.SW_OK;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FileSystem mFileSystem = new FileSystem();
+    private final SimulatedDevice mDevice = new SimulatedDevice(mFileSystem);
+    private MpiClient mClient;
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.closeSession();
+        }
+    }
+
+    private MpiClient connect() throws IOException {
+        if (mClient != null) {
+            mClient.closeSession();
+        }
+        mClient = new MpiClient(mDevice, new MpiEvents());
+        mClient.openSession();
+        return mClient;
+    }
+
+    private File makeFile(String name, int size, long seed) throws IOException {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        File file = mFolder.newFile(name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private File checkpoint() {
+        return new File(mFolder.getRoot(), "transfer.checkpoint");
+    }
+
+    @Test
+    public void uploadWithoutFaults() throws Exception {
+        // setup
+        File file = makeFile("image.bin", 200 * 1024 + 3, 1L);
+
+        // execute
+        boolean ok = ResumableTransfer.upload(
+                connect(), InterfaceType.MPI, "image.bin", file, checkpoint(), null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(mFileSystem.mFiles.get("image.bin"),
+                is(equalTo(Files.readAllBytes(file.toPath()))));
+        assertThat(checkpoint().exists(), is(false));
+    }
+
+    @Test
+    public void uploadCarriesOnAfterDrop() throws Exception {
+        // setup
+        File file = makeFile("image.bin", 300 * 1024, 2L);
+        mFileSystem.mDropIn = 3;
+        boolean first = ResumableTransfer.upload(
+                connect(), InterfaceType.MPI, "image.bin", file, checkpoint(), null);
+
+        // execute
+        boolean second = ResumableTransfer.upload(
+                connect(), InterfaceType.MPI, "image.bin", file, checkpoint(), null);
+
+        // verify
+        assertThat(first, is(false));
+        assertThat(second, is(true));
+        assertThat(mFileSystem.mFiles.get("image.bin"),
+                is(equalTo(Files.readAllBytes(file.toPath()))));
+        assertThat(mFileSystem.mBytesStreamed, is(file.length()));
+    }
+
+    @Test
+    public void uploadStartsAgainIfDeviceFileDiffers() throws Exception {
+        // setup
+        File file = makeFile("image.bin", 200 * 1024, 3L);
+        mFileSystem.mDropIn = 1;
+        ResumableTransfer.upload(
+                connect(), InterfaceType.MPI, "image.bin", file, checkpoint(), null);
+        byte[] partial = mFileSystem.mFiles.get("image.bin");
+        partial[10] ^= 0x55;
+        mFileSystem.mBytesStreamed = 0L;
+
+        // execute
+        boolean ok = ResumableTransfer.upload(
+                connect(), InterfaceType.MPI, "image.bin", file, checkpoint(), null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(mFileSystem.mFiles.get("image.bin"),
+                is(equalTo(Files.readAllBytes(file.toPath()))));
+        assertThat(mFileSystem.mBytesStreamed, is(file.length()));
+    }
+
+    @Test
+    public void uploadStartsAgainIfLocalFileChanged() throws Exception {
+        // setup
+        File file = makeFile("image.bin", 200 * 1024, 4L);
+        mFileSystem.mDropIn = 1;
+        ResumableTransfer.upload(
+                connect(), InterfaceType.MPI, "image.bin", file, checkpoint(), null);
+        byte[] changed = Files.readAllBytes(file.toPath());
+        changed[changed.length - 1] ^= 0x55;
+        Files.write(file.toPath(), changed);
+        assertThat(file.setLastModified(file.lastModified() - 10000L), is(true));
+        mFileSystem.mBytesStreamed = 0L;
+
+        // execute
+        boolean ok = ResumableTransfer.upload(
+                connect(), InterfaceType.MPI, "image.bin", file, checkpoint(), null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(mFileSystem.mFiles.get("image.bin"), is(equalTo(changed)));
+        assertThat(mFileSystem.mBytesStreamed, is(file.length()));
+    }
+
+    @Test
+    public void downloadCarriesOnAfterDrop() throws Exception {
+        // setup
+        byte[] data = Files.readAllBytes(makeFile("source.bin", 100 * 1024, 5L).toPath());
+        mFileSystem.mFiles.put("mpi.log", data);
+        File file = new File(mFolder.getRoot(), "mpi.log");
+        mFileSystem.mDropIn = 200;
+        boolean first = ResumableTransfer.download(
+                connect(), InterfaceType.MPI, "mpi.log", file, checkpoint(), null);
+        long firstRead = mFileSystem.mBytesRead;
+
+        // execute
+        boolean second = ResumableTransfer.download(
+                connect(), InterfaceType.MPI, "mpi.log", file, checkpoint(), null);
+
+        // verify
+        assertThat(first, is(false));
+        assertThat(firstRead,
+                is(greaterThan((long) ResumableTransfer.DOWNLOAD_CHECKPOINT_INTERVAL)));
+        assertThat(second, is(true));
+        assertThat(Files.readAllBytes(file.toPath()), is(equalTo(data)));
+        assertThat(mFileSystem.mBytesRead - firstRead, is(lessThan((long) data.length)));
+        assertThat(checkpoint().exists(), is(false));
+    }
+
+    @Test
+    public void downloadStartsAgainIfDeviceFileChanged() throws Exception {
+        // setup
+        byte[] data = Files.readAllBytes(makeFile("source.bin", 100 * 1024, 6L).toPath());
+        mFileSystem.mFiles.put("mpi.log", data);
+        File file = new File(mFolder.getRoot(), "mpi.log");
+        mFileSystem.mDropIn = 200;
+        ResumableTransfer.download(
+                connect(), InterfaceType.MPI, "mpi.log", file, checkpoint(), null);
+        byte[] changed = data.clone();
+        changed[0] ^= 0x55;
+        mFileSystem.mFiles.put("mpi.log", changed);
+
+        // execute
+        boolean ok = ResumableTransfer.download(
+                connect(), InterfaceType.MPI, "mpi.log", file, checkpoint(), null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(Files.readAllBytes(file.toPath()), is(equalTo(changed)));
+    }
+
+    @Test
+    public void randomDrops() throws Exception {
+        Random random = new Random(46L);
+        for (int run = 0; run < 10; run++) {
+            // setup
+            boolean upload = run % 2 == 0;
+            File source = makeFile("source" + run, 64 * 1024 + random.nextInt(256 * 1024), run);
+            byte[] data = Files.readAllBytes(source.toPath());
+            File local = upload ? source : new File(mFolder.getRoot(), "download" + run);
+            String deviceName = "file" + run;
+            if (!upload) {
+                mFileSystem.mFiles.put(deviceName, data);
+            }
+            int transfers = upload
+                    ? data.length / ResumableTransfer.UPLOAD_CHUNK_SIZE + 1
+                    : data.length / 252 + 1;
+
+            // execute
+            boolean ok = false;
+            int attempts = 0;
+            while (!ok) {
+                assertThat(attempts++, is(lessThan(20)));
+                mFileSystem.mDropIn = attempts < 4 ? random.nextInt(transfers) : -1;
+                mFileSystem.mDropAfter = random.nextBoolean();
+                MpiClient client = connect();
+                ok = upload
+                        ? ResumableTransfer.upload(client, InterfaceType.MPI,
+                        deviceName, local, checkpoint(), null)
+                        : ResumableTransfer.download(client, InterfaceType.MPI,
+                        deviceName, local, checkpoint(), null);
+            }
+
+            // verify
+            byte[] result = upload ? mFileSystem.mFiles.get(deviceName)
+                    : Files.readAllBytes(local.toPath());
+            assertThat(result, is(equalTo(data)));
+            assertThat(checkpoint().exists(), is(false));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.api.utils.StreamBinaryFileTest.UploadServer;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Time taken, and heap allocated by the uploading thread, for each way of uploading a file.
+ *
+ * <p>
+ * The simulated device runs on the uploading thread and keeps a copy of everything sent to
+ * it, so every path allocates about the file's size. The whole-array upload allocates the
+ * file's size again on top of that; the InputStream upload a fixed 128 KB buffer, and the file
+ * uploads next to nothing. The simulated device's output channel copies what it's given once
+ * more, so the transferTo figures include that copying too.
+ * </p>
+ */
+public class StreamBinaryFileBenchmark {
+
+    /** SLF4J Logger */
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamBinaryFileBenchmark.class);
+
+    private static final int[] FILE_SIZES = {1024 * 1024, 4 * 1024 * 1024};
+    private static final long LATENCY_MS = 2L;
+
+    private enum Path {
+        WholeArray,
+        InputStream,
+        MappedFile,
+        TransferTo,
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void report(Path path, int size, long nanos, long allocated) {
+        String line = String.format(Locale.ENGLISH, "%-12s %5d KiB %8.1f ms %10d bytes allocated",
+                path, size / 1024, nanos / 1e6, allocated);
+        LOGGER.info(line);
+        System.out.println(line);
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int off = 0;
+            while (off < data.length) {
+                off += in.read(data, off, data.length - off);
+            }
+        }
+        return data;
+    }
+
+    private static boolean upload(MpiClient client, Path path, File file) throws IOException {
+        switch (path) {
+            case WholeArray: {
+                byte[] data = readAll(file);
+                return client.selectFile(InterfaceType.MPI, SelectFileMode.Truncate, "f") >= 0
+                        && client.streamBinary(
+                        InterfaceType.MPI, false, data, 0, data.length, 100);
+            }
+            case InputStream: {
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                return StreamBinaryFile.streamBinaryFile(client, InterfaceType.MPI, "f", in, null);
+            }
+            default:
+                return StreamBinaryFile.streamBinaryFile(
+                        client, InterfaceType.MPI, "f", file, null);
+        }
+    }
+
+    @Test
+    public void uploadPaths() throws IOException {
+        for (int size : FILE_SIZES) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            File file = mFolder.newFile("image-" + size + ".bin");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(data);
+            }
+
+            for (Path path : Path.values()) {
+                UploadServer server = new UploadServer();
+                SimulatedDevice device = new SimulatedDevice(server);
+                device.setLatencyMs(LATENCY_MS);
+                device.setOutputChannel(path == Path.TransferTo);
+                MpiClient client = new MpiClient(device, new MpiEvents());
+                client.openSession();
+
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                boolean ok = upload(client, path, file);
+                long nanos = System.nanoTime() - start;
+                long allocated = allocatedBytes() - allocatedBefore;
+                client.closeSession();
+
+                report(path, size, nanos, allocated);
+                assertThat(ok, is(true));
+                assertThat(server.mFile, is(equalTo(data)));
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class StreamBinaryFileTest {
+
+    /** A PED that puts together the file streamed to it */
+    static final class UploadServer implements SimulatedDevice.StreamHandler {
+        byte[] mFile = new byte[0];
+        int mStreams;
+        private byte[] mPendingStream;
+
+        static int getStreamOffset(@NonNull byte[] command) {
+            // Stream_Offset, dfa301, is always 3 bytes
+            for (int i = 5; i + 6 < command.length; i++) {
+                if (command[i] == (byte) 0xDF && command[i + 1] == (byte) 0xA3
+                        && command[i + 2] == 0x01 && command[i + 3] == 0x03) {
+                    return ((command[i + 4] & 0xFF) << 16)
+                            | ((command[i + 5] & 0xFF) << 8)
+                            | (command[i + 6] & 0xFF);
+                }
+            }
+            throw new AssertionError("no Stream_Offset");
+        }
+
+        @Override
+        public void handleStream(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] data) {
+            mPendingStream = data;
+        }
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            CommandType type = CommandType.valueOf(command[0], command[1]);
+            if (type == CommandType.Select_File) {
+                mFile = new byte[0];
+                return SimulatedDevice.response(
+                        TLVParser.encode(Description.Response_Data,
+                                TLVParser.encode(Description.File_Size, new byte[4])),
+                        SimulatedDevice.SW_OK);
+            } else if (type == CommandType.Stream_Binary) {
+                int offset = getStreamOffset(command);
+                byte[] data = mPendingStream;
+                if (data == null || offset != mFile.length) {
+                    return new byte[]{(byte) 0x9F, (byte) 0x20};
+                }
+                mPendingStream = null;
+                mFile = Arrays.copyOf(mFile, offset + data.length);
+                System.arraycopy(data, 0, mFile, offset, data.length);
+                mStreams++;
+            }
+            return SimulatedDevice.SW_OK;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private UploadServer mServer;
+    private SimulatedDevice mDevice;
+    private MpiClient mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new UploadServer();
+        mDevice = new SimulatedDevice(mServer);
+        mClient = new MpiClient(mDevice, new MpiEvents());
+        mClient.openSession();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.closeSession();
+    }
+
+    private File makeFile(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = mFolder.newFile("image-" + size + ".bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    private static byte[] contents(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void uploadsFileInMappedSlices() throws Exception {
+        // setup
+        File file = makeFile(300 * 1024);
+
+        // execute
+        boolean ok = StreamBinaryFile.streamBinaryFile(
+                mClient, InterfaceType.MPI, "image.bin", file, null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(mServer.mFile, is(equalTo(contents(file))));
+        assertThat(mServer.mStreams, is(3));
+        assertThat(mDevice.getChannelBytes(), is(0L));
+    }
+
+    @Test
+    public void uploadsFileWithTransferTo() throws Exception {
+        // setup
+        File file = makeFile(200 * 1024);
+        mDevice.setOutputChannel(true);
+
+        // execute
+        boolean ok = StreamBinaryFile.streamBinaryFile(
+                mClient, InterfaceType.MPI, "image.bin", file, null);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(mServer.mFile, is(equalTo(contents(file))));
+        assertThat(mDevice.getChannelBytes(), is(file.length()));
+    }
+
+    @Test
+    public void fileInputStreamSentFromItsPosition() throws Exception {
+        // setup
+        File file = makeFile(10000);
+        mDevice.setOutputChannel(true);
+        FileInputStream in = new FileInputStream(file);
+        assertThat(in.skip(1000L), is(1000L));
+
+        // execute
+        boolean ok = StreamBinaryFile.streamBinaryFile(
+                mClient, InterfaceType.MPI, "image.bin", in, null);
+
+        // verify
+        assertThat(ok, is(true));
+        byte[] expected = Arrays.copyOfRange(contents(file), 1000, 10000);
+        assertThat(mServer.mFile, is(equalTo(expected)));
+        assertThat(mDevice.getChannelBytes(), is(9000L));
+    }
+
+    @Test
+    public void streamPastEndOfFileSendsNothing() throws Exception {
+        // setup
+        File file = makeFile(1000);
+
+        // execute
+        try (FileInputStream in = new FileInputStream(file)) {
+            mClient.streamBinary(InterfaceType.MPI, false, in.getChannel(), 500L, 0, 1000, 100);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ignore) {
+        }
+
+        // verify
+        assertThat(mDevice.getCommandsHandled(), is(0));
+        boolean ok = StreamBinaryFile.streamBinaryFile(
+                mClient, InterfaceType.MPI, "image.bin", file, null);
+        assertThat(ok, is(true));
+        assertThat(mServer.mFile, is(equalTo(contents(file))));
+    }
+
+    @Test
+    public void missingFileFails() throws Exception {
+        // setup
+        File file = new File(mFolder.getRoot(), "missing.bin");
+
+        // execute
+        boolean ok = StreamBinaryFile.streamBinaryFile(
+                mClient, InterfaceType.MPI, "image.bin", file, null);
+
+        // verify
+        assertThat(ok, is(false));
+        assertThat(mDevice.getCommandsHandled(), is(0));
+    }
+}
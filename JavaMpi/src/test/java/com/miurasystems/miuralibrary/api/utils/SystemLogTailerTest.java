@@ -0,0 +1,236 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.api.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.api.objects.LogRecord;
+import com.miurasystems.miuralibrary.comms.SimulatedDevice;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SystemLogTailerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** A PED with a system log that grows */
+    private static final class LogDevice implements SimulatedDevice.CommandHandler {
+        volatile byte[] mLog = new byte[0];
+        volatile int mBytesRead;
+
+        void append(String text) {
+            byte[] more = text.getBytes(UTF_8);
+            byte[] log = Arrays.copyOf(mLog, mLog.length + more.length);
+            System.arraycopy(more, 0, log, mLog.length, more.length);
+            mLog = log;
+        }
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            CommandType type = CommandType.valueOf(command[0], command[1]);
+            if (type == CommandType.Select_File) {
+                int size = mLog.length;
+                byte[] sizeBytes = {0, (byte) (size >> 16), (byte) (size >> 8), (byte) size};
+                return SimulatedDevice.response(
+                        TLVParser.encode(Description.Response_Data,
+                                TLVParser.encode(Description.File_Size, sizeBytes)),
+                        SimulatedDevice.SW_OK);
+            }
+            if (type != CommandType.Read_Binary) {
+                return SimulatedDevice.SW_OK;
+            }
+            int p1 = command[2] & 0xFF;
+            int offset = ((p1 & 0x7F) << 8) | (command[3] & 0xFF);
+            int le = command[command.length - 1] & 0xFF;
+            byte[] data = Arrays.copyOfRange(mLog, offset, Math.min(offset + le, mLog.length));
+            mBytesRead += data.length;
+            return SimulatedDevice.response(data, SimulatedDevice.SW_OK);
+        }
+    }
+
+    /** Remembers what it's told */
+    private static final class Collector implements SystemLogTailer.Listener {
+        final List<String> mLines = new ArrayList<>();
+        final List<Long> mOffsets = new ArrayList<>();
+        final List<Long> mTruncations = new ArrayList<>();
+
+        @Override
+        public void onRecord(@NonNull String deviceId, @NonNull LogRecord record) {
+            mLines.add(deviceId + ":" + record.getText());
+            mOffsets.add(record.getOffset());
+        }
+
+        @Override
+        public void onTruncated(@NonNull String deviceId, long previousOffset) {
+            mTruncations.add(previousOffset);
+        }
+    }
+
+    private LogDevice mDevice;
+    private MpiClient mClient;
+    private SystemLogTailer mTailer;
+    private Collector mCollector;
+
+    @Before
+    public void setUp() throws IOException {
+        mDevice = new LogDevice();
+        mClient = new MpiClient(new SimulatedDevice(mDevice), new MpiEvents());
+        mClient.openSession();
+        mTailer = new SystemLogTailer();
+        mCollector = new Collector();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.closeSession();
+    }
+
+    private int poll() {
+        return mTailer.poll(mClient, InterfaceType.MPI, "ped", mCollector);
+    }
+
+    @Test
+    public void emitsCompleteLinesOnly() {
+        // setup
+        mDevice.append("boot\r\nready\nhalf a li");
+
+        // execute
+        int read = poll();
+
+        // verify
+        assertThat(read, is(21));
+        assertThat(mCollector.mLines, contains("ped:boot", "ped:ready"));
+        assertThat(mCollector.mOffsets, contains(0L, 6L));
+        assertThat(mTailer.getOffset("ped"), is(21L));
+    }
+
+    @Test
+    public void readsOnlyNewBytes() {
+        // setup
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            big.append("line ").append(i).append('\n');
+        }
+        mDevice.append(big.toString());
+        poll();
+        int firstRead = mDevice.mBytesRead;
+        mCollector.mLines.clear();
+        mDevice.append("ne\nnext\n");
+
+        // execute
+        int read = poll();
+
+        // verify
+        assertThat(read, is(8));
+        assertThat(mDevice.mBytesRead - firstRead,
+                is(lessThanOrEqualTo(8 + SystemLogTailer.FINGERPRINT_SIZE)));
+        assertThat(mCollector.mLines, contains("ped:ne", "ped:next"));
+        assertThat(mCollector.mTruncations, is(empty()));
+    }
+
+    @Test
+    public void partialLineFinishedByNextPoll() {
+        // setup
+        mDevice.append("first\nsec");
+        poll();
+
+        // execute
+        mDevice.append("ond\n");
+        poll();
+
+        // verify
+        assertThat(mCollector.mLines, contains("ped:first", "ped:second"));
+        assertThat(mCollector.mOffsets, contains(0L, 6L));
+    }
+
+    @Test
+    public void unchangedLogReadsNothing() {
+        // setup
+        mDevice.append("one\n");
+        poll();
+        int bytesRead = mDevice.mBytesRead;
+
+        // execute
+        int read = poll();
+
+        // verify
+        assertThat(read, is(0));
+        assertThat(mDevice.mBytesRead, is(bytesRead));
+    }
+
+    @Test
+    public void shorterLogReadFromStart() {
+        // setup
+        mDevice.append("old one\nold two\nold thr");
+        poll();
+        mDevice.mLog = new byte[0];
+        mDevice.append("new\n");
+        mCollector.mLines.clear();
+
+        // execute
+        int read = poll();
+
+        // verify
+        assertThat(read, is(4));
+        assertThat(mCollector.mTruncations, contains(23L));
+        assertThat(mCollector.mLines, contains("ped:old thr", "ped:new"));
+    }
+
+    @Test
+    public void replacedLogReadFromStart() {
+        // setup
+        mDevice.append("old one\nold two\n");
+        poll();
+        mDevice.mLog = new byte[0];
+        mDevice.append("a different, longer log\n");
+        mCollector.mLines.clear();
+
+        // execute
+        int read = poll();
+
+        // verify
+        assertThat(read, is(24));
+        assertThat(mCollector.mTruncations, contains(16L));
+        assertThat(mCollector.mLines, contains("ped:a different, longer log"));
+        assertThat(mTailer.getOffset("ped"), is(24L));
+    }
+
+    @Test
+    public void devicesTrackedSeparately() {
+        // setup
+        mDevice.append("one\n");
+        mTailer.poll(mClient, InterfaceType.MPI, "a", mCollector);
+        mDevice.append("two\n");
+
+        // execute
+        mTailer.poll(mClient, InterfaceType.MPI, "b", mCollector);
+        mTailer.poll(mClient, InterfaceType.MPI, "a", mCollector);
+
+        // verify
+        assertThat(mCollector.mLines, contains("a:one", "b:one", "b:two", "a:two"));
+        assertThat(mTailer.getOffset("a"), is(equalTo(mTailer.getOffset("b"))));
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.comms;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.enums.BacklightSettings;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.SelectFileMode;
+import com.miurasystems.miuralibrary.enums.StatusSettings;
+import com.miurasystems.miuralibrary.events.MpiEvents;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class CommandTimeoutsTest {
+
+    private static MpiProtocolSession openSession(SimulatedDevice device) throws IOException {
+        return device.openSession(
+                new UnsolicitedResponseCallback() {
+                    @Override
+                    public void handle(@NonNull PollerMessage msg) {
+                    }
+                },
+                new ConnectionStateCallback() {
+                    @Override
+                    public void handle(boolean connected) {
+                    }
+                });
+    }
+
+    /** Answers everything except battery status */
+    private static final class NoBatteryHandler implements SimulatedDevice.CommandHandler {
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            if (command[0] == (byte) 0xD0 && command[1] == (byte) 0x62) {
+                return null;
+            }
+            return SimulatedDevice.SW_OK;
+        }
+    }
+
+    /** Takes a while to hash the file for an MD5 SELECT FILE */
+    private static final class SlowMd5Handler implements SimulatedDevice.CommandHandler {
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            if (CommandTimeouts.isMd5Select(command)) {
+                try {
+                    Thread.sleep(300L);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            return SimulatedDevice.SW_OK;
+        }
+    }
+
+    /** Like a real device, CARD STATUS only answers with unsolicited messages */
+    private static final class NoCardStatusResponseHandler
+            implements SimulatedDevice.CommandHandler {
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            if (CommandType.valueOf(command[0], command[1]) == CommandType.Card_Status) {
+                return null;
+            }
+            return SimulatedDevice.SW_OK;
+        }
+    }
+
+    @Test
+    public void defaults() {
+        // setup
+        CommandTimeouts timeouts = new CommandTimeouts();
+
+        // verify
+        assertThat(timeouts.getTimeoutMillis(CommandType.Start_Transaction),
+                is(CommandTimeouts.UNBOUNDED));
+        assertThat(timeouts.getTimeoutMillis(CommandType.Get_Numeric_Data),
+                is(CommandTimeouts.UNBOUNDED));
+        assertThat(timeouts.getTimeoutMillis(CommandType.Battery_Status),
+                is(timeouts.getInitialMillis()));
+        assertThat(timeouts.getTimeoutMillis(null), is(CommandTimeouts.UNBOUNDED));
+        assertThat(timeouts.getP99Millis(CommandType.Battery_Status), is(-1L));
+    }
+
+    @Test
+    public void adaptiveTimeoutFollowsP99() {
+        // setup
+        CommandTimeouts timeouts = new CommandTimeouts();
+        timeouts.setAdaptiveLimits(30000L, 100L, 5000L, 4);
+
+        // execute
+        for (int i = 0; i < 99; i++) {
+            timeouts.recordLatency(CommandType.Battery_Status, TimeUnit.MILLISECONDS.toNanos(50L));
+        }
+        timeouts.recordLatency(CommandType.Battery_Status, TimeUnit.MILLISECONDS.toNanos(300L));
+
+        // verify
+        assertThat(timeouts.getP99Millis(CommandType.Battery_Status), is(50L));
+        assertThat(timeouts.getTimeoutMillis(CommandType.Battery_Status), is(200L));
+
+        // one slow response in every 50 pushes the p99 up
+        timeouts.recordLatency(CommandType.Battery_Status, TimeUnit.MILLISECONDS.toNanos(300L));
+        assertThat(timeouts.getP99Millis(CommandType.Battery_Status), is(300L));
+        assertThat(timeouts.getTimeoutMillis(CommandType.Battery_Status), is(1200L));
+    }
+
+    @Test
+    public void adaptiveTimeoutIsClamped() {
+        // setup
+        CommandTimeouts timeouts = new CommandTimeouts();
+        timeouts.setAdaptiveLimits(30000L, 2000L, 5000L, 4);
+
+        // execute
+        for (int i = 0; i < CommandTimeouts.MIN_SAMPLES; i++) {
+            timeouts.recordLatency(CommandType.Display_Text, TimeUnit.MILLISECONDS.toNanos(5L));
+            timeouts.recordLatency(CommandType.Battery_Status, TimeUnit.SECONDS.toNanos(10L));
+        }
+
+        // verify
+        assertThat(timeouts.getTimeoutMillis(CommandType.Display_Text), is(2000L));
+        assertThat(timeouts.getTimeoutMillis(CommandType.Battery_Status), is(5000L));
+    }
+
+    @Test
+    public void fixedAndAdaptiveOverrides() {
+        // setup
+        CommandTimeouts timeouts = new CommandTimeouts();
+
+        // execute
+        timeouts.setFixed(CommandType.Battery_Status, 750L);
+        timeouts.recordLatency(CommandType.Battery_Status, TimeUnit.SECONDS.toNanos(1L));
+        timeouts.setAdaptive(CommandType.Start_Transaction);
+
+        // verify
+        assertThat(timeouts.getTimeoutMillis(CommandType.Battery_Status), is(750L));
+        assertThat(timeouts.getP99Millis(CommandType.Battery_Status), is(-1L));
+        assertThat(timeouts.getTimeoutMillis(CommandType.Start_Transaction),
+                is(timeouts.getInitialMillis()));
+    }
+
+    @Test
+    public void md5SelectIsRecognised() {
+        // setup
+        byte[] name = {'a'};
+        CommandApdu md5 = new CommandApdu(CommandType.Select_File,
+                SelectFileMode.AppendWithMD5Response.getValue(), 0, name);
+        CommandApdu truncate = new CommandApdu(CommandType.Select_File,
+                SelectFileMode.Truncate.getValue(), 0, name);
+
+        // execute
+        boolean isMd5 = CommandTimeouts.isMd5Select(md5.getBytes());
+        boolean isTruncate = CommandTimeouts.isMd5Select(truncate.getBytes());
+
+        // verify
+        assertThat(isMd5, is(true));
+        assertThat(isTruncate, is(false));
+    }
+
+    @Test
+    public void md5SelectUsesItsOwnTimeout() throws Exception {
+        // setup
+        SimulatedDevice device = new SimulatedDevice(new SlowMd5Handler());
+        CommandTimeouts timeouts = device.getCommandTimeouts();
+        timeouts.setAdaptiveLimits(100L, 100L, 100L, 4);
+        MpiProtocolSession session = openSession(device);
+        CommandApdu command = new CommandApdu(CommandType.Select_File,
+                SelectFileMode.AppendWithMD5Response.getValue(), 0, new byte[]{'a'});
+
+        // execute
+        session.sendCommandAPDU(InterfaceType.MPI, command);
+        ResponseMessage rm = session.receiveResponse(InterfaceType.MPI);
+
+        // verify
+        assertThat(rm.isSuccess(), is(true));
+        assertThat(session.isActive(), is(true));
+        assertThat(timeouts.getTimeoutMillis(CommandType.Select_File), is(100L));
+        assertThat(timeouts.getMd5SelectMillis(), is(greaterThanOrEqualTo(60000L)));
+        device.closeSession();
+    }
+
+    @Test
+    public void sessionRecordsLatency() throws Exception {
+        // setup
+        SimulatedDevice device = new SimulatedDevice(new NoBatteryHandler());
+        MpiProtocolSession session = openSession(device);
+
+        // execute
+        for (int i = 0; i < CommandTimeouts.MIN_SAMPLES; i++) {
+            session.sendCommandAPDU(InterfaceType.MPI, new CommandApdu(CommandType.Display_Text));
+            session.receiveResponse(InterfaceType.MPI);
+        }
+        device.closeSession();
+
+        // verify
+        CommandTimeouts timeouts = device.getCommandTimeouts();
+        assertThat(timeouts.getP99Millis(CommandType.Display_Text), is(greaterThanOrEqualTo(0L)));
+        assertThat(timeouts.getP99Millis(CommandType.Battery_Status), is(-1L));
+    }
+
+    @Test
+    public void unansweredCommandTimesOutAndClosesSession() throws Exception {
+        // setup
+        SimulatedDevice device = new SimulatedDevice(new NoBatteryHandler());
+        device.getCommandTimeouts().setFixed(CommandType.Battery_Status, 200L);
+        MpiProtocolSession session = openSession(device);
+        session.sendCommandAPDU(InterfaceType.MPI, new CommandApdu(CommandType.Battery_Status));
+
+        // execute
+        long start = System.nanoTime();
+        try {
+            session.receiveResponse(InterfaceType.MPI);
+            fail();
+        } catch (IOException e) {
+            // verify
+            assertThat(e.getMessage(), containsString("Battery_Status timed out"));
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat(elapsedMs, is(lessThan(5000L)));
+        assertThat(session.isActive(), is(false));
+    }
+
+    @Test
+    public void streamTimeoutStartsOnceStreamIsWritten() throws Exception {
+        // setup
+        SimulatedDevice device = new SimulatedDevice(new NoBatteryHandler());
+        device.setLatencyMs(50L);
+        device.setStreamWriteMillis(400L);
+        device.getCommandTimeouts().setFixed(CommandType.Stream_Binary, 200L);
+        MpiClient client = new MpiClient(device, new MpiEvents());
+        client.openSession();
+        byte[] data = new byte[1024];
+
+        // execute
+        boolean ok = client.streamBinary(InterfaceType.MPI, false, data, 0, data.length, 100);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(device.isConnected(), is(true));
+        client.closeSession();
+    }
+
+    @Test
+    public void sendOnlyCommandDoesNotTimeOutNextCommand() throws Exception {
+        // setup
+        SimulatedDevice device = new SimulatedDevice(new NoCardStatusResponseHandler());
+        device.setLatencyMs(20L);
+        device.getCommandTimeouts().setFixed(CommandType.Card_Status, 200L);
+        MpiClient client = new MpiClient(device, new MpiEvents());
+        client.openSession();
+        client.cardStatus(InterfaceType.MPI, true, false, true, true, false);
+        Thread.sleep(500L);
+
+        // execute
+        boolean ok = client.keyboardStatus(
+                InterfaceType.MPI, StatusSettings.Enable, BacklightSettings.Enable);
+
+        // verify
+        assertThat(ok, is(true));
+        assertThat(device.isConnected(), is(true));
+        CommandTimeouts timeouts = device.getCommandTimeouts();
+        assertThat(timeouts.getP99Millis(CommandType.Card_Status), is(-1L));
+        assertThat(timeouts.getP99Millis(CommandType.Keyboard_Status),
+                is(lessThan(200L)));
+        client.closeSession();
+    }
+}
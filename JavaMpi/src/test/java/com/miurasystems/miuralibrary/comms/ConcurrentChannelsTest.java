@@ -0,0 +1,221 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.comms;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentChannelsTest {
+
+    private SimulatedDevice mDevice;
+
+    @After
+    public void tearDown() {
+        if (mDevice != null) {
+            mDevice.closeSession();
+        }
+    }
+
+    private static MpiProtocolSession openSession(SimulatedDevice device) throws IOException {
+        return device.openSession(
+                new UnsolicitedResponseCallback() {
+                    @Override
+                    public void handle(@NonNull PollerMessage msg) {
+                    }
+                },
+                new ConnectionStateCallback() {
+                    @Override
+                    public void handle(boolean connected) {
+                    }
+                });
+    }
+
+    private static byte[] filled(int length, char c) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) c);
+        return bytes;
+    }
+
+    /**
+     * Holds RPI commands until an MPI Get_Configuration, then answers both at once with
+     * chained responses whose packets alternate.
+     */
+    private static final class PosHandler implements SimulatedDevice.CommandHandler {
+        static final byte[] RPI_BODY = filled(600, 'R');
+        static final byte[] MPI_BODY = filled(300, 'M');
+
+        final CountDownLatch mRpiCommandSeen = new CountDownLatch(1);
+
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            CommandType type = CommandType.valueOf(command[0], command[1]);
+            if (nad == InterfaceType.RPI) {
+                mRpiCommandSeen.countDown();
+                return null;
+            }
+            if (type == CommandType.Get_Configuration) {
+                device.sendResponsesInterleaved(
+                        InterfaceType.RPI, SimulatedDevice.response(RPI_BODY, SimulatedDevice.SW_OK),
+                        InterfaceType.MPI, SimulatedDevice.response(MPI_BODY, SimulatedDevice.SW_OK));
+                return null;
+            }
+            return SimulatedDevice.SW_OK;
+        }
+    }
+
+    /** Returns each command as the response's body */
+    private static final class EchoHandler implements SimulatedDevice.CommandHandler {
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            return SimulatedDevice.response(command, SimulatedDevice.SW_OK);
+        }
+    }
+
+    /**
+     * Sends commands to one channel and checks each response echoes its command.
+     */
+    private static final class EchoClient implements Runnable {
+        private final MpiProtocolSession mSession;
+        private final InterfaceType mNad;
+        private final int mNumCommands;
+        private final CountDownLatch mStart;
+        final AtomicReference<Throwable> mError = new AtomicReference<>();
+
+        EchoClient(MpiProtocolSession session, InterfaceType nad, int numCommands,
+                CountDownLatch start) {
+            mSession = session;
+            mNad = nad;
+            mNumCommands = numCommands;
+            mStart = start;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mStart.await();
+                for (int i = 0; i < mNumCommands; i++) {
+                    byte[] data = filled(150 + (i % 100), (char) ('a' + (i % 26)));
+                    data[0] = (byte) mNad.getInterfaceType();
+                    CommandApdu apdu = new CommandApdu(CommandType.Display_Text, data);
+                    mSession.sendCommandAPDU(mNad, apdu);
+                    ResponseMessage rm = mSession.receiveResponse(mNad);
+                    if (!Arrays.equals(rm.getBody(), apdu.getBytes())) {
+                        throw new AssertionError(mNad + " response " + i + " doesn't match");
+                    }
+                }
+            } catch (Throwable t) {
+                mError.set(t);
+            }
+        }
+    }
+
+    @Test
+    public void mpiCommandsRunWhilstRpiCommandOutstanding() throws Exception {
+        // setup
+        final PosHandler handler = new PosHandler();
+        mDevice = new SimulatedDevice(handler);
+        final MpiProtocolSession session = openSession(mDevice);
+        final AtomicReference<ResponseMessage> rpiResponse = new AtomicReference<>();
+        final AtomicReference<Throwable> rpiError = new AtomicReference<>();
+        Thread rpiThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    session.sendCommandAPDU(
+                            InterfaceType.RPI, new CommandApdu(CommandType.Print_Text));
+                    rpiResponse.set(session.receiveResponse(InterfaceType.RPI));
+                } catch (IOException | InterruptedException e) {
+                    rpiError.set(e);
+                }
+            }
+        }, "ConcurrentChannelsTest-RPI");
+        rpiThread.start();
+        assertThat(handler.mRpiCommandSeen.await(5L, TimeUnit.SECONDS), is(true));
+
+        // execute
+        // The RPI thread is blocked waiting for its response whilst the MPI carries on
+        for (int i = 0; i < 3; i++) {
+            session.sendCommandAPDU(InterfaceType.MPI, new CommandApdu(CommandType.Display_Text));
+            ResponseMessage rm = session.receiveResponse(InterfaceType.MPI);
+            assertThat(rm.isSuccess(), is(true));
+        }
+        boolean rpiStillWaiting = rpiThread.isAlive();
+
+        // Both answered at once, MPI's chain finishes first
+        session.sendCommandAPDU(InterfaceType.MPI, new CommandApdu(CommandType.Get_Configuration));
+        ResponseMessage mpiResponse = session.receiveResponse(InterfaceType.MPI);
+        rpiThread.join(5000L);
+
+        // verify
+        assertThat(rpiStillWaiting, is(true));
+        assertThat(rpiError.get(), is(nullValue()));
+        assertThat(mpiResponse.getBody(), is(equalTo(PosHandler.MPI_BODY)));
+        assertThat(rpiResponse.get().getNodeAddress(), is(InterfaceType.RPI));
+        assertThat(rpiResponse.get().getBody(), is(equalTo(PosHandler.RPI_BODY)));
+        assertThat(session.isActive(), is(true));
+    }
+
+    @Test
+    public void chainedResponsesOnBothChannelsFromTwoThreads() throws Exception {
+        // setup
+        mDevice = new SimulatedDevice(new EchoHandler());
+        MpiProtocolSession session = openSession(mDevice);
+        CountDownLatch start = new CountDownLatch(1);
+        EchoClient mpi = new EchoClient(session, InterfaceType.MPI, 200, start);
+        EchoClient rpi = new EchoClient(session, InterfaceType.RPI, 200, start);
+        Thread mpiThread = new Thread(mpi, "ConcurrentChannelsTest-MPI");
+        Thread rpiThread = new Thread(rpi, "ConcurrentChannelsTest-RPI");
+        mpiThread.start();
+        rpiThread.start();
+
+        // execute
+        start.countDown();
+        mpiThread.join(10000L);
+        rpiThread.join(10000L);
+
+        // verify
+        assertThat(mpi.mError.get(), is(nullValue()));
+        assertThat(rpi.mError.get(), is(nullValue()));
+        assertThat(mDevice.getCommandsHandled(), is(400));
+        assertThat(session.isActive(), is(true));
+    }
+
+    @Test
+    public void receiveResponseIdIsCheckedPerChannel() throws Exception {
+        // setup
+        mDevice = new SimulatedDevice(new EchoHandler());
+        MpiProtocolSession session = openSession(mDevice);
+        int rpiId = session.sendCommandAPDU(
+                InterfaceType.RPI, new CommandApdu(CommandType.Print_Text));
+        int mpiId = session.sendCommandAPDU(
+                InterfaceType.MPI, new CommandApdu(CommandType.Display_Text));
+
+        // execute
+        ResponseMessage mpiResponse = session.receiveResponseId(InterfaceType.MPI, mpiId);
+        ResponseMessage rpiResponse = session.receiveResponseId(InterfaceType.RPI, rpiId);
+
+        // verify
+        assertThat(mpiResponse.getNodeAddress(), is(InterfaceType.MPI));
+        assertThat(rpiResponse.getNodeAddress(), is(InterfaceType.RPI));
+        assertThat(session.isActive(), is(true));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.comms;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.fail;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.CommandType;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.tlv.Description;
+import com.miurasystems.miuralibrary.tlv.TLVParser;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FlightRecorderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static List<FlightRecordDecoder.Record> dumpAndDecode(FlightRecorder recorder)
+            throws IOException {
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        recorder.dump(dump);
+        return FlightRecordDecoder.decode(new ByteArrayInputStream(dump.toByteArray()));
+    }
+
+    private static final class DeviceInfoHandler implements SimulatedDevice.CommandHandler {
+        @Override
+        public byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command) {
+            byte[] serial = TLVParser.encode(Description.Interface_Device_Serial_Number,
+                    "14432885".getBytes(Charset.forName("US-ASCII")));
+            return SimulatedDevice.response(
+                    TLVParser.encode(Description.Response_Data, serial), SimulatedDevice.SW_OK);
+        }
+    }
+
+    private static boolean isSingleDump(File[] files) {
+        return files.length == 1 && files[0].getName().endsWith(".bin");
+    }
+
+    @Test
+    public void ringKeepsNewestRecords() throws Exception {
+        // setup
+        FlightRecorder recorder = new FlightRecorder(3);
+        byte[] apdu = new byte[100];
+
+        // execute
+        for (int i = 0; i < 6; i++) {
+            apdu[0] = (byte) i;
+            recorder.packet(FlightRecorder.Kind.Command, InterfaceType.RPI, 0,
+                    apdu, 0, apdu.length, i);
+        }
+        List<FlightRecordDecoder.Record> records = dumpAndDecode(recorder);
+
+        // verify
+        assertThat(recorder.getCapacity(), is(4));
+        assertThat(recorder.getRecordCount(), is(6L));
+        assertThat(records.size(), is(4));
+        for (int i = 0; i < 4; i++) {
+            FlightRecordDecoder.Record record = records.get(i);
+            assertThat(record.kind, is(FlightRecorder.Kind.Command));
+            assertThat(record.getNodeAddress(), is(InterfaceType.RPI));
+            assertThat(record.id, is(i + 2));
+            assertThat(record.length, is(100));
+            assertThat(record.payload.length, is(FlightRecorder.MAX_PAYLOAD));
+            assertThat(record.payload[0], is((byte) (i + 2)));
+            assertThat(record.isTruncated(), is(true));
+        }
+    }
+
+    @Test
+    public void largeLengthsAreKept() throws Exception {
+        // setup
+        FlightRecorder recorder = new FlightRecorder(4);
+
+        // execute
+        recorder.stream(InterfaceType.MPI, 70000L);
+        recorder.stream(InterfaceType.MPI, 1L << 33);
+        List<FlightRecordDecoder.Record> records = dumpAndDecode(recorder);
+
+        // verify
+        assertThat(records.size(), is(2));
+        assertThat(records.get(0).kind, is(FlightRecorder.Kind.Stream));
+        assertThat(records.get(0).length, is(70000));
+        assertThat(records.get(1).length, is(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void dumpWhilstRecordingGivesWholeRecords() throws Exception {
+        // setup
+        final FlightRecorder recorder = new FlightRecorder(16);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] apdu = new byte[FlightRecorder.MAX_PAYLOAD];
+                for (int i = 0; !stop.get(); i++) {
+                    Arrays.fill(apdu, (byte) i);
+                    recorder.packet(FlightRecorder.Kind.Command, InterfaceType.MPI, 0,
+                            apdu, 0, apdu.length, i & 0xFF);
+                }
+            }
+        });
+        writer.start();
+
+        // execute
+        try {
+            for (int dump = 0; dump < 200; dump++) {
+                List<FlightRecordDecoder.Record> records = dumpAndDecode(recorder);
+
+                // verify
+                for (FlightRecordDecoder.Record record : records) {
+                    for (byte b : record.payload) {
+                        assertThat(b, is((byte) record.id));
+                    }
+                }
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void sessionTrafficIsRecordedAndRendered() throws Exception {
+        // setup
+        SimulatedDevice device = new SimulatedDevice(new DeviceInfoHandler());
+        MpiProtocolSession session = device.openSession(
+                new UnsolicitedResponseCallback() {
+                    @Override
+                    public void handle(@NonNull PollerMessage msg) {
+                    }
+                },
+                new ConnectionStateCallback() {
+                    @Override
+                    public void handle(boolean connected) {
+                    }
+                });
+
+        // execute
+        session.sendCommandAPDU(InterfaceType.MPI, new CommandApdu(CommandType.Reset_Device));
+        session.receiveResponse(InterfaceType.MPI);
+        device.getFlightRecorder().mark("done");
+        device.closeSession();
+
+        // verify
+        List<FlightRecordDecoder.Record> records = dumpAndDecode(device.getFlightRecorder());
+        assertThat(records.size(), is(6));
+        assertThat(records.get(0).getEvent(), is(FlightRecorder.Event.SessionOpened));
+        assertThat(records.get(1).kind, is(FlightRecorder.Kind.Command));
+        assertThat(records.get(1).id, is(0xD000));
+        assertThat(records.get(2).kind, is(FlightRecorder.Kind.Response));
+        assertThat(records.get(2).id, is(0x9000));
+        assertThat(records.get(3).getEvent(), is(FlightRecorder.Event.Mark));
+        assertThat(records.get(4).getEvent(), is(FlightRecorder.Event.SessionClosed));
+        assertThat(records.get(5).getEvent(), is(FlightRecorder.Event.PollerStopped));
+
+        StringBuilder text = new StringBuilder();
+        FlightRecordDecoder.render(records, text);
+        assertThat(text.toString(), containsString("MPI -> D0 00 Reset_Device"));
+        assertThat(text.toString(), containsString("MPI <- 9000"));
+        assertThat(text.toString(), containsString(
+                "9F1E Interface_Device_Serial_Number: 3134343332383835 \"14432885\""));
+        assertThat(text.toString(), containsString("** Mark: done"));
+    }
+
+    @Test
+    public void sessionErrorDumpsToFile() throws Exception {
+        // setup
+        SimulatedDevice device = new SimulatedDevice(new DeviceInfoHandler());
+        File directory = mFolder.newFolder();
+        device.getFlightRecorder().setDumpDirectory(directory);
+        MpiProtocolSession session = device.openSession(
+                new UnsolicitedResponseCallback() {
+                    @Override
+                    public void handle(@NonNull PollerMessage msg) {
+                    }
+                },
+                new ConnectionStateCallback() {
+                    @Override
+                    public void handle(boolean connected) {
+                    }
+                });
+
+        // execute
+        try {
+            // no command outstanding
+            session.receiveResponse(InterfaceType.MPI);
+            fail();
+        } catch (IOException ignore) {
+        }
+
+        // verify
+        // the dump is written in the background
+        File[] files = directory.listFiles();
+        for (int i = 0; i < 100 && files != null && !isSingleDump(files); i++) {
+            Thread.sleep(50L);
+            files = directory.listFiles();
+        }
+        assertThat(files, is(notNullValue()));
+        assertThat(files.length, is(1));
+        assertThat(files[0].getName(), endsWith("-session_error.bin"));
+
+        List<FlightRecordDecoder.Record> records;
+        InputStream stream = new FileInputStream(files[0]);
+        try {
+            records = FlightRecordDecoder.decode(stream);
+        } finally {
+            stream.close();
+        }
+        FlightRecordDecoder.Record last = records.get(records.size() - 1);
+        assertThat(last.getEvent(), is(FlightRecorder.Event.SessionError));
+        assertThat(new String(last.payload, "US-ASCII"),
+                startsWith("Trying to read unsolicited response"));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.comms;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HashedWheelTimerTest {
+
+    private HashedWheelTimer mTimer;
+
+    @Before
+    public void setUp() {
+        mTimer = new HashedWheelTimer("HashedWheelTimerTest", 5L, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @After
+    public void tearDown() {
+        mTimer.stop();
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void timeoutFiresAfterDelay() throws Exception {
+        // setup
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        // execute
+        HashedWheelTimer.Timeout timeout =
+                mTimer.newTimeout(countDown(fired), 50L, TimeUnit.MILLISECONDS);
+
+        // verify
+        assertThat(fired.await(5L, TimeUnit.SECONDS), is(true));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat(elapsedMs, is(greaterThanOrEqualTo(50L)));
+        assertThat(timeout.isExpired(), is(true));
+        assertThat(timeout.cancel(), is(false));
+        assertThat(mTimer.getFiredCount(), is(1L));
+        assertThat(mTimer.getPendingCount(), is(0L));
+    }
+
+    @Test
+    public void timeoutsLongerThanOneRevolution() throws Exception {
+        // setup
+        // 8 buckets * 5ms = 40ms per revolution
+        final AtomicInteger order = new AtomicInteger(0);
+        final int[] firedAt = new int[2];
+        final CountDownLatch fired = new CountDownLatch(2);
+
+        // execute
+        mTimer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                firedAt[0] = order.incrementAndGet();
+                fired.countDown();
+            }
+        }, 130L, TimeUnit.MILLISECONDS);
+        mTimer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                firedAt[1] = order.incrementAndGet();
+                fired.countDown();
+            }
+        }, 10L, TimeUnit.MILLISECONDS);
+
+        // verify
+        assertThat(fired.await(5L, TimeUnit.SECONDS), is(true));
+        assertThat(firedAt[1], is(1));
+        assertThat(firedAt[0], is(2));
+    }
+
+    @Test
+    public void cancelledTimeoutNeverFires() throws Exception {
+        // setup
+        CountDownLatch cancelledFired = new CountDownLatch(1);
+        CountDownLatch otherFired = new CountDownLatch(1);
+        HashedWheelTimer.Timeout cancelled =
+                mTimer.newTimeout(countDown(cancelledFired), 20L, TimeUnit.MILLISECONDS);
+
+        // execute
+        boolean result = cancelled.cancel();
+        mTimer.newTimeout(countDown(otherFired), 60L, TimeUnit.MILLISECONDS);
+
+        // verify
+        assertThat(result, is(true));
+        assertThat(cancelled.cancel(), is(false));
+        assertThat(cancelled.isCancelled(), is(true));
+        assertThat(otherFired.await(5L, TimeUnit.SECONDS), is(true));
+        assertThat(cancelledFired.getCount(), is(1L));
+        assertThat(mTimer.getCancelledCount(), is(1L));
+        assertThat(mTimer.getFiredCount(), is(1L));
+    }
+
+    @Test
+    public void lagIsMeasured() throws Exception {
+        // setup
+        final CountDownLatch fired = new CountDownLatch(2);
+
+        // execute
+        // The first task blocks the timer thread, so the second fires late
+        mTimer.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException ignore) {
+                }
+                fired.countDown();
+            }
+        }, 10L, TimeUnit.MILLISECONDS);
+        mTimer.newTimeout(countDown(fired), 20L, TimeUnit.MILLISECONDS);
+
+        // verify
+        assertThat(fired.await(5L, TimeUnit.SECONDS), is(true));
+        assertThat(mTimer.getMaxLagMicros(), is(greaterThanOrEqualTo(50000L)));
+        assertThat(mTimer.getMeanLagMicros(), is(greaterThanOrEqualTo(25000L)));
+    }
+
+    @Test
+    public void stoppedTimerRejectsTimeouts() {
+        // setup
+        mTimer.stop();
+
+        // execute
+        try {
+            mTimer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 1L, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (IllegalStateException ignore) {
+            // verify
+        }
+    }
+}
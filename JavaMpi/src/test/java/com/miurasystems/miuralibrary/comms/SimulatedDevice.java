@@ -0,0 +1,650 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.comms;
+
+import static com.miurasystems.miuralibrary.tlv.BinaryUtil.ubyteToInt;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process Miura device at the end of a simulated link.
+ *
+ * <p>Commands written by the SDK are de-packetised and handed to a {@link CommandHandler}
+ * on the device's own thread, one at a time, just like a real device.
+ * The handler's response is packetised (chained if required) and sent back.
+ *
+ * <p>The link has a configurable one-way latency and bandwidth, applied in each direction,
+ * so the cost of round trips and the benefit of pipelining can be measured.
+ */
+public final class SimulatedDevice extends Connector {
+
+    /**
+     * Handles commands sent to the simulated device.
+     */
+    public interface CommandHandler {
+
+        /**
+         * Handle a single command.
+         *
+         * @param device  The device the command was sent to. Can be used to send
+         *                unsolicited messages.
+         * @param nad     Which NAD the command was sent to
+         * @param command The command APDU, including the CLA/INS/P1/P2 header
+         * @return The response APDU, including the status bytes. Or null for no response.
+         */
+        @Nullable
+        byte[] handle(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] command);
+    }
+
+    /**
+     * A CommandHandler that also receives the binary streams sent after STREAM BINARY commands.
+     */
+    public interface StreamHandler extends CommandHandler {
+
+        /**
+         * Handle the binary stream of a STREAM BINARY command. Called just before the command
+         * itself is given to {@link #handle}.
+         *
+         * @param device The device the stream was sent to
+         * @param nad    Which NAD the stream was sent to
+         * @param data   The stream
+         */
+        void handleStream(@NonNull SimulatedDevice device, @NonNull InterfaceType nad,
+                @NonNull byte[] data);
+    }
+
+    /** The "success" status bytes */
+    public static final byte[] SW_OK = {(byte) 0x90, (byte) 0x00};
+
+    /** Unsolicited PCB bit */
+    private static final int PCB_UNSOLICITED = 0x40;
+
+    /** Chained PCB bit */
+    private static final int PCB_CHAINED = 0x01;
+
+    @NonNull
+    private final CommandHandler mHandler;
+
+    private volatile long mLatencyNanos;
+    private volatile long mBytesPerSecond;
+    private volatile long mProcessingNanos;
+    private volatile long mStreamWriteNanos;
+
+    private volatile boolean mOutputChannel;
+
+    @NonNull
+    private final AtomicInteger mCommandsHandled = new AtomicInteger(0);
+    @NonNull
+    private final AtomicLong mChannelBytes = new AtomicLong(0L);
+
+    @Nullable
+    private Link mLink;
+
+    /**
+     * Create a new simulated device with an instant link.
+     *
+     * @param handler The handler for commands.
+     */
+    public SimulatedDevice(@NonNull CommandHandler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * @param latencyMs One way link latency, in milliseconds
+     */
+    public void setLatencyMs(long latencyMs) {
+        mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+    }
+
+    /**
+     * @param bytesPerSecond Link bandwidth in each direction. 0 for unlimited.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param processingMicros How long the device spends on each command, in microseconds
+     */
+    public void setProcessingMicros(long processingMicros) {
+        mProcessingNanos = TimeUnit.MICROSECONDS.toNanos(processingMicros);
+    }
+
+    /**
+     * @param streamWriteMillis How long writing each binary stream blocks the SDK, as writing a
+     *                          large stream to a slow link would, in milliseconds
+     */
+    public void setStreamWriteMillis(long streamWriteMillis) {
+        mStreamWriteNanos = TimeUnit.MILLISECONDS.toNanos(streamWriteMillis);
+    }
+
+    /**
+     * @param outputChannel true to give the SDK an {@link #getOutputChannel() output channel}
+     */
+    public void setOutputChannel(boolean outputChannel) {
+        mOutputChannel = outputChannel;
+    }
+
+    /**
+     * @return The number of bytes the SDK has written to the output channel
+     */
+    public long getChannelBytes() {
+        return mChannelBytes.get();
+    }
+
+    /**
+     * @return The number of commands the handler has been given
+     */
+    public int getCommandsHandled() {
+        return mCommandsHandled.get();
+    }
+
+    /**
+     * Send an unsolicited message to the host.
+     *
+     * @param nad  Which NAD the message is from
+     * @param apdu The response APDU, including status bytes
+     */
+    public void sendUnsolicited(@NonNull InterfaceType nad, @NonNull byte[] apdu) {
+        Link link = mLink;
+        if (link != null) {
+            link.sendToHost(nad, PCB_UNSOLICITED, apdu);
+        }
+    }
+
+    /**
+     * Send a solicited response to the host, outside of the normal handler return.
+     *
+     * <p>e.g. for a handler to answer an earlier command it returned null for.</p>
+     *
+     * @param nad  Which NAD the response is from
+     * @param apdu The response APDU, including status bytes
+     */
+    public void sendResponse(@NonNull InterfaceType nad, @NonNull byte[] apdu) {
+        Link link = mLink;
+        if (link != null) {
+            link.sendToHost(nad, 0, apdu);
+        }
+    }
+
+    /**
+     * Send two solicited responses from different NADs, alternating their chained packets.
+     *
+     * <p>e.g. for a POS whose MPI and RPI answer at the same time.</p>
+     *
+     * @param nadA  Which NAD the first response is from. Its first packet is sent first.
+     * @param apduA The first response APDU, including status bytes
+     * @param nadB  Which NAD the second response is from
+     * @param apduB The second response APDU, including status bytes
+     */
+    public void sendResponsesInterleaved(
+            @NonNull InterfaceType nadA, @NonNull byte[] apduA,
+            @NonNull InterfaceType nadB, @NonNull byte[] apduB) {
+        Link link = mLink;
+        if (link == null) {
+            return;
+        }
+        int offsetA = 0;
+        int offsetB = 0;
+        while (offsetA < apduA.length || offsetB < apduB.length) {
+            if (offsetA < apduA.length) {
+                offsetA = link.sendPacketToHost(nadA, 0, apduA, offsetA);
+            }
+            if (offsetB < apduB.length) {
+                offsetB = link.sendPacketToHost(nadB, 0, apduB, offsetB);
+            }
+        }
+    }
+
+    /**
+     * Break the link, as if the device had been unplugged.
+     *
+     * <p>
+     * Whatever's in flight is lost, and the host sees the connection close. The device's
+     * handler is kept, so a new session sees the same device.
+     * </p>
+     */
+    public void dropLink() {
+        Link link = mLink;
+        if (link != null) {
+            link.close();
+        }
+    }
+
+    /**
+     * Join an apdu body and status bytes
+     *
+     * @param body The response body
+     * @param sw   The status bytes
+     * @return body || sw
+     */
+    @NonNull
+    public static byte[] response(@NonNull byte[] body, @NonNull byte[] sw) {
+        byte[] apdu = Arrays.copyOf(body, body.length + sw.length);
+        System.arraycopy(sw, 0, apdu, body.length, sw.length);
+        return apdu;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mLink != null && !mLink.mClosed;
+    }
+
+    @Override
+    protected synchronized void connect() throws IOException {
+        mLink = new Link();
+        mLink.start();
+    }
+
+    @Override
+    protected synchronized void disconnect(@NonNull MpiProtocolSession closingSession)
+            throws IOException {
+        if (mLink != null) {
+            mLink.close();
+        }
+    }
+
+    @NonNull
+    @Override
+    protected synchronized InputStream getInputStream() throws IOException {
+        if (mLink == null) throw new IOException("Not connected");
+        return mLink.mToHost;
+    }
+
+    @NonNull
+    @Override
+    protected synchronized OutputStream getOutputStream() throws IOException {
+        if (mLink == null) throw new IOException("Not connected");
+        return mLink.mFromHost;
+    }
+
+    @Nullable
+    @Override
+    protected synchronized WritableByteChannel getOutputChannel() throws IOException {
+        if (!mOutputChannel) {
+            return null;
+        }
+        final OutputStream out = getOutputStream();
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int length = src.remaining();
+                byte[] bytes = new byte[length];
+                src.get(bytes);
+                out.write(bytes, 0, length);
+                mChannelBytes.addAndGet(length);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Packet in flight, with the time it arrives at the other end.
+     */
+    private static final class Delivery {
+        final long mDueNanos;
+        @Nullable
+        final byte[] mBytes;
+        /** The binary stream that followed a STREAM BINARY command */
+        @Nullable
+        final byte[] mStream;
+
+        Delivery(long dueNanos, @Nullable byte[] bytes) {
+            this(dueNanos, bytes, null);
+        }
+
+        Delivery(long dueNanos, @Nullable byte[] bytes, @Nullable byte[] stream) {
+            mDueNanos = dueNanos;
+            mBytes = bytes;
+            mStream = stream;
+        }
+    }
+
+    /**
+     * @param packet A packet from the host
+     * @return The length of the binary stream that follows it, if it's a STREAM BINARY, else 0
+     */
+    private static int getStreamSize(@NonNull byte[] packet) {
+        if (packet.length < 8 || packet[3] != 0x00 || packet[4] != (byte) 0xD7) {
+            return 0;
+        }
+        // Stream_Size, dfa302, is always 3 bytes
+        for (int i = 8; i + 6 < packet.length; i++) {
+            if (packet[i] == (byte) 0xDF && packet[i + 1] == (byte) 0xA3
+                    && packet[i + 2] == 0x02 && packet[i + 3] == 0x03) {
+                return (ubyteToInt(packet[i + 4]) << 16)
+                        | (ubyteToInt(packet[i + 5]) << 8)
+                        | ubyteToInt(packet[i + 6]);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The two directions of the simulated link and the device thread.
+     */
+    private final class Link {
+
+        final LinkedBlockingQueue<Delivery> mToDevice = new LinkedBlockingQueue<>();
+        final LinkedBlockingQueue<Delivery> mToHostQueue = new LinkedBlockingQueue<>();
+        final BytePipe mToHost = new BytePipe();
+        final HostOutputStream mFromHost = new HostOutputStream();
+        final Thread mDeviceThread;
+        final Thread mDeliveryThread;
+        volatile boolean mClosed;
+
+        /** When the uplink is next free, in nanoTime */
+        private long mUplinkFreeNanos;
+        /** When the downlink is next free, in nanoTime */
+        private long mDownlinkFreeNanos;
+
+        Link() {
+            mDeviceThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deviceLoop();
+                }
+            }, "SimulatedDevice");
+            mDeliveryThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliveryLoop();
+                }
+            }, "SimulatedDevice-link");
+            mDeviceThread.setDaemon(true);
+            mDeliveryThread.setDaemon(true);
+        }
+
+        void start() {
+            mDeviceThread.start();
+            mDeliveryThread.start();
+        }
+
+        void close() {
+            mClosed = true;
+            mToHost.close();
+            mToDevice.offer(new Delivery(0L, null));
+            mToHostQueue.offer(new Delivery(0L, null));
+        }
+
+        synchronized long uplinkDue(int length) {
+            long now = System.nanoTime();
+            long start = Math.max(now, mUplinkFreeNanos);
+            mUplinkFreeNanos = start + transmitNanos(length);
+            return mUplinkFreeNanos + mLatencyNanos;
+        }
+
+        synchronized long downlinkDue(int length) {
+            long now = System.nanoTime();
+            long start = Math.max(now, mDownlinkFreeNanos);
+            mDownlinkFreeNanos = start + transmitNanos(length);
+            return mDownlinkFreeNanos + mLatencyNanos;
+        }
+
+        private long transmitNanos(int length) {
+            long bps = mBytesPerSecond;
+            return bps <= 0L ? 0L : (length * 1000000000L) / bps;
+        }
+
+        void sendToHost(InterfaceType nad, int pcb, byte[] apdu) {
+            int offset = 0;
+            do {
+                offset = sendPacketToHost(nad, pcb, apdu, offset);
+            } while (offset < apdu.length);
+        }
+
+        /**
+         * Send the next packet of an apdu, chained if there's more to follow.
+         *
+         * @return The offset of the rest of the apdu
+         */
+        synchronized int sendPacketToHost(InterfaceType nad, int pcb, byte[] apdu, int offset) {
+            int len = Math.min(MpiPacket.MAX_APDU_SIZE, apdu.length - offset);
+            if (apdu.length - offset - len == 1) {
+                // packets must carry at least 2 bytes, so leave 2 for the last one
+                len--;
+            }
+            boolean last = offset + len >= apdu.length;
+            byte[] chunk = Arrays.copyOfRange(apdu, offset, offset + len);
+            int thisPcb = last ? pcb : (pcb | PCB_CHAINED);
+            byte[] bytes = new MpiPacket(nad.getInterfaceType(), thisPcb, chunk).getBytes();
+            mToHostQueue.offer(new Delivery(downlinkDue(bytes.length), bytes));
+            return offset + len;
+        }
+
+        void deviceLoop() {
+            try {
+                while (true) {
+                    Delivery delivery = mToDevice.take();
+                    if (delivery.mBytes == null || mClosed) {
+                        return;
+                    }
+                    sleepUntil(delivery.mDueNanos);
+                    if (mProcessingNanos > 0L) {
+                        sleepUntil(System.nanoTime() + mProcessingNanos);
+                    }
+
+                    byte[] packet = delivery.mBytes;
+                    InterfaceType nad = InterfaceType.valueOf(packet[0]);
+                    int len = ubyteToInt(packet[2]);
+                    byte[] command = Arrays.copyOfRange(packet, 3, 3 + len);
+
+                    if (delivery.mStream != null && mHandler instanceof StreamHandler) {
+                        ((StreamHandler) mHandler).handleStream(
+                                SimulatedDevice.this, nad, delivery.mStream);
+                    }
+
+                    mCommandsHandled.incrementAndGet();
+                    byte[] response = mHandler.handle(SimulatedDevice.this, nad, command);
+                    if (response != null) {
+                        sendToHost(nad, 0, response);
+                    }
+                }
+            } catch (InterruptedException ignore) {
+            }
+        }
+
+        void deliveryLoop() {
+            try {
+                while (true) {
+                    Delivery delivery = mToHostQueue.take();
+                    if (delivery.mBytes == null) {
+                        return;
+                    }
+                    sleepUntil(delivery.mDueNanos);
+                    mToHost.write(delivery.mBytes);
+                }
+            } catch (InterruptedException ignore) {
+            }
+        }
+
+        /**
+         * The host's view of the link's output. Splits the byte stream into packets, and
+         * collects the binary streams that follow STREAM BINARY commands.
+         */
+        private final class HostOutputStream extends OutputStream {
+
+            private final byte[] mPacket = new byte[MpiPacket.MAX_APDU_SIZE + 4];
+            private int mFill;
+
+            /** The STREAM BINARY whose stream is being collected */
+            @Nullable
+            private byte[] mStreamCommand;
+            @Nullable
+            private byte[] mStream;
+            private int mStreamFill;
+
+            @Override
+            public synchronized void write(int b) throws IOException {
+                if (mClosed) {
+                    throw new IOException("Link closed");
+                }
+                if (mStream != null) {
+                    mStream[mStreamFill++] = (byte) b;
+                    if (mStreamFill == mStream.length) {
+                        deliverStream();
+                    }
+                    return;
+                }
+                mPacket[mFill++] = (byte) b;
+                if (mFill >= 3 && mFill == ubyteToInt(mPacket[2]) + 4) {
+                    byte[] bytes = Arrays.copyOf(mPacket, mFill);
+                    mFill = 0;
+                    int streamSize = getStreamSize(bytes);
+                    if (streamSize > 0) {
+                        mStreamCommand = bytes;
+                        mStream = new byte[streamSize];
+                        mStreamFill = 0;
+                    } else {
+                        mToDevice.offer(new Delivery(uplinkDue(bytes.length), bytes));
+                    }
+                }
+            }
+
+            @Override
+            public synchronized void write(@NonNull byte[] b, int off, int len)
+                    throws IOException {
+                while (len > 0) {
+                    if (mStream != null && !mClosed) {
+                        int n = Math.min(len, mStream.length - mStreamFill);
+                        System.arraycopy(b, off, mStream, mStreamFill, n);
+                        mStreamFill += n;
+                        off += n;
+                        len -= n;
+                        if (mStreamFill == mStream.length) {
+                            deliverStream();
+                        }
+                    } else {
+                        write(b[off]);
+                        off++;
+                        len--;
+                    }
+                }
+            }
+
+            private void deliverStream() throws IOException {
+                try {
+                    sleepUntil(System.nanoTime() + mStreamWriteNanos);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted writing stream");
+                }
+                byte[] command = mStreamCommand;
+                byte[] stream = mStream;
+                mStreamCommand = null;
+                mStream = null;
+                mToDevice.offer(new Delivery(
+                        uplinkDue(command.length + stream.length), command, stream));
+            }
+        }
+    }
+
+    /**
+     * Sleep until the given System.nanoTime()
+     *
+     * @param dueNanos when to wake up
+     * @throws InterruptedException if interrupted
+     */
+    private static void sleepUntil(long dueNanos) throws InterruptedException {
+        long remaining = dueNanos - System.nanoTime();
+        if (remaining > 0L) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    /**
+     * Unbounded blocking byte pipe. Unlike PipedInputStream it doesn't care which
+     * threads are reading or writing.
+     */
+    private static final class BytePipe extends InputStream {
+
+        private byte[] mBuffer = new byte[4096];
+        private int mRead;
+        private int mWrite;
+        private boolean mClosed;
+
+        synchronized void write(byte[] bytes) {
+            if (mClosed) {
+                return;
+            }
+            if (mWrite + bytes.length > mBuffer.length) {
+                int used = mWrite - mRead;
+                byte[] newBuffer = mBuffer;
+                if (used + bytes.length > mBuffer.length) {
+                    newBuffer = new byte[Math.max(mBuffer.length * 2, used + bytes.length)];
+                }
+                System.arraycopy(mBuffer, mRead, newBuffer, 0, used);
+                mBuffer = newBuffer;
+                mRead = 0;
+                mWrite = used;
+            }
+            System.arraycopy(bytes, 0, mBuffer, mWrite, bytes.length);
+            mWrite += bytes.length;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : ubyteToInt(b[0]);
+        }
+
+        @Override
+        public synchronized int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (mRead == mWrite && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (mRead == mWrite) {
+                return -1;
+            }
+            int n = Math.min(len, mWrite - mRead);
+            System.arraycopy(mBuffer, mRead, b, off, n);
+            mRead += n;
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return mWrite - mRead;
+        }
+    }
+}
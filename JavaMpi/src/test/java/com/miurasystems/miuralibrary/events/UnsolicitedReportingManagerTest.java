@@ -0,0 +1,223 @@
+/*
+ * Copyright © 2017 Miura Systems Ltd. All rights reserved.
+ */
+package com.miurasystems.miuralibrary.events;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.support.annotation.NonNull;
+
+import com.miurasystems.miuralibrary.MpiClient;
+import com.miurasystems.miuralibrary.enums.BacklightSettings;
+import com.miurasystems.miuralibrary.enums.InterfaceType;
+import com.miurasystems.miuralibrary.enums.M012Printer;
+import com.miurasystems.miuralibrary.enums.StatusSettings;
+import com.miurasystems.miuralibrary.tlv.CardData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class UnsolicitedReportingManagerTest {
+
+    private static final long WINDOW_MS = 20L;
+    private static final long WAIT_MS = 1000L;
+
+    private ScheduledExecutorService mExecutor;
+    private MpiEvents mEvents;
+    private MpiClient mClient;
+
+    @Before
+    public void setup() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mEvents = new MpiEvents();
+        mClient = mock(MpiClient.class);
+        when(mClient.getMpiEvents()).thenReturn(mEvents);
+        when(mClient.keyboardStatus(
+                any(InterfaceType.class), any(StatusSettings.class),
+                any(BacklightSettings.class))).thenReturn(true);
+        when(mClient.barcodeStatus(any(InterfaceType.class), anyBoolean())).thenReturn(true);
+        when(mClient.printerSledStatus(any(InterfaceType.class), anyBoolean())).thenReturn(true);
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        mExecutor.shutdownNow();
+        mExecutor.awaitTermination(1L, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Registering a handler enables reporting, deregistering disables it.
+     */
+    @Test
+    public void enableThenDisable() throws InterruptedException {
+        // setup
+        UnsolicitedReportingManager manager =
+                new UnsolicitedReportingManager(mClient, mExecutor, WINDOW_MS);
+        manager.start();
+        MpiEventHandler<String> handler = new NullHandler<>();
+
+        // execute
+        mEvents.BarcodeScanned.register(handler);
+        verify(mClient, timeout(WAIT_MS)).barcodeStatus(InterfaceType.RPI, true);
+
+        mEvents.BarcodeScanned.deregister(handler);
+        verify(mClient, timeout(WAIT_MS)).barcodeStatus(InterfaceType.RPI, false);
+
+        // verify
+        assertThat(manager.getCommandsSent(), is(equalTo(2)));
+        assertThat(manager.isDesired(UnsolicitedReportingManager.Feature.BarcodeScanned),
+                is(false));
+    }
+
+    /**
+     * Changes within a window are collapsed: a register/deregister pair sends nothing.
+     */
+    @Test
+    public void togglesWithinWindowCancelOut() throws InterruptedException {
+        // setup
+        UnsolicitedReportingManager manager =
+                new UnsolicitedReportingManager(mClient, mExecutor, WINDOW_MS);
+        manager.start();
+        MpiEventHandler<Integer> handler = new NullHandler<>();
+
+        // execute
+        for (int i = 0; i < 10; i++) {
+            mEvents.KeyPressed.register(handler);
+            mEvents.KeyPressed.deregister(handler);
+        }
+        Thread.sleep(WINDOW_MS * 5L);
+
+        // verify
+        verify(mClient, never()).keyboardStatus(
+                any(InterfaceType.class), any(StatusSettings.class),
+                any(BacklightSettings.class));
+        assertThat(manager.getCommandsSent(), is(equalTo(0)));
+    }
+
+    /**
+     * Several subscriptions in one window result in one command each, with the
+     * card options applied.
+     */
+    @Test
+    public void batchedEnable() throws InterruptedException {
+        // setup
+        UnsolicitedReportingManager manager =
+                new UnsolicitedReportingManager(mClient, mExecutor, WINDOW_MS);
+        manager.setCardStatusOptions(true, false, true, false);
+        manager.start();
+
+        // execute
+        mEvents.CardStatusChanged.register(new NullHandler<CardData>());
+        mEvents.KeyPressed.register(new NullHandler<Integer>());
+        mEvents.PrinterStatusChanged.register(new NullHandler<M012Printer>());
+        mEvents.CardStatusChanged.register(new NullHandler<CardData>());
+
+        // verify
+        verify(mClient, timeout(WAIT_MS)).cardStatus(
+                InterfaceType.MPI, true, true, false, true, false);
+        verify(mClient, timeout(WAIT_MS)).keyboardStatus(
+                InterfaceType.MPI, StatusSettings.Enable, BacklightSettings.NoChange);
+        verify(mClient, timeout(WAIT_MS)).printerSledStatus(InterfaceType.MPI, true);
+        Thread.sleep(WINDOW_MS * 3L);
+        assertThat(manager.getCommandsSent(), is(equalTo(3)));
+        verify(mClient, never()).barcodeStatus(any(InterfaceType.class), anyBoolean());
+    }
+
+    /**
+     * Handlers registered before start() are picked up, and resync() pushes everything.
+     */
+    @Test
+    public void startAndResync() throws InterruptedException {
+        // setup
+        mEvents.BarcodeScanned.register(new NullHandler<String>());
+        UnsolicitedReportingManager manager =
+                new UnsolicitedReportingManager(mClient, mExecutor, WINDOW_MS);
+
+        // execute
+        manager.start();
+        verify(mClient, timeout(WAIT_MS)).barcodeStatus(InterfaceType.RPI, true);
+        manager.resync();
+
+        // verify
+        verify(mClient, timeout(WAIT_MS).times(2)).barcodeStatus(InterfaceType.RPI, true);
+        verify(mClient, timeout(WAIT_MS)).cardStatus(
+                InterfaceType.MPI, false, false, false, false, false);
+        verify(mClient, timeout(WAIT_MS)).keyboardStatus(
+                InterfaceType.MPI, StatusSettings.Disable, BacklightSettings.NoChange);
+        verify(mClient, timeout(WAIT_MS)).printerSledStatus(InterfaceType.MPI, false);
+    }
+
+    /**
+     * A failed command is retried at the next flush, and stop() detaches the observers.
+     */
+    @Test
+    public void failureRetriedAndStop() throws InterruptedException {
+        // setup
+        when(mClient.barcodeStatus(InterfaceType.RPI, true)).thenReturn(false, true);
+        UnsolicitedReportingManager manager =
+                new UnsolicitedReportingManager(mClient, mExecutor, WINDOW_MS);
+        manager.start();
+        MpiEventHandler<Integer> keyHandler = new NullHandler<>();
+
+        // execute
+        mEvents.BarcodeScanned.register(new NullHandler<String>());
+        verify(mClient, timeout(WAIT_MS)).barcodeStatus(InterfaceType.RPI, true);
+        mEvents.KeyPressed.register(keyHandler);
+        verify(mClient, timeout(WAIT_MS).times(2)).barcodeStatus(InterfaceType.RPI, true);
+
+        manager.stop();
+        mEvents.KeyPressed.deregister(keyHandler);
+        Thread.sleep(WINDOW_MS * 5L);
+
+        // verify
+        verify(mClient, times(1)).keyboardStatus(
+                any(InterfaceType.class), any(StatusSettings.class),
+                any(BacklightSettings.class));
+    }
+
+    /**
+     * A failed command is retried with backoff, without waiting for another subscription change.
+     */
+    @Test
+    public void failureRetriedWithBackoff() throws InterruptedException {
+        // setup
+        when(mClient.printerSledStatus(InterfaceType.MPI, true)).thenReturn(false, false, true);
+        UnsolicitedReportingManager manager =
+                new UnsolicitedReportingManager(mClient, mExecutor, WINDOW_MS);
+        manager.start();
+        long start = System.nanoTime();
+
+        // execute
+        mEvents.PrinterStatusChanged.register(new NullHandler<M012Printer>());
+
+        // verify
+        long retries = UnsolicitedReportingManager.INITIAL_RETRY_DELAY_MS * 3L;
+        verify(mClient, timeout(WAIT_MS + retries).times(3))
+                .printerSledStatus(InterfaceType.MPI, true);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat(elapsedMs >= retries, is(true));
+        Thread.sleep(UnsolicitedReportingManager.INITIAL_RETRY_DELAY_MS * 2L);
+        assertThat(manager.getCommandsSent(), is(equalTo(3)));
+    }
+
+    private static final class NullHandler<T> implements MpiEventHandler<T> {
+        @Override
+        public void handle(@NonNull T arg) {
+        }
+    }
+}
@@ -217,6 +217,54 @@ public class CardDataTest {
 
     }
 
+    @Test
+    public void valueOf_settersReplaceLazyValues() {
+        // Setup
+        TLVObject cardStatusTlv = new TLVObject(Description.Card_Status, decodeHex("0300"));
+        TLVObject atrTlv = new TLVObject(
+                Description.ICC_Answer_To_Reset,
+                decodeHex("3B6900002494010301000100A9")
+        );
+        TLVObject sredKsnTlv = new TLVObject(
+                Description.SRED_KSN,
+                decodeHex("00000200000055400182")
+        );
+        TLVObject responseDataTlv = new TLVObject(
+                Description.Response_Data, Arrays.asList(cardStatusTlv, atrTlv, sredKsnTlv));
+
+        // Test
+        CardData cardData = CardData.valueOf(responseDataTlv);
+        cardData.setSredKSN("replaced");
+
+        // Verify
+        assertThat(cardData.getCardStatus().isCardPresent(), is(true));
+        assertThat(cardData.getAnswerToReset(), is(equalTo("3b6900002494010301000100a9")));
+        assertThat(cardData.getSredKSN(), is(equalTo("replaced")));
+        assertThat(cardData.getSredData(), is(nullValue()));
+        assertThat(cardData.getMaskedTrack2Data().isMasked(), is(true));
+        assertThat(cardData.getMaskedTrack2Data().getPAN(), is(nullValue()));
+    }
+
+    @Test
+    public void dataToString_matchesRegexConversion() {
+        for (int b = 0; b < 256; b++) {
+            byte[] data = {'A', (byte) b, '1'};
+
+            String expected;
+            if (new String(data).matches("[\\p{Alnum}\\p{Punct}\\p{Space}]*")) {
+                expected = new String(data);
+            } else {
+                StringBuilder sb = new StringBuilder();
+                for (byte d : data) {
+                    sb.append(String.format("%2s", Integer.toHexString(d & 0xFF)).replace(' ', '0'));
+                }
+                expected = sb.toString();
+            }
+
+            assertThat("byte " + b, TLVObject.dataToString(data), is(equalTo(expected)));
+        }
+    }
+
     private static byte[] decodeHex(String string) {
         return BinaryUtil.parseHexBinary(string);
     }
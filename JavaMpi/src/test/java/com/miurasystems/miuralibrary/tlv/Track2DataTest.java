@@ -7,9 +7,13 @@ import com.miurasystems.miuralibrary.JavaBeanTester;
 
 import org.junit.Test;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.isEmptyOrNullString;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class Track2DataTest {
 
@@ -24,4 +28,63 @@ public class Track2DataTest {
     public void testGetSets() throws Exception {
         JavaBeanTester.test(Track2Data.class);
     }
+
+    @Test
+    public void valueOf_parsesOnDemand() throws Exception {
+        // setup
+        byte[] raw = ";4761739001010010=15122011143857589?".getBytes("US-ASCII");
+        Track2Data track2Data = Track2Data.valueOf(raw, false);
+
+        // execute
+        track2Data.setPAN("replaced");
+
+        // verify
+        assertThat(track2Data.getPAN(), is(equalTo("replaced")));
+        assertThat(track2Data.getExpirationDate(), is(equalTo("1512")));
+        assertThat(track2Data.getServiceCode().getServiceCode(), is(equalTo("201")));
+        assertThat(track2Data.getRaw(), is(sameInstance(raw)));
+        assertThat(track2Data.isMasked(), is(false));
+    }
+
+    @Test
+    public void valueOf_emptyFields() throws Exception {
+        // setup
+        byte[] raw = ";4761739001010010==2011143857589?".getBytes("US-ASCII");
+
+        // execute
+        Track2Data track2Data = Track2Data.valueOf(raw, true);
+
+        // verify
+        assertThat(track2Data.getPAN(), is(equalTo("4761739001010010")));
+        assertThat(track2Data.getExpirationDate(), is(equalTo("")));
+        assertThat(track2Data.getServiceCode().getServiceCode(), is(equalTo("201")));
+        assertThat(track2Data.toString(), not(isEmptyOrNullString()));
+    }
+
+    @Test
+    public void valueOf_malformedThrowsUpFront() throws Exception {
+        String[] malformed = {
+                "",
+                ";4761739001010010",
+                "=1512201",
+                ";4761739001010010=",
+                ";4761739001010010=151",
+                ";4761739001010010=1512",
+                ";4761739001010010=151220",
+                ";4761739001010010==",
+        };
+
+        for (String track : malformed) {
+            // setup
+            byte[] raw = track.getBytes("US-ASCII");
+
+            // execute
+            try {
+                Track2Data.valueOf(raw, false);
+                fail("Expected valueOf to reject " + track);
+            } catch (StringIndexOutOfBoundsException ignore) {
+                // verify
+            }
+        }
+    }
 }